@@ -0,0 +1,196 @@
+package kvstore;
+
+/**
+ * Adaptive Replacement Cache, applied to each set on its own. Entries seen
+ * once sit in list T1 and entries seen again in T2, both kept in LRU order.
+ * The hashes of keys recently evicted from T1 and T2 are remembered as
+ * ghosts in B1 and B2. A miss on a key found in B1 means T1 was too small
+ * and moves the target size of T1 up; a miss found in B2 moves it down. A
+ * full set evicts from the front of T1 while T1 is over its target, from the
+ * front of T2 otherwise. A burst of keys seen once therefore only churns T1
+ * and leaves the entries of T2 alone.
+ */
+public class ARCPolicy implements EvictionPolicy {
+
+    private static final byte T1 = 1;
+    private static final byte T2 = 2;
+
+    private int slotsPerSet;
+    /* T1 of set s is list 2 * s, T2 is list 2 * s + 1 */
+    private SlotList lists;
+    /* Which list each slot is in, 0 if none, and the hash of its key */
+    private byte[] where;
+    private int[] hashes;
+
+    /* Ghosts of each set, oldest first, at most slotsPerSet of each */
+    private int[] b1;
+    private int[] b2;
+    private int[] b1Size;
+    private int[] b2Size;
+
+    /* Per set: target size of T1, and the list evict chose for the next insert */
+    private int[] target;
+    private byte[] pending;
+
+    @Override
+    public void init(int numSets, int slotsPerSet) {
+        int slots = numSets * slotsPerSet;
+        this.slotsPerSet = slotsPerSet;
+        lists = new SlotList(slots, 2 * numSets);
+        where = new byte[slots];
+        hashes = new int[slots];
+        b1 = new int[slots];
+        b2 = new int[slots];
+        b1Size = new int[numSets];
+        b2Size = new int[numSets];
+        target = new int[numSets];
+        pending = new byte[numSets];
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        byte list = pending[set];
+        pending[set] = 0;
+        if (list == 0) {
+            list = adapt(set, hash);
+        }
+        where[slot] = list;
+        hashes[slot] = hash;
+        lists.addLast(list(set, list), slot);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        if (where[slot] == T2) {
+            lists.moveToLast(list(set, T2), slot);
+        } else {
+            lists.remove(list(set, T1), slot);
+            lists.addLast(list(set, T2), slot);
+            where[slot] = T2;
+        }
+    }
+
+    @Override
+    public void updated(int set, int slot) {
+        hit(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        lists.remove(list(set, where[slot]), slot);
+        where[slot] = 0;
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        boolean inB2 = indexOf(b2, b2Size, set, hash) >= 0;
+        pending[set] = adapt(set, hash);
+        byte from = replaceFrom(set, target[set], inB2);
+        int slot = lists.first(list(set, from));
+        lists.remove(list(set, from), slot);
+        where[slot] = 0;
+        if (from == T1) {
+            remember(b1, b1Size, set, hashes[slot]);
+        } else {
+            remember(b2, b2Size, set, hashes[slot]);
+        }
+        return slot;
+    }
+
+    @Override
+    public int victim(int set, int hash) {
+        boolean inB2 = indexOf(b2, b2Size, set, hash) >= 0;
+        return lists.first(list(set, replaceFrom(set, targetAfter(set, hash), inB2)));
+    }
+
+    /**
+     * The list a full set evicts from, given the target size of T1.
+     */
+    private byte replaceFrom(int set, int target, boolean inB2) {
+        int t1 = lists.size(list(set, T1));
+        if (t1 > 0 && (t1 > target || (inB2 && t1 == target)
+                || lists.size(list(set, T2)) == 0)) {
+            return T1;
+        }
+        return T2;
+    }
+
+    /**
+     * Look for a ghost of hash, adjusting the target size of T1 and
+     * forgetting the ghost if one is found.
+     *
+     * @return the list the new entry belongs in
+     */
+    private byte adapt(int set, int hash) {
+        int i = indexOf(b1, b1Size, set, hash);
+        if (i >= 0) {
+            target[set] = targetAfter(set, hash);
+            forget(b1, b1Size, set, i);
+            return T2;
+        }
+        i = indexOf(b2, b2Size, set, hash);
+        if (i >= 0) {
+            target[set] = targetAfter(set, hash);
+            forget(b2, b2Size, set, i);
+            return T2;
+        }
+        return T1;
+    }
+
+    /**
+     * The target size of T1 once a miss on hash has been seen: larger after
+     * a ghost hit in B1, smaller after one in B2.
+     */
+    private int targetAfter(int set, int hash) {
+        if (indexOf(b1, b1Size, set, hash) >= 0) {
+            int step = Math.max(b2Size[set] / b1Size[set], 1);
+            return Math.min(slotsPerSet, target[set] + step);
+        }
+        if (indexOf(b2, b2Size, set, hash) >= 0) {
+            int step = Math.max(b1Size[set] / b2Size[set], 1);
+            return Math.max(0, target[set] - step);
+        }
+        return target[set];
+    }
+
+    private int list(int set, byte list) {
+        return 2 * set + list - 1;
+    }
+
+    private int indexOf(int[] ghosts, int[] sizes, int set, int hash) {
+        int base = set * slotsPerSet;
+        for (int i = base; i < base + sizes[set]; i++) {
+            if (ghosts[i] == hash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void forget(int[] ghosts, int[] sizes, int set, int i) {
+        int end = set * slotsPerSet + --sizes[set];
+        System.arraycopy(ghosts, i + 1, ghosts, i, end - i);
+    }
+
+    private void remember(int[] ghosts, int[] sizes, int set, int hash) {
+        int base = set * slotsPerSet;
+        if (sizes[set] == slotsPerSet) {
+            forget(ghosts, sizes, set, base);
+        }
+        ghosts[base + sizes[set]++] = hash;
+    }
+
+    @Override
+    public int[] order(int set) {
+        int[] t1 = lists.toArray(list(set, T1));
+        int[] t2 = lists.toArray(list(set, T2));
+        int[] slots = java.util.Arrays.copyOf(t1, t1.length + t2.length);
+        System.arraycopy(t2, 0, slots, t1.length, t2.length);
+        return slots;
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return where[slot] == T2;
+    }
+}
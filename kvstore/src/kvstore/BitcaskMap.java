@@ -0,0 +1,865 @@
+package kvstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A ConcurrentMap from String to String kept in a directory on disk, Bitcask
+ * style. KVStore uses it when made with a directory.
+ *
+ * Every write appends a record to the active data file: a CRC32, a sequence
+ * number, an expiry time, the key and the value, or no value for a delete.
+ * The map keeps in memory only where each key's latest record is, and a get
+ * reads that one record with a positional FileChannel read and checks its
+ * CRC. Writes are serialized on the map; gets lock nothing. The active file
+ * is closed for writing once it reaches maxFileSize, and a new one started.
+ *
+ * Overwritten and deleted records stay behind as garbage until a merge.
+ * A background thread merges once a quarter file of garbage makes up half of
+ * the closed files: it copies each record still in use to new files, writes
+ * a hint file beside each listing the keys it holds and where, and then
+ * deletes the files merged, the one with the oldest newest record first. A
+ * get that finds its file deleted under it looks the key up again.
+ *
+ * Opening the directory rebuilds the index from the hint file of each data
+ * file that has one and by reading the others through, stopping at the first
+ * torn or corrupt record, which is cut off. The record with the highest
+ * sequence number wins, so files may be read in any order, and a crash in
+ * the middle of a merge only leaves records twice. Writes reach the
+ * operating system at once, and the disk when a file is closed or on sync.
+ */
+class BitcaskMap extends AbstractMap<String, String> implements DiskMap {
+
+    static final long DEFAULT_MAX_FILE_SIZE = 64 << 20;
+
+    /* CRC32 int, sequence long, expiry long, key length int and value
+       length int, -1 for a delete */
+    private static final int HEADER = 28;
+    private static final int NO_VALUE = -1;
+    private static final long MERGE_CHECK_MILLIS = 1000;
+    private static final String DATA = ".data";
+    private static final String HINT = ".hint";
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    /**
+     * Where the latest record of a key is. Compared by identity.
+     */
+    private static class Location {
+        final int file;
+        final long position;
+        final int length;
+        final long expiresAt;
+
+        Location(int file, long position, int length, long expiresAt) {
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A data file, with what it holds.
+     */
+    private static class DataFile extends PositionalFile {
+        final int id;
+        /* Bytes written, and bytes of those since overwritten or deleted */
+        final AtomicLong size = new AtomicLong();
+        final AtomicLong dead = new AtomicLong();
+        /* Sequence number of its newest record, -1 if it has none. A merge
+           output holds copies older than the active file beside it, so this
+           and not id says which of two files is older. */
+        volatile long maxSeq = -1;
+
+        DataFile(int id, File path) throws IOException {
+            super(path);
+            this.id = id;
+        }
+    }
+
+    /**
+     * Reads the records of a data file in order, from a buffer refilled a
+     * chunk at a time. next stops at the end of the file or at the first
+     * record that is cut short or fails its CRC.
+     */
+    private static class RecordReader {
+        private final DataFile file;
+        private final long end;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        /* File position of buffer's first byte */
+        private long bufferStart;
+
+        long position;
+        long seq;
+        long expiresAt;
+        String key;
+        int length;
+        boolean deleted;
+
+        RecordReader(DataFile file, long end) {
+            this.file = file;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        /**
+         * Step to the next record.
+         *
+         * @return false at the end of the good records
+         */
+        boolean next() throws IOException {
+            position += length;
+            length = 0;
+            if (!fill(HEADER)) {
+                return false;
+            }
+            int offset = (int) (position - bufferStart);
+            int keyLength = buffer.getInt(offset + 20);
+            int valueLength = buffer.getInt(offset + 24);
+            if (keyLength < 0 || valueLength < NO_VALUE) {
+                return false;
+            }
+            long total = (long) HEADER + keyLength + Math.max(valueLength, 0);
+            if (total > Integer.MAX_VALUE || !fill((int) total)) {
+                return false;
+            }
+            offset = (int) (position - bufferStart);
+            if (!checksumOk(buffer.array(), offset, (int) total)) {
+                return false;
+            }
+            seq = buffer.getLong(offset + 4);
+            expiresAt = buffer.getLong(offset + 12);
+            key = new String(buffer.array(), offset + HEADER, keyLength, UTF8);
+            deleted = valueLength == NO_VALUE;
+            length = (int) total;
+            return true;
+        }
+
+        /**
+         * The bytes of the current record.
+         */
+        ByteBuffer record() {
+            int offset = (int) (position - bufferStart);
+            return ByteBuffer.wrap(buffer.array(), offset, length).slice();
+        }
+
+        /**
+         * Have the count bytes from position in buffer, or return false if
+         * the file ends first.
+         */
+        private boolean fill(int count) throws IOException {
+            if (position + count > end) {
+                return false;
+            }
+            if (position + count <= bufferStart + buffer.limit()) {
+                return true;
+            }
+            if (count > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(Math.max(count, buffer.capacity() * 2));
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            file.read(buffer, position);
+            buffer.flip();
+            bufferStart = position;
+            return true;
+        }
+    }
+
+    private final File directory;
+    private final long maxFileSize;
+    private final ConcurrentHashMap<String, Location> index =
+        new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<Integer, DataFile> files =
+        new ConcurrentHashMap<Integer, DataFile>();
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    /* Guarded by this, like every write */
+    private DataFile active;
+    private long nextSeq;
+    private boolean closed;
+    /* Held by merge, clear and close */
+    private final Object mergeLock = new Object();
+    private final Thread merger;
+
+    /**
+     * Open the map kept in directory, making the directory if need be.
+     *
+     * @param directory where the data and hint files are
+     * @param maxFileSize bytes after which a data file is closed for writing
+     * @throws IOException if the files cannot be read or created
+     */
+    BitcaskMap(File directory, long maxFileSize) throws IOException {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+        active = newFile();
+        merger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(MERGE_CHECK_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        if (needsMerge()) {
+                            merge();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "BitcaskMap merger");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    @Override
+    public String get(Object key) {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                // merged away, unless the map was closed
+                if (index.get(key) == location) {
+                    throw new IllegalStateException("Store is closed", e);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read " + key, e);
+            }
+        }
+    }
+
+    /**
+     * When key expires.
+     *
+     * @return its expiry time, or KVMessage.NO_TTL for none or no key
+     */
+    long getExpiresAt(String key) {
+        Location location = index.get(key);
+        return location == null ? KVMessage.NO_TTL : location.expiresAt;
+    }
+
+    @Override
+    public Map<String, Long> expiries() {
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        for (Map.Entry<String, Location> e : index.entrySet()) {
+            if (e.getValue().expiresAt != KVMessage.NO_TTL) {
+                expiries.put(e.getKey(), e.getValue().expiresAt);
+            }
+        }
+        return expiries;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+        String old = get(key);
+        put(key, value, KVMessage.NO_TTL);
+        return old;
+    }
+
+    @Override
+    public synchronized void put(String key, String value, long expiresAt) {
+        Location location = append(key, value, expiresAt);
+        discard(index.put(key, location));
+    }
+
+    @Override
+    public synchronized String remove(Object key) {
+        String old = get(key);
+        if (old != null) {
+            delete((String) key);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized String putIfAbsent(String key, String value) {
+        String old = get(key);
+        if (old == null) {
+            put(key, value, KVMessage.NO_TTL);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        String old = get(key);
+        if (old == null || !old.equals(value)) {
+            return false;
+        }
+        delete((String) key);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(String key, String oldValue, String newValue) {
+        String old = get(key);
+        if (old == null || !old.equals(oldValue)) {
+            return false;
+        }
+        put(key, newValue, KVMessage.NO_TTL);
+        return true;
+    }
+
+    @Override
+    public synchronized String replace(String key, String value) {
+        String old = get(key);
+        if (old != null) {
+            put(key, value, KVMessage.NO_TTL);
+        }
+        return old;
+    }
+
+    /**
+     * Delete every key and every file.
+     */
+    @Override
+    public void clear() {
+        synchronized (mergeLock) {
+            synchronized (this) {
+                checkOpen();
+                index.clear();
+                try {
+                    for (DataFile file : new ArrayList<DataFile>(files.values())) {
+                        dropFile(file);
+                    }
+                    active = newFile();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot clear " + directory, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Force what was written so far to disk.
+     *
+     * @throws IOException if the disk cannot be written
+     */
+    synchronized void sync() throws IOException {
+        checkOpen();
+        active.force();
+    }
+
+    /**
+     * Stop merging, force the active file to disk and close every file.
+     */
+    @Override
+    public void close() throws IOException {
+        merger.interrupt();
+        synchronized (mergeLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                active.force();
+                for (DataFile file : files.values()) {
+                    file.retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent, like ConcurrentHashMap's views: entries removed
+     * while iterating are skipped. Entries are read-only.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public int size() {
+                return index.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<String> keys = index.keySet().iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && keys.hasNext()) {
+                            String key = keys.next();
+                            String value = get(key);
+                            if (value != null) {
+                                next = new SimpleImmutableEntry<String, String>(key, value);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = next;
+                        next = null;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Whether the closed files hold enough garbage to be worth merging.
+     */
+    boolean needsMerge() {
+        long size = 0;
+        long dead = 0;
+        DataFile active;
+        synchronized (this) {
+            active = this.active;
+        }
+        for (DataFile file : files.values()) {
+            if (file != active) {
+                size += file.size.get();
+                dead += file.dead.get();
+            }
+        }
+        return dead >= maxFileSize / 4 && dead * 2 >= size;
+    }
+
+    /**
+     * Copy the records still in use from every closed data file to new
+     * files with hint files, and delete the old ones. Deletes and expired
+     * keys are left behind: every older record of their keys is in the
+     * files merged, since the active file only holds newer ones. The files
+     * merged are deleted in mergeOrder, so a crash part way through never
+     * keeps a record while deleting the newer one that overrules it.
+     *
+     * @throws IOException if the files cannot be read or written
+     */
+    void merge() throws IOException {
+        synchronized (mergeLock) {
+            List<DataFile> victims = closedFiles();
+            if (victims.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            MergeOutput out = new MergeOutput();
+            try {
+                for (DataFile victim : victims) {
+                    RecordReader records = new RecordReader(victim, victim.size.get());
+                    while (records.next()) {
+                        if (records.deleted) {
+                            continue;
+                        }
+                        Location location = index.get(records.key);
+                        if (location == null || location.file != victim.id
+                                || location.position != records.position) {
+                            continue;
+                        }
+                        if (records.expiresAt != KVMessage.NO_TTL && records.expiresAt <= now) {
+                            // nothing older survives the merge to bring it back
+                            index.remove(records.key, location);
+                            continue;
+                        }
+                        Location moved = out.copy(records);
+                        if (!index.replace(records.key, location, moved)) {
+                            files.get(moved.file).dead.addAndGet(moved.length);
+                        }
+                    }
+                }
+            } finally {
+                out.finish();
+            }
+            for (DataFile victim : victims) {
+                dropFile(victim);
+            }
+        }
+    }
+
+    /**
+     * The closed data files, the one with the oldest newest record first.
+     * Records are only ever overruled by newer ones, so deleting files in
+     * this order never deletes a record before one it overrules.
+     */
+    private List<DataFile> closedFiles() {
+        List<DataFile> closed = new ArrayList<DataFile>();
+        synchronized (this) {
+            checkOpen();
+            for (DataFile file : files.values()) {
+                if (file != active) {
+                    closed.add(file);
+                }
+            }
+        }
+        Collections.sort(closed, new Comparator<DataFile>() {
+            @Override
+            public int compare(DataFile a, DataFile b) {
+                return a.maxSeq < b.maxSeq ? -1 : (a.maxSeq == b.maxSeq ? 0 : 1);
+            }
+        });
+        return closed;
+    }
+
+    /**
+     * The data files the next merge would delete, in the order it would.
+     */
+    List<File> mergeOrder() {
+        List<File> order = new ArrayList<File>();
+        for (DataFile file : closedFiles()) {
+            order.add(file.path);
+        }
+        return order;
+    }
+
+    /**
+     * The files a merge writes, each with its hint file, begun and sealed
+     * with the data file.
+     */
+    private class MergeOutput {
+        private DataFile file;
+        private DataOutputStream hints;
+        private CRC32 hintCrc;
+        private int hintCount;
+
+        Location copy(RecordReader records) throws IOException {
+            if (file == null || file.size.get() + records.length > maxFileSize) {
+                finish();
+                file = newFile();
+                hintCrc = new CRC32();
+                hintCount = 0;
+                hints = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(hintFile(file.id))), hintCrc));
+            }
+            long position = file.size.get();
+            file.write(records.record(), position);
+            file.size.addAndGet(records.length);
+            file.maxSeq = Math.max(file.maxSeq, records.seq);
+            byte[] key = records.key.getBytes(UTF8);
+            hints.writeLong(records.seq);
+            hints.writeLong(records.expiresAt);
+            hints.writeLong(position);
+            hints.writeInt(records.length);
+            hints.writeInt(key.length);
+            hints.write(key);
+            hintCount++;
+            return new Location(file.id, position, records.length, records.expiresAt);
+        }
+
+        /**
+         * Force the current file to disk and seal its hint file with the
+         * count and CRC of its entries.
+         */
+        void finish() throws IOException {
+            if (file == null) {
+                return;
+            }
+            file.force();
+            hints.flush();
+            long crc = hintCrc.getValue();
+            hints.writeInt(hintCount);
+            hints.writeLong(crc);
+            hints.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Rebuild the index from the files in the directory.
+     */
+    private void recover() throws IOException {
+        Map<String, Long> seqs = new HashMap<String, Long>();
+        Map<String, Location> found = new HashMap<String, Location>();
+        long maxSeq = -1;
+        File[] names = directory.listFiles();
+        for (File name : names == null ? new File[0] : names) {
+            String n = name.getName();
+            if (!n.endsWith(DATA)) {
+                continue;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(n.substring(0, n.length() - DATA.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            DataFile file = new DataFile(id, name);
+            file.size.set(file.size());
+            files.put(id, file);
+            if (id >= nextFileId.get()) {
+                nextFileId.set(id + 1);
+            }
+            if (!readHints(file, seqs, found)) {
+                RecordReader records = new RecordReader(file, file.size.get());
+                long good = 0;
+                while (records.next()) {
+                    Location location = records.deleted ? null : new Location(
+                        id, records.position, records.length, records.expiresAt);
+                    take(records.key, records.seq, location, seqs, found);
+                    file.maxSeq = Math.max(file.maxSeq, records.seq);
+                    good = records.position + records.length;
+                }
+                if (good < file.size.get()) {
+                    // a torn write at the end, or a corrupt record
+                    file.truncate(good);
+                    file.size.set(good);
+                }
+            }
+        }
+        for (long seq : seqs.values()) {
+            maxSeq = Math.max(maxSeq, seq);
+        }
+        nextSeq = maxSeq + 1;
+        Map<Integer, Long> live = new HashMap<Integer, Long>();
+        for (Map.Entry<String, Location> e : found.entrySet()) {
+            Location location = e.getValue();
+            if (location != null) {
+                index.put(e.getKey(), location);
+                Long bytes = live.get(location.file);
+                live.put(location.file, (bytes == null ? 0 : bytes) + location.length);
+            }
+        }
+        for (DataFile file : files.values()) {
+            Long bytes = live.get(file.id);
+            file.dead.set(file.size.get() - (bytes == null ? 0 : bytes));
+        }
+    }
+
+    /**
+     * Add the hint file of file, if it has a whole one.
+     *
+     * @return false if the data file has to be read instead
+     */
+    private boolean readHints(DataFile file, Map<String, Long> seqs,
+            Map<String, Location> found) throws IOException {
+        File hintFile = hintFile(file.id);
+        long length = hintFile.length();
+        if (!hintFile.isFile() || length < 12) {
+            return false;
+        }
+        Map<String, Long> hintSeqs = new HashMap<String, Long>();
+        Map<String, Location> hintFound = new HashMap<String, Location>();
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(hintFile)));
+        try {
+            DataInputStream entries = new DataInputStream(new CheckedInputStream(in, crc));
+            long read = 0;
+            int count = 0;
+            long maxSeq = -1;
+            while (read < length - 12) {
+                long seq = entries.readLong();
+                long expiresAt = entries.readLong();
+                long position = entries.readLong();
+                int recordLength = entries.readInt();
+                byte[] key = new byte[entries.readInt()];
+                entries.readFully(key);
+                read += 32 + key.length;
+                count++;
+                maxSeq = Math.max(maxSeq, seq);
+                if (position + recordLength > file.size.get()) {
+                    return false;
+                }
+                take(new String(key, UTF8), seq,
+                    new Location(file.id, position, recordLength, expiresAt),
+                    hintSeqs, hintFound);
+            }
+            if (read != length - 12 || in.readInt() != count || in.readLong() != crc.getValue()) {
+                return false;
+            }
+            // a merge output holds no deletes, so its hints list every record
+            file.maxSeq = maxSeq;
+        } catch (IOException e) {
+            // cut short
+            return false;
+        } catch (NegativeArraySizeException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+        for (Map.Entry<String, Location> e : hintFound.entrySet()) {
+            take(e.getKey(), hintSeqs.get(e.getKey()), e.getValue(), seqs, found);
+        }
+        return true;
+    }
+
+    /**
+     * Keep location, or null for a delete, as key's if seq is the highest
+     * seen for it.
+     */
+    private static void take(String key, long seq, Location location,
+            Map<String, Long> seqs, Map<String, Location> found) {
+        Long seen = seqs.get(key);
+        if (seen == null || seq > seen) {
+            seqs.put(key, seq);
+            found.put(key, location);
+        }
+    }
+
+    private String read(Location location) throws IOException {
+        DataFile file = files.get(location.file);
+        if (file == null) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        file.read(buffer, location.position);
+        byte[] record = buffer.array();
+        if (!checksumOk(record, 0, record.length)) {
+            throw new IOException("Corrupt record in " + file.path + " at " + location.position);
+        }
+        int keyLength = buffer.getInt(20);
+        int valueLength = buffer.getInt(24);
+        return new String(record, HEADER + keyLength, valueLength, UTF8);
+    }
+
+    /**
+     * Append a record for key to the active file, starting a new one first
+     * if it is full. Called holding this.
+     *
+     * @param value the value, or null for a delete
+     * @return where the record went
+     */
+    private Location append(String key, String value, long expiresAt) {
+        checkOpen();
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = value == null ? null : value.getBytes(UTF8);
+        int length = HEADER + k.length + (v == null ? 0 : v.length);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        long seq = nextSeq++;
+        record.putInt(0).putLong(seq).putLong(expiresAt).putInt(k.length)
+            .putInt(v == null ? NO_VALUE : v.length).put(k);
+        if (v != null) {
+            record.put(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        try {
+            if (active.size.get() > 0 && active.size.get() + length > maxFileSize) {
+                active.force();
+                active = newFile();
+            }
+            long position = active.size.get();
+            active.write(record, position);
+            active.size.addAndGet(length);
+            active.maxSeq = seq;
+            return new Location(active.id, position, length, expiresAt);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to " + directory, e);
+        }
+    }
+
+    /**
+     * Append a delete of key and drop it from the index.
+     */
+    @Override
+    public synchronized void delete(String key) {
+        Location tombstone = append(key, null, KVMessage.NO_TTL);
+        // a delete is garbage once a merge knows nothing older is left
+        active.dead.addAndGet(tombstone.length);
+        discard(index.remove(key));
+    }
+
+    /**
+     * Count the record at location as garbage.
+     */
+    private void discard(Location location) {
+        if (location != null) {
+            DataFile file = files.get(location.file);
+            if (file != null) {
+                file.dead.addAndGet(location.length);
+            }
+        }
+    }
+
+    private DataFile newFile() throws IOException {
+        int id = nextFileId.getAndIncrement();
+        DataFile file = new DataFile(id, dataFile(id));
+        files.put(id, file);
+        return file;
+    }
+
+    private void dropFile(DataFile file) throws IOException {
+        files.remove(file.id);
+        file.retire();
+        // hints first: left alone, they could be read for a new file of that id
+        hintFile(file.id).delete();
+        file.path.delete();
+    }
+
+    private File dataFile(int id) {
+        return new File(directory, String.format("%010d", id) + DATA);
+    }
+
+    private File hintFile(int id) {
+        return new File(directory, String.format("%010d", id) + HINT);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private static boolean checksumOk(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset + 4, length - 4);
+        int stored = ByteBuffer.wrap(bytes, offset, 4).getInt();
+        return stored == (int) crc.getValue();
+    }
+}
@@ -0,0 +1,98 @@
+package kvstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over String keys: mightContain is false only for keys
+ * never added. Each key sets hashes bits picked by double hashing a 64-bit
+ * FNV-1a hash of its chars. With 10 bits per key and 7 hashes about one
+ * lookup in a hundred of a key not added still comes back true.
+ */
+class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int hashes;
+
+    /**
+     * An empty filter for about expected keys.
+     */
+    BloomFilter(int expected) {
+        this(new long[(int) ((Math.max(64L, (long) expected * BITS_PER_KEY) + 63) / 64)],
+            (int) Math.round(BITS_PER_KEY * Math.log(2)));
+    }
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes writeTo writes
+     */
+    int length() {
+        return 8 + bits.length * 8;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter readFrom(DataInput in) throws IOException {
+        int hashes = in.readInt();
+        int words = in.readInt();
+        if (hashes < 1 || words < 1) {
+            throw new IOException("Bad Bloom filter");
+        }
+        long[] bits = new long[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // FNV alone mixes the last chars poorly into the high bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,115 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C, the Castagnoli polynomial, as java.util.zip.CRC32C computes it
+ * from Java 9 on; this tree builds for Java 7. Eight bytes are folded in
+ * per step with eight tables of 256 entries ("slicing by 8"), which runs
+ * several times faster than a byte at a time and catches more of the error
+ * patterns storage produces than the CRC32 the disk engines use.
+ */
+class CRC32C implements Checksum {
+
+    /* The polynomial 0x1edc6f41, bits reversed */
+    private static final int POLYNOMIAL = 0x82f63b78;
+    /* TABLES[k][b] is the CRC of byte b followed by k zero bytes */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            TABLES[0][b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int k = 1; k < 8; k++) {
+                int crc = TABLES[k - 1][b];
+                TABLES[k][b] = (crc >>> 8) ^ TABLES[0][crc & 0xff];
+            }
+        }
+    }
+
+    /* Kept inverted, as the algorithm wants it */
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        for (; off + 8 <= end; off += 8) {
+            int low = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff]
+                ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+        }
+        for (; off < end; off++) {
+            c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xff];
+        }
+        crc = c;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    /**
+     * Fold in the bytes of buffer from its position to its limit, leaving
+     * it positioned at the limit. A heap buffer is read through its array;
+     * a direct or mapped one eight bytes at a time.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        int c = crc;
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        boolean swap = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int position = buffer.position();
+        int end = buffer.limit();
+        for (; position + 8 <= end; position += 8) {
+            int low = buffer.getInt(position);
+            int high = buffer.getInt(position + 4);
+            if (swap) {
+                low = Integer.reverseBytes(low);
+                high = Integer.reverseBytes(high);
+            }
+            low ^= c;
+            c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff]
+                ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                ^ t3[high & 0xff] ^ t2[(high >>> 8) & 0xff]
+                ^ t1[(high >>> 16) & 0xff] ^ t0[high >>> 24];
+        }
+        for (; position < end; position++) {
+            c = (c >>> 8) ^ t0[(c ^ buffer.get(position)) & 0xff];
+        }
+        buffer.position(end);
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
@@ -0,0 +1,14 @@
+package kvstore;
+
+/**
+ * Plain CLOCK. Unlike SecondChancePolicy, a get only sets the entry's
+ * reference bit, as a put does, and never moves the entry, so a hit touches
+ * no links at all.
+ */
+public class ClockPolicy extends SecondChancePolicy {
+
+    @Override
+    public void hit(int set, int slot) {
+        updated(set, slot);
+    }
+}
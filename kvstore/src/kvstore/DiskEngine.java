@@ -0,0 +1,14 @@
+package kvstore;
+
+/**
+ * How a KVStore made with a directory lays out its files. BITCASK appends
+ * every write to a log and keeps where each key is in memory, so a get is
+ * one read; a BitcaskMap does it. LSM keeps only recent writes in memory
+ * and the rest in sorted files that are merged in the background, so the
+ * keys need not fit in memory and a del is one blind write; an LsmMap does
+ * it.
+ */
+public enum DiskEngine {
+    BITCASK,
+    LSM
+}
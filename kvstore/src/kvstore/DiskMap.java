@@ -0,0 +1,44 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A ConcurrentMap from String to String kept in files, as a KVStore made
+ * with a directory uses it. Besides the map it stores each key's expiry
+ * time, deletes without reading the old value, and has files to close.
+ * A read or write the files refuse throws IllegalStateException.
+ */
+interface DiskMap extends ConcurrentMap<String, String> {
+
+    /**
+     * Store key's new value, to expire at expiresAt, without reading the
+     * old one.
+     *
+     * @param key String key
+     * @param value String value
+     * @param expiresAt System.currentTimeMillis() time, or KVMessage.NO_TTL
+     */
+    public void put(String key, String value, long expiresAt);
+
+    /**
+     * Remove key without reading its value; does nothing if it is absent.
+     *
+     * @param key String key
+     */
+    public void delete(String key);
+
+    /**
+     * @return the keys that have an expiry time, with that time
+     */
+    public Map<String, Long> expiries();
+
+    /**
+     * Force what was written to disk and close the files. The map cannot
+     * be used afterwards.
+     *
+     * @throws IOException if the disk cannot be written
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,93 @@
+package kvstore;
+
+/**
+ * Decides which entry of a full KVCache set makes room for a new one. A
+ * KVCache with numSets sets of slotsPerSet entries keeps entries in slots
+ * numbered 0 to numSets * slotsPerSet - 1, set s owning the slotsPerSet slots
+ * from s * slotsPerSet on; a policy only ever sees slot numbers and key hashes.
+ *
+ * KVCache calls a policy with the lock of the set concerned held, so a
+ * policy that keeps the state of each set apart needs no locking of its own.
+ * A policy instance belongs to a single KVCache.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called once, by the KVCache the policy was given to.
+     *
+     * @param numSets the number of sets in the cache
+     * @param slotsPerSet the size of each set
+     */
+    public void init(int numSets, int slotsPerSet);
+
+    /**
+     * A new entry, whose key has the given hash, now fills slot.
+     *
+     * @param set the set of slot
+     * @param slot the slot filled
+     * @param hash hashCode of the entry's key
+     */
+    public void inserted(int set, int slot, int hash);
+
+    /**
+     * The entry in slot was read by get.
+     *
+     * @param set the set of slot
+     * @param slot the slot read
+     */
+    public void hit(int set, int slot);
+
+    /**
+     * The entry in slot was given a new value by put.
+     *
+     * @param set the set of slot
+     * @param slot the slot written
+     */
+    public void updated(int set, int slot);
+
+    /**
+     * The entry in slot was deleted.
+     *
+     * @param set the set of slot
+     * @param slot the slot emptied
+     */
+    public void removed(int set, int slot);
+
+    /**
+     * Set is full and an entry whose key has the given hash is about to be
+     * put in it. Choose the entry to evict and forget it; KVCache then stores
+     * the new entry in the same slot and calls inserted.
+     *
+     * @param set the full set
+     * @param hash hashCode of the key about to be inserted
+     * @return the slot to reuse
+     */
+    public int evict(int set, int hash);
+
+    /**
+     * The slot evict(set, hash) would choose if called now, found without
+     * changing anything, so that KVCache can still decide to keep it.
+     *
+     * @param set the full set
+     * @param hash hashCode of the key about to be inserted
+     * @return the slot evict would reuse
+     */
+    public int victim(int set, int hash);
+
+    /**
+     * The entries of set, the next to be evicted first, for toXML.
+     *
+     * @param set the set
+     * @return slots in use in set
+     */
+    public int[] order(int set);
+
+    /**
+     * What toXML reports as the entry's reference bit: whether the policy
+     * currently counts the entry in slot as recently or frequently used.
+     *
+     * @param slot the slot
+     * @return true if the entry counts as in use
+     */
+    public boolean isReferenced(int slot);
+}
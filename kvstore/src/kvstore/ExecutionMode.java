@@ -0,0 +1,13 @@
+package kvstore;
+
+/**
+ * How a ThreadPool runs its jobs. POOLED hands jobs to a fixed set of
+ * platform worker threads and is what every handler uses by default. VIRTUAL
+ * starts a virtual thread per job, so a job blocked on a socket read or a
+ * retry sleep does not hold up the others; on a JVM without virtual threads
+ * it falls back to POOLED.
+ */
+public enum ExecutionMode {
+    POOLED,
+    VIRTUAL
+}
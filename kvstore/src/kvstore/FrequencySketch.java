@@ -0,0 +1,89 @@
+package kvstore;
+
+/**
+ * A count-min sketch of how often the keys of each KVCache set were used
+ * lately, for TinyLFU admission. Each set has its own table of 4-bit
+ * counters, sixteen to a long, and a key bumps four of them chosen by
+ * differently seeded hashes; its estimate is the smallest of the four. Once a
+ * set has counted ten times as many uses as it has slots, every counter of
+ * the set is halved, so the sketch follows what is hot now rather than
+ * what was hot once.
+ *
+ * Like the eviction policies, the sketch is only touched with the set's lock
+ * held, and sets share nothing.
+ */
+class FrequencySketch {
+
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xb0b3b7f1, 0x6b3e4a79, 0xe6d3c5a3
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int wordsPerSet;
+    /* Counters per set, minus one; a power of two minus one */
+    private final int counterMask;
+    private final int sampleSize;
+    private final int[] additions;
+
+    /**
+     * @param numSets the number of sets in the cache
+     * @param slotsPerSet the size of each set
+     */
+    FrequencySketch(int numSets, int slotsPerSet) {
+        int words = Integer.highestOneBit(Math.max(1, slotsPerSet - 1) << 1);
+        wordsPerSet = words;
+        counterMask = words * 16 - 1;
+        sampleSize = 10 * Math.max(1, slotsPerSet);
+        table = new long[numSets * words];
+        additions = new int[numSets];
+    }
+
+    /**
+     * Count one use of the key with the given hash.
+     */
+    void increment(int set, int hash) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            int word = set * wordsPerSet + (counter >>> 4);
+            int shift = (counter & 15) << 2;
+            if (((table[word] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                table[word] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions[set] == sampleSize) {
+            reset(set);
+        }
+    }
+
+    /**
+     * Estimated recent uses of the key with the given hash; never less than
+     * the true count since the last reset halved it.
+     */
+    int frequency(int set, int hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            long word = table[set * wordsPerSet + (counter >>> 4)];
+            frequency = Math.min(frequency, (int) ((word >>> ((counter & 15) << 2)) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    private void reset(int set) {
+        int base = set * wordsPerSet;
+        for (int i = base; i < base + wordsPerSet; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions[set] >>>= 1;
+    }
+
+    private int counter(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h & counterMask;
+    }
+}
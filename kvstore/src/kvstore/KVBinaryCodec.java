@@ -0,0 +1,431 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding of a KVMessage, used when a connection speaks
+ * WireFormat.BINARY. A frame is laid out as
+ *
+ * <pre>
+ *   MAGIC            1 byte, never the first byte of an XML document
+ *   length           varint, number of bytes that follow
+ *   type             1 byte, index into TYPES (0 = type string follows)
+ *   fields           1 byte, bit set of FIELD_KEY, FIELD_VALUE, FIELD_MESSAGE,
+ *                    FIELD_REQUEST_ID, FIELD_TTL, FIELD_LIMIT, FIELD_TOKEN,
+ *                    FIELD_PAIRS
+ *   [type string]    varint length + UTF-8 bytes, only if type == 0
+ *   [request id]     varint, only if FIELD_REQUEST_ID is set
+ *   [ttl]            64-bit varint, only if FIELD_TTL is set
+ *   [key]            varint length + UTF-8 bytes, only if FIELD_KEY is set
+ *   [value]          varint length + UTF-8 bytes, only if FIELD_VALUE is set
+ *   [message]        varint length + UTF-8 bytes, only if FIELD_MESSAGE is set
+ *   [limit]          varint, only if FIELD_LIMIT is set
+ *   [token]          varint length + UTF-8 bytes, only if FIELD_TOKEN is set
+ *   [pairs]          varint count, then a key and a value as above for each,
+ *                    only if FIELD_PAIRS is set
+ * </pre>
+ *
+ * Varints are unsigned LEB128. Because the whole frame is length-prefixed the
+ * receiver never has to wait for EOF to know a message is complete.
+ *
+ * An XML document can be framed the same way so that it too can share a
+ * persistent connection: XML_MAGIC, a varint length, then the UTF-8 bytes of
+ * KVMessage.toXML().
+ */
+final class KVBinaryCodec {
+
+    /** First byte of every binary frame. */
+    static final int MAGIC = 0xB7;
+
+    /** First byte of a length-prefixed XML frame. */
+    static final int XML_MAGIC = 0xB8;
+
+    /** Upper bound on a frame body so garbage lengths can't exhaust the heap. */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    static final int FIELD_KEY     = 0x01;
+    static final int FIELD_VALUE   = 0x02;
+    static final int FIELD_MESSAGE = 0x04;
+    static final int FIELD_REQUEST_ID = 0x08;
+    static final int FIELD_TTL = 0x10;
+    static final int FIELD_LIMIT = 0x20;
+    static final int FIELD_TOKEN = 0x40;
+    static final int FIELD_PAIRS = 0x80;
+
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    /* Well-known message types, encoded by their index. Index 0 is reserved. */
+    private static final String[] TYPES = {
+        null, GET_REQ, PUT_REQ, DEL_REQ, RESP, READY, REGISTER, ABORT, COMMIT, ACK, SCAN_REQ
+    };
+
+    private KVBinaryCodec() {
+    }
+
+    /**
+     * Serialize a message into a single binary frame.
+     *
+     * @param  msg KVMessage to encode
+     * @return the complete frame, starting with MAGIC
+     * @throws KVException with ERROR_INVALID_FORMAT if msg has no type
+     */
+    static byte[] encode(KVMessage msg) throws KVException {
+        String msgType = msg.getMsgType();
+        if (msgType == null) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        int typeCode = typeCode(msgType);
+        byte[] typeBytes = (typeCode == 0) ? msgType.getBytes(UTF8) : null;
+        byte[] key = bytesOf(msg.getKey());
+        byte[] value = bytesOf(msg.getValue());
+        byte[] message = bytesOf(msg.getMessage());
+
+        int fields = 0;
+        int length = 2;
+        if (typeBytes != null) {
+            length += fieldLength(typeBytes);
+        }
+        int requestId = msg.getRequestId();
+        if (requestId != KVMessage.NO_REQUEST_ID) {
+            fields |= FIELD_REQUEST_ID;
+            length += varintLength(requestId);
+        }
+        long ttl = msg.getTtl();
+        if (ttl != KVMessage.NO_TTL) {
+            fields |= FIELD_TTL;
+            length += varlongLength(ttl);
+        }
+        if (key != null) {
+            fields |= FIELD_KEY;
+            length += fieldLength(key);
+        }
+        if (value != null) {
+            fields |= FIELD_VALUE;
+            length += fieldLength(value);
+        }
+        if (message != null) {
+            fields |= FIELD_MESSAGE;
+            length += fieldLength(message);
+        }
+        int limit = msg.getLimit();
+        if (limit != KVMessage.NO_LIMIT) {
+            fields |= FIELD_LIMIT;
+            length += varintLength(limit);
+        }
+        byte[] token = bytesOf(msg.getToken());
+        if (token != null) {
+            fields |= FIELD_TOKEN;
+            length += fieldLength(token);
+        }
+        byte[][] pairs = null;
+        if (msg.getPairs() != null) {
+            fields |= FIELD_PAIRS;
+            pairs = new byte[msg.getPairs().size() * 2][];
+            length += varintLength(msg.getPairs().size());
+            int i = 0;
+            for (Map.Entry<String, String> e : msg.getPairs().entrySet()) {
+                pairs[i] = bytesOf(e.getKey());
+                pairs[i + 1] = bytesOf(e.getValue());
+                length += fieldLength(pairs[i]) + fieldLength(pairs[i + 1]);
+                i += 2;
+            }
+        }
+
+        byte[] frame = new byte[1 + varintLength(length) + length];
+        int pos = 0;
+        frame[pos++] = (byte) MAGIC;
+        pos = putVarint(frame, pos, length);
+        frame[pos++] = (byte) typeCode;
+        frame[pos++] = (byte) fields;
+        pos = putField(frame, pos, typeBytes);
+        if ((fields & FIELD_REQUEST_ID) != 0) {
+            pos = putVarint(frame, pos, requestId);
+        }
+        if ((fields & FIELD_TTL) != 0) {
+            pos = putVarlong(frame, pos, ttl);
+        }
+        pos = putField(frame, pos, key);
+        pos = putField(frame, pos, value);
+        pos = putField(frame, pos, message);
+        if ((fields & FIELD_LIMIT) != 0) {
+            pos = putVarint(frame, pos, limit);
+        }
+        pos = putField(frame, pos, token);
+        if (pairs != null) {
+            pos = putVarint(frame, pos, pairs.length / 2);
+            for (byte[] field : pairs) {
+                pos = putField(frame, pos, field);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Wrap the XML form of a message in a length-prefixed frame.
+     *
+     * @param  msg KVMessage to encode
+     * @return the complete frame, starting with XML_MAGIC
+     * @throws KVException with ERROR_PARSER if msg cannot be written as XML
+     */
+    static byte[] encodeXml(KVMessage msg) throws KVException {
+        byte[] xml = msg.toXML().getBytes(UTF8);
+        byte[] frame = new byte[1 + varintLength(xml.length) + xml.length];
+        frame[0] = (byte) XML_MAGIC;
+        int pos = putVarint(frame, 1, xml.length);
+        System.arraycopy(xml, 0, frame, pos, xml.length);
+        return frame;
+    }
+
+    /**
+     * Read the remainder of a binary frame whose MAGIC byte has already been
+     * consumed from the stream, and build the message it describes.
+     *
+     * @param  in stream positioned just after MAGIC
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the frame is malformed,
+     *         ERROR_SOCKET_TIMEOUT or ERROR_COULD_NOT_RECEIVE_DATA on I/O errors
+     */
+    static KVMessage decode(InputStream in) throws KVException {
+        byte[] body = readBody(in, 2);
+        return decodeBody(body);
+    }
+
+    /**
+     * Read the remainder of an XML frame whose XML_MAGIC byte has already been
+     * consumed from the stream, and parse the document it holds.
+     *
+     * @param  in stream positioned just after XML_MAGIC
+     * @return the decoded KVMessage
+     * @throws KVException as for decode(InputStream)
+     */
+    static KVMessage decodeXml(InputStream in) throws KVException {
+        byte[] body = readBody(in, 1);
+        return KVXmlReader.readMessage(new ByteArrayInputStream(body));
+    }
+
+    /* Read a varint length and then that many bytes, at least minLength. */
+    private static byte[] readBody(InputStream in, int minLength) throws KVException {
+        try {
+            int length = readVarint(in);
+            if (length < minLength || length > MAX_FRAME_LENGTH) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            byte[] body = new byte[length];
+            readFully(in, body);
+            return body;
+        } catch (EOFException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Build a message from a frame body (everything after the length prefix).
+     *
+     * @param  body frame body
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the body is malformed
+     */
+    static KVMessage decodeBody(byte[] body) throws KVException {
+        int[] pos = {2};
+        int typeCode = body[0] & 0xFF;
+        int fields = body[1] & 0xFF;
+        String msgType;
+        if (typeCode == 0) {
+            msgType = getField(body, pos);
+        } else if (typeCode < TYPES.length) {
+            msgType = TYPES[typeCode];
+        } else {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        KVMessage msg = new KVMessage(msgType);
+        if ((fields & FIELD_REQUEST_ID) != 0) {
+            msg.setRequestId(getVarint(body, pos));
+        }
+        if ((fields & FIELD_TTL) != 0) {
+            msg.setTtl(getVarlong(body, pos));
+        }
+        if ((fields & FIELD_KEY) != 0) {
+            msg.setKey(getField(body, pos));
+        }
+        if ((fields & FIELD_VALUE) != 0) {
+            msg.setValue(getField(body, pos));
+        }
+        if ((fields & FIELD_MESSAGE) != 0) {
+            msg.setMessage(getField(body, pos));
+        }
+        if ((fields & FIELD_LIMIT) != 0) {
+            msg.setLimit(getVarint(body, pos));
+        }
+        if ((fields & FIELD_TOKEN) != 0) {
+            msg.setToken(getField(body, pos));
+        }
+        if ((fields & FIELD_PAIRS) != 0) {
+            int count = getVarint(body, pos);
+            // each pair takes two bytes at least
+            if (count < 0 || count > (body.length - pos[0]) / 2) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            Map<String, String> pairs = new TreeMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                String key = getField(body, pos);
+                pairs.put(key, getField(body, pos));
+            }
+            msg.setPairs(pairs);
+        }
+        if (pos[0] != body.length) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        return msg;
+    }
+
+    private static int typeCode(String msgType) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(msgType)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] bytesOf(String s) {
+        return (s == null) ? null : s.getBytes(UTF8);
+    }
+
+    private static int fieldLength(byte[] bytes) {
+        return varintLength(bytes.length) + bytes.length;
+    }
+
+    private static int putField(byte[] frame, int pos, byte[] bytes) {
+        if (bytes == null) {
+            return pos;
+        }
+        pos = putVarint(frame, pos, bytes.length);
+        System.arraycopy(bytes, 0, frame, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static String getField(byte[] body, int[] pos) throws KVException {
+        int length = getVarint(body, pos);
+        int p = pos[0];
+        if (length < 0 || length > body.length - p) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        pos[0] = p + length;
+        return new String(body, p, length, UTF8);
+    }
+
+    private static int getVarint(byte[] body, int[] pos) throws KVException {
+        int p = pos[0];
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (p >= body.length || shift > 28) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            int b = body[p++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    private static long getVarlong(byte[] body, int[] pos) throws KVException {
+        int p = pos[0];
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (p >= body.length || shift > 63) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            int b = body[p++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    static int varlongLength(long value) {
+        int n = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static int putVarlong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int varintLength(int value) {
+        int n = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static int putVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        // more than five bytes can't be a valid int; callers reject -1
+        return -1;
+    }
+
+    static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+}
@@ -1,57 +1,191 @@
 package kvstore;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-
-import kvstore.xml.KVCacheEntry;
-import kvstore.xml.KVCacheType;
-import kvstore.xml.KVSetType;
-import kvstore.xml.ObjectFactory;
-
-import java.util.*;
-
-
 
 /**
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Entries live in parallel arrays, maxElemsPerSet slots per set, so that
+ * get, put and del allocate nothing. Admission, byte limits, expiry,
+ * off-heap values, remembered misses and resizing are all optional; each is
+ * described where it is turned on.
  */
 public class KVCache implements KeyValueInterface {
 
+    private int numSets;
+    private int maxElemsPerSet;
+    private ReentrantLock[] locks;
+    /* What getLock hands out, one per set: locks, until a resize has moved
+       every set to a new shape and swapped in that shape's */
+    private volatile LiveLock[] liveLocks;
+    private EvictionPolicy policy;
+    /* null unless new keys have to earn their place */
+    private FrequencySketch sketch;
+
+    /* Slot i of set s is index s * maxElemsPerSet + i in these arrays */
+    private AtomicReferenceArray<String> keys;
+    private AtomicReferenceArray<String> values;
+    /* In OFF_HEAP mode, in place of values: handles into slabs, and the
+       length in chars of each value for the byte budget */
+    private SlabAllocator slabs;
+    private AtomicLongArray handles;
+    private int[] valueLengths;
+    private int[] hashes;
+    /* System.currentTimeMillis() after which each slot is stale, 0 for never */
+    private long[] expiresAt;
+    /* Per set: entries with an expiry time */
+    private int[] expiring;
+    /* Free slots of each set, linked through nextFree */
+    private int[] nextFree;
+
+    /* Per set: entries, first free slot (-1 if full) */
+    private int[] size;
+    private int[] free;
+
+    /* Per set: gets that found their key, gets that did not, and new keys
+       turned away by admission */
+    private long[] hits;
+    private long[] misses;
+    private long[] rejections;
+
+    /* Keys known to be missing from the store, missingPerSet slots per set,
+       and per set the slot to fill next; null unless rememberMisses */
+    private AtomicReferenceArray<String> missing;
+    private int missingPerSet;
+    private int[] nextMissing;
+
+    /* Per set, STRIDE longs apart so that sets do not share cache lines:
+       the version tryGet checks */
+    private AtomicLongArray versions;
+    /* Slots hit by tryGet since their set was last locked, one bit each */
+    private AtomicLongArray touched;
+    /* Hits found by tryGet, spread over STRIDE-apart stripes by thread */
+    private AtomicLongArray optimisticHits;
+
+    private static final int STRIDE = 8;
+    private static final int STRIPES = 16;
+
+    /* Most bytes all entries may take, and longest value cached */
+    private long maxBytes = Long.MAX_VALUE;
+    private int maxValueLength = Integer.MAX_VALUE;
+    /* Bytes charged for the entries now cached */
+    private AtomicLong bytes = new AtomicLong();
+    /* Next set to evict from when a put runs over maxBytes */
+    private AtomicInteger evictCursor = new AtomicInteger();
+
+    /* The cache the last resize moves entries to, null before any resize;
+       sets below migratedSets have moved there */
+    private volatile KVCache next;
+    private volatile int migratedSets;
+    /* Thread moving the sets, guarded by this */
+    private Thread migrator;
+
+    /* Bytes charged for an entry besides its chars: object headers, array
+       lengths and the cache's own bookkeeping */
+    public static final int ENTRY_OVERHEAD = 64;
+
     /**
      * Constructs a second-chance-replacement cache.
      *
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    private int numSets;
-    private int maxElemsPerSet;
-    private LinkedList<KVCacheEntry>[] cache;
-    private ReentrantLock[] locks;
-    
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, new SecondChancePolicy());
+    }
+
+    /**
+     * Constructs a cache that evicts entries as policy decides.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a new policy, used by this cache alone
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+        this(numSets, maxElemsPerSet, policy, false);
+    }
+
+    /**
+     * Constructs a cache that evicts entries as policy decides and, if
+     * admission is true, only lets a new key into a full set if it is used
+     * more often than the entry it would push out.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a new policy, used by this cache alone
+     * @param admission whether to filter new keys with TinyLFU
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            boolean admission) {
+        this(numSets, maxElemsPerSet, policy, admission, StorageMode.HEAP);
+    }
+
+    /**
+     * Constructs a cache as above that keeps its values as mode says.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a new policy, used by this cache alone
+     * @param admission whether to filter new keys with TinyLFU
+     * @param mode HEAP or OFF_HEAP
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            boolean admission, StorageMode mode) {
         /* begin */
-        this.cache = new LinkedList[numSets];
         this.numSets = numSets;
         this.maxElemsPerSet = maxElemsPerSet;
         this.locks = new ReentrantLock[numSets];
+        this.policy = policy;
+
+        int slots = numSets * maxElemsPerSet;
+        keys = new AtomicReferenceArray<String>(slots);
+        if (mode == StorageMode.OFF_HEAP) {
+            slabs = new SlabAllocator();
+            handles = new AtomicLongArray(slots);
+            valueLengths = new int[slots];
+        } else {
+            values = new AtomicReferenceArray<String>(slots);
+        }
+        hashes = new int[slots];
+        expiresAt = new long[slots];
+        expiring = new int[numSets];
+        nextFree = new int[slots];
+        size = new int[numSets];
+        free = new int[numSets];
+        hits = new long[numSets];
+        misses = new long[numSets];
+        rejections = new long[numSets];
+        versions = new AtomicLongArray(numSets * STRIDE);
+        touched = new AtomicLongArray((slots + 63) >>> 6);
+        optimisticHits = new AtomicLongArray(STRIPES * STRIDE);
+        if (admission) {
+            sketch = new FrequencySketch(numSets, maxElemsPerSet);
+        }
 
         for (int i = 0; i < numSets; i ++) {
-            cache[i] = new LinkedList<KVCacheEntry>();
+            int base = i * maxElemsPerSet;
+            for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+                nextFree[slot] = slot + 1 < base + maxElemsPerSet ? slot + 1 : -1;
+            }
+            free[i] = maxElemsPerSet > 0 ? base : -1;
         }
-        
+        policy.init(numSets, maxElemsPerSet);
+
         for (int j = 0; j < numSets; j ++) {
             locks[j] =  new ReentrantLock();
         }
+        liveLocks = handOut(locks);
         /* end */
     }
 
@@ -67,87 +201,377 @@ public class KVCache implements KeyValueInterface {
     @Override
     public String get(String key) {
         /* begin */
-        int keyhash = Math.abs(key.hashCode() % numSets);
-        KVCacheEntry entry;
-        String value = null;
-        
-        ListIterator<KVCacheEntry> iterator = cache[keyhash].listIterator();
-        while (iterator.hasNext()) {
-            entry = iterator.next();
-            if (entry.getKey().equals(key)) {
-                value = entry.getValue();
-                entry.setIsReferenced("true");
-                
-                LinkedList<KVCacheEntry> ll = cache[keyhash];
-                ll.remove(entry);
-                ll.addLast(entry);
-                break;
-            }
-        }
-        
-        return value;
+        int hash = key.hashCode();
+        int set = Math.abs(hash % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            Lock lock = moved.ownLock(key);
+            lock.lock();
+            try {
+                return moved.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        applyTouches(set);
+        if (sketch != null) {
+            sketch.increment(set, hash);
+        }
+        int slot = find(set, key, hash);
+        if (slot >= 0 && expired(slot)) {
+            remove(set, slot);
+            slot = -1;
+        }
+        if (slot < 0) {
+            misses[set]++;
+            return null;
+        }
+        hits[set]++;
+        policy.hit(set, slot);
+        return value(slot);
         /* end */
     }
 
+    /**
+     * Retrieves an entry from the cache without locking its set.
+     * Gives up, returning null, when the key is not in the cache or when a
+     * del or eviction in the same set ran at the same time; the caller then
+     * falls back to taking the lock and calling get. This is a seqlock: del,
+     * eviction and, in OFF_HEAP mode, a put over a key (whose old value's
+     * chunk may be reused) make the set's version odd while they change a
+     * slot, and a lookup that sees the same even version before and after
+     * found a key that stayed put. A hit only marks its slot as touched; the
+     * next locked get, put or del of the set passes it on to the policy.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key, or null if it was not found
+     *         without interference
+     */
+    public String tryGet(String key) {
+        int hash = key.hashCode();
+        int set = Math.abs(hash % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            return moved.tryGet(key);
+        }
+        long version = versions.get(set * STRIDE);
+        if ((version & 1) != 0) {
+            return null;
+        }
+        int slot = find(set, key, hash);
+        if (slot < 0) {
+            return null;
+        }
+        String value = value(slot);
+        // get drops it, under the lock
+        if (expired(slot)) {
+            return null;
+        }
+        if (versions.get(set * STRIDE) != version) {
+            return null;
+        }
+        // the slot may hold another key by now; a stray touch is harmless
+        long bit = 1L << slot;
+        long word = touched.get(slot >>> 6);
+        while ((word & bit) == 0 && !touched.compareAndSet(slot >>> 6, word, word | bit)) {
+            word = touched.get(slot >>> 6);
+        }
+        int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+        optimisticHits.incrementAndGet(stripe * STRIDE);
+        return value;
+    }
+
+    /**
+     * Pass hits tryGet recorded for set on to the policy and the sketch.
+     * Called with the set's lock held.
+     */
+    private void applyTouches(int set) {
+        int base = set * maxElemsPerSet;
+        int end = base + maxElemsPerSet;
+        for (int w = base >>> 6; w << 6 < end; w++) {
+            long word = touched.get(w);
+            if (word == 0) {
+                continue;
+            }
+            // only this set's bits: the word may be shared with neighbours
+            long mask = -1L;
+            if (w << 6 < base) {
+                mask &= -1L << (base & 63);
+            }
+            if ((w + 1) << 6 > end) {
+                mask &= (1L << (end & 63)) - 1;
+            }
+            while ((word & mask) != 0
+                    && !touched.compareAndSet(w, word, word & ~mask)) {
+                word = touched.get(w);
+            }
+            word &= mask;
+            while (word != 0) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (keys.get(slot) != null) {
+                    policy.hit(set, slot);
+                    if (sketch != null) {
+                        sketch.increment(set, hashes[slot]);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already exists in the cache, it is
      * replaced by the new entry. When an entry is replaced, its reference bit
      * will be set to True. If the set is full, an entry is removed from
      * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be inserted behind all existing entries. More details and
+     * explanations in the spec. With admission on, a new key may be turned
+     * away instead when the set is full. Assumes access to the corresponding
+     * set has already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
      */
     @Override
     public void put(String key, String value) {
+        put(key, value, KVMessage.NO_TTL);
+    }
+
+    /**
+     * Adds an entry to this cache that goes stale at expiresAt, as put does.
+     * The first get or tryGet that finds it stale drops it, and a full set
+     * evicts a stale entry before asking the policy; nothing sweeps the cache
+     * otherwise. Assumes access to the corresponding set has already been
+     * locked by the caller of this method.
+     *
+     * @param key the key with which the specified value is to be associated
+     * @param value a value to be associated with the specified key
+     * @param expiresAt when the entry goes stale, in System.currentTimeMillis()
+     *        time, or KVMessage.NO_TTL for never
+     */
+    public void put(String key, String value, long expiresAt) {
         /* begin */
-        int keyhash = Math.abs(key.hashCode() % numSets);
-        
-        LinkedList<KVCacheEntry> ll = cache[keyhash];
-        KVCacheEntry entry;
-        KVCacheEntry new_entry;
-        ListIterator<KVCacheEntry> iterator = ll.listIterator();
-        
-        while (iterator.hasNext()) {
-            entry = iterator.next();
-            if (entry.getKey().equals(key)) {
-                entry.setValue(value);
-                entry.setIsReferenced("true");
-                return;
+        int hash = key.hashCode();
+        int set = Math.abs(hash % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            Lock lock = moved.ownLock(key);
+            lock.lock();
+            try {
+                moved.put(key, value, expiresAt);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        put(set, key, value, expiresAt, true);
+        /* end */
+    }
+
+    /**
+     * put into set, whose lock the caller holds; only admit decides whether
+     * a new key must get past admission.
+     */
+    private void put(int set, String key, String value, long expiresAt, boolean admit) {
+        int hash = key.hashCode();
+        applyTouches(set);
+        if (missing != null) {
+            int slot = findMissing(set, key);
+            if (slot >= 0) {
+                missing.set(slot, null);
+            }
+        }
+        int slot = find(set, key, hash);
+        if (value.length() > maxValueLength || sizeOf(key, value) > maxBytes) {
+            // not worth caching; the old value must not outlive it either
+            if (slot >= 0) {
+                remove(set, slot);
+            }
+            return;
+        }
+        if (slot >= 0) {
+            bytes.addAndGet(sizeOf(key, value) - charge(slot));
+            setExpiresAt(set, slot, expiresAt);
+            if (slabs != null) {
+                versions.incrementAndGet(set * STRIDE);
+            }
+            setValue(slot, value);
+            if (slabs != null) {
+                versions.incrementAndGet(set * STRIDE);
             }
+            policy.updated(set, slot);
+            makeRoom(set, hash);
+            return;
         }
-        
-        if (ll.size() < maxElemsPerSet) {
-            entry = new KVCacheEntry();
-            entry.setIsReferenced("true");
-            entry.setKey(key);
-            entry.setValue(value);
-            ll.addLast(entry);
+        if (maxElemsPerSet == 0) {
             return;
+        }
+
+        boolean evicted = false;
+        if (size[set] < maxElemsPerSet) {
+            slot = free[set];
+            free[set] = nextFree[slot];
+            size[set]++;
+        } else if ((slot = expiredSlot(set)) >= 0) {
+            // a stale entry goes before anything the policy would pick
+            remove(set, slot);
+            slot = free[set];
+            free[set] = nextFree[slot];
+            size[set]++;
         } else {
-            while (true) {
-                entry = ll.poll();
-                if (entry.getIsReferenced().equals("false")) {
-                    new_entry = new KVCacheEntry();
-                    new_entry.setIsReferenced("true");
-                    new_entry.setKey(key);
-                    new_entry.setValue(value);
-                    ll.addLast(new_entry);
+            if (sketch != null && admit) {
+                int victim = policy.victim(set, hash);
+                if (sketch.frequency(set, hash) <= sketch.frequency(set, hashes[victim])) {
+                    rejections[set]++;
                     return;
+                }
+            }
+            slot = policy.evict(set, hash);
+            evicted = true;
+            versions.incrementAndGet(set * STRIDE);
+            bytes.addAndGet(-charge(slot));
+        }
+        // a reader that finds the key must find its value too
+        setExpiresAt(set, slot, expiresAt);
+        setValue(slot, value);
+        hashes[slot] = hash;
+        keys.set(slot, key);
+        if (evicted) {
+            versions.incrementAndGet(set * STRIDE);
+        }
+        bytes.addAndGet(sizeOf(key, value));
+        policy.inserted(set, slot, hash);
+        makeRoom(set, hash);
+    }
+
+    private void setExpiresAt(int set, int slot, long expiresAt) {
+        if (this.expiresAt[slot] != KVMessage.NO_TTL) {
+            expiring[set]--;
+        }
+        if (expiresAt != KVMessage.NO_TTL) {
+            expiring[set]++;
+        }
+        this.expiresAt[slot] = expiresAt;
+    }
+
+    private boolean expired(int slot) {
+        long expiresAt = this.expiresAt[slot];
+        return expiresAt != KVMessage.NO_TTL && expiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * A slot of set whose entry has expired, or -1.
+     */
+    private int expiredSlot(int set) {
+        if (expiring[set] == 0) {
+            return -1;
+        }
+        int base = set * maxElemsPerSet;
+        for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+            if (keys.get(slot) != null && expired(slot)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Evict entries until the cache is back within maxBytes: one victim from
+     * set, whose lock the caller holds, then one from each set in turn that
+     * is not locked by someone else. The last entry of set, which the put
+     * just wrote, is only evicted if the policy picks it.
+     *
+     * @param set the set just written
+     * @param hash hashCode of the key just written
+     */
+    private void makeRoom(int set, int hash) {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        if (size[set] > 1) {
+            remove(set, policy.victim(set, hash));
+        }
+        // give up after a full round in which nothing could be evicted
+        int idle = 0;
+        while (bytes.get() > maxBytes && idle < numSets) {
+            int other = (evictCursor.getAndIncrement() & Integer.MAX_VALUE) % numSets;
+            if (other == set) {
+                if (size[set] > 1) {
+                    remove(set, policy.victim(set, hash));
+                    idle = 0;
                 } else {
-                    entry.setIsReferenced("false");
-                    ll.addLast(entry);
+                    idle++;
                 }
+                continue;
+            }
+            if (!locks[other].tryLock()) {
+                idle++;
+                continue;
+            }
+            try {
+                applyTouches(other);
+                if (size[other] > 0) {
+                    remove(other, policy.victim(other, hash));
+                    idle = 0;
+                } else {
+                    idle++;
+                }
+            } finally {
+                locks[other].unlock();
             }
         }
-        /* end */
+    }
+
+    /**
+     * Bytes charged for an entry: ENTRY_OVERHEAD plus two per char of key
+     * and value, against one total shared by all sets.
+     */
+    static long sizeOf(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    /**
+     * Bytes charged for the entry in slot, as sizeOf charged it.
+     */
+    private long charge(int slot) {
+        if (slabs == null) {
+            return sizeOf(keys.get(slot), values.get(slot));
+        }
+        return ENTRY_OVERHEAD + 2L * (keys.get(slot).length() + valueLengths[slot]);
+    }
+
+    /**
+     * The value in slot. Without the set's lock, in OFF_HEAP mode, it may be
+     * garbage or null until the set's version has been checked again.
+     */
+    private String value(int slot) {
+        if (slabs == null) {
+            return values.get(slot);
+        }
+        long handle = handles.get(slot);
+        return handle == SlabAllocator.NO_HANDLE ? null : slabs.read(handle);
+    }
+
+    /**
+     * Store value, or null to empty the slot, freeing the one it replaces.
+     */
+    private void setValue(int slot, String value) {
+        if (slabs == null) {
+            values.set(slot, value);
+            return;
+        }
+        long old = handles.get(slot);
+        if (value == null) {
+            handles.set(slot, SlabAllocator.NO_HANDLE);
+            valueLengths[slot] = 0;
+        } else {
+            handles.set(slot, slabs.allocate(value));
+            valueLengths[slot] = value.length();
+        }
+        if (old != SlabAllocator.NO_HANDLE) {
+            slabs.free(old);
+        }
     }
 
     /**
@@ -160,32 +584,233 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
         /* begin */
-        int keyhash = Math.abs(key.hashCode() % numSets);
-        KVCacheEntry entry;
-        
-        ListIterator<KVCacheEntry> iterator = cache[keyhash].listIterator();
-        while (iterator.hasNext()) {
-            entry = iterator.next();
-            if (entry.getKey().equals(key)) {
-                cache[keyhash].remove(entry);
-                break;
+        int hash = key.hashCode();
+        int set = Math.abs(hash % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            Lock lock = moved.ownLock(key);
+            lock.lock();
+            try {
+                moved.del(key);
+            } finally {
+                lock.unlock();
             }
+            return;
         }
+        applyTouches(set);
+        int slot = find(set, key, hash);
+        if (slot < 0) {
+            return;
+        }
+        remove(set, slot);
         /* end */
     }
 
+    /**
+     * Empty slot of set, whose lock the caller holds.
+     */
+    private void remove(int set, int slot) {
+        policy.removed(set, slot);
+        bytes.addAndGet(-charge(slot));
+        versions.incrementAndGet(set * STRIDE);
+        keys.set(slot, null);
+        setValue(slot, null);
+        versions.incrementAndGet(set * STRIDE);
+        setExpiresAt(set, slot, KVMessage.NO_TTL);
+        nextFree[slot] = free[set];
+        free[set] = slot;
+        size[set]--;
+    }
+
+    /**
+     * The slot of set holding key, or -1.
+     */
+    private int find(int set, String key, int hash) {
+        int base = set * maxElemsPerSet;
+        for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+            String k = keys.get(slot);
+            if (k != null && hashes[slot] == hash && k.equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods
      * so that different sets can be #{modified|changed} in parallel.
+     * The same key gets the same lock. Once a resize has moved every set,
+     * the lock is one of the new shape's; a caller that took its lock before
+     * the swap and locks it after takes all of the new shape's instead, so
+     * the same key is never covered by two different locks.
      *
      * @param  key key to determine the lock to return
      * @return lock for the set that contains the key
      */
 
     public Lock getLock(String key) {
-    	int keyhash = Math.abs(key.hashCode() % numSets);
-    	return locks[keyhash];
+    	LiveLock[] live = liveLocks;
+    	return live[Math.abs(key.hashCode() % live.length)];
+    }
+
+    /**
+     * The lock of key's set in this cache's own shape.
+     */
+    private ReentrantLock ownLock(String key) {
+        return locks[Math.abs(key.hashCode() % numSets)];
+    }
+
+    /**
+     * The locks for getLock to hand out in front of the locks of a shape.
+     */
+    private LiveLock[] handOut(ReentrantLock[] shape) {
+        LiveLock[] handles = new LiveLock[shape.length];
+        for (int i = 0; i < shape.length; i++) {
+            handles[i] = new LiveLock(handles, shape[i]);
+        }
+        return handles;
+    }
+
+    /**
+     * Make the locks getLock hands out fresh ones. Takes every lock handed
+     * out so far first, so that no one holds one of them when the swap is
+     * made; LiveLock looks again after it locks.
+     */
+    private void swapLocks(ReentrantLock[] fresh) {
+        LiveLock[] handles = handOut(fresh);
+        LiveLock[] old = liveLocks;
+        for (LiveLock handle : old) {
+            handle.lock.lock();
+        }
+        liveLocks = handles;
+        for (LiveLock handle : old) {
+            handle.lock.unlock();
+        }
+    }
+
+    /* How LiveLock waits for the locks it takes */
+    private static final int BLOCK = 0;
+    private static final int INTERRUPTIBLY = 1;
+    private static final int NO_WAIT = 2;
+    private static final int UNTIL = 3;
+
+    /**
+     * A lock getLock hands out: one set's lock, while the shape it belongs to
+     * is live. While it is held the shape cannot be swapped. Taken after a
+     * swap, it no longer knows which of the new locks covers the caller's
+     * key, so it takes them all; unlock finds which it holds.
+     */
+    private final class LiveLock implements Lock {
+
+        /* the handles of this one's shape, and the set's lock */
+        private final LiveLock[] shape;
+        private final ReentrantLock lock;
+
+        LiveLock(LiveLock[] shape, ReentrantLock lock) {
+            this.shape = shape;
+            this.lock = lock;
+        }
+
+        private boolean take(ReentrantLock lock, int how, long deadline)
+                throws InterruptedException {
+            switch (how) {
+                case BLOCK:
+                    lock.lock();
+                    return true;
+                case INTERRUPTIBLY:
+                    lock.lockInterruptibly();
+                    return true;
+                case NO_WAIT:
+                    return lock.tryLock();
+                default:
+                    return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private boolean acquire(int how, long deadline) throws InterruptedException {
+            if (!take(lock, how, deadline)) {
+                return false;
+            }
+            if (liveLocks == shape) {
+                return true;
+            }
+            lock.unlock();
+            while (true) {
+                LiveLock[] live = liveLocks;
+                int taken = 0;
+                try {
+                    while (taken < live.length && take(live[taken].lock, how, deadline)) {
+                        taken++;
+                    }
+                } finally {
+                    if (taken < live.length || liveLocks != live) {
+                        for (int i = 0; i < taken; i++) {
+                            live[i].lock.unlock();
+                        }
+                    }
+                }
+                if (taken < live.length) {
+                    return false;
+                }
+                if (liveLocks == live) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void lock() {
+            try {
+                acquire(BLOCK, 0);
+            } catch (InterruptedException e) {
+                // lock() does not throw it
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            acquire(INTERRUPTIBLY, 0);
+        }
+
+        @Override
+        public boolean tryLock() {
+            try {
+                return acquire(NO_WAIT, 0);
+            } catch (InterruptedException e) {
+                // tryLock() does not throw it
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return acquire(UNTIL, System.nanoTime() + unit.toNanos(time));
+        }
+
+        @Override
+        public void unlock() {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+                return;
+            }
+            // taken after a swap; none can follow while they are all held
+            for (LiveLock handle : liveLocks) {
+                handle.lock.unlock();
+            }
+        }
+
+        /**
+         * A condition of the set's lock. Held the usual way the shape cannot
+         * be swapped, so awaiting it releases the whole lock; held after a
+         * swap, as all of the new shape's locks, await throws
+         * IllegalMonitorStateException.
+         */
+        @Override
+        public Condition newCondition() {
+            return lock.newCondition();
+        }
     }
     
     /**
@@ -195,43 +820,375 @@ public class KVCache implements KeyValueInterface {
      */
     int getCacheSetSize(int cacheSet) {
         /* begin */
+        KVCache next = this.next;
+        if (next != null && migratedSets == numSets) {
+            return next.getCacheSetSize(cacheSet);
+        }
         if(cacheSet >= 0 && cacheSet < numSets){
-            return cache[cacheSet].size();
+            return size[cacheSet];
         }
         return -1;
         /* end */
     }
 
-    private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVCacheType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+    /**
+     * Start reshaping the cache into numSets sets of maxElemsPerSet entries,
+     * evicted by a new policy of the same class as the current one, which
+     * must have a public constructor without arguments, as all policies
+     * here do. See resize with a policy.
+     *
+     * @param numSets the number of sets the cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    public void resize(int numSets, int maxElemsPerSet) {
+        KVCache live = next == null ? this : next;
+        EvictionPolicy policy;
+        try {
+            policy = live.policy.getClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Policy needs a public no-argument constructor", e);
+        }
+        resize(numSets, maxElemsPerSet, policy);
+    }
+
+    /**
+     * Start reshaping the cache into numSets sets of maxElemsPerSet
+     * entries, evicted by policy. Returns at once: a daemon thread moves the
+     * entries over while get, put and del go on, after any resize still
+     * under way. It moves one set at a time under the set's lock, least
+     * recently used first so that a smaller cache keeps the hotter entries,
+     * and get, put and del of a key in a set that has moved go to the new
+     * shape. Once all have moved, getLock hands out the new shape's locks.
+     * Admission, byte and missing key limits carry over; the admission
+     * sketch starts afresh.
+     *
+     * @param numSets the number of sets the cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a new policy, used by this cache alone
+     */
+    public synchronized void resize(final int numSets, final int maxElemsPerSet,
+            final EvictionPolicy policy) {
+        final Thread previous = migrator;
+        migrator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (previous != null) {
+                        previous.join();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                moveTo(numSets, maxElemsPerSet, policy);
+            }
+        }, "KVCache resize");
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    /**
+     * Wait until every resize started so far is done.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitResize() throws InterruptedException {
+        Thread migrator;
+        synchronized (this) {
+            migrator = this.migrator;
+        }
+        if (migrator != null) {
+            migrator.join();
+        }
+    }
+
+    /**
+     * Move everything to a new cache of the given shape. After the first
+     * resize this cache holds nothing itself; the cache next resize made
+     * then moves its entries on, and next is pointed past it once they
+     * have all gone.
+     */
+    private void moveTo(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+        KVCache from = next == null ? this : next;
+        KVCache to = new KVCache(numSets, maxElemsPerSet, policy, from.sketch != null,
+            from.slabs != null ? StorageMode.OFF_HEAP : StorageMode.HEAP);
+        to.bytes = bytes;
+        to.maxBytes = from.maxBytes;
+        to.maxValueLength = from.maxValueLength;
+        if (from.missing != null) {
+            to.rememberMisses(from.missingPerSet);
+        }
+        from.next = to;
+        from.migrate();
+        if (from != this) {
+            // the counts of caches resize has retired are kept in set 0
+            locks[0].lock();
+            try {
+                hits[0] += from.ownHits();
+                misses[0] += sum(from.misses);
+                rejections[0] += sum(from.rejections);
+            } finally {
+                locks[0].unlock();
+            }
+            next = to;
+        }
+        swapLocks(to.locks);
+    }
+
+    /**
+     * Move the entries and missing keys of each set in turn to next, least
+     * recently used first, under the set's lock.
+     */
+    private void migrate() {
+        KVCache to = next;
+        for (int set = 0; set < numSets; set++) {
+            locks[set].lock();
+            try {
+                applyTouches(set);
+                for (int slot : policy.order(set)) {
+                    String key = keys.get(slot);
+                    String value = value(slot);
+                    long expiresAt = this.expiresAt[slot];
+                    boolean stale = expired(slot);
+                    // out before in, so that the byte total never counts it twice
+                    remove(set, slot);
+                    if (!stale) {
+                        to.moveIn(key, value, expiresAt);
+                    }
+                }
+                for (int i = 0; i < missingPerSet; i++) {
+                    int slot = set * missingPerSet + (nextMissing[set] + i) % missingPerSet;
+                    String key = missing.get(slot);
+                    if (key != null) {
+                        missing.set(slot, null);
+                        to.moveInMissing(key);
+                    }
+                }
+                migratedSets = set + 1;
+            } finally {
+                locks[set].unlock();
+            }
+        }
+    }
+
+    /**
+     * Put an entry resize moved here, bypassing admission.
+     */
+    private void moveIn(String key, String value, long expiresAt) {
+        int set = Math.abs(key.hashCode() % numSets);
+        locks[set].lock();
+        try {
+            put(set, key, value, expiresAt, false);
+        } finally {
+            locks[set].unlock();
+        }
+    }
+
+    private void moveInMissing(String key) {
+        Lock lock = ownLock(key);
+        lock.lock();
+        try {
+            putMissing(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The cache the keys of set have moved to, or null while they are here.
+     */
+    private KVCache movedTo(int set) {
+        return set < migratedSets ? next : null;
+    }
+
+    /**
+     * Limit the cache to maxBytes in all, as charged by sizeOf, and do not
+     * cache values longer than maxValueLength at all. A put that takes the
+     * total over the limit evicts until it fits again; see makeRoom. Call
+     * before the cache is shared between threads.
+     *
+     * @param maxBytes most bytes all entries may take, e.g. 64 << 20
+     * @param maxValueLength longest value to cache, in chars
+     */
+    public void limitBytes(long maxBytes, int maxValueLength) {
+        this.maxBytes = maxBytes;
+        this.maxValueLength = maxValueLength;
+        if (next != null) {
+            next.limitBytes(maxBytes, maxValueLength);
+        }
+    }
+
+    /**
+     * Remember up to keysPerSet keys per set that putMissing reports absent
+     * from the store, so that KVServer can turn repeated lookups of them away
+     * without its lock or its store. They are replaced first in, first out,
+     * and a put of the key forgets it. Call before the cache is shared
+     * between threads.
+     *
+     * @param keysPerSet slots per set for missing keys
+     */
+    public void rememberMisses(int keysPerSet) {
+        missingPerSet = keysPerSet;
+        missing = new AtomicReferenceArray<String>(numSets * keysPerSet);
+        nextMissing = new int[numSets];
+        if (next != null) {
+            next.rememberMisses(keysPerSet);
+        }
+    }
+
+    /**
+     * Whether key was reported missing since it was last put. Needs no
+     * lock, so it may still report a key missing while a put of it is under
+     * way; always false without rememberMisses.
+     *
+     * @param  key the key to look for
+     * @return true if key is known not to be in the store
+     */
+    public boolean isMissing(String key) {
+        int set = Math.abs(key.hashCode() % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            return moved.isMissing(key);
+        }
+        if (missing == null) {
+            return false;
+        }
+        return findMissing(set, key) >= 0;
     }
 
-    private JAXBElement<KVCacheType> getXMLRoot() throws JAXBException {
-        ObjectFactory factory = new ObjectFactory();
-        KVCacheType xmlCache = factory.createKVCacheType();
+    /**
+     * Record that the store does not have key, until it is put. Assumes
+     * access to the corresponding set has already been locked by the caller
+     * of this method; does nothing without rememberMisses.
+     *
+     * @param key a key the store does not have
+     */
+    public void putMissing(String key) {
+        int set = Math.abs(key.hashCode() % numSets);
+        KVCache moved = movedTo(set);
+        if (moved != null) {
+            Lock lock = moved.ownLock(key);
+            lock.lock();
+            try {
+                moved.putMissing(key);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (missing == null || missingPerSet == 0) {
+            return;
+        }
+        if (findMissing(set, key) >= 0) {
+            return;
+        }
+        missing.set(set * missingPerSet + nextMissing[set], key);
+        nextMissing[set] = (nextMissing[set] + 1) % missingPerSet;
+    }
+
+    /**
+     * The slot of missing holding key in set, or -1.
+     */
+    private int findMissing(int set, String key) {
+        int hash = key.hashCode();
+        int base = set * missingPerSet;
+        for (int slot = base; slot < base + missingPerSet; slot++) {
+            String k = missing.get(slot);
+            if (k != null && k.hashCode() == hash && k.equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bytes charged for the entries cached now; approximate like getHits.
+     *
+     * @return bytes in use
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Gets and tryGets that found their key so far. Counted per set under
+     * the set locks and summed without them, so only approximate while the
+     * cache is busy.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        KVCache next = this.next;
+        return next == null ? ownHits() : ownHits() + next.getHits();
+    }
+
+    private long ownHits() {
+        long hits = sum(this.hits);
+        for (int i = 0; i < STRIPES; i++) {
+            hits += optimisticHits.get(i * STRIDE);
+        }
+        return hits;
+    }
+
+    /**
+     * Gets that did not find their key so far; approximate like getHits.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        KVCache next = this.next;
+        return next == null ? sum(misses) : sum(misses) + next.getMisses();
+    }
+
+    /**
+     * @return hits over all gets, or 0 before the first get
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long gets = hits + getMisses();
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    /**
+     * New keys admission kept out of a full set so far; approximate like
+     * getHits, and always 0 without admission.
+     *
+     * @return number of rejected puts
+     */
+    public long getRejections() {
+        KVCache next = this.next;
+        return next == null ? sum(rejections) : sum(rejections) + next.getRejections();
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private void writeTo(KVXmlWriter xml) throws IOException {
         /* begin */
-        KVSetType settype;
-        KVCacheEntry entry;
-        
+        KVCache next = this.next;
+        if (next != null && migratedSets == numSets) {
+            next.writeTo(xml);
+            return;
+        }
+        xml.writeStartDocument();
+        xml.writeStartElement("KVCache");
         for (int i = 0; i < numSets; i ++) {
-            settype = factory.createKVSetType();
-            String id = Integer.toString(i);
-            settype.setId(id);
-            
-            LinkedList<KVCacheEntry> ll = cache[i];
-            ListIterator<KVCacheEntry> iterator = ll.listIterator();
-            while (iterator.hasNext()) {
-                entry = iterator.next();
-                settype.getCacheEntry().add(entry);
-            }
-            xmlCache.getSet().add(settype);
-        }
-        return factory.createKVCache(xmlCache);
+            xml.writeStartElement("Set");
+            xml.writeAttribute("Id", Integer.toString(i));
+            for (int slot : policy.order(i)) {
+                xml.writeStartElement("CacheEntry");
+                xml.writeAttribute("isReferenced", Boolean.toString(policy.isReferenced(slot)));
+                xml.writeTextElement("Key", keys.get(slot));
+                xml.writeTextElement("Value", value(slot));
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
         /* end */
     }
 
@@ -240,13 +1197,13 @@ public class KVCache implements KeyValueInterface {
      */
     public String toXML() {
         /* begin */
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        StringBuilder sb = new StringBuilder();
         try {
-            marshalTo(os);
-        } catch (JAXBException e) {
+            writeTo(new KVXmlWriter(sb));
+        } catch (IOException e) {
             // BEST EFFORT: IGNORE
         }
-        return os.toString();
+        return sb.toString();
         /* end */
     }
     @Override
@@ -3,17 +3,25 @@ package kvstore;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
+import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
 import static kvstore.KVConstants.ERROR_INVALID_KEY;
 import static kvstore.KVConstants.ERROR_INVALID_VALUE;
 import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 import static kvstore.KVConstants.SUCCESS;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Client API used to issue requests to key-value server.
@@ -22,6 +30,15 @@ public class KVClient implements KeyValueInterface {
 
     public String server;
     public int port;
+    public WireFormat wireFormat;
+    public boolean keepAlive;
+
+    /* How long the kept-alive connection may sit unused before it is replaced.
+     * Shorter than the server's idle timeout, so it is rarely found closed. */
+    public int idleTimeout = SocketServer.IDLE_TIMEOUT / 2;
+
+    private Link link;
+    private int requestId;
 
     /**
      * Constructs a KVClient connected to a server.
@@ -30,8 +47,39 @@ public class KVClient implements KeyValueInterface {
      * @param port is the port on which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, WireFormat.XML);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server that speaks the given wire
+     * format on each of its connections.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param wireFormat the encoding used for requests (and hence responses)
+     */
+    public KVClient(String server, int port, WireFormat wireFormat) {
+        this(server, port, wireFormat, false);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server. In keep-alive mode all
+     * requests share one persistent connection, opened on first use and
+     * reopened if the server closes it; call close() when done with it.
+     * Otherwise every request opens and closes its own socket. The
+     * putAsync, getAsync and delAsync methods always pipeline over the
+     * persistent connection.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param wireFormat the encoding used for requests (and hence responses)
+     * @param keepAlive whether to reuse one connection for all requests
+     */
+    public KVClient(String server, int port, WireFormat wireFormat, boolean keepAlive) {
         this.server = server;
         this.port = port;
+        this.wireFormat = wireFormat;
+        this.keepAlive = keepAlive;
     }
 
     /**
@@ -69,6 +117,123 @@ public class KVClient implements KeyValueInterface {
         /* end */
     }
 
+    /**
+     * Closes the kept-alive connection, if there is one. Requests still
+     * waiting on it fail with ERROR_COULD_NOT_RECEIVE_DATA. The next request
+     * opens a new one.
+     */
+    public synchronized void close() {
+        if (link != null) {
+            link.connection.close();
+            link = null;
+        }
+    }
+
+    /**
+     * Sends a request and waits for the response, on a socket of its own or,
+     * in keep-alive mode, on the shared connection.
+     *
+     * @param  message the request
+     * @return the response from the server
+     * @throws KVException if the request could not be sent or answered
+     */
+    private KVMessage request(KVMessage message) throws KVException {
+        if (keepAlive) {
+            Pending<KVMessage> pending = new Pending<KVMessage>() {
+                @Override
+                KVMessage result(KVMessage response) {
+                    return response;
+                }
+            };
+            submit(message, pending, true);
+            return pending.await();
+        }
+        Socket socket = connectHost();
+        try {
+            message.sendMessage(socket, wireFormat);
+            return new KVMessage(socket);
+        } finally {
+            closeHost(socket);
+        }
+    }
+
+    /**
+     * Sends a request on the kept-alive connection without waiting for the
+     * response, which completes pending when it arrives. The connection is
+     * opened, or replaced if it has been idle for idleTimeout, as needed.
+     *
+     * A request that was the only one outstanding on a reused connection is
+     * sent once more on a fresh connection if the server turns out to have
+     * closed the old one: the server only closes a connection when it is
+     * idle, so it never saw the request.
+     *
+     * @param  message the request
+     * @param  pending completed with the response
+     * @param  retry whether the request may be sent again as described above
+     * @throws KVException if the request could not be sent
+     */
+    private synchronized void submit(KVMessage message, Pending<?> pending, boolean retry)
+            throws KVException {
+        long now = System.currentTimeMillis();
+        boolean reused = link != null
+            && (!link.pending.isEmpty() || now - link.lastUsed < idleTimeout);
+        if (!reused) {
+            close();
+            link = new Link(new KVConnection(connectHost(), wireFormat));
+            link.start();
+        }
+        pending.request = message;
+        pending.retry = retry && reused && link.pending.isEmpty();
+        message.setRequestId(nextRequestId());
+        link.pending.put(message.getRequestId(), pending);
+        link.lastUsed = now;
+        try {
+            link.connection.send(message);
+        } catch (KVException e) {
+            link.pending.remove(message.getRequestId());
+            close();
+            if (!pending.retry) {
+                throw e;
+            }
+            submit(message, pending, false);
+        }
+    }
+
+    private int nextRequestId() {
+        // positive IDs only, so they stay one byte shorter as varints
+        do {
+            requestId = (requestId + 1) & Integer.MAX_VALUE;
+        } while (requestId == KVMessage.NO_REQUEST_ID);
+        return requestId;
+    }
+
+    /**
+     * Called by the reader of a link that has stopped receiving. Requests
+     * still waiting on it are sent again if they may be, or fail.
+     *
+     * @param lost the link that ended
+     * @param error reported to the requests that fail
+     */
+    private synchronized void linkLost(Link lost, KVException error) {
+        boolean current = (lost == link);
+        if (current) {
+            close();
+        }
+        for (Pending<?> pending : lost.pending.values()) {
+            if (current && pending.retry) {
+                try {
+                    submit(pending.request, pending, false);
+                    continue;
+                } catch (KVException e) {
+                    pending.fail(e);
+                    continue;
+                }
+            }
+            pending.fail(error);
+        }
+        lost.pending.clear();
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -78,33 +243,49 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void put(String key, String value) throws KVException {
         /* begin */
-        Socket socket = connectHost();
-        try {
-            KVMessage message = new KVMessage(PUT_REQ);
-            if (key == null) {
-            	throw new KVException(ERROR_INVALID_KEY);
-            }
-            message.setKey(key);
-            if (value == null) {
-            	throw new KVException(ERROR_INVALID_VALUE);
-            }
-            message.setValue(value);
-            message.sendMessage(socket);
-            
-            KVMessage response = new KVMessage(socket);
-            
-            String msg = response.getMessage();
-            if (msg == null) {
-                throw new KVException(ERROR_NO_SUCH_KEY);
-            } else if (!msg.equals(SUCCESS)) {
-                throw new KVException(msg);
-            }
-        } finally {
-            closeHost(socket);
-        }
+        KVMessage response = request(putRequest(key, value));
+        checkSuccess(response);
         /* end */
     }
 
+    /**
+     * Issues a PUT request for a key the server drops ttl milliseconds after
+     * carrying out the put.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @param  ttl milliseconds the key lives, or KVMessage.NO_TTL for ever
+     * @throws KVException if the request was not successful in any way
+     */
+    public void put(String key, String value, long ttl) throws KVException {
+        KVMessage message = putRequest(key, value);
+        message.setTtl(ttl);
+        checkSuccess(request(message));
+    }
+
+    /**
+     * Issues a PUT request on the kept-alive connection without waiting for
+     * the response. Any number of requests may be outstanding at once; the
+     * server may complete them in any order.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @return Future completing once the put is done, failing with the
+     *         KVException the request ended with
+     * @throws KVException if the request is invalid or could not be sent
+     */
+    public Future<Void> putAsync(String key, String value) throws KVException {
+        Pending<Void> pending = new Pending<Void>() {
+            @Override
+            Void result(KVMessage response) throws KVException {
+                checkSuccess(response);
+                return null;
+            }
+        };
+        submit(putRequest(key, value), pending, true);
+        return pending;
+    }
+
     /**
      * Issues a GET request to the server.
      *
@@ -115,34 +296,30 @@ public class KVClient implements KeyValueInterface {
     @Override
     public String get(String key) throws KVException {
         /* begin */
-        Socket socket = connectHost();
-        try {
-            KVMessage message = new KVMessage(GET_REQ);
-            if (key == null) {
-            	throw new KVException(ERROR_INVALID_KEY);
-            }
-            
-            message.setKey(key);
-            message.sendMessage(socket);
-            
-            KVMessage response = new KVMessage(socket);
-            
-            String val = response.getValue();
-            String msg = response.getMessage();
-            if (val == null) {
-                if (msg == null) {
-                    throw new KVException(ERROR_NO_SUCH_KEY);
-                } else {
-                    throw new KVException(msg);
-                }
-            } 
-            return val;
-        } finally {
-            closeHost(socket);
-        }
+        KVMessage response = request(keyRequest(GET_REQ, key));
+        return valueOf(response);
         /* end */
     }
 
+    /**
+     * Issues a GET request on the kept-alive connection without waiting for
+     * the response. See putAsync.
+     *
+     * @param  key String to get value for in server
+     * @return Future holding the value associated with key
+     * @throws KVException if the request is invalid or could not be sent
+     */
+    public Future<String> getAsync(String key) throws KVException {
+        Pending<String> pending = new Pending<String>() {
+            @Override
+            String result(KVMessage response) throws KVException {
+                return valueOf(response);
+            }
+        };
+        submit(keyRequest(GET_REQ, key), pending, true);
+        return pending;
+    }
+
     /**
      * Issues a DEL request to the server.
      *
@@ -152,28 +329,246 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         /* begin */
-        Socket socket = connectHost();
-        try {
-            KVMessage message = new KVMessage(DEL_REQ);
-            if (key == null) {
-            	throw new KVException(ERROR_INVALID_KEY);
+        KVMessage response = request(keyRequest(DEL_REQ, key));
+        checkSuccess(response);
+        /* end */
+    }
+
+    /**
+     * Issues a DEL request on the kept-alive connection without waiting for
+     * the response. See putAsync.
+     *
+     * @param  key String to delete value for in server
+     * @return Future completing once the delete is done
+     * @throws KVException if the request is invalid or could not be sent
+     */
+    public Future<Void> delAsync(String key) throws KVException {
+        Pending<Void> pending = new Pending<Void>() {
+            @Override
+            Void result(KVMessage response) throws KVException {
+                checkSuccess(response);
+                return null;
             }
-            
-            message.setKey(key);
-            message.sendMessage(socket);
-            
-            KVMessage response = new KVMessage(socket);
-            
-            String msg = response.getMessage();
+        };
+        submit(keyRequest(DEL_REQ, key), pending, true);
+        return pending;
+    }
+
+    /**
+     * Issues a SCAN request for one page of the keys that start with prefix,
+     * in order, and their values. To list them all, pass null for token the
+     * first time, and then the token each page returns, until it is null.
+     *
+     * @param  prefix String the keys start with; "" for all keys
+     * @param  token returned for the page before, or null for the first
+     * @param  limit most pairs in the page, or KVMessage.NO_LIMIT for the
+     *         server's default
+     * @param  page map the pairs are put in
+     * @return the token for the next page, or null if this was the last
+     * @throws KVException if the request was not successful in any way
+     */
+    public String scan(String prefix, String token, int limit, Map<String, String> page)
+            throws KVException {
+        KVMessage message = new KVMessage(SCAN_REQ);
+        message.setKey(prefix == null ? "" : prefix);
+        message.setToken(token);
+        message.setLimit(limit);
+        KVMessage response = request(message);
+        checkSuccess(response);
+        if (response.getPairs() != null) {
+            page.putAll(response.getPairs());
+        }
+        return response.getToken();
+    }
+
+    private KVMessage putRequest(String key, String value) throws KVException {
+        KVMessage message = new KVMessage(PUT_REQ);
+        if (key == null) {
+        	throw new KVException(ERROR_INVALID_KEY);
+        }
+        message.setKey(key);
+        if (value == null) {
+        	throw new KVException(ERROR_INVALID_VALUE);
+        }
+        message.setValue(value);
+        return message;
+    }
+
+    private KVMessage keyRequest(String msgType, String key) throws KVException {
+        KVMessage message = new KVMessage(msgType);
+        if (key == null) {
+        	throw new KVException(ERROR_INVALID_KEY);
+        }
+        message.setKey(key);
+        return message;
+    }
+
+    private static void checkSuccess(KVMessage response) throws KVException {
+        String msg = response.getMessage();
+        if (msg == null) {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        } else if (!msg.equals(SUCCESS)) {
+            throw new KVException(msg);
+        }
+    }
+
+    private static String valueOf(KVMessage response) throws KVException {
+        String val = response.getValue();
+        String msg = response.getMessage();
+        if (val == null) {
             if (msg == null) {
                 throw new KVException(ERROR_NO_SUCH_KEY);
-            } else if (!msg.equals(SUCCESS)) {
+            } else {
                 throw new KVException(msg);
             }
-        } finally {
-            closeHost(socket);
+        } 
+        return val;
+    }
+
+    /**
+     * The kept-alive connection, the requests waiting for a response on it,
+     * and the daemon thread that reads those responses and hands each to its
+     * request by ID. Guarded by the KVClient.
+     */
+    private class Link extends Thread {
+
+        final KVConnection connection;
+        final Map<Integer, Pending<?>> pending = new HashMap<Integer, Pending<?>>();
+        long lastUsed;
+
+        Link(KVConnection connection) {
+            super("KVClient " + server + ":" + port);
+            this.connection = connection;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            KVException error = new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            while (true) {
+                KVMessage response;
+                try {
+                    response = connection.receive();
+                } catch (KVException e) {
+                    error = e;
+                    break;
+                }
+                if (response == null) {
+                    break;
+                }
+                Pending<?> waiting;
+                synchronized (KVClient.this) {
+                    waiting = pending.remove(response.getRequestId());
+                    lastUsed = System.currentTimeMillis();
+                }
+                if (waiting == null) {
+                    // the server couldn't read a request, so it can't say which
+                    error = new KVException(response);
+                    break;
+                }
+                waiting.complete(response);
+            }
+            connection.close();
+            linkLost(this, error);
+        }
+    }
+
+    /**
+     * A request sent on the kept-alive connection whose response may not have
+     * arrived yet. get() reports a failed request as an ExecutionException
+     * caused by its KVException.
+     */
+    private abstract static class Pending<T> implements Future<T> {
+
+        KVMessage request;
+        boolean retry;
+
+        private boolean done;
+        private KVMessage response;
+        private KVException failure;
+
+        /* Turn the response into the request's result, or its error. */
+        abstract T result(KVMessage response) throws KVException;
+
+        synchronized void complete(KVMessage response) {
+            this.response = response;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(KVException failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /* Block for the result, reporting failure as the KVException itself. */
+        synchronized T await() throws KVException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result(response);
+        }
+
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return resultOrThrow();
+        }
+
+        @Override
+        public synchronized T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return resultOrThrow();
+        }
+
+        private T resultOrThrow() throws ExecutionException {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                return result(response);
+            } catch (KVException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        /* Requests already on the wire can't be taken back. */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
         }
-        /* end */
     }
 
 }
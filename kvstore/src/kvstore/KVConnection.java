@@ -0,0 +1,223 @@
+package kvstore;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+
+/**
+ * A TCP connection carrying KVMessages, possibly many of them in each
+ * direction. On a persistent connection every message is a self-delimiting
+ * frame (see KVBinaryCodec), so one socket can carry any number of
+ * request/response pairs. A peer that sends a bare XML document instead gets
+ * the original one-shot exchange: a single reply followed by shutdownOutput().
+ *
+ * The receiving side learns which mode and wire format to use from each
+ * message it receives. A client side connection always sends frames in the
+ * format it was constructed with. Servers read their requests in a
+ * SocketServer, which frames them the same way; a server side KVConnection
+ * only answers the single request of NetworkHandler.handle(Socket).
+ */
+public class KVConnection {
+
+    /**
+     * Computes the reply to a single request; see RequestJob.
+     */
+    public interface RequestProcessor {
+        KVMessage process(KVMessage request);
+    }
+
+    public Socket sock;
+
+    private PushbackInputStream in;
+    private OutputStream out;
+    private volatile WireFormat format;
+    private volatile boolean framed = true;
+    private volatile boolean closed = false;
+
+    /**
+     * Wraps an accepted socket. Reads use the socket's timeout, which on a
+     * persistent connection is also how long it may sit idle between requests.
+     *
+     * @param sock Socket connected to the peer
+     */
+    public KVConnection(Socket sock) {
+        this(sock, WireFormat.XML);
+    }
+
+    /**
+     * Wraps a socket that will send frames in the given wire format.
+     *
+     * @param sock Socket connected to the peer
+     * @param format WireFormat to send with until a message is received
+     */
+    public KVConnection(Socket sock, WireFormat format) {
+        this.sock = sock;
+        this.format = format;
+    }
+
+    /**
+     * Wait for the next message from the peer.
+     *
+     * @return the next message, or null if the peer closed the connection or
+     *         it sat idle past the socket timeout before a message began
+     * @throws KVException if a message began but could not be read. No more
+     *         messages will be read from the connection after this.
+     */
+    public KVMessage receive() throws KVException {
+        if (closed) {
+            return null;
+        }
+        int first;
+        try {
+            if (in == null) {
+                in = new PushbackInputStream(new BufferedInputStream(sock.getInputStream()), 1);
+            }
+            first = in.read();
+            if (first != -1) {
+                in.unread(first);
+            }
+        } catch (IOException e) {
+            // timed out or reset between messages, so nothing was lost
+            first = -1;
+        }
+        if (first == -1) {
+            closed = true;
+            return null;
+        }
+
+        framed = (first == KVBinaryCodec.MAGIC || first == KVBinaryCodec.XML_MAGIC);
+        format = (first == KVBinaryCodec.MAGIC) ? WireFormat.BINARY : WireFormat.XML;
+        try {
+            return new KVMessage(in);
+        } catch (KVException e) {
+            // the stream is no longer known to be at a message boundary
+            closed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Send a message in the connection's current wire format. If the last
+     * message received was a bare XML document the output is shut down
+     * afterwards, and the connection is finished.
+     *
+     * @param  msg KVMessage to send
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void send(KVMessage msg) throws KVException {
+        send(msg, format);
+    }
+
+    /**
+     * Send a message in the given wire format. Safe to call from several
+     * threads at once; each message goes out whole.
+     *
+     * @param  msg KVMessage to send
+     * @param  format WireFormat to encode with
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public synchronized void send(KVMessage msg, WireFormat format) throws KVException {
+        if (!framed) {
+            closed = true;
+            msg.sendMessage(sock, format);
+            return;
+        }
+        byte[] frame = msg.toFrame(format);
+        try {
+            if (out == null) {
+                out = sock.getOutputStream();
+            }
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            closed = true;
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * The Reply to a request received on this connection: it sends the
+     * answer in the request's wire format, tagged with its request ID, and
+     * then ends the exchange as answer does.
+     *
+     * @param request the request received
+     * @return where the answer to request goes
+     */
+    NetworkHandler.Reply replyTo(final KVMessage request) {
+        return new NetworkHandler.Reply() {
+            @Override
+            public void send(KVMessage response) {
+                response.setRequestId(request.getRequestId());
+                answer(response, request.getWireFormat());
+            }
+        };
+    }
+
+    /**
+     * Send a last message and end the exchange. A persistent connection is
+     * closed; a one-shot one is left for the peer to close once it has read
+     * the reply.
+     *
+     * @param msg KVMessage to send
+     * @param format WireFormat to encode with
+     */
+    void answer(KVMessage msg, WireFormat format) {
+        try {
+            send(msg, format);
+        } catch (KVException e) {
+            // the peer is gone
+        }
+        if (framed) {
+            close();
+        }
+    }
+
+    /**
+     * Turn the connection away without reading from it: send
+     * ERROR_SERVER_BUSY as a one-shot XML reply, which a framing peer reads as
+     * well, and close.
+     */
+    public void refuse() {
+        try {
+            new KVMessage(KVConstants.RESP, KVConstants.ERROR_SERVER_BUSY).sendMessage(sock);
+        } catch (KVException e) {
+            // the peer is gone anyway
+        }
+        close();
+    }
+
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    /**
+     * Whether messages on this connection are framed, so that it can carry
+     * more than one request.
+     *
+     * @return true if the connection is persistent
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the socket.
+     * Best effort, ignores error since the connection is being discarded.
+     */
+    public void close() {
+        closed = true;
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // BEST EFFORT: IGNORE
+        }
+    }
+}
@@ -6,6 +6,7 @@ public class KVConstants {
     public static final String GET_REQ  = "getreq";
     public static final String PUT_REQ  = "putreq";
     public static final String DEL_REQ  = "delreq";
+    public static final String SCAN_REQ = "scanreq";
     public static final String RESP     = "resp";
     public static final String SUCCESS  = "Success";
 
@@ -106,4 +107,40 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message used if a PUT request is made with a negative TTL.
+     */
+    public static final String ERROR_INVALID_TTL =
+        "Data Error: Negative TTL";
+
+    /**
+     * Error message used if a SCAN request is made with a negative limit.
+     */
+    public static final String ERROR_INVALID_LIMIT =
+        "Data Error: Negative scan limit";
+
+    /**
+     * Error message used if a SCAN request is made to a server whose store
+     * does not keep its keys in order; see StorageMode.ORDERED and
+     * DiskEngine.LSM.
+     */
+    public static final String ERROR_SCAN_UNSUPPORTED =
+        "Data Error: Store cannot scan";
+
+    /**
+     * Error message used if the server is too loaded to take on a request: its
+     * job queue is full, or the request waited in it so long that it was shed.
+     * The request was not carried out and may be retried later.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Server Error: Server busy";
+
+    /**
+     * Error message used if the server failed while carrying out a request,
+     * for instance because its store could not be written. The request may or
+     * may not have been carried out.
+     */
+    public static final String ERROR_SERVER_FAILURE =
+        "Server Error: Request failed";
+
 }
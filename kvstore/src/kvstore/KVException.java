@@ -24,6 +24,18 @@ public class KVException extends Exception {
         this.kvm = new KVMessage(KVConstants.RESP, errorMessage);
     }
 
+    /**
+     * Construct a KVException for an expected outcome, such as a lookup of a
+     * key known to be missing, without the cost of filling in a stack trace.
+     *
+     * @param kvm KVMessage for this KVException
+     * @param stackTrace whether to record where it was thrown
+     */
+    KVException(KVMessage kvm, boolean stackTrace) {
+        super(null, null, false, stackTrace);
+        this.kvm = kvm;
+    }
+
     /**
      * Getter for the inner KVMessage containing the error message.
      *
@@ -5,23 +5,16 @@ import static kvstore.KVConstants.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import kvstore.xml.KVMessageType;
-import kvstore.xml.ObjectFactory;
-
 import org.w3c.dom.*;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * This is the object that is used to generate the XML based messages
@@ -33,6 +26,22 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    private int requestId = NO_REQUEST_ID;
+    private long ttl = NO_TTL;
+    private long expiresAt = NO_TTL;
+    private int limit = NO_LIMIT;
+    private String token;
+    private TreeMap<String, String> pairs;
+    private transient WireFormat wireFormat = WireFormat.XML;
+
+    /* Request ID of a message that doesn't take part in pipelining */
+    public static final int NO_REQUEST_ID = 0;
+
+    /* TTL of a put whose key never expires */
+    public static final long NO_TTL = 0;
+
+    /* Limit of a scan that takes the server's default page size */
+    public static final int NO_LIMIT = 0;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
@@ -92,17 +101,18 @@ public class KVMessage implements Serializable {
         } catch (IOException e) {
             throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
         }
-        try {
-            KVMessageType message = unmarshal(input);
-            
-            this.msgType = message.getType();
-            this.key = message.getKey();
-            this.value = message.getValue();
-            this.message = message.getMessage();
-            
-        } catch (JAXBException e) {
-            throw new KVException(ERROR_INVALID_FORMAT);
-        } 
+        receive(input);
+    }
+
+    /**
+     * Construct KVMessage from an InputStream holding a single message in
+     * either wire format.
+     *
+     * @param  input InputStream to read the serialized KVMessage from
+     * @throws KVException if we fail to create a valid KVMessage
+     */
+    KVMessage(InputStream input) throws KVException {
+        receive(input);
     }
 
     /**
@@ -116,25 +126,93 @@ public class KVMessage implements Serializable {
         this.key = kvm.getKey();
         this.value = kvm.getValue();
         this.message = kvm.getMessage();
+        this.requestId = kvm.getRequestId();
+        this.ttl = kvm.getTtl();
+        this.limit = kvm.getLimit();
+        this.token = kvm.getToken();
+        setPairs(kvm.getPairs());
+        this.wireFormat = kvm.getWireFormat();
+    }
+
+    /**
+     * Read one message from the stream, sniffing the first byte to tell a
+     * binary or XML frame from a bare XML document, and populate this
+     * KVMessage with it.
+     *
+     * @param  input InputStream positioned at the start of a message
+     * @throws KVException if we fail to read a valid KVMessage
+     */
+    private void receive(InputStream input) throws KVException {
+        PushbackInputStream in = new PushbackInputStream(input, 1);
+        int first;
+        try {
+            first = in.read();
+            if (first != KVBinaryCodec.MAGIC && first != KVBinaryCodec.XML_MAGIC
+                    && first != -1) {
+                in.unread(first);
+            }
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+
+        KVMessage message;
+        if (first == KVBinaryCodec.MAGIC) {
+            message = KVBinaryCodec.decode(in);
+            this.wireFormat = WireFormat.BINARY;
+        } else if (first == KVBinaryCodec.XML_MAGIC) {
+            message = KVBinaryCodec.decodeXml(in);
+            this.wireFormat = WireFormat.XML;
+        } else {
+            message = KVXmlReader.readMessage(in);
+            this.wireFormat = WireFormat.XML;
+        }
+        this.msgType = message.getMsgType();
+        this.key = message.getKey();
+        this.value = message.getValue();
+        this.message = message.getMessage();
+        this.requestId = message.getRequestId();
+        this.ttl = message.getTtl();
+        this.limit = message.getLimit();
+        this.token = message.getToken();
+        this.pairs = message.pairs;
     }
 
-    
 
     /**
-     * Validates and creates the KVMessageType XML root element for this KVMessage
+     * Write this KVMessage as a KVMessage XML document.
      *
-     * @throws JAXBException
-     * @throws KVException
+     * @param  xml writer to emit the document to
+     * @throws IOException if the underlying Appendable fails
      */
-    private JAXBElement<KVMessageType> getXMLRoot() throws JAXBException, KVException {
-        ObjectFactory factory = new ObjectFactory();
-        KVMessageType xmlStore = factory.createKVMessageType();
+    private void writeTo(KVXmlWriter xml) throws IOException {
         /* begin */
-        xmlStore.setType(msgType);
-        xmlStore.setMessage(message);
-        xmlStore.setKey(key);
-        xmlStore.setValue(value);
-        return factory.createKVMessage(xmlStore);
+        xml.writeStartDocument();
+        xml.writeStartElement("KVMessage");
+        xml.writeAttribute("type", msgType);
+        if (requestId != NO_REQUEST_ID) {
+            xml.writeAttribute("id", Integer.toString(requestId));
+        }
+        if (ttl != NO_TTL) {
+            xml.writeAttribute("ttl", Long.toString(ttl));
+        }
+        if (limit != NO_LIMIT) {
+            xml.writeAttribute("limit", Integer.toString(limit));
+        }
+        xml.writeTextElement("Key", key);
+        xml.writeTextElement("Value", value);
+        xml.writeTextElement("Message", message);
+        if (pairs != null) {
+            for (Map.Entry<String, String> e : pairs.entrySet()) {
+                xml.writeStartElement("KVPair");
+                xml.writeTextElement("Key", e.getKey());
+                xml.writeTextElement("Value", e.getValue());
+                xml.writeEndElement();
+            }
+        }
+        xml.writeTextElement("Token", token);
+        xml.writeEndElement();
         /* end */
     }
 
@@ -147,50 +225,50 @@ public class KVMessage implements Serializable {
      *             with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
     public String toXML() throws KVException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        StringBuilder sb = new StringBuilder();
         try {
-            marshalTo(os);
-        }
-        catch (KVException e) {
-            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        }
-        catch (JAXBException e) {
+            writeTo(new KVXmlWriter(sb));
+        } catch (IOException e) {
+            // StringBuilder never throws; kept for the Appendable contract
             throw new KVException(KVConstants.ERROR_PARSER);
         }
-        return os.toString();
+        return sb.toString();
     }
 
     /**
-     * Grab XML from an InputStream and create a KVMessageType object.
+     * Generate the serialized representation of this message in the given
+     * wire format.
      *
-     * @param is InputStream to get XML from
-     * @return KVMessageType from XML
-     * @throws JAXBException
+     * @param  format WireFormat to encode with
+     * @return the bytes to put on the wire
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
-    @SuppressWarnings("unchecked")
-    private KVMessageType unmarshal(InputStream is) throws JAXBException {
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = jc.createUnmarshaller();
-        return ((JAXBElement<KVMessageType>)unmarshaller.unmarshal(new NoCloseInputStream(is))).getValue();
+    byte[] toBytes(WireFormat format) throws KVException {
+        if (format == WireFormat.BINARY) {
+            return KVBinaryCodec.encode(this);
+        }
+        return toXML().getBytes(StandardCharsets.UTF_8);
     }
 
     /**
-     * Export XML from this KVMessage object and marshal it to the OutputStream
-     * @param os OutputStream to marshal to
-     * @throws JAXBException
-     * @throws KVException
+     * Generate a self-delimiting frame for this message in the given wire
+     * format, for use on a persistent connection where EOF can't mark the
+     * end of a message.
+     *
+     * @param  format WireFormat to encode with
+     * @return the frame to put on the wire
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
-    private void marshalTo(OutputStream os) throws JAXBException, KVException {
-        JAXBContext jc = JAXBContext.newInstance(KVMessageType.class);
-        Marshaller marshaller = jc.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.marshal(getXMLRoot(), os);
+    byte[] toFrame(WireFormat format) throws KVException {
+        if (format == WireFormat.BINARY) {
+            return KVBinaryCodec.encode(this);
+        }
+        return KVBinaryCodec.encodeXml(this);
     }
-    
 
     /**
-     * Send serialized version of this KVMessage over the network.
+     * Send serialized version of this KVMessage over the network, in the wire
+     * format this message was received in (XML unless set otherwise).
      * You must call sock.shutdownOutput() in order to flush the OutputStream
      * and send an EOF (so that the receiving end knows you are done sending).
      * Do not call close on the socket. Closing a socket closes the InputStream
@@ -201,11 +279,24 @@ public class KVMessage implements Serializable {
      *         ERROR_COULD_NOT_SEND_DATA
      */
     public void sendMessage(Socket sock) throws KVException {
+        sendMessage(sock, getWireFormat());
+    }
+
+    /**
+     * Send serialized version of this KVMessage over the network using the
+     * given wire format. See sendMessage(Socket).
+     *
+     * @param  sock Socket to send the message through
+     * @param  format WireFormat to encode with
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void sendMessage(Socket sock, WireFormat format) throws KVException {
         /* begin */
-        String message = toXML();
+        byte[] bytes = toBytes(format);
         try {
             OutputStream os = sock.getOutputStream();
-            os.write(message.getBytes());
+            os.write(bytes);
             sock.shutdownOutput();
             
         } catch (IOException e) {
@@ -242,6 +333,108 @@ public class KVMessage implements Serializable {
         return msgType;
     }
 
+    /**
+     * The ID a pipelining client gave this request, echoed on its response so
+     * the two can be matched up. NO_REQUEST_ID if there is none.
+     *
+     * @return request ID of this message
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * How long the key of a put lives, in milliseconds from when the server
+     * carries the put out; NO_TTL if it lives until deleted.
+     *
+     * @return TTL of this message
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * On a COMMIT kept in a TPCLog, when the key of the put it commits
+     * expires, in System.currentTimeMillis(); NO_TTL if never. Only logged,
+     * never sent.
+     *
+     * @return expiry time of the committed put
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * How many pairs a scan may return at most; NO_LIMIT for the server's
+     * default.
+     *
+     * @return limit of this message
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Where a scan carries on. On a scan request, the token of the page
+     * before, or null for the first page; on its response, the token to
+     * ask for the next page with, or null if there is none. Opaque to the
+     * client.
+     *
+     * @return continuation token of this message
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * The key-value pairs a scan response carries, in key order, or null
+     * if it carries none.
+     *
+     * @return pairs of this message, not to be changed
+     */
+    public SortedMap<String, String> getPairs() {
+        return pairs;
+    }
+
+    public void setPairs(Map<String, String> pairs) {
+        this.pairs = pairs == null ? null : new TreeMap<String, String>(pairs);
+    }
+
+    /**
+     * The wire format this message was received in, and that sendMessage(Socket)
+     * will use. Messages built locally default to XML.
+     *
+     * @return WireFormat of this message
+     */
+    public WireFormat getWireFormat() {
+        // messages read back from a TPCLog have no format recorded
+        return (wireFormat == null) ? WireFormat.XML : wireFormat;
+    }
+
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
 
     @Override
     public String toString() {
@@ -253,23 +446,6 @@ public class KVMessage implements Serializable {
         }
     }
 
-    /*
-     * InputStream wrapper that allows us to reuse the corresponding
-     * OutputStream of the socket to send a response.
-     * Please read about the problem and solution here:
-     * http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html
-     */
-    private class NoCloseInputStream extends FilterInputStream {
-        public NoCloseInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public void close() {
-        	// ignore close
-        }
-    }
-
     /* http://stackoverflow.com/questions/2567416/document-to-string/2567428#2567428 */
     public static String printDoc(Document doc) {
         try {
@@ -1,9 +1,17 @@
 package kvstore;
 
+import static kvstore.KVConstants.ERROR_INVALID_LIMIT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
 import static kvstore.KVConstants.RESP;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -15,15 +23,39 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
  * policy should be followed when a put request is made.
+ *
+ * A put may give its key a TTL. Expired keys are dropped lazily by the
+ * store and cache, and actively by a daemon thread, started with the first
+ * such put, that turns the store's timer wheel every
+ * KVStore.EXPIRY_TICK_MILLIS and drops each key that came due from both,
+ * under its set lock.
+ *
+ * With coalesceLoads, a get that misses the cache reads the store without
+ * holding its set lock, and concurrent gets of the same key share that one
+ * read instead of each making their own.
+ *
+ * If the store keeps its keys in order, scan lists the keys under a prefix
+ * straight from the store, a page at a time.
  */
 public class KVServer implements KeyValueInterface {
 
     private KVStore dataStore;
     private KVCache dataCache;
+    /* Store reads in flight, by key, once coalesceLoads is called; guarded
+       by the key's set lock */
+    private ConcurrentHashMap<String, Load> loads;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
 
+    /* Pairs in a scan page when the request gives no limit, and at most */
+    public static final int DEFAULT_SCAN_LIMIT = 100;
+    public static final int MAX_SCAN_LIMIT = 1000;
+    /* Chars of keys and values past which a scan page ends early */
+    public static final long MAX_SCAN_CHARS = 4L * MAX_VAL_SIZE;
+
+    private volatile Thread expirer;
+
     /**
      * Constructs a KVServer backed by a KVCache and KVStore.
      *
@@ -36,6 +68,139 @@ public class KVServer implements KeyValueInterface {
         this.dataStore = new KVStore();
     }
 
+    /**
+     * Constructs a KVServer whose data cache evicts entries as policy decides.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy a new eviction policy for the data cache
+     */
+    public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+        this(numSets, maxElemsPerSet, policy, false);
+    }
+
+    /**
+     * Constructs a KVServer whose data cache evicts entries as policy decides
+     * and, if admission is true, keeps new keys out of full sets unless they
+     * are used more often than what they would replace.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy a new eviction policy for the data cache
+     * @param admission whether the data cache filters new keys with TinyLFU
+     */
+    public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            boolean admission) {
+        this(numSets, maxElemsPerSet, policy, admission, StorageMode.HEAP);
+    }
+
+    /**
+     * Constructs a KVServer whose data cache and store keep their values as
+     * mode says; OFF_HEAP keeps them out of the garbage collector's way.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param mode HEAP, OFF_HEAP, or ORDERED for a store that can scan
+     */
+    public KVServer(int numSets, int maxElemsPerSet, StorageMode mode) {
+        this(numSets, maxElemsPerSet, new SecondChancePolicy(), false, mode);
+    }
+
+    /**
+     * Constructs a KVServer whose store is kept on disk in directory and
+     * holds whatever it held when last used there.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param directory where the store's files are; made if missing
+     * @throws IOException if the store's files cannot be read or created
+     */
+    public KVServer(int numSets, int maxElemsPerSet, File directory) throws IOException {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet);
+        this.dataStore = new KVStore(directory);
+    }
+
+    /**
+     * Constructs a KVServer whose store is kept on disk in directory as
+     * engine says and holds whatever it held when last used there.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param directory where the store's files are; made if missing
+     * @param engine BITCASK or LSM
+     * @throws IOException if the store's files cannot be read or created
+     */
+    public KVServer(int numSets, int maxElemsPerSet, File directory, DiskEngine engine)
+            throws IOException {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet);
+        this.dataStore = new KVStore(directory, engine);
+    }
+
+    /**
+     * Constructs a KVServer with every option of the data cache, and whose
+     * data cache and store keep their values as mode says.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy a new eviction policy for the data cache
+     * @param admission whether the data cache filters new keys with TinyLFU
+     * @param mode HEAP or OFF_HEAP
+     */
+    public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy policy,
+            boolean admission, StorageMode mode) {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet, policy, admission, mode);
+        this.dataStore = new KVStore(mode);
+    }
+
+    /**
+     * Limit the data cache to maxBytes in all and keep values longer than
+     * maxValueLength out of it; see KVCache.limitBytes. Call before serving.
+     *
+     * @param maxBytes most bytes all cached entries may take
+     * @param maxValueLength longest value to cache, in chars
+     */
+    public void limitCacheBytes(long maxBytes, int maxValueLength) {
+        dataCache.limitBytes(maxBytes, maxValueLength);
+    }
+
+    /**
+     * Have the data cache remember up to keysPerSet keys per set that the
+     * store turned out not to have, so that gets of them fail at once,
+     * without the set lock or the store; see KVCache.rememberMisses. Call
+     * before serving.
+     *
+     * @param keysPerSet slots per cache set for missing keys
+     */
+    public void rememberMisses(int keysPerSet) {
+        dataCache.rememberMisses(keysPerSet);
+    }
+
+    /**
+     * Reshape the data cache while serving, keeping what it holds as far as
+     * it fits; see KVCache.resize. Returns at once, the entries moving over
+     * in the background.
+     *
+     * @param numSets the number of sets the data cache will have
+     * @param maxElemsPerSet the size of each set
+     */
+    public void resizeCache(int numSets, int maxElemsPerSet) {
+        dataCache.resize(numSets, maxElemsPerSet);
+    }
+
+    /**
+     * Have gets that miss the data cache read the store outside the set
+     * lock, one get per key at a time: the first to miss loads the key and
+     * fills the cache, and those that miss meanwhile wait for its result.
+     * A slow store read then holds up only gets of that key, not the rest
+     * of its set. Requests on the same set are no longer strictly serial,
+     * but a put or del still wins over any read in flight: the read's value
+     * is returned to whoever was waiting for it and not cached. Call before
+     * serving.
+     */
+    public void coalesceLoads() {
+        loads = new ConcurrentHashMap<String, Load>();
+    }
+
     /**
      * Performs put request on cache and store.
      *
@@ -45,10 +210,41 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) throws KVException {
+        put(key, value, KVMessage.NO_TTL);
+    }
+
+    /**
+     * Performs put request on cache and store; the key expires ttl
+     * milliseconds from now.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  ttl milliseconds the key lives, or KVMessage.NO_TTL for ever
+     * @throws KVException if key or value is too long or ttl is negative
+     */
+    public void put(String key, String value, long ttl) throws KVException {
     	/* begin */
+        if (ttl < 0) {
+            throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_TTL));
+        }
+        putUntil(key, value, KVStore.expiresAt(ttl));
+        /* end */
+    }
+
+    /**
+     * Performs put request on cache and store; the key expires at expiresAt,
+     * as a replayed log entry says.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt when key expires, in System.currentTimeMillis(), or
+     *         KVMessage.NO_TTL for never
+     * @throws KVException if key or value is too long
+     */
+    public void putUntil(String key, String value, long expiresAt) throws KVException {
         if (key == null || key.length() == 0) {
             throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_INVALID_KEY));
-        } 
+        }
         if (key.length() > MAX_KEY_SIZE) {
             throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_OVERSIZED_KEY));
         }
@@ -61,17 +257,91 @@ public class KVServer implements KeyValueInterface {
         Lock cacheLock = dataCache.getLock(key);
         cacheLock.lock();
         try {
-            dataStore.put(key, value);
-            dataCache.put(key, value);
+            if (loads != null) {
+                loads.remove(key);
+            }
+            if (expiresAt == KVMessage.NO_TTL) {
+                dataStore.put(key, value);
+                dataCache.put(key, value);
+            } else {
+                dataStore.put(key, value, expiresAt);
+                dataCache.put(key, value, expiresAt);
+            }
         } finally {
             cacheLock.unlock();
         }
-        /* end */
+        if (expiresAt != KVMessage.NO_TTL && expirer == null) {
+            startExpirer();
+        }
+    }
+
+    /**
+     * Milliseconds key has left to live.
+     *
+     * @param  key String key
+     * @return time to live, at least 1, or KVMessage.NO_TTL if key never
+     *         expires or does not exist
+     */
+    public long getTtl(String key) {
+        long expiresAt = dataStore.getExpiresAt(key);
+        if (expiresAt == KVMessage.NO_TTL) {
+            return KVMessage.NO_TTL;
+        }
+        return Math.max(1, expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Drop every key whose TTL has run out from store and cache. The
+     * expirer thread calls this; tests may too.
+     *
+     * @return the number of keys dropped
+     */
+    public int expireKeys() {
+        long now = System.currentTimeMillis();
+        List<String> due = dataStore.pollExpired(now);
+        int expired = 0;
+        for (String key : due) {
+            Lock cacheLock = dataCache.getLock(key);
+            cacheLock.lock();
+            try {
+                if (dataStore.expireIfDue(key, now)) {
+                    dataCache.del(key);
+                    expired++;
+                }
+            } finally {
+                cacheLock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    private synchronized void startExpirer() {
+        if (expirer != null) {
+            return;
+        }
+        expirer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(KVStore.EXPIRY_TICK_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    expireKeys();
+                }
+            }
+        }, "KVServer expirer");
+        expirer.setDaemon(true);
+        expirer.start();
     }
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, without its lock if it can, then whether the key
+     * is known to be missing. Updates cache if not in cache but located in
+     * store, and remembers the key as missing if not in store either. See
+     * coalesceLoads for how the store is read then.
      *
      * @param  key String key
      * @return String value associated with key
@@ -86,24 +356,83 @@ public class KVServer implements KeyValueInterface {
         if (key.length() > MAX_KEY_SIZE) {
             throw new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_OVERSIZED_KEY));
         }
+        // hits on hot keys need not queue up behind each other on the lock
+        String value = dataCache.tryGet(key);
+        if (value != null) {
+            return value;
+        }
+        if (dataCache.isMissing(key)) {
+            throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY), false);
+        }
         Lock cacheLock = dataCache.getLock(key);
+        Load load;
+        boolean loading = false;
         cacheLock.lock();
-        String value = null;
         try {
             // Look for key in cache before trying store
             value = dataCache.get(key);
-            if (value == null) {
-                value = dataStore.get(key);
+            if (value != null) {
+                return value;
+            }
+            if (loads == null) {
+                try {
+                    value = dataStore.get(key);
+                } catch (KVException e) {
+                    dataCache.putMissing(key);
+                    throw e;
+                }
                 // If value found, put the kv pair in the cache.
-                dataCache.put(key, value);                
+                dataCache.put(key, value, dataStore.getExpiresAt(key));
+                return value;
+            }
+            load = loads.get(key);
+            if (load == null) {
+                load = new Load();
+                loads.put(key, load);
+                loading = true;
             }
-            return value;
         } finally {
             cacheLock.unlock();
         }
+        if (loading) {
+            load(key, load, cacheLock);
+        }
+        return load.await();
         /* end */
     }
 
+    /**
+     * Read key from the store without its set lock, then, unless a put or
+     * del came in meanwhile, cache the value or remember the key as missing,
+     * and hand the result to everyone waiting on load.
+     */
+    private void load(String key, Load load, Lock cacheLock) {
+        String value = null;
+        long expiresAt = KVMessage.NO_TTL;
+        Exception failure = null;
+        try {
+            value = dataStore.get(key);
+            expiresAt = dataStore.getExpiresAt(key);
+        } catch (KVException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        cacheLock.lock();
+        try {
+            if (loads.remove(key, load)) {
+                if (value != null) {
+                    dataCache.put(key, value, expiresAt);
+                } else if (failure instanceof KVException) {
+                    dataCache.putMissing(key);
+                }
+            }
+        } finally {
+            cacheLock.unlock();
+            load.complete(value, failure);
+        }
+    }
+
     /**
      * Performs del request.
      *
@@ -122,15 +451,54 @@ public class KVServer implements KeyValueInterface {
         Lock cacheLock = dataCache.getLock(key);
         cacheLock.lock();
         try {
+            if (loads != null) {
+                loads.remove(key);
+            }
             // Delete lock from cache and store
             dataCache.del(key);
             dataStore.del(key);
+            dataCache.putMissing(key);
         } finally {
             cacheLock.unlock();
         }
         /* end */
     }
 
+    /**
+     * Put a page of the keys that start with prefix, in order, and their
+     * values into page. The page ends after limit pairs, or earlier once it
+     * holds MAX_SCAN_CHARS chars, and the token returned asks for the next
+     * one. Reads the store, not the cache, and locks no set.
+     *
+     * @param  prefix String every key returned starts with; null or "" for
+     *         all
+     * @param  token returned for the page before, or null for the first
+     * @param  limit most pairs to return, up to MAX_SCAN_LIMIT, or
+     *         KVMessage.NO_LIMIT for DEFAULT_SCAN_LIMIT
+     * @param  page map the pairs are put in
+     * @return the token for the next page, or null if this is the last
+     * @throws KVException with ERROR_OVERSIZED_KEY, ERROR_INVALID_LIMIT, or
+     *         ERROR_SCAN_UNSUPPORTED if the store does not keep its keys in
+     *         order
+     */
+    public String scan(String prefix, String token, int limit, Map<String, String> page)
+            throws KVException {
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (prefix.length() > MAX_KEY_SIZE) {
+            throw new KVException(new KVMessage(RESP, ERROR_OVERSIZED_KEY));
+        }
+        if (limit < 0) {
+            throw new KVException(new KVMessage(RESP, ERROR_INVALID_LIMIT));
+        }
+        if (limit == KVMessage.NO_LIMIT) {
+            limit = DEFAULT_SCAN_LIMIT;
+        }
+        return dataStore.scan(prefix, token, Math.min(limit, MAX_SCAN_LIMIT), MAX_SCAN_CHARS,
+            page);
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -150,6 +518,49 @@ public class KVServer implements KeyValueInterface {
         /* end */
     }
 
+    /**
+     * One store read that several gets wait on.
+     */
+    private static class Load {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String value;
+        private Exception failure;
+
+        void complete(String value, Exception failure) {
+            this.value = value;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Wait for the read and return its value, or throw what it threw;
+         * each waiter gets a KVException of its own, since the message in it
+         * may be changed on the way back to the client.
+         */
+        String await() throws KVException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure instanceof KVException) {
+                KVMessage msg = ((KVException) failure).getKVMessage();
+                throw new KVException(new KVMessage(msg), false);
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            return value;
+        }
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
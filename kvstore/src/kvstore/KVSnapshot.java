@@ -0,0 +1,411 @@
+package kvstore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The binary snapshot of a KVStore that dumpSnapshot writes and
+ * restoreSnapshot loads, next to the XML of dumpToFile.
+ *
+ * The file starts with a header: MAGIC, VERSION, flags, how many blocks and
+ * entries follow, where the blocks end, and the CRC32C of all that. Each
+ * block is its payload's length, the payload's CRC32C and the payload: a
+ * count of entries, then each entry as the key's length and UTF-8 bytes,
+ * the value's length and bytes, and the expiry time. A block holds about
+ * BLOCK_SIZE bytes; an entry is never split across two. When the store
+ * kept its keys in order, an index follows the blocks, as SORTED in the
+ * flags says: each block's position and first key in order, and the
+ * index's CRC32C, so that a reader can find the block a key would be in.
+ *
+ * A load maps the blocks into memory a segment at a time, and as many
+ * threads as it is given each check and decode whole segments and put the
+ * entries into the store. The segment boundaries come from the index when
+ * there is one, and otherwise from hopping along the blocks' lengths.
+ */
+final class KVSnapshot {
+
+    static final int MAGIC = 0x4b565331;
+    static final int VERSION = 1;
+    /* Flag: the keys are in order and the index is there */
+    static final int SORTED = 1;
+    static final int BLOCK_SIZE = 1 << 16;
+    /* Most bytes one thread maps and loads at a time */
+    static final int SEGMENT_SIZE = 32 << 20;
+
+    /* magic int, version int, flags int, blocks int, entries long, end of
+       blocks long, CRC32C of the rest int */
+    private static final int HEADER = 36;
+    /* payload length int, CRC32C of payload int */
+    private static final int BLOCK_HEADER = 8;
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    private KVSnapshot() {
+    }
+
+    /**
+     * Write the keys of store that have not expired, with their values and
+     * expiry times, to a snapshot at path. The file is written under
+     * another name, forced to disk and then renamed, so that path holds
+     * either the whole snapshot or what it held before.
+     *
+     * @return how many entries were written
+     */
+    static long write(File path, KVStore store) throws IOException {
+        File temporary = new File(path.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        boolean sorted = store.isOrdered();
+        long entries = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel), BLOCK_SIZE));
+            out.write(new byte[HEADER]);
+            long position = HEADER;
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            List<String> firstKeys = new ArrayList<String>();
+            List<Long> positions = new ArrayList<Long>();
+            int count = 0;
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, String> e : store.store.entrySet()) {
+                long expiresAt = store.getExpiresAt(e.getKey());
+                if (expiresAt != KVMessage.NO_TTL && expiresAt <= now) {
+                    continue;
+                }
+                if (count == 0) {
+                    firstKeys.add(e.getKey());
+                    positions.add(position);
+                }
+                writeBytes(block, e.getKey().getBytes(UTF8));
+                writeBytes(block, e.getValue().getBytes(UTF8));
+                block.writeLong(expiresAt);
+                count++;
+                if (blockBytes.size() >= BLOCK_SIZE) {
+                    position = writeBlock(out, blockBytes, count, position);
+                    entries += count;
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                position = writeBlock(out, blockBytes, count, position);
+                entries += count;
+            }
+            if (sorted) {
+                ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+                DataOutputStream index = new DataOutputStream(indexBytes);
+                for (int i = 0; i < positions.size(); i++) {
+                    index.writeLong(positions.get(i));
+                    writeBytes(index, firstKeys.get(i).getBytes(UTF8));
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(indexBytes.toByteArray());
+                indexBytes.writeTo(out);
+                out.writeInt((int) crc.getValue());
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(sorted ? SORTED : 0);
+            header.putInt(positions.size());
+            header.putLong(entries);
+            header.putLong(position);
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, HEADER - 4);
+            header.putInt((int) crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            out.close();
+        } catch (IOException e) {
+            channel.close();
+            temporary.delete();
+            throw e;
+        }
+        Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return entries;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long writeBlock(DataOutputStream out, ByteArrayOutputStream block,
+            int count, long position) throws IOException {
+        byte[] bytes = block.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(count >>> 24);
+        crc.update(count >>> 16);
+        crc.update(count >>> 8);
+        crc.update(count);
+        crc.update(bytes);
+        out.writeInt(4 + bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(count);
+        out.write(bytes);
+        block.reset();
+        return position + BLOCK_HEADER + 4 + bytes.length;
+    }
+
+    /**
+     * Put the entries of the snapshot at path that have not expired into
+     * store, with threads threads. Nothing is taken out of store first.
+     *
+     * @return how many entries the snapshot held
+     * @throws IOException if the file cannot be read, is not a whole
+     *         snapshot or fails a checksum; some entries may have been put
+     */
+    static long load(final File path, final KVStore store, int threads) throws IOException {
+        final FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer header = read(channel, 0, HEADER, path);
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, HEADER - 4);
+            int blocks = header.getInt(12);
+            long entries = header.getLong(16);
+            long blocksEnd = header.getLong(24);
+            if (header.getInt(0) != MAGIC || header.getInt(32) != (int) crc.getValue()) {
+                throw new IOException(path + " is not a snapshot");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException(path + " is snapshot version " + header.getInt(4));
+            }
+            if (blocks < 0 || entries < 0 || blocksEnd < HEADER || blocksEnd > size) {
+                throw new IOException(path + " is not a whole snapshot");
+            }
+            boolean sorted = (header.getInt(8) & SORTED) != 0;
+            long[] positions = sorted
+                ? readIndex(channel, blocks, blocksEnd, size, path)
+                : findBlocks(channel, blocks, blocksEnd, path);
+
+            // whole blocks at a time, and at least a segment per thread
+            long target = Math.max(BLOCK_SIZE,
+                Math.min(SEGMENT_SIZE, (blocksEnd - HEADER) / Math.max(threads, 1)));
+            final List<long[]> segments = new ArrayList<long[]>();
+            for (int i = 0; i < blocks; ) {
+                long start = positions[i];
+                do {
+                    i++;
+                } while (i < blocks && positions[i] - start < target);
+                segments.add(new long[] {start, i < blocks ? positions[i] : blocksEnd});
+            }
+
+            final long now = System.currentTimeMillis();
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong loaded = new AtomicLong();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Runnable loader = new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while (failure.get() == null && (i = next.getAndIncrement()) < segments.size()) {
+                        try {
+                            long[] segment = segments.get(i);
+                            loaded.addAndGet(loadSegment(channel, segment[0], segment[1],
+                                store, now, path));
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }
+            };
+            int spawned = Math.min(threads, segments.size()) - 1;
+            Thread[] helpers = new Thread[Math.max(spawned, 0)];
+            for (int i = 0; i < helpers.length; i++) {
+                helpers[i] = new Thread(loader, "KVSnapshot loader " + (i + 1));
+                helpers[i].start();
+            }
+            loader.run();
+            try {
+                for (Thread helper : helpers) {
+                    helper.join();
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable t = failure.get();
+            if (t instanceof InterruptedException) {
+                throw new InterruptedIOException("Interrupted loading " + path);
+            } else if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t != null) {
+                throw (Error) t;
+            }
+            if (loaded.get() != entries) {
+                throw new IOException(path + " holds " + loaded.get() + " entries, not " + entries);
+            }
+            return entries;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * The position of each block, from the index.
+     */
+    private static long[] readIndex(FileChannel channel, int blocks, long blocksEnd, long size,
+            File path) throws IOException {
+        if (size - blocksEnd < 4 || size - blocksEnd > Integer.MAX_VALUE) {
+            throw new IOException(path + " has a corrupt index");
+        }
+        ByteBuffer index = read(channel, blocksEnd, (int) (size - blocksEnd), path);
+        CRC32C crc = new CRC32C();
+        crc.update(index.array(), 0, index.capacity() - 4);
+        if (index.getInt(index.capacity() - 4) != (int) crc.getValue()) {
+            throw new IOException(path + " has a corrupt index");
+        }
+        index.limit(index.capacity() - 4);
+        index.position(0);
+        long[] positions = new long[blocks];
+        try {
+            for (int i = 0; i < blocks; i++) {
+                positions[i] = index.getLong();
+                // the first key, which a load does not need
+                int length = index.getInt();
+                index.position(index.position() + length);
+                if (positions[i] < (i == 0 ? HEADER : positions[i - 1] + BLOCK_HEADER)
+                        || positions[i] >= blocksEnd) {
+                    throw new IOException(path + " has a corrupt index");
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(path + " has a corrupt index", e);
+        }
+        return positions;
+    }
+
+    /*
+     * The position of each block, from following the lengths.
+     */
+    private static long[] findBlocks(FileChannel channel, int blocks, long blocksEnd, File path)
+            throws IOException {
+        long[] positions = new long[blocks];
+        long position = HEADER;
+        for (int i = 0; i < blocks; i++) {
+            if (position + BLOCK_HEADER > blocksEnd) {
+                throw new IOException(path + " is not a whole snapshot");
+            }
+            positions[i] = position;
+            int length = read(channel, position, 4, path).getInt(0);
+            if (length < 4) {
+                throw new IOException("Corrupt block in " + path + " at " + position);
+            }
+            position += BLOCK_HEADER + length;
+        }
+        if (position != blocksEnd) {
+            throw new IOException(path + " is not a whole snapshot");
+        }
+        return positions;
+    }
+
+    /*
+     * Check and put the entries of the blocks from start to end.
+     */
+    private static long loadSegment(FileChannel channel, long start, long end, KVStore store,
+            long now, File path) throws IOException {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        CRC32C crc = new CRC32C();
+        byte[] bytes = new byte[256];
+        long loaded = 0;
+        while (map.hasRemaining()) {
+            long at = start + map.position();
+            if (map.remaining() < BLOCK_HEADER) {
+                throw new IOException("Corrupt block in " + path + " at " + at);
+            }
+            int length = map.getInt();
+            int expected = map.getInt();
+            if (length < 4 || length > map.remaining()) {
+                throw new IOException("Corrupt block in " + path + " at " + at);
+            }
+            ByteBuffer block = map.duplicate();
+            block.limit(map.position() + length);
+            crc.reset();
+            crc.update(block);
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Corrupt block in " + path + " at " + at);
+            }
+            block.position(map.position());
+            map.position(block.limit());
+            try {
+                int count = block.getInt();
+                for (int i = 0; i < count; i++) {
+                    int keyLength = block.getInt();
+                    bytes = fill(block, keyLength, bytes);
+                    String key = new String(bytes, 0, keyLength, UTF8);
+                    int valueLength = block.getInt();
+                    bytes = fill(block, valueLength, bytes);
+                    String value = new String(bytes, 0, valueLength, UTF8);
+                    long expiresAt = block.getLong();
+                    if (expiresAt == KVMessage.NO_TTL || expiresAt > now) {
+                        store.put(key, value, expiresAt);
+                    }
+                }
+                if (block.hasRemaining()) {
+                    throw new IOException("Corrupt block in " + path + " at " + at);
+                }
+                loaded += count;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt block in " + path + " at " + at, e);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt block in " + path + " at " + at, e);
+            }
+        }
+        return loaded;
+    }
+
+    /*
+     * Read length bytes from block into bytes, or a bigger array if they
+     * do not fit, and return the one used.
+     */
+    private static byte[] fill(ByteBuffer block, int length, byte[] bytes) {
+        if (length < 0 || length > block.remaining()) {
+            throw new IllegalArgumentException("length " + length);
+        }
+        if (length > bytes.length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        block.get(bytes, 0, length);
+        return bytes;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, File path)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(path + " ends before " + (position + length));
+            }
+        }
+        return buffer;
+    }
+}
@@ -2,46 +2,139 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-
-import kvstore.xml.KVPairType;
-import kvstore.xml.KVStoreType;
-import kvstore.xml.ObjectFactory;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
  * backing store.
+ *
+ * A key put with an expiry time is gone once that time has passed. get
+ * treats it as absent and del drops it, lazily; other expired keys are found
+ * by a TimerWheel, which expire, or pollExpired and expireIfDue, turn. get
+ * leaves the key in place so that it writes nothing and may run beside a
+ * put of the same key.
+ * Expiry times are System.currentTimeMillis() values, 0 for none, and are
+ * not written out by dumpToFile. dumpSnapshot writes them out, with the
+ * keys and values, in the binary format of KVSnapshot, which
+ * restoreSnapshot loads with a thread per processor.
+ *
+ * In StorageMode.OFF_HEAP the values are kept in direct memory by an
+ * OffHeapMap instead of a ConcurrentHashMap; nothing else changes. In
+ * StorageMode.ORDERED a ConcurrentSkipListMap keeps the keys in order, so
+ * that scan can list them a page at a time. Made
+ * with a directory, the store keeps keys, values and expiry times on disk
+ * and comes back with them when made again on the same directory. With
+ * DiskEngine.BITCASK a BitcaskMap keeps the index of where each key is in
+ * memory; with DiskEngine.LSM an LsmMap keeps only recent writes there, and
+ * del writes a delete without reading the old value. An LsmMap keeps its
+ * keys in order too.
  */
 public class KVStore implements KeyValueInterface {
 
-    public ConcurrentHashMap<String, String> store;
+    public ConcurrentMap<String, String> store;
+    private final StorageMode mode;
+    /* null unless the store is kept on disk */
+    private DiskMap disk;
+    /* Expiry time of each key that has one */
+    private ConcurrentHashMap<String, Long> expiries;
+    private TimerWheel wheel;
+
+    /* Resolution of active expiry */
+    public static final long EXPIRY_TICK_MILLIS = 10;
+
+    /* Bytes, and chars, buffered by dumpToFile and restoreFromFile */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
 
     /**
      * Construct a new KVStore.
      */
     public KVStore() {
+        this(StorageMode.HEAP);
+    }
+
+    /**
+     * Construct a new KVStore that keeps its values as mode says.
+     *
+     * @param mode HEAP, OFF_HEAP or ORDERED
+     */
+    public KVStore(StorageMode mode) {
+        this.mode = mode;
         resetStore();
     }
 
+    /**
+     * Construct a KVStore kept on disk in directory by a BitcaskMap,
+     * holding whatever it held when last used.
+     *
+     * @param directory where the store's files are; made if missing
+     * @throws IOException if the files cannot be read or created
+     */
+    public KVStore(File directory) throws IOException {
+        this(directory, DiskEngine.BITCASK);
+    }
+
+    /**
+     * Construct a KVStore kept on disk in directory as engine says,
+     * holding whatever it held when last used. A directory must always be
+     * opened with the same engine.
+     *
+     * @param directory where the store's files are; made if missing
+     * @param engine BITCASK or LSM
+     * @throws IOException if the files cannot be read or created
+     */
+    public KVStore(File directory, DiskEngine engine) throws IOException {
+        this.mode = StorageMode.HEAP;
+        if (engine == DiskEngine.LSM) {
+            this.disk = new LsmMap(directory, LsmMap.DEFAULT_MEMTABLE_BYTES);
+        } else {
+            this.disk = new BitcaskMap(directory, BitcaskMap.DEFAULT_MAX_FILE_SIZE);
+        }
+        this.store = disk;
+        this.expiries = new ConcurrentHashMap<String, Long>(disk.expiries());
+        this.wheel = new TimerWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+        for (Entry<String, Long> e : expiries.entrySet()) {
+            wheel.schedule(e.getKey(), e.getValue());
+        }
+    }
+
     public void resetStore() {
-        this.store = new ConcurrentHashMap<String, String>();
+        if (disk != null) {
+            disk.clear();
+        } else if (mode == StorageMode.OFF_HEAP) {
+            // the slabs of the old map are reused, not leaked
+            if (store == null) {
+                this.store = new OffHeapMap(new SlabAllocator());
+            } else {
+                store.clear();
+            }
+        } else if (mode == StorageMode.ORDERED) {
+            this.store = new ConcurrentSkipListMap<String, String>();
+        } else {
+            this.store = new ConcurrentHashMap<String, String>();
+        }
+        this.expiries = new ConcurrentHashMap<String, Long>();
+        this.wheel = new TimerWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
     }
 
     /**
@@ -52,7 +145,42 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-        store.put(key, value);
+        put(key, value, KVMessage.NO_TTL);
+    }
+
+    /**
+     * Insert key, value pair into the store until expiresAt.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  expiresAt when key expires, in System.currentTimeMillis()
+     *         time, or KVMessage.NO_TTL to keep it until deleted
+     */
+    public void put(String key, String value, long expiresAt) {
+        if (disk != null) {
+            // the expiry time goes in the same record, and the old value is not read
+            disk.put(key, value, expiresAt);
+        } else {
+            store.put(key, value);
+        }
+        if (expiresAt != KVMessage.NO_TTL) {
+            expiries.put(key, expiresAt);
+            wheel.schedule(key, expiresAt);
+        } else if (!expiries.isEmpty()) {
+            expiries.remove(key);
+        }
+    }
+
+    /**
+     * Force a store kept on disk to the disk and close its files; it cannot
+     * be used afterwards. Does nothing to a store kept in memory.
+     *
+     * @throws IOException if the disk cannot be written
+     */
+    public void close() throws IOException {
+        if (disk != null) {
+            disk.close();
+        }
     }
 
     /**
@@ -63,7 +191,7 @@ public class KVStore implements KeyValueInterface {
     @Override
     public String get(String key) throws KVException {
         String retVal = this.store.get(key);
-        if (retVal == null) {
+        if (retVal == null || isExpired(key, System.currentTimeMillis())) {
             KVMessage msg = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
             throw new KVException(msg);
         }
@@ -79,41 +207,187 @@ public class KVStore implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         if(key != null) {
-            if (!this.store.containsKey(key)) {
+            if (!this.store.containsKey(key)
+                    || expireIfDue(key, System.currentTimeMillis())) {
                 KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
                 throw new KVException(msg);
             }
-            this.store.remove(key);
+            if (disk != null) {
+                // containsKey has read it already
+                disk.delete(key);
+            } else {
+                this.store.remove(key);
+            }
+            if (!expiries.isEmpty()) {
+                expiries.remove(key);
+            }
         }
     }
 
-    private synchronized JAXBElement<KVStoreType> getXMLRoot() throws JAXBException {
-        ObjectFactory factory = new ObjectFactory();
-        KVStoreType xmlStore = factory.createKVStoreType();
-        for (Entry<String, String> e : store.entrySet()) {
-            KVPairType kvPair = factory.createKVPairType();
-            kvPair.setKey(e.getKey());
-            kvPair.setValue(e.getValue());
-            xmlStore.getKVPair().add(kvPair);
+    /**
+     * Whether scan works: whether the store keeps its keys in order.
+     */
+    public boolean isOrdered() {
+        return store instanceof ConcurrentNavigableMap || store instanceof LsmMap;
+    }
+
+    /**
+     * Put the keys that start with prefix, in order, and their values into
+     * page, beginning after the key token names, until page holds limit
+     * pairs or, past the first pair, maxChars chars of keys and values.
+     * Weakly consistent: a key written while pages are read may or may not
+     * show up.
+     *
+     * @param  prefix String every key returned starts with; "" for all
+     * @param  token returned by the scan of the page before, or null to
+     *         start at the first key
+     * @param  limit most pairs to return, at least 1
+     * @param  maxChars most chars of keys and values to return
+     * @param  page map the pairs are put in
+     * @return the token to scan the next page with, or null if there are no
+     *         more keys
+     * @throws KVException with ERROR_SCAN_UNSUPPORTED unless isOrdered()
+     */
+    public String scan(String prefix, String token, int limit, long maxChars,
+            Map<String, String> page) throws KVException {
+        String from = token != null && token.compareTo(prefix) >= 0 ? token : null;
+        Iterator<Entry<String, String>> entries;
+        if (store instanceof ConcurrentNavigableMap) {
+            ConcurrentNavigableMap<String, String> sorted =
+                (ConcurrentNavigableMap<String, String>) store;
+            entries = (from == null ? sorted.tailMap(prefix, true) : sorted.tailMap(from, false))
+                .entrySet().iterator();
+        } else if (store instanceof LsmMap) {
+            entries = from == null ? ((LsmMap) store).iterator(prefix, true)
+                : ((LsmMap) store).iterator(from, false);
+        } else {
+            throw new KVException(new KVMessage(RESP, ERROR_SCAN_UNSUPPORTED));
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        long chars = 0;
+        String last = null;
+        while (entries.hasNext()) {
+            Entry<String, String> e = entries.next();
+            if (!e.getKey().startsWith(prefix)) {
+                return null;
+            }
+            if (isExpired(e.getKey(), now)) {
+                continue;
+            }
+            chars += e.getKey().length() + e.getValue().length();
+            if (count > 0 && (count == limit || chars > maxChars)) {
+                // there is more, so the page ends here
+                return last;
+            }
+            page.put(e.getKey(), e.getValue());
+            last = e.getKey();
+            count++;
         }
-        return factory.createKVStore(xmlStore);
+        return null;
     }
 
-    private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVStoreType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+    /**
+     * Expiry time of a key put now to live ttl milliseconds.
+     *
+     * @param  ttl milliseconds, or KVMessage.NO_TTL
+     * @return System.currentTimeMillis() time, or KVMessage.NO_TTL
+     */
+    public static long expiresAt(long ttl) {
+        if (ttl == KVMessage.NO_TTL) {
+            return KVMessage.NO_TTL;
+        }
+        long now = System.currentTimeMillis();
+        return ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
     }
-    
-    @SuppressWarnings("unchecked")
-    private KVStoreType unmarshal(File f) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        KVStoreType xmlStore = ((JAXBElement<KVStoreType>) unmarshaller.unmarshal(f)).getValue();
-        return xmlStore;
+
+    /**
+     * When key expires.
+     *
+     * @param  key String key
+     * @return its expiry time, or KVMessage.NO_TTL if it has none
+     */
+    public long getExpiresAt(String key) {
+        if (expiries.isEmpty()) {
+            return KVMessage.NO_TTL;
+        }
+        Long expiresAt = expiries.get(key);
+        return expiresAt == null ? KVMessage.NO_TTL : expiresAt;
+    }
+
+    private boolean isExpired(String key, long now) {
+        long expiresAt = getExpiresAt(key);
+        return expiresAt != KVMessage.NO_TTL && expiresAt <= now;
+    }
+
+    /**
+     * Drop key if its expiry time is at or before now. A put of the same key
+     * at the same time keeps its new value, unless that equals the old one;
+     * KVServer rules that case out by holding the set lock.
+     *
+     * @param  key String key
+     * @param  now current time in milliseconds
+     * @return true if key had expired
+     */
+    public boolean expireIfDue(String key, long now) {
+        if (expiries.isEmpty()) {
+            return false;
+        }
+        // put writes the value first, so read it first: a put that comes in
+        // between only leaves us holding the old value, which remove skips
+        String value = store.get(key);
+        Long expiresAt = expiries.get(key);
+        if (expiresAt == null || expiresAt > now) {
+            return false;
+        }
+        if (expiries.remove(key, expiresAt) && value != null) {
+            store.remove(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Turn the timer wheel up to now and return the keys that may have
+     * expired on the way, without dropping them; the caller passes each to
+     * expireIfDue, holding whatever lock it writes the key under.
+     *
+     * @param  now current time in milliseconds
+     * @return keys to check
+     */
+    public List<String> pollExpired(long now) {
+        return wheel.advance(now);
+    }
+
+    /**
+     * Drop every key whose expiry time has passed.
+     *
+     * @return the keys dropped
+     */
+    public List<String> expire() {
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<String>();
+        for (String key : pollExpired(now)) {
+            if (expireIfDue(key, now)) {
+                expired.add(key);
+            }
+        }
+        return expired;
+    }
+
+    private synchronized void writeTo(KVXmlWriter xml) throws IOException {
+        xml.writeStartDocument();
+        xml.writeStartElement("KVStore");
+        long now = System.currentTimeMillis();
+        for (Entry<String, String> e : store.entrySet()) {
+            if (isExpired(e.getKey(), now)) {
+                continue;
+            }
+            xml.writeStartElement("KVPair");
+            xml.writeTextElement("Key", e.getKey());
+            xml.writeTextElement("Value", e.getValue());
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
     }
 
     /**
@@ -121,13 +395,13 @@ public class KVStore implements KeyValueInterface {
      * This method is best effort. Any exceptions that appear can be dropped.
      */
     public String toXML() {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        StringBuilder sb = new StringBuilder();
         try {
-            marshalTo(os);
-        } catch (JAXBException e) {
+            writeTo(new KVXmlWriter(sb));
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return os.toString();
+        return sb.toString();
     }
     
     @Override
@@ -136,48 +410,60 @@ public class KVStore implements KeyValueInterface {
     }
 
     /**
-     * Serialize to XML and write the output to a file.
+     * Serialize to XML and write the output to a file, entry by entry
+     * through a buffered FileChannel, so that the whole document is never
+     * in memory at once. The dump goes to another name, forced to disk and
+     * then renamed, so that fileName holds either the whole dump or what it
+     * held before.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file to write the serialized store
      */
     public void dumpToFile(String fileName) {
         /* begin */
-    	File dumpFile = new File(fileName);
-    	if (!dumpFile.exists()) {
-    		try {
-    			dumpFile.createNewFile();
-    		} catch (IOException e) {
-    			return;
-    		}
-    	}
-    	String dumpXML = this.toXML();
-    	OutputStream os;
+    	File temporary = new File(fileName + ".tmp");
+    	FileChannel channel;
     	try {
-			os = new FileOutputStream(dumpFile);
-		} catch (FileNotFoundException e) {
-			// BEST EFFORT: IGNORE
-			return;
-		}
+    		channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+    			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    	} catch (IOException e) {
+    		// BEST EFFORT: IGNORE
+    		return;
+    	}
+    	// the XML declaration says UTF-8, whatever the platform default
+    	Writer out = new BufferedWriter(Channels.newWriter(channel,
+    		StandardCharsets.UTF_8.newEncoder(), FILE_BUFFER_SIZE), FILE_BUFFER_SIZE);
+    	boolean replaced = false;
     	try {
-			os.write(dumpXML.getBytes());
-		} catch (IOException e) {
-			// BEST EFFORT: IGNORE
-			return;
-		} finally {
-			try {
-				os.close();
-			} catch (IOException e) {
-				// BEST EFFORT: IGNORE
-			}
-		}
+    		writeTo(new KVXmlWriter(out));
+    		out.flush();
+    		channel.force(true);
+    		out.close();
+    		Files.move(temporary.toPath(), new File(fileName).toPath(),
+    			StandardCopyOption.ATOMIC_MOVE);
+    		replaced = true;
+    	} catch (IOException e) {
+    		// BEST EFFORT: IGNORE
+    	} finally {
+    		if (!replaced) {
+    			// leave the last good dump where it was
+    			try {
+    				out.close();
+    			} catch (IOException e) {
+    				// BEST EFFORT: IGNORE
+    			}
+    			temporary.delete();
+    		}
+    	}
     	/* end */
     }
 
     /**
      * Replaces the contents of the store with the contents of a file
      * written by dumpToFile; the previous contents of the store are lost.
-     * The store is cleared even if the file does not exist.
+     * The store is cleared even if the file does not exist. The file is
+     * read through a buffered FileChannel and each pair put as it is
+     * parsed.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file containing the serialized store data
@@ -185,25 +471,65 @@ public class KVStore implements KeyValueInterface {
     public void restoreFromFile(String fileName) {
         resetStore();
         /* begin */
-    	File restoreFile = new File(fileName);
-    	if (!restoreFile.exists()) {
-    		return;
-    	}
-    	KVStoreType xmlStore;
+    	FileChannel channel;
     	try {
-    		xmlStore = unmarshal(restoreFile);
-    	} catch (JAXBException e) {
+    		channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+    	} catch (IOException e) {
+    		// missing, most likely
     		return;
     	}
-    	
-    	List<KVPairType> pairs = xmlStore.getKVPair();
-    	String key;
-    	String value;
-    	for (KVPairType pair : pairs) {
-    		key = pair.getKey();
-    		value = pair.getValue();
-    		this.put(key, value);
+    	InputStream is = new BufferedInputStream(Channels.newInputStream(channel),
+    		FILE_BUFFER_SIZE);
+    	try {
+    		KVXmlReader.readStore(is, this);
+    	} catch (KVException e) {
+    		// don't leave a partially restored store behind
+    		resetStore();
+    	} finally {
+    		try {
+    			is.close();
+    		} catch (IOException e) {
+    			// BEST EFFORT: IGNORE
+    		}
     	}
     	/* end */
     }
+
+    /**
+     * Write the store, expiry times included, to a binary snapshot, which
+     * restoreSnapshot loads in a fraction of the time restoreFromFile takes
+     * over the same store in XML. The file is only replaced once the whole
+     * snapshot is on disk.
+     *
+     * @param fileName the file to write the snapshot to
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void dumpSnapshot(String fileName) throws IOException {
+        KVSnapshot.write(new File(fileName), this);
+    }
+
+    /**
+     * Replaces the contents of the store with the contents of a snapshot
+     * written by dumpSnapshot; the previous contents of the store are lost.
+     * The file is memory-mapped, and its blocks checked and put by one
+     * thread per processor. Keys that have expired since are left out.
+     *
+     * @param fileName the file containing the snapshot
+     * @throws IOException if the file cannot be read, is not a snapshot or
+     *         fails a checksum; the store is then left empty, as it is when
+     *         the load fails in any other way
+     */
+    public void restoreSnapshot(String fileName) throws IOException {
+        resetStore();
+        boolean loaded = false;
+        try {
+            KVSnapshot.load(new File(fileName), this, Runtime.getRuntime().availableProcessors());
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                // don't leave a partially restored store behind
+                resetStore();
+            }
+        }
+    }
 }
@@ -0,0 +1,217 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * StAX based parsing of the KVMessage and KVStore documents described in
+ * xml/kvstore.xsd. Values are pulled straight into KVMessages and maps; no
+ * binding beans or per-call JAXBContext are involved.
+ *
+ * Parsing follows what the JAXB unmarshaller accepted: children may appear
+ * in any order, unknown elements are skipped, and an empty element is read
+ * as the empty string while a missing one leaves the field null.
+ */
+final class KVXmlReader {
+
+    /*
+     * XMLInputFactory is expensive to create and isn't guaranteed to be
+     * thread-safe, so each thread keeps its own configured instance.
+     */
+    private static final ThreadLocal<XMLInputFactory> FACTORY =
+        new ThreadLocal<XMLInputFactory>() {
+            @Override
+            protected XMLInputFactory initialValue() {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+                factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+                factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+                factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+                return factory;
+            }
+        };
+
+    private KVXmlReader() {
+    }
+
+    /**
+     * Parse a single KVMessage document.
+     *
+     * @param  in stream positioned at the start of the document
+     * @return the parsed KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the document is not a
+     *         KVMessage or has no type, or ERROR_SOCKET_TIMEOUT if the stream
+     *         timed out
+     */
+    static KVMessage readMessage(InputStream in) throws KVException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.get().createXMLStreamReader(in);
+            requireRoot(reader, "KVMessage");
+            String type = reader.getAttributeValue(null, "type");
+            if (type == null) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            KVMessage msg = new KVMessage(type);
+            String id = reader.getAttributeValue(null, "id");
+            if (id != null) {
+                msg.setRequestId(parseInt(id));
+            }
+            String ttl = reader.getAttributeValue(null, "ttl");
+            if (ttl != null) {
+                msg.setTtl(parseTtl(ttl));
+            }
+            String limit = reader.getAttributeValue(null, "limit");
+            if (limit != null) {
+                msg.setLimit(parseInt(limit));
+            }
+            Map<String, String> pairs = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (name.equals("Key")) {
+                    msg.setKey(reader.getElementText());
+                } else if (name.equals("Value")) {
+                    msg.setValue(reader.getElementText());
+                } else if (name.equals("Message")) {
+                    msg.setMessage(reader.getElementText());
+                } else if (name.equals("Token")) {
+                    msg.setToken(reader.getElementText());
+                } else if (name.equals("KVPair")) {
+                    if (pairs == null) {
+                        pairs = new TreeMap<String, String>();
+                    }
+                    Map.Entry<String, String> pair = readPair(reader);
+                    pairs.put(pair.getKey(), pair.getValue());
+                } else {
+                    skipElement(reader);
+                }
+            }
+            msg.setPairs(pairs);
+            return msg;
+        } catch (XMLStreamException e) {
+            throw toKVException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Parse a KVStore document, putting every KVPair into the given store
+     * as it is read.
+     *
+     * @param  in stream positioned at the start of the document
+     * @param  into store receiving the key-value pairs
+     * @throws KVException with ERROR_INVALID_FORMAT if the document is not a
+     *         KVStore or a KVPair lacks its Key or Value, or whatever into
+     *         throws
+     */
+    static void readStore(InputStream in, KeyValueInterface into) throws KVException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.get().createXMLStreamReader(in);
+            requireRoot(reader, "KVStore");
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (!reader.getLocalName().equals("KVPair")) {
+                    skipElement(reader);
+                    continue;
+                }
+                Map.Entry<String, String> pair = readPair(reader);
+                into.put(pair.getKey(), pair.getValue());
+            }
+        } catch (XMLStreamException e) {
+            throw toKVException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /*
+     * Read the KVPair element the reader is positioned on.
+     */
+    private static Map.Entry<String, String> readPair(XMLStreamReader reader)
+            throws XMLStreamException, KVException {
+        String key = null;
+        String value = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("Key")) {
+                key = reader.getElementText();
+            } else if (name.equals("Value")) {
+                value = reader.getElementText();
+            } else {
+                skipElement(reader);
+            }
+        }
+        if (key == null || value == null) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        return new SimpleImmutableEntry<String, String>(key, value);
+    }
+
+    private static int parseInt(String text) throws KVException {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static long parseTtl(String ttl) throws KVException {
+        try {
+            return Long.parseLong(ttl.trim());
+        } catch (NumberFormatException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static void requireRoot(XMLStreamReader reader, String name)
+            throws XMLStreamException, KVException {
+        if (reader.nextTag() != XMLStreamConstants.START_ELEMENT
+                || !reader.getLocalName().equals(name)) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    /* Skip the element the reader is positioned on, including its children. */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static KVException toKVException(XMLStreamException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                return new KVException(ERROR_SOCKET_TIMEOUT);
+            }
+        }
+        return new KVException(ERROR_INVALID_FORMAT);
+    }
+
+    /* Closes the reader only; the underlying stream is left open. */
+    private static void close(XMLStreamReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // BEST EFFORT: IGNORE
+        }
+    }
+}
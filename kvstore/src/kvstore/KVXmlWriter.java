@@ -0,0 +1,136 @@
+package kvstore;
+
+import java.io.IOException;
+
+/**
+ * Minimal streaming XML writer for the shapes in xml/kvstore.xsd, in the
+ * style of a StAX XMLStreamWriter. Output is byte-for-byte what the JAXB
+ * marshaller used to produce for these documents: an XML declaration with no
+ * trailing newline, no indentation, empty elements collapsed to "<Name/>",
+ * and the same minimal escaping (see escape()).
+ *
+ * Writes go straight to the underlying Appendable, so a StringBuilder gives
+ * the old toXML() string and a buffered Writer streams to a file or socket.
+ */
+final class KVXmlWriter {
+
+    static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private final Appendable out;
+    private String[] open = new String[8];
+    private int depth;
+    private boolean startTagOpen;
+
+    KVXmlWriter(Appendable out) {
+        this.out = out;
+    }
+
+    void writeStartDocument() throws IOException {
+        out.append(DECLARATION);
+    }
+
+    void writeStartElement(String name) throws IOException {
+        closeStartTag();
+        if (depth == open.length) {
+            String[] grown = new String[depth * 2];
+            System.arraycopy(open, 0, grown, 0, depth);
+            open = grown;
+        }
+        open[depth++] = name;
+        out.append('<').append(name);
+        startTagOpen = true;
+    }
+
+    /**
+     * Add an attribute to the element just started. Null values are skipped,
+     * matching JAXB's handling of unset attributes.
+     */
+    void writeAttribute(String name, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.append(' ').append(name).append("=\"");
+        escape(value, true);
+        out.append('"');
+    }
+
+    void writeCharacters(String text) throws IOException {
+        closeStartTag();
+        escape(text, false);
+    }
+
+    void writeEndElement() throws IOException {
+        String name = open[--depth];
+        open[depth] = null;
+        if (startTagOpen) {
+            out.append("/>");
+            startTagOpen = false;
+        } else {
+            out.append("</").append(name).append('>');
+        }
+    }
+
+    /**
+     * Write a whole element with text content, or nothing if text is null.
+     */
+    void writeTextElement(String name, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        writeStartElement(name);
+        // an empty string still gets an explicit end tag
+        closeStartTag();
+        escape(text, false);
+        writeEndElement();
+    }
+
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            out.append('>');
+            startTagOpen = false;
+        }
+    }
+
+    /*
+     * JAXB's escaping: &, < and > everywhere, \r everywhere (so it survives
+     * end-of-line normalization), and additionally ", \t and \n inside
+     * attribute values (so they survive attribute normalization).
+     */
+    private void escape(String s, boolean inAttribute) throws IOException {
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            String replacement;
+            switch (s.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '\r':
+                    replacement = "&#xD;";
+                    break;
+                case '"':
+                    replacement = inAttribute ? "&quot;" : null;
+                    break;
+                case '\t':
+                    replacement = inAttribute ? "&#x9;" : null;
+                    break;
+                case '\n':
+                    replacement = inAttribute ? "&#xA;" : null;
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null) {
+                out.append(s, start, i).append(replacement);
+                start = i + 1;
+            }
+        }
+        out.append(s, start, len);
+    }
+}
@@ -0,0 +1,104 @@
+package kvstore;
+
+/**
+ * Least frequently used: a full set evicts the entry with the fewest gets
+ * and puts, the oldest of those tied. When one entry's count reaches
+ * MAX_COUNT every count in its set is halved, so that entries which were
+ * popular long ago do not stay forever.
+ */
+public class LFUPolicy implements EvictionPolicy {
+
+    static final int MAX_COUNT = 1 << 15;
+
+    private int slotsPerSet;
+    /* Uses of the entry in each slot; 0 for an empty slot */
+    private int[] counts;
+    /* When the entry in each slot was inserted, per set */
+    private long[] inserted;
+    private long[] clock;
+
+    @Override
+    public void init(int numSets, int slotsPerSet) {
+        this.slotsPerSet = slotsPerSet;
+        counts = new int[numSets * slotsPerSet];
+        inserted = new long[numSets * slotsPerSet];
+        clock = new long[numSets];
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        counts[slot] = 1;
+        inserted[slot] = ++clock[set];
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        if (++counts[slot] == MAX_COUNT) {
+            int base = set * slotsPerSet;
+            for (int i = base; i < base + slotsPerSet; i++) {
+                if (counts[i] > 0) {
+                    counts[i] = (counts[i] + 1) >>> 1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updated(int set, int slot) {
+        hit(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        counts[slot] = 0;
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int victim = victim(set, hash);
+        counts[victim] = 0;
+        return victim;
+    }
+
+    @Override
+    public int victim(int set, int hash) {
+        int base = set * slotsPerSet;
+        int victim = -1;
+        for (int slot = base; slot < base + slotsPerSet; slot++) {
+            if (counts[slot] > 0 && (victim < 0 || before(slot, victim))) {
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Whether the entry in slot a goes before the one in slot b.
+     */
+    private boolean before(int a, int b) {
+        return counts[a] < counts[b]
+            || (counts[a] == counts[b] && inserted[a] < inserted[b]);
+    }
+
+    @Override
+    public int[] order(int set) {
+        int base = set * slotsPerSet;
+        int n = 0;
+        int[] slots = new int[slotsPerSet];
+        for (int slot = base; slot < base + slotsPerSet; slot++) {
+            if (counts[slot] > 0) {
+                int i = n++;
+                for (; i > 0 && before(slot, slots[i - 1]); i--) {
+                    slots[i] = slots[i - 1];
+                }
+                slots[i] = slot;
+            }
+        }
+        return java.util.Arrays.copyOf(slots, n);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return counts[slot] > 1;
+    }
+}
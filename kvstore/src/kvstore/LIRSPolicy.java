@@ -0,0 +1,267 @@
+package kvstore;
+
+/**
+ * Low Inter-reference Recency Set, applied to each set on its own. Most of a
+ * set holds LIR entries, keys used twice within a short span; the rest holds
+ * HIR entries, which wait in a FIFO queue Q and are the only ones evicted.
+ * The recency stack S orders recently used keys, including those of
+ * evicted HIR entries, by last use. An HIR key used again while still in S
+ * has come back sooner than the oldest LIR entry and takes its place, so a
+ * scan through many keys used once never pushes out the LIR entries.
+ *
+ * S and Q are kept as timestamps on a per-set table of 2 * slotsPerSet
+ * blocks, one per key in S or Q, and walked by linear scans; sets are small.
+ */
+public class LIRSPolicy implements EvictionPolicy {
+
+    private int slotsPerSet;
+    private int blocksPerSet;
+    private int lirMax;
+
+    /* Per block: key hash, slot or -1 if not resident, LIR status,
+       position in S and in Q (0 if not in them), and whether it is in use */
+    private int[] hash;
+    private int[] slotOf;
+    private boolean[] lir;
+    private long[] stackTime;
+    private long[] queueTime;
+    private boolean[] used;
+
+    /* Per slot: its block */
+    private int[] blockOf;
+
+    /* Per set: timestamp source and number of LIR blocks */
+    private long[] clock;
+    private int[] lirCount;
+
+    @Override
+    public void init(int numSets, int slotsPerSet) {
+        this.slotsPerSet = slotsPerSet;
+        this.blocksPerSet = 2 * slotsPerSet;
+        this.lirMax = slotsPerSet - Math.max(1, slotsPerSet / 10);
+        int blocks = numSets * blocksPerSet;
+        hash = new int[blocks];
+        slotOf = new int[blocks];
+        lir = new boolean[blocks];
+        stackTime = new long[blocks];
+        queueTime = new long[blocks];
+        used = new boolean[blocks];
+        blockOf = new int[numSets * slotsPerSet];
+        clock = new long[numSets];
+        lirCount = new int[numSets];
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        int block = findGhost(set, hash);
+        if (block < 0) {
+            block = allocate(set);
+            this.hash[block] = hash;
+            if (lirCount[set] < lirMax) {
+                lir[block] = true;
+                lirCount[set]++;
+            } else {
+                queueTime[block] = ++clock[set];
+            }
+            stackTime[block] = ++clock[set];
+        } else {
+            // a ghost still in S: reused sooner than the oldest LIR entry
+            promote(set, block);
+        }
+        slotOf[block] = slot;
+        blockOf[slot] = block;
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        int block = blockOf[slot];
+        if (lir[block]) {
+            stackTime[block] = ++clock[set];
+            prune(set);
+        } else if (stackTime[block] > 0) {
+            promote(set, block);
+        } else {
+            stackTime[block] = ++clock[set];
+            queueTime[block] = ++clock[set];
+        }
+    }
+
+    @Override
+    public void updated(int set, int slot) {
+        hit(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        int block = blockOf[slot];
+        if (lir[block]) {
+            lirCount[set]--;
+        }
+        release(block);
+        prune(set);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int block = oldest(set, queueTime, false);
+        if (block < 0) {
+            demote(set);
+            block = oldest(set, queueTime, false);
+        }
+        int slot = slotOf[block];
+        slotOf[block] = -1;
+        queueTime[block] = 0;
+        if (stackTime[block] == 0) {
+            release(block);
+        }
+        return slot;
+    }
+
+    @Override
+    public int victim(int set, int hash) {
+        int block = oldest(set, queueTime, false);
+        if (block < 0) {
+            block = oldest(set, stackTime, true);
+        }
+        return slotOf[block];
+    }
+
+    /**
+     * Make an HIR block, resident or not, LIR at the top of S; if that makes
+     * too many, the oldest LIR block becomes HIR.
+     */
+    private void promote(int set, int block) {
+        lir[block] = true;
+        lirCount[set]++;
+        queueTime[block] = 0;
+        stackTime[block] = ++clock[set];
+        if (lirCount[set] > lirMax) {
+            demote(set);
+        }
+        prune(set);
+    }
+
+    /**
+     * Move the LIR block at the bottom of S out of S to the end of Q.
+     */
+    private void demote(int set) {
+        int block = oldest(set, stackTime, true);
+        lir[block] = false;
+        lirCount[set]--;
+        stackTime[block] = 0;
+        queueTime[block] = ++clock[set];
+    }
+
+    /**
+     * Remove HIR blocks from the bottom of S until an LIR block is there,
+     * forgetting those no longer resident.
+     */
+    private void prune(int set) {
+        int block;
+        while ((block = oldest(set, stackTime, false)) >= 0
+                && !lir[block] && isBottom(set, block)) {
+            stackTime[block] = 0;
+            if (slotOf[block] < 0) {
+                release(block);
+            }
+        }
+    }
+
+    private boolean isBottom(int set, int block) {
+        int lirBottom = oldest(set, stackTime, true);
+        return lirBottom < 0 || stackTime[block] < stackTime[lirBottom];
+    }
+
+    /**
+     * The block with the smallest non-zero time among LIR blocks if isLir,
+     * among HIR blocks otherwise; -1 if there is none.
+     */
+    private int oldest(int set, long[] time, boolean isLir) {
+        int base = set * blocksPerSet;
+        int oldest = -1;
+        for (int b = base; b < base + blocksPerSet; b++) {
+            if (used[b] && time[b] > 0 && lir[b] == isLir
+                    && (oldest < 0 || time[b] < time[oldest])) {
+                oldest = b;
+            }
+        }
+        return oldest;
+    }
+
+    private int findGhost(int set, int hash) {
+        int base = set * blocksPerSet;
+        for (int b = base; b < base + blocksPerSet; b++) {
+            if (used[b] && slotOf[b] < 0 && this.hash[b] == hash) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A free block of set; with none free, the ghost lowest in S is dropped.
+     */
+    private int allocate(int set) {
+        int base = set * blocksPerSet;
+        int ghost = -1;
+        for (int b = base; b < base + blocksPerSet; b++) {
+            if (!used[b]) {
+                used[b] = true;
+                return b;
+            }
+            if (slotOf[b] < 0 && (ghost < 0 || stackTime[b] < stackTime[ghost])) {
+                ghost = b;
+            }
+        }
+        release(ghost);
+        used[ghost] = true;
+        return ghost;
+    }
+
+    private void release(int block) {
+        used[block] = false;
+        lir[block] = false;
+        slotOf[block] = -1;
+        stackTime[block] = 0;
+        queueTime[block] = 0;
+    }
+
+    @Override
+    public int[] order(int set) {
+        int[] slots = new int[slotsPerSet];
+        int n = 0;
+        for (int block : sorted(set, queueTime, false)) {
+            if (slotOf[block] >= 0) {
+                slots[n++] = slotOf[block];
+            }
+        }
+        for (int block : sorted(set, stackTime, true)) {
+            slots[n++] = slotOf[block];
+        }
+        return java.util.Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * The blocks oldest would consider, oldest first.
+     */
+    private int[] sorted(int set, long[] time, boolean isLir) {
+        int base = set * blocksPerSet;
+        int[] blocks = new int[blocksPerSet];
+        int n = 0;
+        for (int b = base; b < base + blocksPerSet; b++) {
+            if (used[b] && time[b] > 0 && lir[b] == isLir) {
+                int i = n++;
+                for (; i > 0 && time[b] < time[blocks[i - 1]]; i--) {
+                    blocks[i] = blocks[i - 1];
+                }
+                blocks[i] = b;
+            }
+        }
+        return java.util.Arrays.copyOf(blocks, n);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return lir[blockOf[slot]];
+    }
+}
@@ -0,0 +1,57 @@
+package kvstore;
+
+/**
+ * Least recently used: every get or put moves an entry to the back of its
+ * set's list, and a full set evicts the entry at the front.
+ */
+public class LRUPolicy implements EvictionPolicy {
+
+    private SlotList lists;
+
+    @Override
+    public void init(int numSets, int slotsPerSet) {
+        lists = new SlotList(numSets * slotsPerSet, numSets);
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        lists.addLast(set, slot);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        lists.moveToLast(set, slot);
+    }
+
+    @Override
+    public void updated(int set, int slot) {
+        lists.moveToLast(set, slot);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        lists.remove(set, slot);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int slot = lists.first(set);
+        lists.remove(set, slot);
+        return slot;
+    }
+
+    @Override
+    public int victim(int set, int hash) {
+        return lists.first(set);
+    }
+
+    @Override
+    public int[] order(int set) {
+        return lists.toArray(set);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return true;
+    }
+}
@@ -0,0 +1,941 @@
+package kvstore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A ConcurrentMap from String to String kept in a directory on disk as a
+ * log-structured merge tree. KVStore uses it when made with a directory and
+ * DiskEngine.LSM.
+ *
+ * Writes go to a memtable, a ConcurrentSkipListMap, after being appended to
+ * that memtable's log file. A delete is written like a put, with no value,
+ * so it reads nothing. Once its log reaches memtableBytes the memtable is
+ * frozen and a fresh one takes the writes, while a background thread
+ * flushes the frozen one to a new SSTable and deletes its log. Writers wait
+ * if two frozen memtables are already queued for flushing, which is how
+ * they are held back when compaction falls behind.
+ *
+ * A get looks in the memtable, the frozen memtables and then the tables,
+ * newest first, and takes the first entry it finds; each table's Bloom
+ * filter keeps most of the tables without the key from being read at all.
+ * The memtables and tables are swapped in and out together as one
+ * immutable Version, so reads lock nothing.
+ *
+ * The same thread compacts size-tiered: once FANOUT tables of about the
+ * same size sit next to each other in age, it merges them into one, keeping
+ * the newest entry of each key. Deletes and expired keys are dropped only
+ * when the merge takes in the oldest table, since otherwise an older value
+ * could come back.
+ *
+ * A MANIFEST file lists the tables in use, newest first, and is replaced
+ * whole by renaming. Opening the directory opens the tables it lists,
+ * deletes any others, and replays the logs left behind, stopping at the
+ * first torn or corrupt record, into a new table. Writes reach the
+ * operating system at once, and the disk on sync or close.
+ */
+class LsmMap extends AbstractMap<String, String> implements DiskMap {
+
+    static final long DEFAULT_MEMTABLE_BYTES = 4 << 20;
+    static final int FANOUT = 4;
+
+    /* CRC32 int, expiry long, key length int and value length int, -1 for
+       a delete */
+    private static final int LOG_HEADER = 20;
+    private static final int NO_VALUE = -1;
+    private static final int MAX_FLUSHING = 2;
+    private static final long RETRY_MILLIS = 1000;
+    private static final String LOG = ".log";
+    private static final String TABLE = ".sst";
+    private static final String TEMPORARY = ".tmp";
+    private static final String MANIFEST = "MANIFEST";
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    /**
+     * The latest write of a key: its value, or null for a delete, and
+     * expiry time.
+     */
+    static class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Writes not yet in a table, and the log that keeps them until they
+     * are.
+     */
+    private static class Memtable {
+        final ConcurrentSkipListMap<String, Entry> entries =
+            new ConcurrentSkipListMap<String, Entry>();
+        final PositionalFile log;
+        /* Guarded by the map */
+        long logSize;
+
+        Memtable(File log) throws IOException {
+            this.log = new PositionalFile(log);
+        }
+    }
+
+    /**
+     * What a read looks at, newest first. Never changed; the map swaps in
+     * a new one.
+     */
+    private static class Version {
+        final Memtable memtable;
+        final List<Memtable> flushing;
+        final List<SSTable> tables;
+
+        Version(Memtable memtable, List<Memtable> flushing, List<SSTable> tables) {
+            this.memtable = memtable;
+            this.flushing = Collections.unmodifiableList(flushing);
+            this.tables = Collections.unmodifiableList(tables);
+        }
+    }
+
+    private final File directory;
+    private final long memtableBytes;
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    private volatile Version version;
+    /* Guarded by this, like every write */
+    private boolean closed;
+    /* Held to change the tables: by flushes, compactions, clear and close */
+    private final Object compactLock = new Object();
+    private final Thread compactor;
+
+    /**
+     * Open the map kept in directory, making the directory if need be.
+     *
+     * @param directory where the logs, tables and MANIFEST are
+     * @param memtableBytes log bytes after which a memtable is flushed
+     * @throws IOException if the files cannot be read or created
+     */
+    LsmMap(File directory, long memtableBytes) throws IOException {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+        compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        synchronized (LsmMap.this) {
+                            while (!closed && version.flushing.isEmpty()
+                                    && pickRun(version.tables) == null) {
+                                LsmMap.this.wait();
+                            }
+                            if (closed) {
+                                return;
+                            }
+                        }
+                        try {
+                            flushOrCompact();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            Thread.sleep(RETRY_MILLIS);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "LsmMap compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    @Override
+    public String get(Object key) {
+        Entry entry = find((String) key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * The newest entry for key, which may be a delete, or null if there is
+     * none.
+     */
+    private Entry find(String key) {
+        while (true) {
+            Version v = version;
+            Entry entry = v.memtable.entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            for (Memtable memtable : v.flushing) {
+                entry = memtable.entries.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            try {
+                for (SSTable table : v.tables) {
+                    entry = table.get(key);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                // compacted away, unless the map was closed
+                if (version == v) {
+                    throw new IllegalStateException("Store is closed", e);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read " + key, e);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Long> expiries() {
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        Iterator<Map.Entry<String, Entry>> entries = entries(null, false);
+        while (entries.hasNext()) {
+            Map.Entry<String, Entry> e = entries.next();
+            if (e.getValue().expiresAt != KVMessage.NO_TTL) {
+                expiries.put(e.getKey(), e.getValue().expiresAt);
+            }
+        }
+        return expiries;
+    }
+
+    /**
+     * Counts by reading every key.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        Iterator<Map.Entry<String, Entry>> entries = entries(null, false);
+        while (entries.hasNext()) {
+            entries.next();
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !entries(null, false).hasNext();
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+        String old = get(key);
+        put(key, value, KVMessage.NO_TTL);
+        return old;
+    }
+
+    @Override
+    public synchronized void put(String key, String value, long expiresAt) {
+        write(key, value, expiresAt);
+    }
+
+    /**
+     * Write a delete of key, whether or not it is there.
+     */
+    @Override
+    public synchronized void delete(String key) {
+        write(key, null, KVMessage.NO_TTL);
+    }
+
+    @Override
+    public synchronized String remove(Object key) {
+        String old = get(key);
+        if (old != null) {
+            delete((String) key);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized String putIfAbsent(String key, String value) {
+        String old = get(key);
+        if (old == null) {
+            put(key, value, KVMessage.NO_TTL);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        String old = get(key);
+        if (old == null || !old.equals(value)) {
+            return false;
+        }
+        delete((String) key);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(String key, String oldValue, String newValue) {
+        String old = get(key);
+        if (old == null || !old.equals(oldValue)) {
+            return false;
+        }
+        put(key, newValue, KVMessage.NO_TTL);
+        return true;
+    }
+
+    @Override
+    public synchronized String replace(String key, String value) {
+        String old = get(key);
+        if (old != null) {
+            put(key, value, KVMessage.NO_TTL);
+        }
+        return old;
+    }
+
+    /**
+     * Delete every key, every table and every log.
+     */
+    @Override
+    public void clear() {
+        synchronized (compactLock) {
+            synchronized (this) {
+                checkOpen();
+                Version old = version;
+                try {
+                    writeManifest(Collections.<SSTable>emptyList());
+                    version = new Version(newMemtable(), new ArrayList<Memtable>(),
+                        new ArrayList<SSTable>());
+                    notifyAll();
+                    dropLog(old.memtable);
+                    for (Memtable memtable : old.flushing) {
+                        dropLog(memtable);
+                    }
+                    for (SSTable table : old.tables) {
+                        dropTable(table);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot clear " + directory, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Force what was written so far to disk.
+     *
+     * @throws IOException if the disk cannot be written
+     */
+    synchronized void sync() throws IOException {
+        checkOpen();
+        for (Memtable memtable : version.flushing) {
+            memtable.log.force();
+        }
+        version.memtable.log.force();
+    }
+
+    /**
+     * Stop flushing and compacting, force the logs to disk and close every
+     * file. The memtables are not flushed; the next open replays their logs.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.interrupt();
+        synchronized (compactLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+                Version v = version;
+                for (Memtable memtable : v.flushing) {
+                    memtable.log.force();
+                    memtable.log.retire();
+                }
+                v.memtable.log.force();
+                v.memtable.log.retire();
+                for (SSTable table : v.tables) {
+                    table.retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * In key order and weakly consistent, like ConcurrentSkipListMap's
+     * views: each key's value is the one it had at some point while
+     * iterating. Entries are read-only.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public int size() {
+                return LsmMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return LsmMap.this.iterator(null, false);
+            }
+        };
+    }
+
+    /**
+     * The entries from key from on, or all for null, like entrySet's.
+     *
+     * @param inclusive whether an entry for from itself is returned
+     */
+    Iterator<Map.Entry<String, String>> iterator(String from, boolean inclusive) {
+        final Iterator<Map.Entry<String, Entry>> entries = entries(from, inclusive);
+        return new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, Entry> e = entries.next();
+                return new SimpleImmutableEntry<String, String>(e.getKey(), e.getValue().value);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The newest entry of each key from from on that is not deleted, in key
+     * order. A table compacted away under the iterator is left for the new
+     * Version, picking up after the last key returned.
+     */
+    private Iterator<Map.Entry<String, Entry>> entries(final String from,
+            final boolean inclusive) {
+        return new Iterator<Map.Entry<String, Entry>>() {
+            private Version v = version;
+            private Iterator<Map.Entry<String, Entry>> merged;
+            private String last;
+            private Map.Entry<String, Entry> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    try {
+                        if (merged == null) {
+                            merged = last == null ? merge(v, from, inclusive, false)
+                                : merge(v, last, false, false);
+                        }
+                        if (!merged.hasNext()) {
+                            return false;
+                        }
+                        Map.Entry<String, Entry> e = merged.next();
+                        last = e.getKey();
+                        if (e.getValue().value != null) {
+                            next = e;
+                        }
+                    } catch (IllegalStateException e) {
+                        if (!(e.getCause() instanceof ClosedChannelException) || version == v) {
+                            throw e;
+                        }
+                        v = version;
+                        merged = null;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, Entry> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Entry> e = next;
+                next = null;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Every entry of v from from on, or all for null, merged.
+     */
+    private static Iterator<Map.Entry<String, Entry>> merge(Version v, String from,
+            boolean inclusive, boolean bottom) {
+        List<Iterator<Map.Entry<String, Entry>>> sources =
+            new ArrayList<Iterator<Map.Entry<String, Entry>>>();
+        sources.add(tail(v.memtable, from, inclusive));
+        for (Memtable memtable : v.flushing) {
+            sources.add(tail(memtable, from, inclusive));
+        }
+        for (SSTable table : v.tables) {
+            sources.add(table.iterator(from, inclusive));
+        }
+        return new MergingIterator(sources, bottom);
+    }
+
+    private static Iterator<Map.Entry<String, Entry>> tail(Memtable memtable, String from,
+            boolean inclusive) {
+        return (from == null ? memtable.entries : memtable.entries.tailMap(from, inclusive))
+            .entrySet().iterator();
+    }
+
+    /**
+     * Merges sources, each sorted by key and given newest first, into one
+     * sorted stream holding the newest entry of each key. At the bottom,
+     * that is when nothing older than the sources is left, deletes and
+     * expired keys are dropped too.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, Entry>> {
+
+        private static class Head {
+            final int rank;
+            final Iterator<Map.Entry<String, Entry>> source;
+            Map.Entry<String, Entry> entry;
+
+            Head(int rank, Iterator<Map.Entry<String, Entry>> source) {
+                this.rank = rank;
+                this.source = source;
+            }
+        }
+
+        private final PriorityQueue<Head> heads;
+        private final boolean bottom;
+        private final long now = System.currentTimeMillis();
+        private Map.Entry<String, Entry> next;
+
+        MergingIterator(List<Iterator<Map.Entry<String, Entry>>> sources, boolean bottom) {
+            this.bottom = bottom;
+            heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+                    return cmp != 0 ? cmp : (a.rank < b.rank ? -1 : (a.rank == b.rank ? 0 : 1));
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                advance(new Head(i, sources.get(i)));
+            }
+        }
+
+        private void advance(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !heads.isEmpty()) {
+                Head head = heads.poll();
+                Map.Entry<String, Entry> e = head.entry;
+                advance(head);
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(e.getKey())) {
+                    // an older entry of the same key
+                    advance(heads.poll());
+                }
+                Entry entry = e.getValue();
+                if (bottom && (entry.value == null || (entry.expiresAt != KVMessage.NO_TTL
+                        && entry.expiresAt <= now))) {
+                    continue;
+                }
+                next = e;
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Entry> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Entry> e = next;
+            next = null;
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Merge every table into one, dropping deletes and expired keys.
+     *
+     * @throws IOException if the tables cannot be read or written
+     */
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            checkOpen();
+            List<SSTable> tables = version.tables;
+            if (!tables.isEmpty()) {
+                compact(tables);
+            }
+        }
+    }
+
+    /**
+     * How many tables the map has; for tests.
+     */
+    int tableCount() {
+        return version.tables.size();
+    }
+
+    /**
+     * Merge a run of tables if one is due, or else flush the oldest frozen
+     * memtable. Merging first holds up flushes, and so writers, while it
+     * runs, rather than letting tables pile up faster than they merge.
+     */
+    private void flushOrCompact() throws IOException {
+        synchronized (compactLock) {
+            Version v = version;
+            if (closed) {
+                return;
+            }
+            List<SSTable> run = pickRun(v.tables);
+            if (run != null) {
+                compact(run);
+            } else if (!v.flushing.isEmpty()) {
+                flush(v.flushing.get(v.flushing.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Write memtable to a new table and drop its log. Called holding
+     * compactLock.
+     */
+    private void flush(Memtable memtable) throws IOException {
+        SSTable table = SSTable.write(tableFile(nextFileId.getAndIncrement()),
+            memtable.entries.entrySet().iterator(), memtable.entries.size());
+        List<SSTable> tables = new ArrayList<SSTable>(version.tables);
+        if (table != null) {
+            tables.add(0, table);
+        }
+        writeManifest(tables);
+        synchronized (this) {
+            List<Memtable> flushing = new ArrayList<Memtable>(version.flushing);
+            flushing.remove(memtable);
+            version = new Version(version.memtable, flushing, tables);
+            // writers waiting for room to freeze a memtable
+            notifyAll();
+        }
+        dropLog(memtable);
+    }
+
+    /**
+     * Merge run, tables next to each other in age, into one table in their
+     * place. Called holding compactLock.
+     */
+    private void compact(List<SSTable> run) throws IOException {
+        List<SSTable> tables = version.tables;
+        boolean bottom = run.get(run.size() - 1) == tables.get(tables.size() - 1);
+        List<Iterator<Map.Entry<String, Entry>>> sources =
+            new ArrayList<Iterator<Map.Entry<String, Entry>>>();
+        long count = 0;
+        for (SSTable table : run) {
+            sources.add(table.iterator(null, false));
+            count += table.count;
+        }
+        SSTable merged = SSTable.write(tableFile(nextFileId.getAndIncrement()),
+            new MergingIterator(sources, bottom), count);
+        List<SSTable> next = new ArrayList<SSTable>(tables);
+        int at = next.indexOf(run.get(0));
+        next.removeAll(run);
+        if (merged != null) {
+            next.add(at, merged);
+        }
+        writeManifest(next);
+        synchronized (this) {
+            version = new Version(version.memtable, version.flushing, next);
+        }
+        for (SSTable table : run) {
+            dropTable(table);
+        }
+    }
+
+    /**
+     * The newest FANOUT tables in a row of the same tier, or null if no
+     * tier has that many in a row. A table's tier grows by one for every
+     * FANOUT times it is bigger than two memtables.
+     */
+    private List<SSTable> pickRun(List<SSTable> tables) {
+        int start = 0;
+        for (int i = 1; i <= tables.size(); i++) {
+            if (i - start == FANOUT) {
+                return tables.subList(start, i);
+            }
+            if (i < tables.size() && tier(tables.get(i)) != tier(tables.get(start))) {
+                start = i;
+            }
+        }
+        return null;
+    }
+
+    private int tier(SSTable table) {
+        int tier = 0;
+        for (long limit = memtableBytes * 2; table.length >= limit && tier < 32; limit *= FANOUT) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Append a record for key to the memtable's log and put it in the
+     * memtable, freezing the memtable first if it is full. Called holding
+     * this.
+     *
+     * @param value the value, or null for a delete
+     */
+    private void write(String key, String value, long expiresAt) {
+        checkOpen();
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = value == null ? null : value.getBytes(UTF8);
+        int length = LOG_HEADER + k.length + (v == null ? 0 : v.length);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(0).putLong(expiresAt).putInt(k.length)
+            .putInt(v == null ? NO_VALUE : v.length).put(k);
+        if (v != null) {
+            record.put(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        try {
+            Memtable memtable = version.memtable;
+            if (memtable.logSize >= memtableBytes) {
+                memtable = freeze();
+            }
+            memtable.log.write(record, memtable.logSize);
+            memtable.logSize += length;
+            memtable.entries.put(key, new Entry(value, expiresAt));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to " + directory, e);
+        }
+    }
+
+    /**
+     * Queue the full memtable for flushing and start a new one, first
+     * waiting while MAX_FLUSHING are queued. Called holding this.
+     *
+     * @return the memtable to write to
+     */
+    private Memtable freeze() throws IOException {
+        boolean interrupted = false;
+        try {
+            while (version.flushing.size() >= MAX_FLUSHING && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkOpen();
+        Version v = version;
+        if (v.memtable.logSize < memtableBytes) {
+            // cleared while waiting
+            return v.memtable;
+        }
+        List<Memtable> flushing = new ArrayList<Memtable>();
+        flushing.add(v.memtable);
+        flushing.addAll(v.flushing);
+        version = new Version(newMemtable(), flushing, v.tables);
+        notifyAll();
+        return version.memtable;
+    }
+
+    /**
+     * Open the tables in MANIFEST, delete any other tables, and replay the
+     * logs into a new table.
+     */
+    private void recover() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        Set<String> listed = new HashSet<String>();
+        List<SSTable> tables = new ArrayList<SSTable>();
+        if (manifest.isFile()) {
+            for (String name : Files.readAllLines(manifest.toPath(), UTF8)) {
+                if (!name.isEmpty()) {
+                    listed.add(name);
+                    tables.add(SSTable.open(new File(directory, name)));
+                }
+            }
+        }
+        List<Integer> logs = new ArrayList<Integer>();
+        File[] names = directory.listFiles();
+        for (File file : names == null ? new File[0] : names) {
+            String n = file.getName();
+            if (n.endsWith(TEMPORARY) || (n.endsWith(TABLE) && !listed.contains(n))) {
+                // left by a flush or compaction that did not finish
+                file.delete();
+                continue;
+            }
+            int dot = n.indexOf('.');
+            int id;
+            try {
+                id = Integer.parseInt(n.substring(0, dot < 0 ? n.length() : dot));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (id >= nextFileId.get()) {
+                nextFileId.set(id + 1);
+            }
+            if (n.endsWith(LOG)) {
+                logs.add(id);
+            }
+        }
+        Collections.sort(logs);
+        ConcurrentSkipListMap<String, Entry> replayed = new ConcurrentSkipListMap<String, Entry>();
+        for (int id : logs) {
+            replay(logFile(id), replayed);
+        }
+        if (!replayed.isEmpty()) {
+            SSTable table = SSTable.write(tableFile(nextFileId.getAndIncrement()),
+                replayed.entrySet().iterator(), replayed.size());
+            tables.add(0, table);
+            writeManifest(tables);
+        }
+        for (int id : logs) {
+            logFile(id).delete();
+        }
+        version = new Version(newMemtable(), new ArrayList<Memtable>(), tables);
+    }
+
+    /**
+     * Put the records of a log into entries, up to the first one that is
+     * cut short or fails its CRC.
+     */
+    private static void replay(File log, Map<String, Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(log), 1 << 16));
+        try {
+            byte[] header = new byte[LOG_HEADER];
+            while (true) {
+                in.readFully(header);
+                ByteBuffer h = ByteBuffer.wrap(header);
+                int keyLength = h.getInt(12);
+                int valueLength = h.getInt(16);
+                if (keyLength < 0 || valueLength < NO_VALUE) {
+                    return;
+                }
+                long total = (long) LOG_HEADER + keyLength + Math.max(valueLength, 0);
+                if (total > Integer.MAX_VALUE) {
+                    return;
+                }
+                byte[] record = Arrays.copyOf(header, (int) total);
+                in.readFully(record, LOG_HEADER, record.length - LOG_HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(record, 4, record.length - 4);
+                if (h.getInt(0) != (int) crc.getValue()) {
+                    return;
+                }
+                String key = new String(record, LOG_HEADER, keyLength, UTF8);
+                String value = valueLength == NO_VALUE ? null
+                    : new String(record, LOG_HEADER + keyLength, valueLength, UTF8);
+                entries.put(key, new Entry(value, h.getLong(4)));
+            }
+        } catch (EOFException e) {
+            // a torn write at the end
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace MANIFEST with one listing tables.
+     */
+    private void writeManifest(List<SSTable> tables) throws IOException {
+        File temporary = new File(directory, MANIFEST + TEMPORARY);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            Writer out = new OutputStreamWriter(stream, UTF8);
+            for (SSTable table : tables) {
+                out.write(table.path.getName());
+                out.write('\n');
+            }
+            out.flush();
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+        Files.move(temporary.toPath(), new File(directory, MANIFEST).toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Memtable newMemtable() throws IOException {
+        return new Memtable(logFile(nextFileId.getAndIncrement()));
+    }
+
+    private static void dropLog(Memtable memtable) throws IOException {
+        memtable.log.retire();
+        memtable.log.path.delete();
+    }
+
+    private static void dropTable(SSTable table) throws IOException {
+        table.retire();
+        table.path.delete();
+    }
+
+    private File logFile(int id) {
+        return new File(directory, String.format("%010d", id) + LOG);
+    }
+
+    private File tableFile(int id) {
+        return new File(directory, String.format("%010d", id) + TABLE);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+}
@@ -9,15 +9,45 @@ public interface NetworkHandler {
 
     /**
      * Creates a job to service the request for a socket and returns immediately
-     * after enqueuing that job.
+     * after enqueuing that job. Only the first request on the socket is
+     * answered; a SocketServer serves persistent connections itself through
+     * handle(KVMessage, Reply).
      *
      * @param sock Socket connected to another endpoint with the request
      */
     public void handle(Socket sock);
-    
+
+    /**
+     * Creates a job to answer a request that a SocketServer has already read
+     * in full, and returns immediately after enqueuing that job. The job
+     * hands its answer to reply; the SocketServer takes care of writing it.
+     * Never waits for room: a handler that has none leaves the request alone
+     * and returns false, and the SocketServer offers it again later.
+     *
+     * @param request the complete request
+     * @param reply where the answer to request goes
+     * @return false if the request was not taken, and reply will not be used
+     */
+    public boolean handle(KVMessage request, Reply reply);
+
     /**
      * Stops all thread execution in the current client's ThreadPool.
      */
     public void stop();
 
+    /**
+     * The way back to the endpoint that sent a request given to
+     * handle(KVMessage, Reply).
+     */
+    public interface Reply {
+
+        /**
+         * Send the answer to the request. Must be called exactly once; may be
+         * called from any thread.
+         *
+         * @param response the answer
+         */
+        public void send(KVMessage response);
+    }
+
 }
@@ -0,0 +1,213 @@
+package kvstore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A ConcurrentMap from String to String whose values live in a
+ * SlabAllocator, so that only the keys and one Long handle per entry stay
+ * on the heap. KVStore uses it in StorageMode.OFF_HEAP.
+ *
+ * Every write stores the new value first and then swaps handles in the
+ * underlying map; whoever takes a handle out of the map frees it. A read
+ * looks up the handle, decodes the value and checks that the map still
+ * holds the same handle, trying again if not: the chunk may have been freed
+ * and reused while it was being read.
+ */
+class OffHeapMap extends AbstractMap<String, String>
+        implements ConcurrentMap<String, String> {
+
+    private final ConcurrentHashMap<String, Long> handles =
+        new ConcurrentHashMap<String, Long>();
+    private final SlabAllocator slabs;
+
+    OffHeapMap(SlabAllocator slabs) {
+        this.slabs = slabs;
+    }
+
+    @Override
+    public String get(Object key) {
+        while (true) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                return null;
+            }
+            String value = slabs.read(handle);
+            if (handle.equals(handles.get(key))) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return handles.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return handles.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return handles.isEmpty();
+    }
+
+    @Override
+    public String put(String key, String value) {
+        Long old = handles.put(key, slabs.allocate(value));
+        return old == null ? null : release(old);
+    }
+
+    @Override
+    public String remove(Object key) {
+        Long old = handles.remove(key);
+        return old == null ? null : release(old);
+    }
+
+    @Override
+    public void clear() {
+        for (String key : handles.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        long handle = slabs.allocate(value);
+        while (true) {
+            if (handles.putIfAbsent(key, handle) == null) {
+                return null;
+            }
+            String current = get(key);
+            if (current != null) {
+                slabs.free(handle);
+                return current;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        while (true) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                return false;
+            }
+            String current = slabs.read(handle);
+            if (!handle.equals(handles.get(key))) {
+                continue;
+            }
+            if (!current.equals(value)) {
+                return false;
+            }
+            if (handles.remove(key, handle)) {
+                slabs.free(handle);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean replace(String key, String oldValue, String newValue) {
+        while (true) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                return false;
+            }
+            String current = slabs.read(handle);
+            if (!handle.equals(handles.get(key))) {
+                continue;
+            }
+            if (!current.equals(oldValue)) {
+                return false;
+            }
+            long replacement = slabs.allocate(newValue);
+            if (handles.replace(key, handle, replacement)) {
+                slabs.free(handle);
+                return true;
+            }
+            slabs.free(replacement);
+        }
+    }
+
+    @Override
+    public String replace(String key, String value) {
+        long replacement = slabs.allocate(value);
+        while (true) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                slabs.free(replacement);
+                return null;
+            }
+            if (handles.replace(key, handle, replacement)) {
+                return release(handle);
+            }
+        }
+    }
+
+    /**
+     * Decode and free a handle just taken out of the map.
+     */
+    private String release(long handle) {
+        String value = slabs.read(handle);
+        slabs.free(handle);
+        return value;
+    }
+
+    /**
+     * Weakly consistent, like ConcurrentHashMap's views: entries removed
+     * while iterating are skipped. Entries are read-only.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public int size() {
+                return handles.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<String> keys = handles.keySet().iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && keys.hasNext()) {
+                            String key = keys.next();
+                            String value = get(key);
+                            if (value != null) {
+                                next = new SimpleImmutableEntry<String, String>(key, value);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = next;
+                        next = null;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package kvstore;
+
+/**
+ * What a ThreadPool with a bounded queue does with a job that finds the queue
+ * full. A rejected job that is a ThreadPool.Sheddable is told so; the network
+ * handlers answer its request with ERROR_SERVER_BUSY.
+ */
+public enum OverloadPolicy {
+    /*
+     * addJob waits for room, which holds up whoever is accepting requests; a
+     * SocketServer instead stops reading from the connection until there is
+     * room (see ThreadPool.offerJob)
+     */
+    BLOCK,
+    /* the new job is rejected */
+    REJECT,
+    /* the job that has waited longest is rejected to make room */
+    DROP_OLDEST
+}
@@ -0,0 +1,116 @@
+package kvstore;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file read and written at given positions only, so that threads can
+ * share its channel. An interrupt closes a FileChannel for every thread
+ * using it, so read and write hold the caller's pending interrupt back
+ * until they are done, and open the channel again when someone else's
+ * interrupt closed it. Once retired, the file stays closed, and reads and
+ * writes throw ClosedChannelException.
+ */
+class PositionalFile {
+
+    final File path;
+    private volatile FileChannel channel;
+    private boolean retired;
+
+    /**
+     * Open path for reading and writing, creating it if missing.
+     */
+    PositionalFile(File path) throws IOException {
+        this.path = path;
+        this.channel = open(path);
+    }
+
+    private static FileChannel open(File path) throws IOException {
+        return FileChannel.open(path.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Fill buffer from position.
+     *
+     * @throws EOFException if the file ends first
+     */
+    void read(ByteBuffer buffer, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            long start = position - buffer.position();
+            while (buffer.hasRemaining()) {
+                FileChannel channel = this.channel;
+                try {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new EOFException(path + " ends before " + position);
+                    }
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(channel);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Write all of buffer at position.
+     */
+    void write(ByteBuffer buffer, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            long start = position - buffer.position();
+            while (buffer.hasRemaining()) {
+                FileChannel channel = this.channel;
+                try {
+                    channel.write(buffer, start + buffer.position());
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(channel);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    void truncate(long size) throws IOException {
+        channel.truncate(size);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    private synchronized void reopen(FileChannel failed) throws IOException {
+        if (retired) {
+            throw new ClosedChannelException();
+        }
+        if (channel == failed) {
+            channel = open(path);
+        }
+    }
+
+    /**
+     * Close the file for good.
+     */
+    synchronized void retire() throws IOException {
+        retired = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,108 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
+import static kvstore.KVConstants.ERROR_SERVER_FAILURE;
+import static kvstore.KVConstants.RESP;
+
+import java.net.Socket;
+
+/**
+ * The job a NetworkHandler queues to answer a request: a RequestProcessor
+ * works out the answer and the job passes it to the request's Reply. Every
+ * request taken gets exactly one answer, even when it is never worked out:
+ * ERROR_SERVER_BUSY if the pool sheds the job or the thread queueing it is
+ * interrupted, ERROR_SERVER_FAILURE if the processor throws. A SocketServer
+ * counts the requests of a connection until they are answered, and holds
+ * back the rest of the connection behind one without a request ID, so a
+ * missing answer would hang the connection for good.
+ */
+final class RequestJob implements ThreadPool.Sheddable {
+
+    private final KVConnection.RequestProcessor processor;
+    private final KVMessage request;
+    private final NetworkHandler.Reply reply;
+
+    private RequestJob(KVConnection.RequestProcessor processor, KVMessage request,
+            NetworkHandler.Reply reply) {
+        this.processor = processor;
+        this.request = request;
+        this.reply = reply;
+    }
+
+    /**
+     * Queue a job on pool that answers request through reply, without
+     * waiting for room in the queue.
+     *
+     * @param pool ThreadPool to run the job on
+     * @param processor computes the answer
+     * @param request the complete request
+     * @param reply where the answer goes
+     * @return false if pool has no room for the job now; see ThreadPool.offerJob
+     */
+    static boolean submit(ThreadPool pool, KVConnection.RequestProcessor processor,
+            KVMessage request, NetworkHandler.Reply reply) {
+        return pool.offerJob(new RequestJob(processor, request, reply));
+    }
+
+    /**
+     * Queue a job on pool that reads the one request on a blocking socket and
+     * answers it, for NetworkHandler.handle(Socket). The answer goes back in
+     * the request's wire format, and a persistent connection is closed after
+     * it. A request that cannot be read is answered with its error instead,
+     * and a job that is shed turns the connection away unread.
+     *
+     * @param pool ThreadPool to run the job on
+     * @param processor computes the answer
+     * @param sock Socket connected to the client
+     */
+    static void submit(ThreadPool pool, final KVConnection.RequestProcessor processor,
+            Socket sock) {
+        final KVConnection connection = new KVConnection(sock);
+        ThreadPool.Sheddable job = new ThreadPool.Sheddable() {
+            @Override
+            public void run() {
+                KVMessage request;
+                try {
+                    request = connection.receive();
+                } catch (KVException e) {
+                    connection.answer(e.getKVMessage(), connection.getWireFormat());
+                    return;
+                }
+                if (request == null) {
+                    connection.close();
+                    return;
+                }
+                // already on the pool, so answer here rather than queue again
+                new RequestJob(processor, request, connection.replyTo(request)).run();
+            }
+
+            @Override
+            public void reject() {
+                connection.refuse();
+            }
+        };
+        try {
+            pool.addJob(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.reject();
+        }
+    }
+
+    @Override
+    public void run() {
+        KVMessage response = new KVMessage(RESP, ERROR_SERVER_FAILURE);
+        try {
+            response = processor.process(request);
+        } catch (RuntimeException e) {
+            // such as the IllegalStateException of a disk store that failed
+        } finally {
+            reply.send(response);
+        }
+    }
+
+    @Override
+    public void reject() {
+        reply.send(new KVMessage(RESP, ERROR_SERVER_BUSY));
+    }
+}
@@ -0,0 +1,359 @@
+package kvstore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable file of LsmMap entries sorted by key, as LsmMap flushes and
+ * compacts them. Entries are packed into blocks of about BLOCK_SIZE bytes,
+ * each followed by its CRC32. After the blocks come an index holding the
+ * last key, position and length of each block, a BloomFilter of the keys,
+ * and a fixed footer saying where the two are. Opening a table reads the
+ * index and filter into memory, so a get of a key the table lacks mostly
+ * reads nothing, and otherwise reads and checks one block.
+ *
+ * An entry is the key's length and UTF-8 bytes, the value's length, -1 for
+ * a delete, the expiry time and the value's bytes.
+ */
+class SSTable {
+
+    static final int BLOCK_SIZE = 4096;
+
+    /* index position long, index length int, filter position long, filter
+       length int, entries long, CRC32 of index and filter int, MAGIC int */
+    private static final int FOOTER = 40;
+    private static final int MAGIC = 0x4c534d31;
+    private static final int NO_VALUE = -1;
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    final File path;
+    /* Bytes in the file, and entries in it */
+    final long length;
+    final long count;
+    private final PositionalFile file;
+    private final String[] lastKeys;
+    private final long[] positions;
+    private final int[] lengths;
+    private final BloomFilter filter;
+
+    private SSTable(File path, long length, long count, PositionalFile file,
+            String[] lastKeys, long[] positions, int[] lengths, BloomFilter filter) {
+        this.path = path;
+        this.length = length;
+        this.count = count;
+        this.file = file;
+        this.lastKeys = lastKeys;
+        this.positions = positions;
+        this.lengths = lengths;
+        this.filter = filter;
+    }
+
+    /**
+     * Write entries, which come sorted by key, to a new table at path. The
+     * file is written under another name, forced to disk and then renamed,
+     * so that path either holds the whole table or nothing.
+     *
+     * @param expected about how many entries there are, to size the filter
+     * @return the table, open, or null if there were no entries
+     */
+    static SSTable write(File path, Iterator<Map.Entry<String, LsmMap.Entry>> entries,
+            long expected) throws IOException {
+        File temporary = new File(path.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        long count = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            BloomFilter filter = new BloomFilter((int) Math.min(Integer.MAX_VALUE / 16, expected));
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            List<String> lastKeys = new ArrayList<String>();
+            List<long[]> places = new ArrayList<long[]>();
+            long position = 0;
+            String last = null;
+            while (entries.hasNext()) {
+                Map.Entry<String, LsmMap.Entry> e = entries.next();
+                byte[] key = e.getKey().getBytes(UTF8);
+                String value = e.getValue().value;
+                byte[] bytes = value == null ? null : value.getBytes(UTF8);
+                block.writeInt(key.length);
+                block.write(key);
+                block.writeInt(bytes == null ? NO_VALUE : bytes.length);
+                block.writeLong(e.getValue().expiresAt);
+                if (bytes != null) {
+                    block.write(bytes);
+                }
+                filter.add(e.getKey());
+                last = e.getKey();
+                count++;
+                if (blockBytes.size() >= BLOCK_SIZE) {
+                    position = writeBlock(out, blockBytes, position, last, lastKeys, places);
+                }
+            }
+            if (count == 0) {
+                out.close();
+                temporary.delete();
+                return null;
+            }
+            if (blockBytes.size() > 0) {
+                position = writeBlock(out, blockBytes, position, last, lastKeys, places);
+            }
+
+            ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+            DataOutputStream meta = new DataOutputStream(metaBytes);
+            meta.writeInt(lastKeys.size());
+            for (int i = 0; i < lastKeys.size(); i++) {
+                byte[] key = lastKeys.get(i).getBytes(UTF8);
+                meta.writeLong(places.get(i)[0]);
+                meta.writeInt((int) places.get(i)[1]);
+                meta.writeInt(key.length);
+                meta.write(key);
+            }
+            int indexLength = metaBytes.size();
+            filter.writeTo(meta);
+            CRC32 crc = new CRC32();
+            crc.update(metaBytes.toByteArray());
+            metaBytes.writeTo(out);
+            out.writeLong(position);
+            out.writeInt(indexLength);
+            out.writeLong(position + indexLength);
+            out.writeInt(filter.length());
+            out.writeLong(count);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+            stream.getChannel().force(true);
+            out.close();
+        } catch (IOException e) {
+            stream.close();
+            temporary.delete();
+            throw e;
+        }
+        Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    private static long writeBlock(DataOutputStream out, ByteArrayOutputStream block,
+            long position, String last, List<String> lastKeys, List<long[]> places)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = block.toByteArray();
+        crc.update(bytes);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        lastKeys.add(last);
+        places.add(new long[] {position, bytes.length});
+        block.reset();
+        return position + bytes.length + 4;
+    }
+
+    /**
+     * Open the table at path and read its index and filter.
+     *
+     * @throws IOException if the file is not a whole table
+     */
+    static SSTable open(File path) throws IOException {
+        PositionalFile file = new PositionalFile(path);
+        try {
+            long length = file.size();
+            if (length < FOOTER) {
+                throw new IOException(path + " is not a table");
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+            file.read(footer, length - FOOTER);
+            long indexPosition = footer.getLong(0);
+            int indexLength = footer.getInt(8);
+            int filterLength = footer.getInt(20);
+            long count = footer.getLong(24);
+            int metaCrc = footer.getInt(32);
+            if (footer.getInt(36) != MAGIC || indexPosition < 0 || indexLength < 4
+                    || filterLength < 0
+                    || indexPosition + indexLength + filterLength != length - FOOTER) {
+                throw new IOException(path + " is not a table");
+            }
+            ByteBuffer metaBuffer = ByteBuffer.allocate(indexLength + filterLength);
+            file.read(metaBuffer, indexPosition);
+            CRC32 crc = new CRC32();
+            crc.update(metaBuffer.array());
+            if ((int) crc.getValue() != metaCrc) {
+                throw new IOException(path + " has a corrupt index");
+            }
+            DataInputStream meta = new DataInputStream(new ByteArrayInputStream(metaBuffer.array()));
+            int blocks = meta.readInt();
+            String[] lastKeys = new String[blocks];
+            long[] positions = new long[blocks];
+            int[] lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                positions[i] = meta.readLong();
+                lengths[i] = meta.readInt();
+                byte[] key = new byte[meta.readInt()];
+                meta.readFully(key);
+                lastKeys[i] = new String(key, UTF8);
+            }
+            BloomFilter filter = BloomFilter.readFrom(meta);
+            return new SSTable(path, length, count, file, lastKeys, positions, lengths, filter);
+        } catch (IOException e) {
+            file.retire();
+            throw e;
+        } catch (RuntimeException e) {
+            file.retire();
+            throw new IOException(path + " is not a table", e);
+        }
+    }
+
+    /**
+     * The entry for key, which may be a delete, or null if the table has
+     * none.
+     *
+     * @throws java.nio.channels.ClosedChannelException if the table has
+     *         been retired
+     */
+    LsmMap.Entry get(String key) throws IOException {
+        if (!filter.mightContain(key)) {
+            return null;
+        }
+        int i = Arrays.binarySearch(lastKeys, key);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i == lastKeys.length) {
+            return null;
+        }
+        ByteBuffer block = readBlock(i);
+        while (block.hasRemaining()) {
+            String k = readKey(block);
+            int cmp = k.compareTo(key);
+            if (cmp > 0) {
+                return null;
+            }
+            if (cmp == 0) {
+                return readEntry(block);
+            }
+            skipEntry(block);
+        }
+        return null;
+    }
+
+    /**
+     * The entries of the table from key from on, or all for null, in order.
+     * Reads one block at a time; a read that fails, as when the table is
+     * retired, throws IllegalStateException from hasNext.
+     *
+     * @param inclusive whether an entry for from itself is returned
+     */
+    Iterator<Map.Entry<String, LsmMap.Entry>> iterator(final String from,
+            final boolean inclusive) {
+        int first = 0;
+        if (from != null) {
+            // the first block whose last key could be returned
+            first = Arrays.binarySearch(lastKeys, from);
+            first = first < 0 ? -first - 1 : (inclusive ? first : first + 1);
+        }
+        final int start = first;
+        return new Iterator<Map.Entry<String, LsmMap.Entry>>() {
+            private int next = start;
+            private ByteBuffer block;
+            private Map.Entry<String, LsmMap.Entry> entry;
+
+            @Override
+            public boolean hasNext() {
+                while (entry == null) {
+                    if (block == null || !block.hasRemaining()) {
+                        if (next == lastKeys.length) {
+                            return false;
+                        }
+                        try {
+                            block = readBlock(next++);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Cannot read " + path, e);
+                        }
+                    }
+                    String key = readKey(block);
+                    int cmp = from == null ? 1 : key.compareTo(from);
+                    if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                        skipEntry(block);
+                    } else {
+                        entry = new java.util.AbstractMap.SimpleImmutableEntry<String, LsmMap.Entry>(
+                            key, readEntry(block));
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, LsmMap.Entry> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, LsmMap.Entry> e = entry;
+                entry = null;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Close the file for good; gets and iterators then fail.
+     */
+    void retire() throws IOException {
+        file.retire();
+    }
+
+    private ByteBuffer readBlock(int i) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[i] + 4);
+        file.read(buffer, positions[i]);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, lengths[i]);
+        if (buffer.getInt(lengths[i]) != (int) crc.getValue()) {
+            throw new IOException("Corrupt block in " + path + " at " + positions[i]);
+        }
+        buffer.flip();
+        buffer.limit(lengths[i]);
+        return buffer;
+    }
+
+    private static String readKey(ByteBuffer block) {
+        int length = block.getInt();
+        String key = new String(block.array(), block.position(), length, UTF8);
+        block.position(block.position() + length);
+        return key;
+    }
+
+    private static LsmMap.Entry readEntry(ByteBuffer block) {
+        int length = block.getInt();
+        long expiresAt = block.getLong();
+        if (length == NO_VALUE) {
+            return new LsmMap.Entry(null, expiresAt);
+        }
+        String value = new String(block.array(), block.position(), length, UTF8);
+        block.position(block.position() + length);
+        return new LsmMap.Entry(value, expiresAt);
+    }
+
+    private static void skipEntry(ByteBuffer block) {
+        int length = block.getInt();
+        block.position(block.position() + 8 + Math.max(length, 0));
+    }
+}
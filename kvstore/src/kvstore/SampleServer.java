@@ -8,7 +8,9 @@ public class SampleServer {
         try {
             String hostname = InetAddress.getLocalHost().getHostAddress();
             SocketServer ss = new SocketServer(hostname, 8080);
-            ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+            // pass OFF_HEAP to keep values out of the Java heap
+            StorageMode mode = args.length > 0 ? StorageMode.valueOf(args[0]) : StorageMode.HEAP;
+            ss.addHandler(new ServerClientHandler(new KVServer(100, 10, mode)));
             ss.connect();
             System.out.println("Server listening for clients at " + ss.getHostname());
             ss.start();
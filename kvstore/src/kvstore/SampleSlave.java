@@ -1,5 +1,6 @@
 package kvstore;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Random;
@@ -19,8 +20,8 @@ public class SampleSlave {
     static int registrationPort = 9090;
 
     public static void main(String[] args) throws IOException, KVException {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Need master IP address");
+        if (args.length != 1 && args.length != 2) {
+            throw new IllegalArgumentException("Need master IP address, and optionally a data directory");
         }
 
         Random rand = new Random();
@@ -34,7 +35,12 @@ public class SampleSlave {
 
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
 
-        keyServer = new KVServer(100, 10);
+        if (args.length == 2) {
+            // the store comes back from disk; replaying the log over it is harmless
+            keyServer = new KVServer(100, 10, new File(args[1]));
+        } else {
+            keyServer = new KVServer(100, 10);
+        }
         logPath = "bin/log." + slaveID + "@" + server.getHostname();
         log = new TPCLog(logPath, keyServer);
 
@@ -0,0 +1,90 @@
+package kvstore;
+
+/**
+ * The second-chance policy described in the spec, and KVCache's default.
+ * Entries of a set form a ring whose head is the CLOCK hand. New entries go
+ * in just behind the hand with their reference bit set; a get also sets the
+ * bit and moves the entry behind the hand, while a put on an existing key
+ * only sets the bit. To evict, the hand clears set bits and moves on until it
+ * reaches an entry without one.
+ */
+public class SecondChancePolicy implements EvictionPolicy {
+
+    private SlotList ring;
+    private long[] referenced;
+
+    @Override
+    public void init(int numSets, int slotsPerSet) {
+        int slots = numSets * slotsPerSet;
+        ring = new SlotList(slots, numSets);
+        referenced = new long[(slots + 63) >>> 6];
+    }
+
+    @Override
+    public void inserted(int set, int slot, int hash) {
+        ring.addLast(set, slot);
+        setReferenced(slot, true);
+    }
+
+    @Override
+    public void hit(int set, int slot) {
+        setReferenced(slot, true);
+        ring.moveToLast(set, slot);
+    }
+
+    @Override
+    public void updated(int set, int slot) {
+        setReferenced(slot, true);
+    }
+
+    @Override
+    public void removed(int set, int slot) {
+        ring.remove(set, slot);
+        setReferenced(slot, false);
+    }
+
+    @Override
+    public int evict(int set, int hash) {
+        int slot = ring.first(set);
+        while (isReferenced(slot)) {
+            setReferenced(slot, false);
+            ring.rotate(set);
+            slot = ring.first(set);
+        }
+        // the new entry goes behind the hand, where this one was
+        ring.remove(set, slot);
+        return slot;
+    }
+
+    @Override
+    public int victim(int set, int hash) {
+        int first = ring.first(set);
+        int slot = first;
+        do {
+            if (!isReferenced(slot)) {
+                return slot;
+            }
+            slot = ring.next(slot);
+        } while (slot != first);
+        // every bit is set: the hand clears them all and comes back
+        return first;
+    }
+
+    @Override
+    public int[] order(int set) {
+        return ring.toArray(set);
+    }
+
+    @Override
+    public boolean isReferenced(int slot) {
+        return (referenced[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void setReferenced(int slot, boolean isReferenced) {
+        if (isReferenced) {
+            referenced[slot >>> 6] |= 1L << slot;
+        } else {
+            referenced[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+}
@@ -5,17 +5,18 @@ import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 import static kvstore.KVConstants.SUCCESS;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, KVConnection.RequestProcessor {
 
     public KVServer kvServer;
     public ThreadPool threadPool;
@@ -42,6 +43,49 @@ public class ServerClientHandler implements NetworkHandler {
         this.threadPool = new ThreadPool(connections);
         /* end */
     }
+
+    /**
+     * Constructs a ServerClientHandler whose requests run as mode says. With
+     * ExecutionMode.VIRTUAL every job gets its own virtual thread and
+     * connections only matters if the JVM has none.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param mode how threadPool runs its jobs
+     */
+    public ServerClientHandler(KVServer kvServer, int connections, ExecutionMode mode) {
+        this(kvServer, connections, ThreadPool.UNBOUNDED, OverloadPolicy.BLOCK, mode);
+    }
+
+    /**
+     * Constructs a ServerClientHandler whose requests run as mode says, at
+     * most capacity of them waiting, or running at once when VIRTUAL; the
+     * rest are turned away as policy says.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param capacity most jobs waiting, or running when VIRTUAL, or
+     *        ThreadPool.UNBOUNDED
+     * @param policy what to do with a request when threadPool is full
+     * @param mode how threadPool runs its jobs
+     */
+    public ServerClientHandler(KVServer kvServer, int connections, int capacity,
+            OverloadPolicy policy, ExecutionMode mode) {
+        this.kvServer = kvServer;
+        this.threadPool = new ThreadPool(connections, capacity, policy, mode);
+    }
+
+    /**
+     * Constructs a ServerClientHandler that runs its jobs on threadPool,
+     * such as a WorkStealingThreadPool.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param threadPool pool to service requests
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool threadPool) {
+        this.kvServer = kvServer;
+        this.threadPool = threadPool;
+    }
     
     /**
      * Stops all thread execution in the current client's ThreadPool.
@@ -51,55 +95,74 @@ public class ServerClientHandler implements NetworkHandler {
     }
 
     /**
-     * Creates a job to service the request for a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * Creates a job to answer the one request on a socket and enqueues that
+     * job in the thread pool. The request is always answered, with an error if
+     * it is shed or cannot be read or carried out, and a persistent connection
+     * is closed after it; SocketServer reads its requests itself and calls
+     * handle(KVMessage, Reply) instead.
      *
      * @param client Socket connected to the client with the request
      */
     @Override
     public void handle(Socket client) {
        /* begin */
-        final Socket final_client = client;
+        RequestJob.submit(threadPool, this, client);
+        /* end */
+    }
+
+    /**
+     * Creates a job to answer a request already read by the SocketServer and
+     * enqueues that job in the thread pool, unless the pool would have to
+     * wait for room. A request taken is always answered, with an error if it
+     * is shed or cannot be carried out; see RequestJob.
+     *
+     * @param request the complete request
+     * @param reply where the answer to request goes
+     * @return false if the pool has no room for the request now
+     */
+    @Override
+    public boolean handle(KVMessage request, NetworkHandler.Reply reply) {
+        return RequestJob.submit(threadPool, this, request, reply);
+    }
+
+    /**
+     * Carries out a single request against the KVServer.
+     *
+     * @param message the request
+     * @return the reply, which carries the error if the request failed
+     */
+    @Override
+    public KVMessage process(KVMessage message) {
+        KVMessage reply = new KVMessage(RESP);
         try {
-            Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    KVMessage message;
-                    KVMessage reply = new KVMessage(RESP);
-                    try {
-                        message = new KVMessage(final_client);
-                        String msg_type = message.getMsgType();
-                        switch(msg_type){
-                            case DEL_REQ:
-                                reply.setMessage(SUCCESS);
-                                kvServer.del(message.getKey());  
-                                break;
-                            case PUT_REQ:
-                                reply.setMessage(SUCCESS);
-                                kvServer.put(message.getKey(), message.getValue());
-                                break;
-                            case GET_REQ:
-                                reply.setKey(message.getKey());
-                                String value = kvServer.get(message.getKey());
-                                reply.setValue(value);
-                                break;
-                            default:
-                                throw new KVException(ERROR_INVALID_FORMAT);
-                        }
-                    } catch (KVException e) {
-                        reply = e.getKVMessage();
-                        
-                    }
-                    try {
-                        reply.sendMessage(final_client);
-                    } catch (KVException e) {
-                        // TODO: ???
-                    }
-                }
-            };
-            threadPool.addJob(runnable);
-        } catch (InterruptedException e) {
-           // TODO: ignore?
+            String msg_type = message.getMsgType();
+            switch(msg_type){
+                case DEL_REQ:
+                    reply.setMessage(SUCCESS);
+                    kvServer.del(message.getKey());  
+                    break;
+                case PUT_REQ:
+                    reply.setMessage(SUCCESS);
+                    kvServer.put(message.getKey(), message.getValue(), message.getTtl());
+                    break;
+                case GET_REQ:
+                    reply.setKey(message.getKey());
+                    String value = kvServer.get(message.getKey());
+                    reply.setValue(value);
+                    break;
+                case SCAN_REQ:
+                    Map<String, String> page = new TreeMap<String, String>();
+                    reply.setToken(kvServer.scan(message.getKey(), message.getToken(),
+                        message.getLimit(), page));
+                    reply.setPairs(page);
+                    reply.setMessage(SUCCESS);
+                    break;
+                default:
+                    throw new KVException(ERROR_INVALID_FORMAT);
+            }
+        } catch (KVException e) {
+            reply = e.getKVMessage();
         }
+        return reply;
     }
 }
@@ -0,0 +1,273 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stores Strings outside the Java heap, memcached style. Direct memory is
+ * taken in slabs of SLAB_SIZE bytes, and each slab is cut into chunks of one
+ * size class; classes grow by a quarter from MIN_CHUNK up to a whole slab.
+ * A value is stored UTF-8 encoded, after a 4-byte length, in the smallest
+ * chunk that holds it, and freed chunks go on a free list for their class,
+ * linked through the chunks themselves. Values too large for a slab get a
+ * direct buffer of their own, released when they are freed. Slabs are
+ * otherwise kept for good once taken.
+ *
+ * A value is known by a handle: a generation, the slab's index and the
+ * chunk's offset packed into a positive long, never 0. The generation
+ * changes each time a chunk is handed out again, so a handle compared
+ * against the one a map or slot holds now tells whether the value is still
+ * the same.
+ *
+ * allocate and free lock the size class; read locks nothing. A read racing
+ * with the free of its chunk may return garbage or null, but never throws,
+ * and it ends with a full fence, so the caller can then check that the
+ * handle is still current and retry if not.
+ */
+class SlabAllocator {
+
+    static final int SLAB_SIZE = 1 << 20;
+    static final long NO_HANDLE = 0;
+
+    private static final int MIN_CHUNK = 32;
+    private static final int HEADER = 4;
+    private static final int OFFSET_BITS = 20;
+    private static final int SLAB_BITS = 20;
+    private static final int GENERATION_BITS = 23;
+    private static final long NONE = -1;
+    private static final int STRIDE = 8;
+    private static final int STRIPES = 16;
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    private static class Slab {
+        final ByteBuffer buffer;
+        /* Size of each chunk, or of the whole buffer for one large value */
+        final int chunkSize;
+        final int sizeClass;
+
+        Slab(int capacity, int chunkSize, int sizeClass) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.chunkSize = chunkSize;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private final int[] chunkSizes;
+    /* Per size class, guarded by locks[c]: first free chunk (as a handle
+       without generation, or NONE), index of the slab being cut up (or -1)
+       and the offset of its next uncut chunk, and the last generation
+       handed out */
+    private final long[] freeLists;
+    private final int[] carving;
+    private final int[] carved;
+    private final int[] generations;
+    private final Object[] locks;
+
+    /* Indexed by slab; replaced, never changed in place, by newSlab */
+    private volatile Slab[] slabs = new Slab[16];
+    private int slabCount;
+    /* Indexes of large-value slabs since freed, for reuse; guarded by this */
+    private int[] spareIndexes = new int[4];
+    private int spareCount;
+    private int largeGeneration;
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    /* Target of the fence ending each read, spread over stripes by thread */
+    private final AtomicLongArray fences = new AtomicLongArray(STRIPES * STRIDE);
+
+    SlabAllocator() {
+        int[] sizes = new int[64];
+        int count = 0;
+        for (int size = MIN_CHUNK; size < SLAB_SIZE; size = (size + size / 4 + 7) & ~7) {
+            sizes[count++] = size;
+        }
+        sizes[count++] = SLAB_SIZE;
+        chunkSizes = Arrays.copyOf(sizes, count);
+        freeLists = new long[count];
+        Arrays.fill(freeLists, NONE);
+        carving = new int[count];
+        Arrays.fill(carving, -1);
+        carved = new int[count];
+        generations = new int[count];
+        locks = new Object[count];
+        for (int c = 0; c < count; c++) {
+            locks[c] = new Object();
+        }
+    }
+
+    /**
+     * Copy value into direct memory.
+     *
+     * @param value String to store
+     * @return handle to pass to read and, once, to free
+     */
+    long allocate(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        int need = HEADER + bytes.length;
+        int sizeClass = sizeClass(need);
+        long location;
+        int generation;
+        if (sizeClass < 0) {
+            synchronized (this) {
+                location = (long) newSlab(new Slab(need, need, -1)) << OFFSET_BITS;
+                generation = largeGeneration = nextGeneration(largeGeneration);
+            }
+        } else {
+            synchronized (locks[sizeClass]) {
+                location = take(sizeClass);
+                generation = generations[sizeClass] = nextGeneration(generations[sizeClass]);
+            }
+        }
+        Slab slab = slabs[slabIndex(location)];
+        int offset = offset(location);
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.putInt(offset, bytes.length);
+        buffer.position(offset + HEADER);
+        buffer.put(bytes);
+        used.addAndGet(slab.chunkSize);
+        return (long) generation << (SLAB_BITS + OFFSET_BITS) | location;
+    }
+
+    /**
+     * The String stored under handle, or null if it is found to be freed.
+     */
+    String read(long handle) {
+        String value = null;
+        Slab[] slabs = this.slabs;
+        int index = slabIndex(handle);
+        Slab slab = index < slabs.length ? slabs[index] : null;
+        if (slab != null) {
+            int offset = offset(handle);
+            int length = slab.buffer.getInt(offset);
+            if (length >= 0 && length <= slab.chunkSize - HEADER) {
+                byte[] bytes = new byte[length];
+                ByteBuffer buffer = slab.buffer.duplicate();
+                buffer.position(offset + HEADER);
+                buffer.get(bytes);
+                value = new String(bytes, UTF8);
+            }
+        }
+        // keeps the reads above from drifting past the caller's check
+        int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+        fences.getAndAdd(stripe * STRIDE, 0);
+        return value;
+    }
+
+    /**
+     * Give back the chunk of a handle from allocate. The handle must not be
+     * freed twice.
+     */
+    void free(long handle) {
+        int index = slabIndex(handle);
+        Slab slab = slabs[index];
+        used.addAndGet(-slab.chunkSize);
+        if (slab.sizeClass < 0) {
+            synchronized (this) {
+                Slab[] copy = slabs.clone();
+                copy[index] = null;
+                slabs = copy;
+                if (spareCount == spareIndexes.length) {
+                    spareIndexes = Arrays.copyOf(spareIndexes, spareCount * 2);
+                }
+                spareIndexes[spareCount++] = index;
+            }
+            reserved.addAndGet(-slab.chunkSize);
+            return;
+        }
+        long location = handle & ((1L << (SLAB_BITS + OFFSET_BITS)) - 1);
+        synchronized (locks[slab.sizeClass]) {
+            slab.buffer.putLong(offset(location), freeLists[slab.sizeClass]);
+            freeLists[slab.sizeClass] = location;
+        }
+    }
+
+    /**
+     * Bytes of direct memory held by the chunk of handle.
+     */
+    int chunkSize(long handle) {
+        return slabs[slabIndex(handle)].chunkSize;
+    }
+
+    /**
+     * @return bytes of direct memory taken for slabs
+     */
+    long getReservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @return bytes of the chunks now holding values
+     */
+    long getUsedBytes() {
+        return used.get();
+    }
+
+    /**
+     * A free chunk of sizeClass, whose lock the caller holds.
+     */
+    private long take(int sizeClass) {
+        long location = freeLists[sizeClass];
+        if (location != NONE) {
+            Slab slab = slabs[slabIndex(location)];
+            freeLists[sizeClass] = slab.buffer.getLong(offset(location));
+            return location;
+        }
+        int chunkSize = chunkSizes[sizeClass];
+        if (carving[sizeClass] < 0 || carved[sizeClass] + chunkSize > SLAB_SIZE) {
+            Slab slab = new Slab(SLAB_SIZE, chunkSize, sizeClass);
+            synchronized (this) {
+                carving[sizeClass] = newSlab(slab);
+            }
+            carved[sizeClass] = 0;
+        }
+        location = (long) carving[sizeClass] << OFFSET_BITS | carved[sizeClass];
+        carved[sizeClass] += chunkSize;
+        return location;
+    }
+
+    /**
+     * Add slab and return its index. Called holding this.
+     */
+    private int newSlab(Slab slab) {
+        int index;
+        if (spareCount > 0) {
+            index = spareIndexes[--spareCount];
+        } else {
+            index = slabCount++;
+            if (index >= 1 << SLAB_BITS) {
+                throw new OutOfMemoryError("Off-heap store is full");
+            }
+        }
+        Slab[] copy = Arrays.copyOf(slabs, index < slabs.length ? slabs.length : slabs.length * 2);
+        copy[index] = slab;
+        slabs = copy;
+        reserved.addAndGet(slab.buffer.capacity());
+        return index;
+    }
+
+    private int sizeClass(int need) {
+        if (need > SLAB_SIZE) {
+            return -1;
+        }
+        int c = Arrays.binarySearch(chunkSizes, need);
+        return c >= 0 ? c : -c - 1;
+    }
+
+    private static int nextGeneration(int generation) {
+        generation = (generation + 1) & ((1 << GENERATION_BITS) - 1);
+        return generation == 0 ? 1 : generation;
+    }
+
+    private static int slabIndex(long handle) {
+        return (int) (handle >>> OFFSET_BITS) & ((1 << SLAB_BITS) - 1);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle & ((1 << OFFSET_BITS) - 1);
+    }
+}
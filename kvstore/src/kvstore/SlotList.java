@@ -0,0 +1,108 @@
+package kvstore;
+
+/**
+ * Circular doubly linked lists of cache slots, threaded through two int
+ * arrays so that moving a slot allocates nothing. A slot is in at most one
+ * list at a time. Shared by the EvictionPolicy implementations.
+ */
+class SlotList {
+
+    private final int[] next;
+    private final int[] prev;
+
+    /* First slot of each list, or -1 if the list is empty */
+    private final int[] head;
+    private final int[] size;
+
+    /**
+     * @param slots number of slots
+     * @param lists number of lists
+     */
+    SlotList(int slots, int lists) {
+        next = new int[slots];
+        prev = new int[slots];
+        head = new int[lists];
+        size = new int[lists];
+        java.util.Arrays.fill(head, -1);
+    }
+
+    int first(int list) {
+        return head[list];
+    }
+
+    int last(int list) {
+        return head[list] < 0 ? -1 : prev[head[list]];
+    }
+
+    /**
+     * The slot after slot in its list; the first one again after the last.
+     */
+    int next(int slot) {
+        return next[slot];
+    }
+
+    int size(int list) {
+        return size[list];
+    }
+
+    void addLast(int list, int slot) {
+        int first = head[list];
+        if (first < 0) {
+            next[slot] = slot;
+            prev[slot] = slot;
+            head[list] = slot;
+        } else {
+            int last = prev[first];
+            next[last] = slot;
+            prev[slot] = last;
+            next[slot] = first;
+            prev[first] = slot;
+        }
+        size[list]++;
+    }
+
+    void remove(int list, int slot) {
+        if (next[slot] == slot) {
+            head[list] = -1;
+        } else {
+            if (head[list] == slot) {
+                head[list] = next[slot];
+            }
+            next[prev[slot]] = next[slot];
+            prev[next[slot]] = prev[slot];
+        }
+        size[list]--;
+    }
+
+    void moveToLast(int list, int slot) {
+        if (head[list] == slot) {
+            // the first of a ring becomes its last by turning the ring
+            rotate(list);
+        } else if (next[slot] != head[list]) {
+            remove(list, slot);
+            addLast(list, slot);
+        }
+    }
+
+    /**
+     * Make the second slot of the list its first, and the first its last.
+     */
+    void rotate(int list) {
+        if (head[list] >= 0) {
+            head[list] = next[head[list]];
+        }
+    }
+
+    /**
+     * The slots of the list, first to last.
+     */
+    int[] toArray(int list) {
+        int[] slots = new int[size[list]];
+        int slot = head[list];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = slot;
+            slot = next[slot];
+        }
+        return slots;
+    }
+}
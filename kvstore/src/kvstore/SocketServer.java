@@ -1,16 +1,45 @@
 package kvstore;
 
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is a generic class that should handle all TCP network connections
  * arriving on a unique (hostname, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a
  * NetworkHandler.
+ *
+ * All sockets are non-blocking and serviced by a single Selector loop in
+ * start(). The loop accepts connections, reads and assembles whole messages,
+ * and only then hands each one to the NetworkHandler, so a slow client never
+ * holds a pool thread. Replies come back through NetworkHandler.Reply and
+ * are written out by the loop as the socket accepts them.
+ *
+ * Framing follows KVConnection: binary and XML frames may follow each other
+ * on a persistent connection, while a bare XML document runs to EOF and gets
+ * a single reply. Requests with a request ID are handed over as soon as they
+ * are complete; a request without one holds back the rest of its connection
+ * until it has been answered, so such requests are answered in order.
+ *
+ * The loop never waits on the handler. A handler with no room for a request
+ * turns it down, and the connection stops being read until the request has
+ * been offered again and taken; connections waiting so take turns in the
+ * order they were turned down.
  */
 public class SocketServer {
 
@@ -18,10 +47,28 @@ public class SocketServer {
     public int port;
     public ServerSocket server;
     public NetworkHandler handler;
-    public boolean stopped = false;
+    public volatile boolean stopped = false;
 
     public static final int TIMEOUT = 100;
 
+    /* Default time an accepted connection may sit idle between requests */
+    public static final int IDLE_TIMEOUT = 30 * 1000;
+
+    /* Time an accepted connection may sit idle, in milliseconds (0 = none) */
+    public int idleTimeout = IDLE_TIMEOUT;
+
+    /* Initial size of a connection's read buffer */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+
+    /* Replies finished by handler threads, waiting for the loop to send them */
+    private final Queue<PendingReply> replies = new ConcurrentLinkedQueue<PendingReply>();
+
+    /* Connections whose next request the handler had no room for, oldest first */
+    private final Queue<Peer> stalled = new ArrayDeque<Peer>();
+
     /**
      * Construct a SocketServer with a ServerSocket listening on a free port.
      */
@@ -66,47 +113,85 @@ public class SocketServer {
      */
     public void connect() throws IOException {
         /* begin */
-        while (server == null) {
-            server = new ServerSocket(port);
-            if (port == 0) {
-                port = server.getLocalPort();
-            }
-            if (!server.isBound()) {
-                server.bind(new InetSocketAddress(hostname, port));
-            }
-            server.setSoTimeout(TIMEOUT);
+        if (serverChannel != null) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        server = serverChannel.socket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        if (port == 0) {
+            port = server.getLocalPort();
         }
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         /* end */
     }
 
     /**
-     * Accept and save requests as jobs to be serviced asynchronously.
+     * Accept connections and service their requests until stop() is called.
      * A call to stop() should result in the closing of the ServerSocket
-     * within TIMEOUT milliseconds.
+     * within TIMEOUT milliseconds. Connections with nothing in progress for
+     * idleTimeout are closed.
      *
      * @throws IOException if there is an unexpected network error while
      *         listening for or servicing requests
      */
     public void start() throws IOException {
      /* begin */
-        while (!stopped) {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (!stopped) {
+                selector.select(TIMEOUT);
+                sendReplies();
+                retryStalled();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            peer.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            peer.read();
+                        }
+                    } catch (IOException e) {
+                        peer.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (idleTimeout > 0 && now - lastIdleCheck >= TIMEOUT) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Peer) {
+                    ((Peer) key.attachment()).close();
+                }
+            }
             try {
-                Socket socket = server.accept();
-                handler.handle(socket);
+                selector.close();
+                serverChannel.close();
             } catch (IOException e) {
                 // TODO: Throw IOException?
+            } finally {
+                if (handler != null) {
+                    handler.stop();
+                }
             }
         }
-        
-        try {
-            server.close();
-        } catch (IOException e) {
-            // TODO: Throw IOException?
-        } finally {
-        	if (handler != null) {
-            	((NetworkHandler) handler).stop();       			
-        	}
-        }
         /* end */
     }
 
@@ -119,4 +204,304 @@ public class SocketServer {
         stopped = true;
     }
 
+    private void accept() {
+        SocketChannel client;
+        try {
+            client = serverChannel.accept();
+        } catch (IOException e) {
+            return;
+        }
+        if (client == null) {
+            return;
+        }
+        try {
+            client.configureBlocking(false);
+            // replies on a persistent connection aren't pushed out by a FIN
+            client.socket().setTcpNoDelay(true);
+            Peer peer = new Peer(client);
+            peer.key = client.register(selector, SelectionKey.OP_READ, peer);
+        } catch (IOException e) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // BEST EFFORT: IGNORE
+            }
+        }
+    }
+
+    /* Move replies finished by handler threads onto their connections. */
+    private void sendReplies() {
+        PendingReply reply;
+        while ((reply = replies.poll()) != null) {
+            Peer peer = reply.peer;
+            if (!peer.key.isValid()) {
+                continue;
+            }
+            peer.inFlight--;
+            if (reply.inOrder) {
+                peer.blocked = false;
+            }
+            if (reply.bytes != null) {
+                peer.output.add(ByteBuffer.wrap(reply.bytes));
+            }
+            try {
+                peer.write();
+                peer.dispatch();
+            } catch (IOException e) {
+                peer.close();
+            }
+        }
+    }
+
+    /* Offer the handler the requests it had no room for, in turn. */
+    private void retryStalled() {
+        Peer peer;
+        while ((peer = stalled.peek()) != null) {
+            if (peer.key.isValid()) {
+                if (!peer.offer()) {
+                    // still no room; the rest wait behind it
+                    return;
+                }
+                peer.stalled = false;
+                try {
+                    peer.write();
+                } catch (IOException e) {
+                    peer.close();
+                }
+            }
+            stalled.poll();
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object peer = key.attachment();
+            if (peer instanceof Peer && ((Peer) peer).isIdleSince(now - idleTimeout)) {
+                ((Peer) peer).close();
+            }
+        }
+    }
+
+    /**
+     * A reply on its way from a handler thread back to the loop.
+     */
+    private class PendingReply implements NetworkHandler.Reply {
+
+        final Peer peer;
+        final KVMessage request;
+        final boolean framed;
+        final boolean inOrder;
+        volatile byte[] bytes;
+
+        PendingReply(Peer peer, KVMessage request, boolean framed) {
+            this.peer = peer;
+            this.request = request;
+            this.framed = framed;
+            this.inOrder = request.getRequestId() == KVMessage.NO_REQUEST_ID;
+        }
+
+        @Override
+        public void send(KVMessage response) {
+            response.setRequestId(request.getRequestId());
+            WireFormat format = request.getWireFormat();
+            try {
+                bytes = framed ? response.toFrame(format) : response.toBytes(format);
+            } catch (KVException e) {
+                // nothing can be sent; count the request as done regardless
+                bytes = null;
+            }
+            replies.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The state of one accepted connection. Only touched by the loop thread.
+     */
+    private class Peer {
+
+        final SocketChannel channel;
+        SelectionKey key;
+
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Queue<KVMessage> requests = new ArrayDeque<KVMessage>();
+        final Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+        /* The current message is a bare XML document, read up to EOF */
+        boolean bare;
+        /* No more requests will be read */
+        boolean finished;
+        /* A request without an ID is being answered */
+        boolean blocked;
+        /* Waiting in stalled for the handler to take its next request */
+        boolean stalled;
+        /* Error reply to send once everything read before it is answered */
+        byte[] error;
+        int inFlight;
+        long lastActive = System.currentTimeMillis();
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(input);
+            lastActive = System.currentTimeMillis();
+            if (n == -1) {
+                finished = true;
+            }
+            try {
+                assemble(n == -1);
+            } catch (KVException e) {
+                // the stream can no longer be trusted to be at a message
+                // boundary; answer what came before, then the error
+                finished = true;
+                WireFormat format = (input.get(0) & 0xFF) == KVBinaryCodec.MAGIC
+                    ? WireFormat.BINARY : WireFormat.XML;
+                try {
+                    error = bare
+                        ? e.getKVMessage().toBytes(format)
+                        : e.getKVMessage().toFrame(format);
+                } catch (KVException unsendable) {
+                    error = null;
+                }
+            }
+            dispatch();
+            write();
+        }
+
+        /*
+         * Turn whatever complete messages the read buffer holds into requests.
+         * The buffer is in write mode (position = bytes held) on entry and exit.
+         */
+        void assemble(boolean eof) throws KVException {
+            input.flip();
+            try {
+                while (input.hasRemaining()) {
+                    int first = input.get(input.position()) & 0xFF;
+                    bare = (first != KVBinaryCodec.MAGIC && first != KVBinaryCodec.XML_MAGIC);
+                    int length = bare ? (eof ? input.remaining() : 0) : frameLength();
+                    if (length == 0) {
+                        break;
+                    }
+                    byte[] message = new byte[length];
+                    input.get(message);
+                    requests.add(new KVMessage(new ByteArrayInputStream(message)));
+                }
+            } finally {
+                input.compact();
+            }
+            if (!input.hasRemaining()) {
+                grow();
+            }
+            if (eof && input.position() > 0) {
+                // a frame cut short by EOF
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+        }
+
+        /* Length of the frame at the buffer's position, or 0 if incomplete. */
+        int frameLength() throws KVException {
+            int pos = input.position() + 1;
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= input.limit()) {
+                    return 0;
+                }
+                if (shift > 28) {
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                }
+                int b = input.get(pos++) & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length < 0 || length > KVBinaryCodec.MAX_FRAME_LENGTH) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            int total = pos - input.position() + length;
+            return (total <= input.remaining()) ? total : 0;
+        }
+
+        void grow() throws KVException {
+            if (input.capacity() > KVBinaryCodec.MAX_FRAME_LENGTH) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+
+        /* Hand queued requests to the handler, unless waiting for a turn. */
+        void dispatch() {
+            if (!stalled && !offer()) {
+                stalled = true;
+                SocketServer.this.stalled.add(this);
+            }
+        }
+
+        /*
+         * Hand queued requests to the handler, stopping at one without an ID.
+         * Returns false if the handler had no room for the next one.
+         */
+        boolean offer() {
+            while (!blocked && !requests.isEmpty()) {
+                KVMessage request = requests.peek();
+                // only the last message before EOF can be a bare document
+                boolean framed = !(bare && finished && requests.size() == 1);
+                PendingReply reply = new PendingReply(this, request, framed);
+                if (!handler.handle(request, reply)) {
+                    return false;
+                }
+                requests.poll();
+                inFlight++;
+                blocked = reply.inOrder;
+            }
+            return true;
+        }
+
+        void write() throws IOException {
+            if (error != null && inFlight == 0 && requests.isEmpty()) {
+                output.add(ByteBuffer.wrap(error));
+                error = null;
+            }
+            while (!output.isEmpty()) {
+                ByteBuffer head = output.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                output.poll();
+            }
+            lastActive = System.currentTimeMillis();
+            if (finished && inFlight == 0 && requests.isEmpty() && output.isEmpty()) {
+                close();
+                return;
+            }
+            int ops = (finished || stalled ? 0 : SelectionKey.OP_READ)
+                | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        boolean isIdleSince(long time) {
+            return inFlight == 0 && requests.isEmpty() && output.isEmpty()
+                && error == null && lastActive < time;
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // BEST EFFORT: IGNORE
+            }
+        }
+    }
+
 }
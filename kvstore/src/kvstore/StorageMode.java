@@ -0,0 +1,17 @@
+package kvstore;
+
+/**
+ * Where a KVStore or KVCache keeps its values. HEAP keeps them as Strings,
+ * as always. OFF_HEAP copies each value, UTF-8 encoded, into slabs of direct
+ * memory handed out by a SlabAllocator and keeps only a long handle to it on
+ * the heap, so that a large store adds little to what the garbage collector
+ * has to trace; values are decoded again on every read. Direct memory is
+ * capped by -XX:MaxDirectMemorySize, which defaults to the heap limit.
+ * ORDERED keeps them as Strings too, in a KVStore sorted by key so that it
+ * can be scanned; a KVCache treats it as HEAP.
+ */
+public enum StorageMode {
+    HEAP,
+    OFF_HEAP,
+    ORDERED
+}
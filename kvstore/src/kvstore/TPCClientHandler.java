@@ -2,15 +2,13 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements NetworkHandler, KVConnection.RequestProcessor {
 
     public TPCMaster tpcMaster;
     public ThreadPool threadPool;
@@ -35,6 +33,49 @@ public class TPCClientHandler implements NetworkHandler {
         this.tpcMaster = tpcMaster;
         this.threadPool = new ThreadPool(connections);
     }
+
+    /**
+     * Constructs a TPCClientHandler whose requests run as mode says. With
+     * ExecutionMode.VIRTUAL the retry sleeps in TPCMaster.handleTPCRequest
+     * park a virtual thread instead of holding a pool thread.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param mode how threadPool runs its jobs
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, int connections, ExecutionMode mode) {
+        this(tpcMaster, connections, ThreadPool.UNBOUNDED, OverloadPolicy.BLOCK, mode);
+    }
+
+    /**
+     * Constructs a TPCClientHandler whose requests run as mode says, at most
+     * capacity of them waiting, or running at once when VIRTUAL; the rest
+     * are turned away as policy says.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param capacity most jobs waiting, or running when VIRTUAL, or
+     *        ThreadPool.UNBOUNDED
+     * @param policy what to do with a request when threadPool is full
+     * @param mode how threadPool runs its jobs
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, int connections, int capacity,
+            OverloadPolicy policy, ExecutionMode mode) {
+        this.tpcMaster = tpcMaster;
+        this.threadPool = new ThreadPool(connections, capacity, policy, mode);
+    }
+
+    /**
+     * Constructs a TPCClientHandler that runs its jobs on threadPool, such as
+     * a WorkStealingThreadPool.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param threadPool pool to service requests
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, ThreadPool threadPool) {
+        this.tpcMaster = tpcMaster;
+        this.threadPool = threadPool;
+    }
     
     /**
      * Stops all thread execution in the current client's ThreadPool.
@@ -44,60 +85,72 @@ public class TPCClientHandler implements NetworkHandler {
     }
 
     /**
-     * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore InterruptedExceptions.
+     * Creates a job to answer the one request on a socket and enqueues that
+     * job in the thread pool. The request is always answered, with an error if
+     * it is shed or cannot be read or carried out, and a persistent connection
+     * is closed after it; SocketServer reads its requests itself and calls
+     * handle(KVMessage, Reply) instead.
      *
      * @param client Socket connected to the client with the request
      */
     @Override
     public void handle(Socket client) {
-        final Socket final_client = client;
+        RequestJob.submit(threadPool, this, client);
+    }
+
+    /**
+     * Creates a job to answer a request already read by the SocketServer and
+     * enqueues that job in the thread pool, unless the pool would have to
+     * wait for room. A request taken is always answered, with an error if it
+     * is shed or cannot be carried out; see RequestJob.
+     *
+     * @param request the complete request
+     * @param reply where the answer to request goes
+     * @return false if the pool has no room for the request now
+     */
+    @Override
+    public boolean handle(KVMessage request, NetworkHandler.Reply reply) {
+        return RequestJob.submit(threadPool, this, request, reply);
+    }
+
+    /**
+     * Carries out a single request through the TPCMaster.
+     *
+     * @param message the request
+     * @return the reply, which carries the error if the request failed
+     */
+    @Override
+    public KVMessage process(KVMessage message) {
+        KVMessage reply = new KVMessage(RESP);
         try {
-            Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    KVMessage message;
-                    KVMessage reply = new KVMessage(RESP);
-                    try {
-                        message = new KVMessage(final_client);
-                        String msg_type = message.getMsgType();
-                        switch(msg_type){
-                            case DEL_REQ:
-                                reply.setMessage(SUCCESS);
-                                tpcMaster.handleTPCRequest(message, false);  
-                                break;
-                            case PUT_REQ:
-                                reply.setMessage(SUCCESS);
-                                tpcMaster.handleTPCRequest(message, true);
-                                break;
-                            case GET_REQ:
-                                reply.setKey(message.getKey());
-                                String value = tpcMaster.handleGet(message);
-                                if (value == null) {
-                                	reply.setMessage(ERROR_NO_SUCH_KEY);
-                                } else {
-                                    reply.setValue(value);
+            String msg_type = message.getMsgType();
+            switch(msg_type){
+                case DEL_REQ:
+                    reply.setMessage(SUCCESS);
+                    tpcMaster.handleTPCRequest(message, false);  
+                    break;
+                case PUT_REQ:
+                    reply.setMessage(SUCCESS);
+                    tpcMaster.handleTPCRequest(message, true);
+                    break;
+                case GET_REQ:
+                    reply.setKey(message.getKey());
+                    String value = tpcMaster.handleGet(message);
+                    if (value == null) {
+                    	reply.setMessage(ERROR_NO_SUCH_KEY);
+                    } else {
+                        reply.setValue(value);
 
-                                }
-                                
-                                break;
-                            default:
-                                throw new KVException(ERROR_INVALID_FORMAT);
-                        }
-                    } catch (KVException e) {
-                        reply = e.getKVMessage();
-                    }
-                    try {
-                        reply.sendMessage(final_client);
-                    } catch (KVException e) {
-                        // TODO: ???
                     }
-                }
-            };
-            threadPool.addJob(runnable);
-        } catch (InterruptedException e) {
-           // TODO: ignore?
+                    
+                    break;
+                default:
+                    throw new KVException(ERROR_INVALID_FORMAT);
+            }
+        } catch (KVException e) {
+            reply = e.getKVMessage();
         }
+        return reply;
     }
     
     // implement me
@@ -104,7 +104,9 @@ public class TPCLog {
 
     /**
      * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * need to restore the previous cache state (i.e. ignore GETS). A KVServer
+     * whose store is kept on disk already holds the result; replaying every
+     * committed put and del in order over it ends in the same state.
      *
      * @throws KVException if an error occurs in KVServer (though we expect none)
      */
@@ -120,7 +122,7 @@ public class TPCLog {
             switch (msgtype) {
 	        	case PUT_REQ:
 	        		if (i + 1 < size && entries.get(i + 1).getMsgType().equals(COMMIT)) {
-	        			this.kvServer.put(entries.get(i).getKey(), entries.get(i).getValue());
+	        			replayPut(message, entries.get(i + 1).getExpiresAt());
 	        			i++;
 	        		}
 	        		i++;
@@ -140,4 +142,19 @@ public class TPCLog {
 
     }
 
+    /**
+     * Redo a committed put, unless its key expired while the server was
+     * down. Such a put still replaced whatever the key held before.
+     */
+    private void replayPut(KVMessage put, long expiresAt) throws KVException {
+        String key = put.getKey();
+        if (expiresAt != KVMessage.NO_TTL && expiresAt <= System.currentTimeMillis()) {
+            if (kvServer.hasKey(key)) {
+                kvServer.del(key);
+            }
+            return;
+        }
+        kvServer.putUntil(key, put.getValue(), expiresAt);
+    }
+
 }
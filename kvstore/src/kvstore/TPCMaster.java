@@ -23,6 +23,9 @@ public class TPCMaster {
     public Lock slaveLock;
     public int registeredSlaves;
 
+    /* Format used for requests to slaves; slaves reply in the same format */
+    public WireFormat wireFormat = WireFormat.XML;
+
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
      *
@@ -250,7 +253,7 @@ public class TPCMaster {
             KVMessage reply;
             KVMessage msgCopy = new KVMessage(msg);
             Socket socket = slaveInfo.connectHost(TIMEOUT);
-            msgCopy.sendMessage(socket);
+            msgCopy.sendMessage(socket, wireFormat);
             try {                
                 reply = new KVMessage(socket, TIMEOUT);
                 if (reply.getMsgType().equals(ABORT)) {
@@ -275,7 +278,7 @@ public class TPCMaster {
                     //System.out.println(Long.toString(firstReplica.getSlaveID()) + "@" + firstReplica.getHostname() + ":" + Integer.toString(firstReplica.getPort()));
                     KVMessage abortMsg = new KVMessage(ABORT);
                     socket = firstReplica.connectHost(TIMEOUT);
-                    abortMsg.sendMessage(socket);
+                    abortMsg.sendMessage(socket, wireFormat);
                     KVMessage reply = new KVMessage(socket, TIMEOUT);
                     if (!reply.getMsgType().equals(ACK)) {
                         throw new KVException(ERROR_INVALID_FORMAT);
@@ -298,7 +301,7 @@ public class TPCMaster {
                     successor = findSuccessor(firstReplica);
                     KVMessage abortMsg2 = new KVMessage(ABORT);
                     socket2 = successor.connectHost(TIMEOUT);
-                    abortMsg2.sendMessage(socket2);
+                    abortMsg2.sendMessage(socket2, wireFormat);
                     KVMessage reply2 = new KVMessage(socket2, TIMEOUT);
                     if (!reply2.getMsgType().equals(ACK)) {
                         throw new KVException(ERROR_INVALID_FORMAT);
@@ -327,7 +330,7 @@ public class TPCMaster {
                     firstReplica = findFirstReplica(msg.getKey());
                     KVMessage abortMsg = new KVMessage(COMMIT);
                     socket = firstReplica.connectHost(TIMEOUT);
-                    abortMsg.sendMessage(socket);
+                    abortMsg.sendMessage(socket, wireFormat);
                     KVMessage reply = new KVMessage(socket, TIMEOUT);
                     if (!reply.getMsgType().equals(ACK)) {
                         throw new KVException(ERROR_INVALID_FORMAT);
@@ -350,7 +353,7 @@ public class TPCMaster {
                     successor = findSuccessor(firstReplica);
                     KVMessage abortMsg2 = new KVMessage(COMMIT);
                     socket2 = successor.connectHost(TIMEOUT);
-                    abortMsg2.sendMessage(socket2);
+                    abortMsg2.sendMessage(socket2, wireFormat);
                     KVMessage reply2 = new KVMessage(socket2, TIMEOUT);
                     if (!reply2.getMsgType().equals(ACK)) {
                         throw new KVException(ERROR_INVALID_FORMAT);
@@ -370,10 +373,17 @@ public class TPCMaster {
                 }
             }
             
-            if (isPutReq) {
-                masterCache.put(msg.getKey(), msg.getValue());
-            } else {
-                masterCache.del(msg.getKey());
+            Lock cacheLock = masterCache.getLock(msg.getKey());
+            cacheLock.lock();
+            try {
+                if (isPutReq) {
+                    masterCache.put(msg.getKey(), msg.getValue(),
+                        KVStore.expiresAt(msg.getTtl()));
+                } else {
+                    masterCache.del(msg.getKey());
+                }
+            } finally {
+                cacheLock.unlock();
             }
         }
         
@@ -411,8 +421,18 @@ public class TPCMaster {
             }
         }
                 
-        if (masterCache.get(msg.getKey()) != null) {
-            return masterCache.get(msg.getKey());
+        String cached = masterCache.tryGet(msg.getKey());
+        if (cached == null) {
+            Lock cacheLock = masterCache.getLock(msg.getKey());
+            cacheLock.lock();
+            try {
+                cached = masterCache.get(msg.getKey());
+            } finally {
+                cacheLock.unlock();
+            }
+        }
+        if (cached != null) {
+            return cached;
         }
                 
         TPCSlaveInfo slaveInfo = findFirstReplica(msg.getKey());
@@ -424,14 +444,14 @@ public class TPCMaster {
             socket = slaveInfo.connectHost(TIMEOUT);
             message = new KVMessage(GET_REQ);
             message.setKey(msg.getKey());
-            message.sendMessage(socket);
+            message.sendMessage(socket, wireFormat);
             
             reply = new KVMessage(socket, TIMEOUT);
             
             if (reply != null) {
                 String value = reply.getValue();
                 socket.close();
-                masterCache.put(msg.getKey(), value);
+                cachePut(msg.getKey(), value, reply.getTtl());
                 return value;
             }
             
@@ -456,14 +476,14 @@ public class TPCMaster {
             socket2 = slaveInfo2.connectHost(TIMEOUT);
             message2 = new KVMessage(GET_REQ);
             message2.setKey(msg.getKey());
-            message2.sendMessage(socket2);
+            message2.sendMessage(socket2, wireFormat);
             
             reply2 = new KVMessage(socket2, TIMEOUT);
             
             if (reply2 != null) {
                 String value2 = reply2.getValue();
                 socket2.close();
-                masterCache.put(msg.getKey(), value2);
+                cachePut(msg.getKey(), value2, reply2.getTtl());
                 return value2;
             }
             
@@ -482,4 +502,27 @@ public class TPCMaster {
         throw new KVException(ERROR_NO_SUCH_KEY);
     }
 
+    /**
+     * Put a value fetched from a slave in the master cache, under the lock
+     * of its set. A slave that does not have the key replies with no value,
+     * which is not cached. The master cache only expires entries lazily, so
+     * the value is cached for as long as the slave says it has left.
+     *
+     * @param key the key fetched
+     * @param value its value, or null
+     * @param ttl time the slave gave the key left to live, or NO_TTL
+     */
+    private void cachePut(String key, String value, long ttl) {
+        if (value == null) {
+            return;
+        }
+        Lock cacheLock = masterCache.getLock(key);
+        cacheLock.lock();
+        try {
+            masterCache.put(key, value, KVStore.expiresAt(ttl));
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
 }
@@ -9,13 +9,16 @@ import java.net.UnknownHostException;
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements NetworkHandler, KVConnection.RequestProcessor {
 
     public long slaveID;
     public KVServer kvServer;
     public TPCLog tpcLog;
     public ThreadPool threadpool;
 
+    /* Format used when registering with the master */
+    public WireFormat wireFormat = WireFormat.XML;
+
     // implement me
 
     /**
@@ -44,6 +47,61 @@ public class TPCMasterHandler implements NetworkHandler {
         this.tpcLog = log;
         this.threadpool = new ThreadPool(connections);
     }
+
+    /**
+     * Constructs a TPCMasterHandler whose requests run as mode says.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param connections the number of connections in this slave's ThreadPool
+     *        when pooled
+     * @param mode how the ThreadPool runs its jobs
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections,
+            ExecutionMode mode) {
+        this(slaveID, kvServer, log, connections, ThreadPool.UNBOUNDED, OverloadPolicy.BLOCK,
+            mode);
+    }
+
+    /**
+     * Constructs a TPCMasterHandler whose requests run as mode says, at most
+     * capacity of them waiting, or running at once when VIRTUAL; the rest
+     * are turned away as policy says.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param connections the number of connections in this slave's ThreadPool
+     *        when pooled
+     * @param capacity most jobs waiting, or running when VIRTUAL, or
+     *        ThreadPool.UNBOUNDED
+     * @param policy what to do with a request when the ThreadPool is full
+     * @param mode how the ThreadPool runs its jobs
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections,
+            int capacity, OverloadPolicy policy, ExecutionMode mode) {
+        this.slaveID = slaveID;
+        this.kvServer = kvServer;
+        this.tpcLog = log;
+        this.threadpool = new ThreadPool(connections, capacity, policy, mode);
+    }
+
+    /**
+     * Constructs a TPCMasterHandler that runs its jobs on threadpool, such as
+     * a WorkStealingThreadPool.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param threadpool pool to service requests
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, ThreadPool threadpool) {
+        this.slaveID = slaveID;
+        this.kvServer = kvServer;
+        this.tpcLog = log;
+        this.threadpool = threadpool;
+    }
     
     /**
      * Stops all thread execution in the current client's ThreadPool.
@@ -83,7 +141,7 @@ public class TPCMasterHandler implements NetworkHandler {
             KVMessage reply;
             
             request.setMessage(slaveInfo);
-            request.sendMessage(socket);
+            request.sendMessage(socket, wireFormat);
             
             reply = new KVMessage(socket);
             
@@ -104,119 +162,139 @@ public class TPCMasterHandler implements NetworkHandler {
     }
 
     /**
-     * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * Creates a job to answer the one request on a socket and enqueues that
+     * job in the thread pool. The request is always answered, with an error if
+     * it is shed or cannot be read or carried out, and a persistent connection
+     * is closed after it; SocketServer reads its requests itself and calls
+     * handle(KVMessage, Reply) instead.
      *
      * @param master Socket connected to the master with the request
      */
     @Override
     public void handle(Socket master) {
-        // implement me
-        final Socket finalMaster = master;
+        RequestJob.submit(threadpool, this, master);
+    }
+
+    /**
+     * Creates a job to answer a request already read by the SocketServer and
+     * enqueues that job in the thread pool, unless the pool would have to
+     * wait for room. A request taken is always answered, with an error if it
+     * is shed or cannot be carried out; see RequestJob.
+     *
+     * @param request the complete request
+     * @param reply where the answer to request goes
+     * @return false if the pool has no room for the request now
+     */
+    @Override
+    public boolean handle(KVMessage request, NetworkHandler.Reply reply) {
+        return RequestJob.submit(threadpool, this, request, reply);
+    }
+
+    /**
+     * Carries out one phase of a 2PC operation, or a get, on this slave.
+     *
+     * @param message the request from the master
+     * @return the vote, ack or response to send back
+     */
+    @Override
+    public KVMessage process(KVMessage message) {
+        KVMessage reply = new KVMessage(RESP);
+        String key;
+        String value;
         try {
-            Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    KVMessage message;
-                    KVMessage reply = new KVMessage(RESP);
-                    String key;
-                    String value;
-                    try {
-                        message = new KVMessage(finalMaster);
-                        String type = message.getMsgType();
-                        switch (type) {
-                            case GET_REQ:
-                                key = message.getKey();
-                                value = kvServer.get(key);
-                                if (value == null) {
-                                    throw new KVException(ERROR_NO_SUCH_KEY);
-                                } else {
-                                	reply.setKey(key);
-                                    reply.setValue(value);
-                                }
-                                break;
-                            case PUT_REQ:
-                            	//check valid params and prepare votes
-                            	key = message.getKey();
-                                value = message.getValue();
-								if (key == null) {
-								    reply = new KVMessage(ABORT, ERROR_INVALID_KEY);
-								}
-								else if (value == null) {
-								    reply = new KVMessage(ABORT, ERROR_INVALID_VALUE);
-								}
-								else if (key.length() > 256) {
-								    reply = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
-								}
-								else if(value.length() > 256*1024) {
-								    reply = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
-								}
-								else {
-								    reply = new KVMessage(READY);
-								}
-								
-								//log
-								tpcLog.appendAndFlush(message);
-								break;
-                            case DEL_REQ:
-								//check valid and prepare votes
-								key = message.getKey();
-								if (key == null) {
-								    reply = new KVMessage(ABORT, ERROR_INVALID_KEY);
-								}
-								else if (!kvServer.hasKey(key)) {
-								    reply = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
-								}
-								else {
-								    reply = new KVMessage(READY);
-								}
-								//log
-								tpcLog.appendAndFlush(message);
-								break;
-                            case COMMIT:
-                                
-								//execute last action 
-								KVMessage lastAct = tpcLog.getLastEntry();
-								
-								//log
-                                tpcLog.appendAndFlush(message);
-								switch (lastAct.getMsgType()) {
-									case PUT_REQ:
-										kvServer.put(lastAct.getKey(), lastAct.getValue());
-										break;
-									case DEL_REQ:
-										kvServer.del(lastAct.getKey());
-										break;
-									default:
-										break;
-								}
-								
-								//prepare ack
-								reply = new KVMessage(ACK);
-								break;
-                            case ABORT:
-                            	//log abort
-                            	tpcLog.appendAndFlush(message);
-                            	//prepare ack
-                            	reply = new KVMessage(ACK);
-                            	break;
-                            default:
-                                throw new KVException(ERROR_INVALID_FORMAT);
-                        }
-                    } catch (KVException e) {
-                        reply = e.getKVMessage();
+            String type = message.getMsgType();
+            switch (type) {
+                case GET_REQ:
+                    key = message.getKey();
+                    value = kvServer.get(key);
+                    if (value == null) {
+                        throw new KVException(ERROR_NO_SUCH_KEY);
+                    } else {
+                    	reply.setKey(key);
+                        reply.setValue(value);
+                        // lets the master cache the value no longer than it lives
+                        reply.setTtl(kvServer.getTtl(key));
                     }
+                    break;
+                case PUT_REQ:
+                	//check valid params and prepare votes
+                	key = message.getKey();
+                    value = message.getValue();
+					if (key == null) {
+					    reply = new KVMessage(ABORT, ERROR_INVALID_KEY);
+					}
+					else if (value == null) {
+					    reply = new KVMessage(ABORT, ERROR_INVALID_VALUE);
+					}
+					else if (key.length() > 256) {
+					    reply = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
+					}
+					else if(value.length() > 256*1024) {
+					    reply = new KVMessage(ABORT, ERROR_OVERSIZED_KEY);
+					}
+					else if (message.getTtl() < 0) {
+					    reply = new KVMessage(ABORT, ERROR_INVALID_TTL);
+					}
+					else {
+					    reply = new KVMessage(READY);
+					}
+					
+					//log
+					tpcLog.appendAndFlush(message);
+					break;
+                case DEL_REQ:
+					//check valid and prepare votes
+					key = message.getKey();
+					if (key == null) {
+					    reply = new KVMessage(ABORT, ERROR_INVALID_KEY);
+					}
+					else if (!kvServer.hasKey(key)) {
+					    reply = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
+					}
+					else {
+					    reply = new KVMessage(READY);
+					}
+					//log
+					tpcLog.appendAndFlush(message);
+					break;
+                case COMMIT:
                     
-                    try {
-                        reply.sendMessage(finalMaster);
-                    } catch (KVException e) {
-                        //TODO: ignore?
-                    }
-                }
-            };
-            threadpool.addJob(runnable);
-        } catch (InterruptedException e) {
-            //TODO: ignore??
+					//execute last action 
+					KVMessage lastAct = tpcLog.getLastEntry();
+					if (lastAct.getMsgType().equals(PUT_REQ)) {
+					    // so that a replay expires the key when this put does
+					    message.setExpiresAt(KVStore.expiresAt(lastAct.getTtl()));
+					}
+					
+					//log
+                    tpcLog.appendAndFlush(message);
+					switch (lastAct.getMsgType()) {
+						case PUT_REQ:
+							kvServer.putUntil(lastAct.getKey(), lastAct.getValue(),
+							    message.getExpiresAt());
+							break;
+						case DEL_REQ:
+							kvServer.del(lastAct.getKey());
+							break;
+						default:
+							break;
+					}
+					
+					//prepare ack
+					reply = new KVMessage(ACK);
+					break;
+                case ABORT:
+                	//log abort
+                	tpcLog.appendAndFlush(message);
+                	//prepare ack
+                	reply = new KVMessage(ACK);
+                	break;
+                default:
+                    throw new KVException(ERROR_INVALID_FORMAT);
+            }
+        } catch (KVException e) {
+            reply = e.getKVMessage();
         }
+        return reply;
     }
 }
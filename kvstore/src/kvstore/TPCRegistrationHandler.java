@@ -2,14 +2,13 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
 import java.net.Socket;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class TPCRegistrationHandler implements NetworkHandler {
+public class TPCRegistrationHandler implements NetworkHandler, KVConnection.RequestProcessor {
 
     private ThreadPool threadpool;
     private TPCMaster master;
@@ -34,6 +33,47 @@ public class TPCRegistrationHandler implements NetworkHandler {
         this.threadpool = new ThreadPool(connections);
         this.master = master;
     }
+
+    /**
+     * Constructs a TPCRegistrationHandler whose requests run as mode says.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param mode how threadPool runs its jobs
+     */
+    public TPCRegistrationHandler(TPCMaster master, int connections, ExecutionMode mode) {
+        this(master, connections, ThreadPool.UNBOUNDED, OverloadPolicy.BLOCK, mode);
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler whose requests run as mode says, at
+     * most capacity of them waiting, or running at once when VIRTUAL; the
+     * rest are turned away as policy says.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param connections number of threads in threadPool when pooled
+     * @param capacity most jobs waiting, or running when VIRTUAL, or
+     *        ThreadPool.UNBOUNDED
+     * @param policy what to do with a request when threadPool is full
+     * @param mode how threadPool runs its jobs
+     */
+    public TPCRegistrationHandler(TPCMaster master, int connections, int capacity,
+            OverloadPolicy policy, ExecutionMode mode) {
+        this.threadpool = new ThreadPool(connections, capacity, policy, mode);
+        this.master = master;
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler that runs its jobs on threadpool,
+     * such as a WorkStealingThreadPool.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param threadpool pool to service requests
+     */
+    public TPCRegistrationHandler(TPCMaster master, ThreadPool threadpool) {
+        this.threadpool = threadpool;
+        this.master = master;
+    }
     
     /**
      * Stops all thread execution in the current client's ThreadPool.
@@ -43,50 +83,52 @@ public class TPCRegistrationHandler implements NetworkHandler {
     }
 
     /**
-     * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * Creates a job to answer the one request on a socket and enqueues that
+     * job in the thread pool. The request is always answered, with an error if
+     * it is shed or cannot be read or carried out, and a persistent connection
+     * is closed after it; SocketServer reads its requests itself and calls
+     * handle(KVMessage, Reply) instead.
      *
      * @param slave Socket connected to the slave with the request
      */
     @Override
     public void handle(Socket slave) {
-        final Socket final_slave = slave;
-        
-        try {
-            Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    KVMessage message = null;
-                    KVMessage reply = new KVMessage(RESP);
-                    
-                    try {
-                        message = new KVMessage(final_slave);
-                    } catch (KVException e) {
-                        reply = e.getKVMessage();
-                    }
-                    
-                    if(message.getMsgType().equals(REGISTER)) {
-                        try {
-                            master.registerSlave(new TPCSlaveInfo(message.getMessage()));
-                            reply.setMessage("Successfully registered "+ message.getMessage());  
-                        } catch (KVException e) {
-                            reply = e.getKVMessage();
-                        }
-                    }
-                    
-                    try {
-                        reply.sendMessage(final_slave);
-                    } catch (KVException e) {
-                        //TODO: ignore?
-                    }
-                }
-            };
-            
-            threadpool.addJob(runnable);
-            
-        } catch (InterruptedException e) {
-         // TODO: ignore?
+        RequestJob.submit(threadpool, this, slave);
+    }
+
+    /**
+     * Creates a job to answer a request already read by the SocketServer and
+     * enqueues that job in the thread pool, unless the pool would have to
+     * wait for room. A request taken is always answered, with an error if it
+     * is shed or cannot be carried out; see RequestJob.
+     *
+     * @param request the complete request
+     * @param reply where the answer to request goes
+     * @return false if the pool has no room for the request now
+     */
+    @Override
+    public boolean handle(KVMessage request, NetworkHandler.Reply reply) {
+        return RequestJob.submit(threadpool, this, request, reply);
+    }
+
+    /**
+     * Registers the slave described by a REGISTER request with the master.
+     *
+     * @param message the request
+     * @return the reply, which carries the error if registration failed
+     */
+    @Override
+    public KVMessage process(KVMessage message) {
+        KVMessage reply = new KVMessage(RESP);
+        if(message.getMsgType().equals(REGISTER)) {
+            try {
+                master.registerSlave(new TPCSlaveInfo(message.getMessage()));
+                reply.setMessage("Successfully registered "+ message.getMessage());  
+            } catch (KVException e) {
+                reply = e.getKVMessage();
+            }
         }
+        return reply;
     }
 
 }
@@ -1,32 +1,182 @@
 package kvstore;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class ThreadPool {
 
-    /* Array of threads in the threadpool */
+    /* Array of threads in the threadpool; the first minThreads of them */
     public Thread threads[];
     volatile boolean started;
     Queue<Runnable> jobQueue;
 
+    /* After stop, whether workers run what is queued before they exit */
+    volatile boolean draining;
+
+    /* Threads kept even when idle, and the most there may be */
+    int minThreads;
+    int maxThreads;
+
+    /* How long a thread beyond minThreads may idle before it exits, in ns */
+    long keepAlive;
+
+    /* How long, in ms, a job may wait before an elastic pool adds a thread */
+    public volatile long growAfter = GROW_AFTER;
+
+    /* Worker threads running now, and the threads themselves */
+    AtomicInteger live;
+    Set<Thread> workers;
+
+    /* Threads parked in getJob, oldest first; may hold cancelled entries */
+    Queue<Waiter> idle;
+
+    /* Starts one virtual thread per job; null if this pool uses workers */
+    ThreadFactory virtualThreads;
+
+    /* One permit per free place in a bounded queue, or in VIRTUAL mode per
+       job that may run at once; null if unbounded */
+    Semaphore slots;
+    OverloadPolicy policy;
+
+    /* Sheds jobs that waited in the queue too long; null if off */
+    volatile CoDel codel;
+
+    /* Capacity of a ThreadPool whose queue has no bound */
+    public static final int UNBOUNDED = 0;
+
+    /* Default growAfter */
+    public static final long GROW_AFTER = 1;
+
+    /* Times getJob yields and looks again before parking */
+    static final int SPINS = 4;
+
+    /* Virtual thread factory of this JVM, or null if it has none */
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
     /**
      * Constructs a Threadpool with a certain number of threads.
      *
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
-        threads = new Thread[size];
+        this(size, UNBOUNDED, OverloadPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a ThreadPool whose queue holds at most capacity jobs that no
+     * thread has taken yet. What addJob does with a job that finds the queue
+     * full is up to policy.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity most jobs waiting in the queue, or UNBOUNDED
+     * @param policy what to do with a job when the queue is full
+     */
+    public ThreadPool(int size, int capacity, OverloadPolicy policy) {
+        this(size, size, 0, capacity, policy);
+    }
+
+    /**
+     * Constructs an elastic ThreadPool. It starts minThreads threads and adds
+     * more, up to maxThreads, while jobs wait in the queue longer than
+     * growAfter milliseconds; it notices such waits as jobs come and go. A
+     * thread beyond minThreads that finds nothing to do for keepAliveMillis
+     * exits.
+     *
+     * @param minThreads number of threads always in the thread pool
+     * @param maxThreads most threads in the thread pool
+     * @param keepAliveMillis how long an extra thread may idle
+     */
+    public ThreadPool(int minThreads, int maxThreads, long keepAliveMillis) {
+        this(minThreads, maxThreads, keepAliveMillis, UNBOUNDED, OverloadPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs an elastic ThreadPool whose queue holds at most capacity jobs.
+     *
+     * @param minThreads number of threads always in the thread pool
+     * @param maxThreads most threads in the thread pool
+     * @param keepAliveMillis how long an extra thread may idle
+     * @param capacity most jobs waiting in the queue, or UNBOUNDED
+     * @param policy what to do with a job when the queue is full
+     */
+    public ThreadPool(int minThreads, int maxThreads, long keepAliveMillis, int capacity,
+            OverloadPolicy policy) {
+        threads = new Thread[minThreads];
         /* begin */
-        jobQueue = new LinkedList<Runnable>();
+        jobQueue = new ConcurrentLinkedQueue<Runnable>();
+        idle = new ConcurrentLinkedQueue<Waiter>();
+        slots = capacity > 0 ? new Semaphore(capacity) : null;
+        this.policy = policy;
+        this.minThreads = minThreads;
+        this.maxThreads = Math.max(minThreads, maxThreads);
+        this.keepAlive = keepAliveMillis * 1000000L;
+        live = new AtomicInteger(minThreads);
+        workers = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
         started = true;
-        for (int i = 0; i < size; i++) {
+        for (int i = 0; i < minThreads; i++) {
             threads[i] = new WorkerThread(this);
             threads[i].start();
         }
         /* end */
     }
 
+    /**
+     * Constructs a ThreadPool that runs its jobs as mode says. In VIRTUAL mode
+     * no worker threads are started and size is ignored, unless this JVM has
+     * no virtual threads, in which case the pool falls back to size workers.
+     *
+     * @param size number of threads in the thread pool when POOLED
+     * @param mode how jobs are run
+     */
+    public ThreadPool(int size, ExecutionMode mode) {
+        this(size, UNBOUNDED, OverloadPolicy.BLOCK, mode);
+    }
+
+    /**
+     * Constructs a ThreadPool that runs its jobs as mode says and holds at
+     * most capacity jobs. In VIRTUAL mode nothing is queued, so capacity
+     * bounds the jobs running at once instead; policy applies to a job that
+     * finds them all taken, except that with no queue DROP_OLDEST has nothing
+     * to drop and rejects the new job as REJECT does.
+     *
+     * @param size number of threads in the thread pool when POOLED
+     * @param capacity most jobs waiting, or running when VIRTUAL, or UNBOUNDED
+     * @param policy what to do with a job when the pool is full
+     * @param mode how jobs are run
+     */
+    public ThreadPool(int size, int capacity, OverloadPolicy policy, ExecutionMode mode) {
+        this(mode == ExecutionMode.VIRTUAL && VIRTUAL_THREADS != null ? 0 : size,
+            capacity, policy);
+        if (mode == ExecutionMode.VIRTUAL) {
+            virtualThreads = VIRTUAL_THREADS;
+        }
+    }
+
+    /**
+     * Whether this JVM can run a ThreadPool in VIRTUAL mode.
+     *
+     * @return true if virtual threads are available
+     */
+    public static boolean supportsVirtualThreads() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * The mode this pool actually runs in, after any fallback.
+     *
+     * @return VIRTUAL if jobs get their own virtual thread, otherwise POOLED
+     */
+    public ExecutionMode getExecutionMode() {
+        return virtualThreads != null ? ExecutionMode.VIRTUAL : ExecutionMode.POOLED;
+    }
+
     /**
      * Add a job to the queue of jobs that have to be executed. As soon as a
      * thread is available, the thread will retrieve a job from this queue if
@@ -37,33 +187,551 @@ public class ThreadPool {
      *         state. Your implementation may or may not actually throw this.
      */
     public void addJob(Runnable r) throws InterruptedException {
-        synchronized (jobQueue) {
-            jobQueue.add(r);
-            jobQueue.notify();
+        if (!started) {
+            reject(r);
+            return;
         }
+        if (slots != null && !admit(r)) {
+            return;
+        }
+        queue(r);
+    }
+
+    /**
+     * Add a job unless that means waiting for room. This is addJob, except
+     * that where the BLOCK policy would have the caller wait for room in a
+     * full queue the job is neither queued nor rejected, and false is
+     * returned. For a SocketServer's loop, which must never wait.
+     *
+     * @param r job that has to be executed
+     * @return false if r was left to be offered again once there is room
+     */
+    public boolean offerJob(Runnable r) {
+        if (started && slots != null && policy == OverloadPolicy.BLOCK) {
+            if (!slots.tryAcquire()) {
+                return false;
+            }
+            queue(r);
+            return true;
+        }
+        try {
+            addJob(r);
+        } catch (InterruptedException e) {
+            // only BLOCK waits, and it was handled above
+            Thread.currentThread().interrupt();
+            reject(r);
+        }
+        return true;
+    }
+
+    /**
+     * Queue an admitted job and see that a thread will run it, or in VIRTUAL
+     * mode start its own. In a bounded pool the caller holds a slot for r.
+     */
+    private void queue(Runnable r) {
+        if (!started) {
+            // stopped while we waited for room
+            if (slots != null) {
+                slots.release();
+            }
+            reject(r);
+            return;
+        }
+        if (virtualThreads != null) {
+            virtualThreads.newThread(new VirtualJob(r, slots)).start();
+            return;
+        }
+        boolean elastic = isElastic();
+        enqueue(codel != null || elastic ? new QueuedJob(r) : r);
+        if (!signal() && elastic) {
+            Runnable oldest = jobQueue.peek();
+            if (oldest instanceof QueuedJob && waitedTooLong((QueuedJob) oldest, System.nanoTime())) {
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Whether the number of threads may change.
+     */
+    boolean isElastic() {
+        return maxThreads > minThreads;
+    }
+
+    /**
+     * The number of worker threads running now.
+     *
+     * @return the number of threads
+     */
+    public int getPoolSize() {
+        return live.get();
+    }
+
+    private boolean waitedTooLong(QueuedJob job, long now) {
+        return now - job.enqueued >= growAfter * 1000000L;
+    }
+
+    /**
+     * Start another worker, unless there are maxThreads already.
+     */
+    private void grow() {
+        int n;
+        do {
+            n = live.get();
+            if (n >= maxThreads || !started) {
+                return;
+            }
+        } while (!live.compareAndSet(n, n + 1));
+        new WorkerThread(this).start();
+    }
+
+    /**
+     * Count the calling worker out, unless that would leave fewer than
+     * minThreads.
+     *
+     * @return true if the caller should exit
+     */
+    private boolean retire() {
+        int n;
+        do {
+            n = live.get();
+            if (n <= minThreads) {
+                return false;
+            }
+        } while (!live.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    /**
+     * Whether the calling thread is one of this pool's workers.
+     */
+    private boolean isOwnWorker() {
+        Thread current = Thread.currentThread();
+        return current instanceof WorkerThread && ((WorkerThread) current).threadPool == this;
+    }
+
+    /**
+     * Turn on CoDel-style load shedding. Once every job taken off the queue
+     * for a whole interval has waited longer than target, the pool starts
+     * rejecting jobs as they are taken, more and more often the longer that
+     * lasts, until one gets through in under target again. Jobs already
+     * queued when this is called are never shed.
+     *
+     * @param targetMillis acceptable time for a job to wait, e.g. 5
+     * @param intervalMillis how long waits may stay above target before the
+     *        pool starts shedding, e.g. 100
+     */
+    public void shedAfter(long targetMillis, long intervalMillis) {
+        codel = new CoDel(targetMillis * 1000000L, intervalMillis * 1000000L);
+    }
+
+    /**
+     * Make room in a bounded queue for r, as policy says.
+     *
+     * @return true if r may be queued, false if it was rejected
+     */
+    private boolean admit(Runnable r) throws InterruptedException {
+        switch (policy) {
+            case REJECT:
+                if (slots.tryAcquire()) {
+                    return true;
+                }
+                reject(r);
+                return false;
+            case DROP_OLDEST:
+                while (!slots.tryAcquire()) {
+                    if (virtualThreads != null) {
+                        // nothing waits that could make room
+                        reject(r);
+                        return false;
+                    }
+                    Runnable oldest = poll();
+                    if (oldest != null) {
+                        // its place goes to r
+                        reject(oldest);
+                        return true;
+                    }
+                }
+                return true;
+            default:
+                slots.acquire();
+                return true;
+        }
+    }
+
+    /**
+     * Tell a job that it won't be run, if it wants to know.
+     */
+    private static void reject(Runnable r) {
+        if (r instanceof QueuedJob) {
+            r = ((QueuedJob) r).job;
+        }
+        if (r instanceof Sheddable) {
+            try {
+                ((Sheddable) r).reject();
+            } catch (RuntimeException e) {
+                // nothing to return it to
+            }
+        }
+    }
+
+    /**
+     * Put a job where getJob will find it. Called by addJob, which then
+     * wakes an idle worker.
+     *
+     * @param r job that has to be executed
+     */
+    void enqueue(Runnable r) {
+        jobQueue.add(r);
+    }
+
+    /**
+     * Take the next job without blocking.
+     *
+     * @return a job, or null if none is waiting
+     */
+    Runnable poll() {
+        return jobQueue.poll();
     }
 
     /**
      * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
+     * @return A runnable task that has to be executed, or null once the pool
+     *         has been stopped and has nothing left to run, or when a worker
+     *         beyond minThreads has idled for keepAlive and should exit
      * @throws InterruptedException if thread is interrupted while in blocked
      *         state. Your implementation may or may not actually throw this.
      */
     public Runnable getJob() throws InterruptedException {
-        synchronized (jobQueue) {
-            while (jobQueue.peek() == null) {
-                jobQueue.wait();
+        while (true) {
+            Runnable job = awaitJob();
+            if (job == null) {
+                return null;
+            }
+            if (slots != null) {
+                slots.release();
+            }
+            if (!started && !draining) {
+                reject(job);
+                continue;
+            }
+            if (!(job instanceof QueuedJob)) {
+                return job;
+            }
+            QueuedJob queued = (QueuedJob) job;
+            long now = System.nanoTime();
+            if (isElastic() && waitedTooLong(queued, now) && jobQueue.peek() != null) {
+                grow();
+            }
+            CoDel shedder = codel;
+            if (shedder != null && shedder.shouldShed(queued.enqueued, now)) {
+                reject(queued.job);
+                continue;
+            }
+            return queued.job;
+        }
+    }
+
+    /**
+     * Block until something is in the queue and take it, as it was queued.
+     * Returns null when the caller should stop asking: see getJob.
+     */
+    private Runnable awaitJob() throws InterruptedException {
+        boolean mayRetire = isElastic() && isOwnWorker();
+        while (true) {
+            Runnable job = poll();
+            for (int spin = 0; job == null && spin < SPINS; spin++) {
+                Thread.yield();
+                job = poll();
+            }
+            if (job != null) {
+                return job;
+            }
+            if (!started) {
+                return exit();
+            }
+            Waiter waiter = new Waiter(Thread.currentThread());
+            idle.add(waiter);
+            // a job added before we were visible in idle woke nobody
+            job = poll();
+            if (job != null || !started) {
+                if (!waiter.cancel()) {
+                    // we took the wakeup meant for some other job
+                    signal();
+                }
+                return job != null ? job : exit();
+            }
+            long deadline = System.nanoTime() + keepAlive;
+            while (waiter.isWaiting()) {
+                if (mayRetire) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        if (waiter.cancel() && retire()) {
+                            return null;
+                        }
+                        break;
+                    }
+                    LockSupport.parkNanos(this, left);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    if (!waiter.cancel()) {
+                        signal();
+                    }
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker leaving a stopped pool.
+     */
+    private Runnable exit() {
+        if (isOwnWorker()) {
+            live.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Wake one thread parked in getJob, if there is one, skipping entries
+     * whose thread found a job on its own.
+     *
+     * @return true if a thread was woken
+     */
+    boolean signal() {
+        Waiter waiter;
+        while ((waiter = idle.poll()) != null) {
+            if (waiter.claim()) {
+                LockSupport.unpark(waiter.thread);
+                return true;
             }
-            return jobQueue.remove();            
         }
+        return false;
     }
-    
+
     /**
      * Stop all worker thread execution such that server terminates cleanly.
+     * Jobs still queued are cancelled, and rejected if they are Sheddable;
+     * jobs already running finish. Idle workers wake up and exit.
  	 * @see ServerClientHandler, SocketServer
      */
     public void stop() {
-    	this.started = false;
+    	stop(false);
+    }
+
+    /**
+     * Stop taking jobs. Jobs added from now on are rejected. If drain is true,
+     * the workers run what is already queued before they exit; otherwise
+     * queued jobs are cancelled as in stop().
+     *
+     * @param drain whether to run the jobs already queued
+     */
+    public void stop(boolean drain) {
+        draining = drain;
+        started = false;
+        if (!drain) {
+            Runnable job;
+            while ((job = poll()) != null) {
+                if (slots != null) {
+                    slots.release();
+                }
+                reject(job);
+            }
+        }
+        while (signal()) {
+            // wake every idle worker so that it sees the pool is stopped
+        }
+    }
+
+    /**
+     * Wait for every worker to exit after stop.
+     *
+     * @param millis longest time to wait
+     * @return true if all workers have exited
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread worker : workers) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            worker.join(left);
+        }
+        return workers.isEmpty();
+    }
+
+    /**
+     * Looks up Thread.ofVirtual().factory() by reflection so that this class
+     * still compiles and runs on JVMs older than 21.
+     *
+     * @return a factory of virtual threads, or null if there is none
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, "kvstore-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * A job that wants to know when a ThreadPool gives up on it: because the
+     * queue was full, because it was the oldest in a full queue, or because
+     * it waited too long and was shed. reject is called instead of run, on
+     * whichever thread made the decision, and should return quickly.
+     */
+    public interface Sheddable extends Runnable {
+
+        /**
+         * Called instead of run when the job will not be run.
+         */
+        public void reject();
+    }
+
+    /**
+     * A job with the time it was queued, kept while shedding is on or the
+     * pool is elastic.
+     */
+    private static class QueuedJob implements Runnable {
+
+        final Runnable job;
+        final long enqueued = System.nanoTime();
+
+        QueuedJob(Runnable job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            job.run();
+        }
+    }
+
+    /**
+     * The CoDel control law of Nichols and Jacobson, applied as jobs leave the
+     * queue. Waits above target for a whole interval switch shedding on;
+     * while on, the gap between sheds shrinks as interval/sqrt(count). The
+     * first wait under target switches it off again.
+     */
+    private static class CoDel {
+
+        final long target;
+        final long interval;
+
+        /* when waits will have been above target for an interval; 0 if not above */
+        long firstAbove;
+        boolean shedding;
+        long shedNext;
+        int count;
+        int lastCount;
+
+        CoDel(long target, long interval) {
+            this.target = target;
+            this.interval = interval;
+        }
+
+        synchronized boolean shouldShed(long enqueued, long now) {
+            boolean okToShed = false;
+            if (now - enqueued < target) {
+                firstAbove = 0;
+            } else if (firstAbove == 0) {
+                firstAbove = now + interval;
+            } else if (now - firstAbove >= 0) {
+                okToShed = true;
+            }
+            if (shedding) {
+                if (!okToShed) {
+                    shedding = false;
+                    return false;
+                }
+                if (now - shedNext >= 0) {
+                    count++;
+                    shedNext = controlLaw(shedNext);
+                    return true;
+                }
+                return false;
+            }
+            if (!okToShed) {
+                return false;
+            }
+            shedding = true;
+            int delta = count - lastCount;
+            // shedding was on recently: start near the old rate
+            count = delta > 1 && now - shedNext < 16 * interval ? delta : 1;
+            lastCount = count;
+            shedNext = controlLaw(now);
+            return true;
+        }
+
+        private long controlLaw(long t) {
+            return t + (long) (interval / Math.sqrt(count));
+        }
+    }
+
+    /**
+     * A thread parked in getJob. Exactly one of claim, by the thread that
+     * wakes it, and cancel, by the waiter itself, succeeds.
+     */
+    private static class Waiter extends AtomicBoolean {
+
+        private static final long serialVersionUID = 1L;
+
+        final Thread thread;
+
+        Waiter(Thread thread) {
+            super(true);
+            this.thread = thread;
+        }
+
+        boolean isWaiting() {
+            return get();
+        }
+
+        boolean claim() {
+            return compareAndSet(true, false);
+        }
+
+        boolean cancel() {
+            return compareAndSet(true, false);
+        }
+    }
+
+    /**
+     * A job running on its own virtual thread. Like a WorkerThread, it
+     * swallows whatever the job throws. In a bounded pool it gives back its
+     * slot when it is done.
+     */
+    private static class VirtualJob implements Runnable {
+
+        private final Runnable job;
+        private final Semaphore slots;
+
+        VirtualJob(Runnable job, Semaphore slots) {
+            this.job = job;
+            this.slots = slots;
+        }
+
+        @Override
+        public void run() {
+            try {
+                job.run();
+            } catch (Exception e) {
+                // nothing to return it to
+            } finally {
+                if (slots != null) {
+                    slots.release();
+                }
+            }
+        }
     }
 
     /**
@@ -80,6 +748,7 @@ public class ThreadPool {
          */
         public WorkerThread(ThreadPool pool) {
             threadPool = pool;
+            pool.workers.add(this);
         }
 
         /**
@@ -88,12 +757,25 @@ public class ThreadPool {
         @Override
         public void run() {
         	/* begin */
-            while (threadPool.started == true) {
-                try {
-                    threadPool.getJob().run();
-                } catch (Exception e) {
-                    continue;
+            try {
+                while (true) {
+                    Runnable job;
+                    try {
+                        job = threadPool.getJob();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (job == null) {
+                        break;
+                    }
+                    try {
+                        job.run();
+                    } catch (Exception e) {
+                        continue;
+                    }
                 }
+            } finally {
+                threadPool.workers.remove(this);
             }
             /* end */
         }
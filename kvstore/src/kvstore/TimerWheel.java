@@ -0,0 +1,134 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel of key deadlines, so that the store can find
+ * the keys whose TTL ran out without a timer, or a sorted structure, per
+ * key. Time is cut into ticks of tickMillis; LEVELS wheels of BUCKETS
+ * buckets each cover 64, 64^2, 64^3 and 64^4 ticks ahead. A deadline goes
+ * into the coarsest bucket it needs, and each time a finer wheel turns over
+ * the next bucket of the coarser one above it is emptied into it, until the
+ * key reaches the finest wheel and its tick comes. Scheduling and each tick
+ * thus cost O(1) whatever the number of keys.
+ *
+ * Keys are never taken out early: a key put again, with another TTL or none,
+ * or deleted, keeps its old node until that fires. advance hands back keys
+ * whose deadline has come by then, and the caller checks each against what
+ * it holds now.
+ *
+ * All methods are synchronized; puts that schedule and the thread that
+ * advances the wheel share it.
+ */
+class TimerWheel {
+
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final int LEVELS = 4;
+    /* Furthest a deadline can be placed ahead; later ones are placed here
+       and placed again, by their true deadline, when they cascade */
+    private static final long SPAN = (1L << (BITS * LEVELS)) - 1;
+
+    private static class Node {
+        final String key;
+        final long tick;
+        Node next;
+
+        Node(String key, long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    /* Bucket b of level l is buckets[l * BUCKETS + b] */
+    private final Node[] buckets = new Node[LEVELS * BUCKETS];
+    /* Last tick whose keys have been handed out */
+    private long current;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param now current time in milliseconds
+     */
+    TimerWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.current = now / tickMillis;
+    }
+
+    /**
+     * Remember that key is due at deadline, in milliseconds. A deadline
+     * already past comes out of the next advance.
+     */
+    synchronized void schedule(String key, long deadline) {
+        // round up, so that a key never comes out before its deadline
+        long tick = deadline / tickMillis + (deadline % tickMillis == 0 ? 0 : 1);
+        place(new Node(key, tick), current + 1);
+        size++;
+    }
+
+    /**
+     * Turn the wheel up to now and return the keys that came due on the way.
+     *
+     * @param now current time in milliseconds
+     * @return keys whose deadline is at or before now, possibly stale
+     */
+    synchronized List<String> advance(long now) {
+        List<String> due = new ArrayList<String>();
+        long target = now / tickMillis;
+        if (size == 0) {
+            current = Math.max(current, target);
+            return due;
+        }
+        while (current < target && size > 0) {
+            current++;
+            // coarsest first: its keys may land in a finer bucket due now
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+                    int index = level * BUCKETS + (int) ((current >>> (BITS * level)) & MASK);
+                    Node node = buckets[index];
+                    buckets[index] = null;
+                    while (node != null) {
+                        Node next = node.next;
+                        place(node, current);
+                        node = next;
+                    }
+                }
+            }
+            int index = (int) (current & MASK);
+            for (Node node = buckets[index]; node != null; node = node.next) {
+                due.add(node.key);
+                size--;
+            }
+            buckets[index] = null;
+        }
+        current = Math.max(current, target);
+        return due;
+    }
+
+    /**
+     * @return keys scheduled and not yet handed out
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Put node in the bucket that next comes up at or before its tick, but
+     * no earlier than earliest.
+     */
+    private void place(Node node, long earliest) {
+        long tick = Math.max(node.tick, earliest);
+        long delta = Math.min(tick - current, SPAN);
+        tick = current + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        int index = level * BUCKETS + (int) ((tick >>> (BITS * level)) & MASK);
+        node.next = buckets[index];
+        buckets[index] = node;
+    }
+}
@@ -0,0 +1,12 @@
+package kvstore;
+
+/**
+ * Encodings a KVMessage can take on the wire. XML is the format described in
+ * the spec and is what every endpoint speaks by default. BINARY is a compact
+ * length-prefixed framing (see KVBinaryCodec) that a client may opt into for
+ * a connection; servers detect it from the first byte and reply in kind.
+ */
+public enum WireFormat {
+    XML,
+    BINARY
+}
@@ -0,0 +1,121 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A ThreadPool in which every worker has its own deque of jobs. A job added
+ * by one of this pool's workers goes on the front of that worker's deque and
+ * is usually run next by the same worker. Jobs added from any other thread go
+ * on a shared queue. A worker with nothing of its own takes from the shared
+ * queue, and failing that steals from the back of another worker's deque, so
+ * bursts of sub-tasks fanned out by one job spread over the idle workers
+ * without everyone contending on one queue.
+ */
+public class WorkStealingThreadPool extends ThreadPool {
+
+    /* deques.get(i) belongs to threads[i] */
+    List<ConcurrentLinkedDeque<Runnable>> deques;
+
+    /**
+     * Constructs a WorkStealingThreadPool with a certain number of threads.
+     *
+     * @param size number of threads in the thread pool
+     */
+    public WorkStealingThreadPool(int size) {
+        this(size, UNBOUNDED, OverloadPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a WorkStealingThreadPool that holds at most capacity jobs
+     * no thread has taken yet, across all deques and the shared queue.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity most jobs waiting, or UNBOUNDED
+     * @param policy what to do with a job when the pool is full
+     */
+    public WorkStealingThreadPool(int size, int capacity, OverloadPolicy policy) {
+        super(0, capacity, policy);
+        threads = new Thread[size];
+        live.set(size);
+        deques = new ArrayList<ConcurrentLinkedDeque<Runnable>>(size);
+        for (int i = 0; i < size; i++) {
+            deques.add(new ConcurrentLinkedDeque<Runnable>());
+            threads[i] = new StealingWorker(i);
+        }
+        for (int i = 0; i < size; i++) {
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Jobs from this pool's own workers go to the front of their deque; all
+     * others go to the shared queue.
+     *
+     * @param r job that has to be executed
+     */
+    @Override
+    void enqueue(Runnable r) {
+        int self = self();
+        if (self >= 0) {
+            deques.get(self).addFirst(r);
+        } else {
+            jobQueue.add(r);
+        }
+    }
+
+    /**
+     * Own deque first, newest job first; then the shared queue; then steal
+     * the oldest job of another worker, starting with the next one along.
+     *
+     * @return a job, or null if none is waiting anywhere
+     */
+    @Override
+    Runnable poll() {
+        int self = self();
+        Runnable job;
+        if (self >= 0 && (job = deques.get(self).pollFirst()) != null) {
+            return job;
+        }
+        if ((job = jobQueue.poll()) != null) {
+            return job;
+        }
+        for (int i = 1; i <= deques.size(); i++) {
+            int victim = (self + i + deques.size()) % deques.size();
+            if (victim != self && (job = deques.get(victim).pollLast()) != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The index of the calling thread among this pool's workers.
+     *
+     * @return the index, or -1 if the caller is not one of them
+     */
+    private int self() {
+        Thread current = Thread.currentThread();
+        if (current instanceof StealingWorker) {
+            StealingWorker worker = (StealingWorker) current;
+            if (worker.threadPool == this) {
+                return worker.index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A worker that knows which deque is its own.
+     */
+    public class StealingWorker extends WorkerThread {
+
+        final int index;
+
+        StealingWorker(int index) {
+            super(WorkStealingThreadPool.this);
+            this.index = index;
+        }
+    }
+}
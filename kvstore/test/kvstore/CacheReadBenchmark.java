@@ -0,0 +1,107 @@
+package kvstore;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Read-heavy load on a KVCache whose keys crowd into a few sets, from 1 to 16
+ * threads: 95% of requests are gets, 5% puts. A get either takes the set
+ * lock, as KVServer.get used to, or tries tryGet first and only locks when
+ * that misses, as it does now. A miss puts the key, as KVServer does after
+ * reading its store. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=CacheReadBenchmark
+ *
+ * or pass the milliseconds to run each case as the first argument.
+ */
+public class CacheReadBenchmark {
+
+    static final int[] THREADS = {1, 2, 4, 8, 16};
+    static final int NUM_SETS = 4;
+    static final int SET_SIZE = 16;
+    static final int KEYS = 56;
+    static final int WRITE_PERCENT = 5;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        System.out.println(String.format("%d sets x %d, %d keys, %d%% puts, %d ms per case",
+            NUM_SETS, SET_SIZE, KEYS, WRITE_PERCENT, millis));
+        System.out.println(String.format("%8s %14s %14s %8s",
+            "threads", "locked ops/s", "tryGet ops/s", "speedup"));
+        for (int threads : THREADS) {
+            double locked = run(threads, false, millis);
+            double optimistic = run(threads, true, millis);
+            System.out.println(String.format("%8d %14.0f %14.0f %7.2fx",
+                threads, locked, optimistic, optimistic / locked));
+        }
+    }
+
+    private static double run(int threads, final boolean optimistic, long millis)
+            throws InterruptedException {
+        final KVCache cache = new KVCache(NUM_SETS, SET_SIZE);
+        final String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            cache.put(keys[i], "value" + i);
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (!stop.get()) {
+                        String key = keys[random.nextInt(KEYS)];
+                        if (random.nextInt(100) < WRITE_PERCENT) {
+                            put(cache, key, "value" + count);
+                        } else if (!optimistic || cache.tryGet(key) == null) {
+                            Lock lock = cache.getLock(key);
+                            lock.lock();
+                            try {
+                                if (cache.get(key) == null) {
+                                    cache.put(key, "value");
+                                }
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                        count++;
+                    }
+                    ops.addAndGet(count);
+                }
+            };
+            workers[t].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.get() * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void put(KVCache cache, String key, String value) {
+        Lock lock = cache.getLock(key);
+        lock.lock();
+        try {
+            cache.put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
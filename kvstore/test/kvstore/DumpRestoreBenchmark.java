@@ -0,0 +1,127 @@
+package kvstore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Time and heap taken by KVStore.dumpToFile and restoreFromFile for stores
+ * of 1M and 10M keys, beside a dump done the old way: the whole document
+ * built as one String by toXML and encoded with getBytes. The heap is what
+ * the pools other than eden grew by at their peak, so short-lived garbage
+ * does not count but a whole-store String does. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=DumpRestoreBenchmark
+ *
+ * or pass the key counts as arguments. 10M keys need -Xmx4g or so; the old
+ * dump may run out of heap, which is reported.
+ */
+public class DumpRestoreBenchmark {
+
+    static final int VALUE_LENGTH = 24;
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = args.length > 0 ? args : new String[] {"1000000", "10000000"};
+        File file = File.createTempFile("DumpRestoreBenchmark", ".xml");
+        file.deleteOnExit();
+        System.out.println(String.format("values of %d chars, max heap %d MB",
+            VALUE_LENGTH, Runtime.getRuntime().maxMemory() >> 20));
+        System.out.println(String.format("%-10s %-16s %10s %10s %12s",
+            "keys", "case", "ms", "heap MB", "file MB"));
+        for (String count : counts) {
+            int keys = Integer.parseInt(count);
+            KVStore store = new KVStore();
+            char[] chars = new char[VALUE_LENGTH];
+            for (int i = 0; i < keys; i++) {
+                for (int c = 0; c < VALUE_LENGTH; c++) {
+                    chars[c] = (char) ('a' + (i * 31 + c) % 26);
+                }
+                store.put("key" + i, new String(chars));
+            }
+
+            long base = startMeasuring();
+            long start = System.nanoTime();
+            String outcome = null;
+            try {
+                dumpAsString(store, file);
+            } catch (OutOfMemoryError e) {
+                outcome = "out of heap";
+            }
+            report(keys, "dump as String", start, base, outcome, file);
+
+            base = startMeasuring();
+            start = System.nanoTime();
+            store.dumpToFile(file.getPath());
+            report(keys, "dump streamed", start, base, null, file);
+
+            store = null;
+            KVStore restored = new KVStore();
+            base = startMeasuring();
+            start = System.nanoTime();
+            restored.restoreFromFile(file.getPath());
+            long millis = (System.nanoTime() - start) / 1000000;
+            // the restored store itself is not overhead
+            long kept = startMeasuring();
+            System.out.println(String.format("%-10d %-16s %10d %10.1f %12s", keys,
+                "restore", millis, (peakSince(base) - kept) / 1048576.0,
+                restored.store.size() == keys ? "" : "lost keys!"));
+            restored = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * What dumpToFile did before it streamed.
+     */
+    private static void dumpAsString(KVStore store, File file) throws Exception {
+        byte[] bytes = store.toXML().getBytes(StandardCharsets.UTF_8);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void report(int keys, String name, long start, long base, String outcome,
+            File file) {
+        long millis = (System.nanoTime() - start) / 1000000;
+        long peak = peakSince(base);
+        System.out.println(String.format("%-10d %-16s %10d %10s %12s", keys, name, millis,
+            outcome != null ? outcome : String.format("%.1f", (peak - base) / 1048576.0),
+            String.format("%.1f", file.length() / 1048576.0)));
+    }
+
+    /**
+     * Collect, reset the peak of every heap pool but eden, and return what
+     * they hold now.
+     */
+    private static long startMeasuring() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (counts(pool)) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakSince(long base) {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (counts(pool)) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return Math.max(peak, base);
+    }
+
+    private static boolean counts(MemoryPoolMXBean pool) {
+        return pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden");
+    }
+}
@@ -5,8 +5,12 @@ import static kvstore.KVConstants.*;
 import static kvstore.Utils.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import kvstore.Utils.ErrorLogger;
 import kvstore.Utils.RandomString;
@@ -34,6 +38,178 @@ public class EndToEndTest extends EndToEndTemplate {
         }
     }
     
+    @Test
+    public void TtlTest() throws Exception {
+        client.put("Catherine", "fleeting", 100);
+        client.put("Stan", "lasting", 60000);
+        assertEquals("fleeting", client.get("Catherine"));
+        Thread.sleep(200);
+        try {
+            client.get("Catherine");
+            fail("Get request should fail with expired key.");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getMessage());
+        }
+        assertEquals("lasting", client.get("Stan"));
+        try {
+            client.put("Catherine", "never", -1);
+            fail("Put request should fail with negative TTL.");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_TTL, e.getMessage());
+        }
+    }
+
+    @Test
+    public void ScanTest() throws Exception {
+        try {
+            client.scan("", null, KVMessage.NO_LIMIT, new java.util.HashMap<String, String>());
+            fail("the store is hashed");
+        } catch (KVException e) {
+            assertEquals(ERROR_SCAN_UNSUPPORTED, e.getMessage());
+        }
+
+        SocketServer ss = new SocketServer(client.server, 8081);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10, StorageMode.ORDERED), 4));
+        ServerRunner ordered = new ServerRunner(ss, "ordered");
+        ordered.start();
+        try {
+            for (WireFormat format : WireFormat.values()) {
+                KVClient scanner = new KVClient(client.server, 8081, format);
+                for (int i = 0; i < 30; i++) {
+                    scanner.put("scan" + format + "/" + (char) ('A' + i), "v" + i);
+                }
+                java.util.Map<String, String> all = new java.util.TreeMap<String, String>();
+                String token = null;
+                int pages = 0;
+                do {
+                    token = scanner.scan("scan" + format + "/", token, 8, all);
+                    pages++;
+                } while (token != null);
+                assertEquals(4, pages);
+                assertEquals(30, all.size());
+                assertEquals("v29", all.get("scan" + format + "/" + (char) ('A' + 29)));
+            }
+        } finally {
+            ordered.stop();
+        }
+    }
+
+    @Test
+    public void BinaryWireFormatTest() throws KVException {
+        KVClient binaryClient = new KVClient(client.server, client.port, WireFormat.BINARY);
+        binaryClient.put("Catherine", "binary");
+        assertEquals("binary", binaryClient.get("Catherine"));
+        assertEquals("binary", client.get("Catherine"));
+        binaryClient.del("Catherine");
+        try {
+            binaryClient.get("Catherine");
+            fail("Get request should fail with nonexistent key.");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getMessage());
+        }
+    }
+
+    @Test
+    public void KeepAliveTest() throws KVException {
+        for (WireFormat format : WireFormat.values()) {
+            KVClient keepAliveClient = new KVClient(client.server, client.port, format, true);
+            try {
+                for (int i = 0; i < 50; i++) {
+                    keepAliveClient.put("Catherine" + i, format + "" + i);
+                }
+                for (int i = 0; i < 50; i++) {
+                    assertEquals(format + "" + i, keepAliveClient.get("Catherine" + i));
+                }
+                keepAliveClient.del("Catherine0");
+                try {
+                    keepAliveClient.get("Catherine0");
+                    fail("Get request should fail with nonexistent key.");
+                } catch (KVException e) {
+                    assertEquals(ERROR_NO_SUCH_KEY, e.getMessage());
+                }
+                // errors don't end the connection
+                assertEquals(format + "1", keepAliveClient.get("Catherine1"));
+            } finally {
+                keepAliveClient.close();
+            }
+        }
+    }
+
+    @Test
+    public void KeepAliveReconnectsAfterIdleTimeout() throws Exception {
+        serverRunner.getServer().idleTimeout = 100;
+        KVClient keepAliveClient = new KVClient(client.server, client.port, WireFormat.BINARY, true);
+        keepAliveClient.idleTimeout = 10 * 1000;
+        try {
+            keepAliveClient.put("Catherine", "idle");
+            Thread.sleep(500);
+            assertEquals("idle", keepAliveClient.get("Catherine"));
+        } finally {
+            keepAliveClient.close();
+        }
+    }
+
+    @Test
+    public void PipelinedTest() throws Exception {
+        KVClient pipelined = new KVClient(client.server, client.port, WireFormat.BINARY, true);
+        try {
+            List<Future<Void>> puts = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 200; i++) {
+                puts.add(pipelined.putAsync("Catherine" + i, "pipelined" + i));
+            }
+            for (Future<Void> put : puts) {
+                put.get();
+            }
+            List<Future<String>> gets = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                gets.add(pipelined.getAsync("Catherine" + i));
+            }
+            Future<String> missing = pipelined.getAsync("nobody");
+            for (int i = 0; i < 200; i++) {
+                assertEquals("pipelined" + i, gets.get(i).get());
+            }
+            try {
+                missing.get();
+                fail("Get request should fail with nonexistent key.");
+            } catch (ExecutionException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getCause().getMessage());
+            }
+            assertEquals("pipelined7", pipelined.get("Catherine7"));
+        } finally {
+            pipelined.close();
+        }
+    }
+
+    @Test
+    public void StalledClientsHoldNoWorkers() throws Exception {
+        KVMessage request = new KVMessage(GET_REQ);
+        request.setKey("Catherine");
+        byte[] frame = request.toFrame(WireFormat.BINARY);
+        List<java.net.Socket> stalled = new ArrayList<java.net.Socket>();
+        try {
+            // more half-sent requests than the handler has workers
+            for (int i = 0; i < 50; i++) {
+                java.net.Socket sock = new java.net.Socket(client.server, client.port);
+                sock.getOutputStream().write(frame, 0, frame.length / 2);
+                sock.getOutputStream().flush();
+                stalled.add(sock);
+            }
+            client.put("Catherine", "stalled");
+            assertEquals("stalled", client.get("Catherine"));
+            for (java.net.Socket sock : stalled) {
+                sock.getOutputStream().write(frame, frame.length / 2, frame.length - frame.length / 2);
+                sock.getOutputStream().flush();
+            }
+            for (java.net.Socket sock : stalled) {
+                assertEquals("stalled", new KVMessage(sock.getInputStream()).getValue());
+            }
+        } finally {
+            for (java.net.Socket sock : stalled) {
+                sock.close();
+            }
+        }
+    }
+
     @Test
     public void BasicTest2() throws KVException {
         client.put("Catherine", "basic");
@@ -0,0 +1,147 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Hit ratio and throughput of each EvictionPolicy on synthetic traces, with
+ * and without TinyLFU admission. Every request is a get under the set's lock,
+ * followed on a miss by a put of the key, as KVServer does when it falls
+ * back to its store. The traces are
+ *
+ *   zipf  - keys drawn from a Zipf(0.99) distribution
+ *   scan  - the zipf trace with one request in five replaced by the next
+ *           key of a sequential scan over keys never seen again
+ *   loop  - keys requested in a cycle a little larger than the cache
+ *
+ * Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=EvictionBenchmark
+ *
+ * or pass the number of requests per trace as the first argument.
+ */
+public class EvictionBenchmark {
+
+    static final int NUM_SETS = 256;
+    static final int SET_SIZE = 16;
+    static final int KEYS = 100000;
+    static final int ROUNDS = 3;
+
+    static final List<Class<? extends EvictionPolicy>> POLICIES =
+        new ArrayList<Class<? extends EvictionPolicy>>();
+    static {
+        POLICIES.add(SecondChancePolicy.class);
+        POLICIES.add(ClockPolicy.class);
+        POLICIES.add(LRUPolicy.class);
+        POLICIES.add(LFUPolicy.class);
+        POLICIES.add(ARCPolicy.class);
+        POLICIES.add(LIRSPolicy.class);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        Random random = new Random(1);
+        int[] zipf = zipf(random, requests, KEYS, 0.99);
+
+        int[] scan = zipf.clone();
+        int scanned = KEYS;
+        for (int i = 0; i < scan.length; i += 5) {
+            scan[i] = scanned++;
+        }
+
+        int[] loop = new int[requests];
+        int cycle = NUM_SETS * SET_SIZE * 5 / 4;
+        for (int i = 0; i < loop.length; i++) {
+            loop[i] = i % cycle;
+        }
+
+        String[] keys = new String[scanned];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+
+        String[] names = {"zipf", "scan", "loop"};
+        int[][] traces = {zipf, scan, loop};
+        System.out.println(String.format("cache of %d sets x %d, %d requests per trace",
+            NUM_SETS, SET_SIZE, requests));
+        System.out.println(String.format("%-20s %6s %9s %12s %9s %12s",
+            "policy", "trace", "hit ratio", "requests/s", "+TinyLFU", "requests/s"));
+        for (Class<? extends EvictionPolicy> policy : POLICIES) {
+            for (int t = 0; t < traces.length; t++) {
+                StringBuilder line = new StringBuilder(String.format("%-20s %6s",
+                    policy.getSimpleName(), names[t]));
+                for (boolean admission : new boolean[] {false, true}) {
+                    double hitRatio = 0;
+                    double rate = 0;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        KVCache cache = new KVCache(NUM_SETS, SET_SIZE,
+                            policy.getDeclaredConstructor().newInstance(), admission);
+                        long start = System.nanoTime();
+                        run(cache, keys, traces[t]);
+                        long elapsed = System.nanoTime() - start;
+                        hitRatio = cache.getHitRatio();
+                        rate = Math.max(rate, traces[t].length * 1e9 / elapsed);
+                    }
+                    line.append(String.format(" %8.2f%% %12.0f", hitRatio * 100, rate));
+                }
+                System.out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Play trace against cache.
+     */
+    private static void run(KVCache cache, String[] keys, int[] trace) {
+        for (int id : trace) {
+            String key = keys[id];
+            Lock lock = cache.getLock(key);
+            lock.lock();
+            try {
+                if (cache.get(key) == null) {
+                    cache.put(key, key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Requests drawn from keys 0 to n - 1, key k with probability
+     * proportional to 1 / (k + 1)^s, shuffled so that popular keys are
+     * spread over the sets.
+     */
+    private static int[] zipf(Random random, int requests, int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, s);
+            cdf[k] = sum;
+        }
+        int[] permutation = new int[n];
+        for (int k = 0; k < n; k++) {
+            int j = random.nextInt(k + 1);
+            permutation[k] = permutation[j];
+            permutation[j] = k;
+        }
+        int[] trace = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            double u = random.nextDouble() * sum;
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            trace[i] = permutation[lo];
+        }
+        return trace;
+    }
+}
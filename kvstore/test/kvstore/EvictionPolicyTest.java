@@ -0,0 +1,179 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+    static EvictionPolicy[] everyPolicy() {
+        return new EvictionPolicy[] {
+            new SecondChancePolicy(), new ClockPolicy(), new LRUPolicy(),
+            new LFUPolicy(), new ARCPolicy(), new LIRSPolicy()
+        };
+    }
+
+    /**
+     * Under random gets, puts and dels, every policy keeps each set within
+     * its size, never returns a stale value and lists each entry once.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void everyPolicyStaysConsistent() {
+        for (EvictionPolicy policy : everyPolicy()) {
+            staysConsistent(policy, false);
+        }
+        for (EvictionPolicy policy : everyPolicy()) {
+            staysConsistent(policy, true);
+        }
+    }
+
+    private void staysConsistent(EvictionPolicy policy, boolean admission) {
+        String name = policy.getClass().getSimpleName();
+        KVCache cache = new KVCache(4, 8, policy, admission);
+        Map<String, String> latest = new HashMap<String, String>();
+        Random random = new Random(42);
+        for (int op = 0; op < 20000; op++) {
+            String key = "key" + random.nextInt(64);
+            switch (random.nextInt(4)) {
+                case 0:
+                    cache.del(key);
+                    latest.remove(key);
+                    break;
+                case 1:
+                    String value = "value" + op;
+                    cache.put(key, value);
+                    latest.put(key, value);
+                    String stored = cache.get(key);
+                    assertTrue(name, value.equals(stored) || (admission && stored == null));
+                    break;
+                default:
+                    String cached = cache.get(key);
+                    if (cached != null) {
+                        assertEquals(name, latest.get(key), cached);
+                    }
+            }
+        }
+        for (int set = 0; set < 4; set++) {
+            int size = cache.getCacheSetSize(set);
+            assertTrue(name, size <= 8);
+            int[] order = policy.order(set);
+            assertEquals(name, size, order.length);
+            Set<Integer> slots = new HashSet<Integer>();
+            for (int slot : order) {
+                assertTrue(name, slot >= set * 8 && slot < (set + 1) * 8);
+                assertTrue(name, slots.add(slot));
+            }
+        }
+    }
+
+    /**
+     * victim names the slot evict then takes.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void victimMatchesEvict() {
+        for (EvictionPolicy policy : everyPolicy()) {
+            policy.init(1, 4);
+            for (int slot = 0; slot < 4; slot++) {
+                policy.inserted(0, slot, slot);
+            }
+            Random random = new Random(7);
+            for (int op = 0; op < 1000; op++) {
+                policy.hit(0, random.nextInt(4));
+                int hash = 4 + random.nextInt(8);
+                int victim = policy.victim(0, hash);
+                assertEquals(policy.getClass().getSimpleName(), victim, policy.evict(0, hash));
+                policy.inserted(0, victim, hash);
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void lruEvictsLeastRecentlyUsed() {
+        KVCache cache = new KVCache(1, 3, new LRUPolicy());
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("b", "4");
+        cache.put("d", "5");
+        assertNull(cache.get("c"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("4", cache.get("b"));
+        assertEquals("5", cache.get("d"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void lfuEvictsLeastFrequentlyUsed() {
+        KVCache cache = new KVCache(1, 3, new LFUPolicy());
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+        cache.put("d", "4");
+        assertNull(cache.get("b"));
+        // d, used once, is now the least used
+        cache.put("e", "5");
+        assertNull(cache.get("d"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    /**
+     * Keys used repeatedly survive a scan through keys used once under ARC
+     * and LIRS, but not under LRU.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void scanResistance() {
+        assertTrue(survivesScan(new ARCPolicy()));
+        assertTrue(survivesScan(new LIRSPolicy()));
+        assertFalse(survivesScan(new LRUPolicy()));
+    }
+
+    private boolean survivesScan(EvictionPolicy policy) {
+        KVCache cache = new KVCache(1, 10, policy);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, "value");
+                }
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.put("scan" + i, "value");
+        }
+        for (int i = 0; i < 5; i++) {
+            if (cache.get("hot" + i) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unlike second chance, plain CLOCK does not move an entry on a get.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void clockHitLeavesEntryInPlace() {
+        KVCache secondChance = new KVCache(1, 3, new SecondChancePolicy());
+        KVCache clock = new KVCache(1, 3, new ClockPolicy());
+        for (KVCache cache : new KVCache[] {secondChance, clock}) {
+            cache.put("a", "1");
+            cache.put("b", "2");
+            cache.put("c", "3");
+            cache.get("a");
+        }
+        assertTrue(secondChance.toXML().indexOf("<Key>a</Key>")
+            > secondChance.toXML().indexOf("<Key>c</Key>"));
+        assertTrue(clock.toXML().indexOf("<Key>a</Key>")
+            < clock.toXML().indexOf("<Key>b</Key>"));
+    }
+}
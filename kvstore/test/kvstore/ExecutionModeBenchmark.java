@@ -0,0 +1,162 @@
+package kvstore;
+
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares ServerClientHandler running on a ThreadPool of platform threads
+ * with the same handler in ExecutionMode.VIRTUAL, with many clients each
+ * holding a persistent connection open, behind the SocketServer the servers
+ * run. Its selector reads every request and hands it to
+ * handle(KVMessage, Reply); what the modes change is what each request
+ * runs on once it has been read. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=ExecutionModeBenchmark
+ *
+ * Optional arguments: clients (10000), requests per client (5), think time
+ * between requests in milliseconds (5), pool threads when pooled (64). The
+ * virtual run needs a JVM with virtual threads; without one it falls back to
+ * the pool and the two rows match. Clients and server share this process, so
+ * it needs two file descriptors per client; raise ulimit -n to match.
+ */
+public class ExecutionModeBenchmark {
+
+    /* Connects in flight at once; more overflows the kernel's SYN backlog */
+    static final int CONNECT_BURST = 256;
+
+    /* A client that hears nothing for this long counts as failed */
+    static final int CLIENT_TIMEOUT = 60 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int thinkMillis = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        System.out.println(String.format("%d clients x %d requests, %d ms think time, "
+            + "virtual threads %savailable", clients, requests, thinkMillis,
+            ThreadPool.supportsVirtualThreads() ? "" : "not "));
+        System.out.println(String.format("%-8s %10s %12s %10s %10s %12s",
+            "mode", "seconds", "requests/s", "p50 ms", "p99 ms", "peak threads"));
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            run(mode, clients, requests, thinkMillis, poolThreads);
+        }
+    }
+
+    private static void run(ExecutionMode mode, int clients, final int requests,
+            final int thinkMillis, int poolThreads) throws Exception {
+        final ServerClientHandler handler =
+            new ServerClientHandler(new KVServer(1000, 10), poolThreads, mode);
+        final SocketServer server =
+            new SocketServer(InetAddress.getLoopbackAddress().getHostAddress());
+        server.addHandler(handler);
+        server.connect();
+        Thread loop = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    System.err.println("server failed: " + e);
+                }
+            }
+        };
+        loop.start();
+
+        final String host = server.getHostname();
+        final int port = server.getPort();
+        final long[] latencies = new long[clients * requests];
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(clients);
+        final Semaphore connecting = new Semaphore(CONNECT_BURST);
+        ThreadPool drivers = new ThreadPool(clients, ExecutionMode.VIRTUAL);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            drivers.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(host, port, client, requests, thinkMillis, latencies, connecting);
+                    } catch (Exception e) {
+                        if (failures.incrementAndGet() == 1) {
+                            System.err.println("first client failure: " + e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        int peak = threads.getPeakThreadCount();
+
+        // stopping the server stops the handler too
+        server.stop();
+        loop.join();
+        drivers.stop();
+
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-8s %10.2f %12.0f %10.2f %10.2f %12d%s",
+            handler.threadPool.getExecutionMode(), elapsed / 1e9,
+            latencies.length * 1e9 / elapsed, percentile(sorted, 0.50) / 1e6,
+            percentile(sorted, 0.99) / 1e6, peak,
+            failures.get() > 0 ? "  (" + failures.get() + " clients failed)" : ""));
+    }
+
+    /**
+     * One client: open a connection, alternate puts and gets on it with a
+     * pause between each, and record how long every reply took.
+     */
+    private static void drive(String host, int port, int client, int requests,
+            int thinkMillis, long[] latencies, Semaphore connecting) throws Exception {
+        Socket sock;
+        connecting.acquire();
+        try {
+            sock = new Socket(host, port);
+        } finally {
+            connecting.release();
+        }
+        try {
+            sock.setTcpNoDelay(true);
+            sock.setSoTimeout(CLIENT_TIMEOUT);
+            OutputStream out = sock.getOutputStream();
+            InputStream in = sock.getInputStream();
+            for (int i = 0; i < requests; i++) {
+                KVMessage request = new KVMessage(i % 2 == 0 ? PUT_REQ : GET_REQ);
+                request.setKey("client" + client);
+                if (i % 2 == 0) {
+                    request.setValue("value" + i);
+                }
+                long sent = System.nanoTime();
+                out.write(request.toFrame(WireFormat.BINARY));
+                out.flush();
+                new KVMessage(in);
+                latencies[client * requests + i] = System.nanoTime() - sent;
+                Thread.sleep(thinkMillis);
+            }
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}
@@ -8,6 +8,12 @@ import static autograder.TestUtils.kTimeoutQuick;
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
 
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 
@@ -291,9 +297,422 @@ public class KVCacheTest {
     	assertEquals("mudkip", cache.get("7"));
     }
     
+    @Test
+    public void xmlFollowsSecondChanceOrder() {
+        KVCache cache = new KVCache(1, 3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KVCache><Set Id=\"0\">"
+            + "<CacheEntry isReferenced=\"false\"><Key>c</Key><Value>3</Value></CacheEntry>"
+            + "<CacheEntry isReferenced=\"false\"><Key>a</Key><Value>1</Value></CacheEntry>"
+            + "<CacheEntry isReferenced=\"true\"><Key>d</Key><Value>4</Value></CacheEntry>"
+            + "</Set></KVCache>", cache.toXML());
+    }
+
+    /**
+     * With admission on, keys used once during a scan do not push out keys
+     * in repeated use, whatever the eviction policy.
+     */
+    @Test
+    public void admissionKeepsHotKeysThroughScan() {
+        for (EvictionPolicy policy : EvictionPolicyTest.everyPolicy()) {
+            KVCache cache = new KVCache(1, 10, policy, true);
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 5; i++) {
+                    if (cache.get("hot" + i) == null) {
+                        cache.put("hot" + i, "value");
+                    }
+                }
+            }
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("scan" + i) == null) {
+                    cache.put("scan" + i, "value");
+                }
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals(policy.getClass().getSimpleName(), "value", cache.get("hot" + i));
+            }
+            assertTrue(cache.getRejections() > 0);
+        }
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        KVCache cache = new KVCache(1, 2);
+        assertEquals(0, cache.getHitRatio(), 0);
+        cache.get("a");
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 1e-9);
+        assertEquals(0, cache.getRejections());
+    }
+
+    @Test
+    public void tryGetFindsWhatGetFinds() {
+        KVCache cache = new KVCache(2, 2);
+        assertNull(cache.tryGet("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.tryGet("a"));
+        cache.put("a", "2");
+        assertEquals("2", cache.tryGet("a"));
+        cache.del("a");
+        assertNull(cache.tryGet("a"));
+        cache.put("a", "3");
+        cache.tryGet("a");
+        assertEquals(3, cache.getHits());
+    }
+
+    /**
+     * A hit through tryGet counts for the policy, once the set is next
+     * locked: the entry is referenced and survives the next eviction.
+     */
+    @Test
+    public void tryGetHitsReachThePolicy() {
+        KVCache cache = new KVCache(1, 2, new LRUPolicy());
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.tryGet("a"));
+        cache.put("c", "3");
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    /**
+     * Readers without the lock never see a key with another key's value
+     * while writers keep evicting and deleting in the same set.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void tryGetNeverSeesAnotherKeysValue() throws InterruptedException {
+        neverSeesAnotherKeysValue(new KVCache(1, 4));
+    }
+
+    /**
+     * Off heap, a reader may decode a chunk just freed and handed to
+     * another key; the version check must catch it.
+     */
+    @Test
+    public void offHeapTryGetNeverSeesAnotherKeysValue() throws InterruptedException {
+        neverSeesAnotherKeysValue(new KVCache(1, 4, new SecondChancePolicy(), false,
+            StorageMode.OFF_HEAP));
+    }
+
+    private void neverSeesAnotherKeysValue(final KVCache cache) throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> wrong = new AtomicReference<String>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                while (!done.get()) {
+                    String key = "k" + random.nextInt(16);
+                    Lock lock = cache.getLock(key);
+                    lock.lock();
+                    try {
+                        if (random.nextInt(4) == 0) {
+                            cache.del(key);
+                        } else {
+                            cache.put(key, key + "=" + random.nextInt(100));
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        };
+        writer.start();
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 200000; n++) {
+                        String key = "k" + (n % 16);
+                        String value = cache.tryGet(key);
+                        if (value != null && !value.startsWith(key + "=")) {
+                            wrong.set(key + " -> " + value);
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        done.set(true);
+        writer.join();
+        assertNull(wrong.get());
+    }
+
+    @Test
+    public void byteBudgetHoldsAcrossSets() {
+        KVCache cache = new KVCache(8, 100);
+        long budget = 20 * KVCache.sizeOf("key00", "0123456789");
+        cache.limitBytes(budget, Integer.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + (i < 10 ? "0" : "") + i;
+            cache.put(key, "0123456789");
+            assertTrue(cache.getBytes() <= budget);
+        }
+        int entries = 0;
+        for (int set = 0; set < 8; set++) {
+            entries += cache.getCacheSetSize(set);
+        }
+        assertEquals(20, entries);
+        assertEquals(budget, cache.getBytes());
+    }
+
+    /**
+     * One large value pushes out as many small entries as it needs room for.
+     */
+    @Test
+    public void largeValueEvictsSeveralEntries() {
+        KVCache cache = new KVCache(1, 10);
+        cache.limitBytes(KVCache.sizeOf("a", "") * 4 + 40, Integer.MAX_VALUE);
+        for (String key : new String[] {"a", "b", "c", "d"}) {
+            cache.put(key, "");
+        }
+        String large = String.format("%060d", 0);
+        cache.put("e", large);
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNull(cache.get("c"));
+        assertEquals(large, cache.get("e"));
+        assertEquals(KVCache.sizeOf("d", "") + KVCache.sizeOf("e", large),
+            cache.getBytes());
+    }
+
+    @Test
+    public void longValuesAreNotCached() {
+        KVCache cache = new KVCache(1, 4);
+        cache.limitBytes(Long.MAX_VALUE, 5);
+        cache.put("a", "12345");
+        assertEquals("12345", cache.get("a"));
+        cache.put("a", "123456");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBytes());
+        cache.put("b", "123456");
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() {
+        KVCache cache = new KVCache(1, 4);
+        cache.put("a", "1", System.currentTimeMillis() - 1);
+        cache.put("b", "2", System.currentTimeMillis() + 60000);
+        assertNull(cache.tryGet("a"));
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getCacheSetSize(0));
+        assertEquals("2", cache.tryGet("b"));
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * A full set gives up an expired entry before the policy's victim.
+     */
+    @Test
+    public void expiredEntryIsEvictedFirst() {
+        KVCache cache = new KVCache(1, 3, new LRUPolicy());
+        cache.put("a", "1");
+        cache.put("b", "2", System.currentTimeMillis() - 1);
+        cache.put("c", "3");
+        cache.put("d", "4");
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+    }
+
+    @Test
+    public void offHeapCacheKeepsValuesAndBudget() {
+        KVCache cache = new KVCache(2, 3, new LRUPolicy(), false, StorageMode.OFF_HEAP);
+        cache.limitBytes(Long.MAX_VALUE, Integer.MAX_VALUE);
+        String unicode = "välue ☃ \uD83D\uDE00";
+        cache.put("a", unicode);
+        cache.put("b", "2");
+        cache.put("b", "22");
+        assertEquals(unicode, cache.get("a"));
+        assertEquals(unicode, cache.tryGet("a"));
+        assertEquals("22", cache.get("b"));
+        assertEquals(KVCache.sizeOf("a", unicode) + KVCache.sizeOf("b", "22"),
+            cache.getBytes());
+        cache.del("a");
+        assertNull(cache.get("a"));
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertTrue(cache.toXML().contains("<Value>value19</Value>"));
+    }
+
+    @Test
+    public void missingKeysAreForgottenByPut() {
+        KVCache cache = new KVCache(1, 4);
+        assertFalse(cache.isMissing("a"));
+        cache.rememberMisses(2);
+        cache.putMissing("a");
+        cache.putMissing("b");
+        assertTrue(cache.isMissing("a"));
+        cache.put("a", "1");
+        assertFalse(cache.isMissing("a"));
+        assertTrue(cache.isMissing("b"));
+        // first in, first out
+        cache.putMissing("c");
+        cache.putMissing("d");
+        assertFalse(cache.isMissing("b"));
+        assertTrue(cache.isMissing("c"));
+        assertTrue(cache.isMissing("d"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void resizeKeepsWhatFits() throws InterruptedException {
+        KVCache cache = new KVCache(2, 50, new LRUPolicy(), false);
+        cache.rememberMisses(4);
+        for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.putMissing("ghost");
+        long bytes = cache.getBytes();
+        cache.resize(8, 20);
+        cache.awaitResize();
+        int total = 0;
+        for (int set = 0; set < 8; set++) {
+            total += cache.getCacheSetSize(set);
+        }
+        assertEquals(40, total);
+        assertEquals(-1, cache.getCacheSetSize(8));
+        assertEquals(bytes, cache.getBytes());
+        for (int i = 0; i < 40; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+        assertTrue(cache.isMissing("ghost"));
+        assertTrue(cache.toXML().contains("<Set Id=\"7\">"));
+
+        // shrinking keeps the most recently used of each set
+        cache.get("key3");
+        cache.resize(8, 1);
+        cache.awaitResize();
+        for (int set = 0; set < 8; set++) {
+            assertTrue(cache.getCacheSetSize(set) <= 1);
+        }
+        assertEquals("value3", cache.get("key3"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void resizeSplitsTheLocks() throws InterruptedException {
+        KVCache cache = new KVCache(1, 10);
+        // "a" and "b" share the only set until the cache has 16
+        Lock a = cache.getLock("a");
+        Lock b = cache.getLock("b");
+        a.lock();
+        assertFalse(tryLockElsewhere(b));
+        a.unlock();
+
+        assertSame(a, cache.getLock("a"));
+        assertSame(a, b);
+
+        cache.resize(16, 10);
+        cache.awaitResize();
+        // taken after the swap, a lock handed out before it covers every set
+        a.lock();
+        assertFalse(tryLockElsewhere(cache.getLock("b")));
+        a.unlock();
+
+        a = cache.getLock("a");
+        b = cache.getLock("b");
+        assertNotSame(a, b);
+        a.lock();
+        assertTrue(tryLockElsewhere(b));
+        // held, the lock cannot be swapped, so its conditions work
+        assertFalse(a.newCondition().await(1, TimeUnit.MILLISECONDS));
+        a.unlock();
+    }
+
+    /**
+     * get, put and del under getLock go on while the cache is resized over
+     * and over, and always see the last value put.
+     */
+    @Test
+    public void resizeUnderLoadLosesNoWrites() throws InterruptedException {
+        final KVCache cache = new KVCache(8, 200);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> wrong = new AtomicReference<String>();
+        Thread[] workers = new Thread[3];
+        for (int i = 0; i < workers.length; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(id);
+                    String[] last = new String[200];
+                    while (!done.get()) {
+                        int k = random.nextInt(last.length);
+                        String key = id + "-" + k;
+                        String seen = cache.tryGet(key);
+                        if (seen != null && !seen.equals(last[k])) {
+                            wrong.set(key + " -> " + seen + ", not " + last[k]);
+                        }
+                        Lock lock = cache.getLock(key);
+                        lock.lock();
+                        try {
+                            seen = cache.get(key);
+                            if (seen == null ? last[k] != null : !seen.equals(last[k])) {
+                                wrong.set(key + " -> " + seen + ", not " + last[k]);
+                            }
+                            if (random.nextInt(4) == 0) {
+                                cache.del(key);
+                                last[k] = null;
+                            } else {
+                                last[k] = key + "=" + random.nextInt(100);
+                                cache.put(key, last[k]);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        int[][] shapes = {{64, 50}, {3, 400}, {8, 200}};
+        for (int round = 0; round < 30; round++) {
+            int[] shape = shapes[round % shapes.length];
+            cache.resize(shape[0], shape[1]);
+            cache.awaitResize();
+        }
+        done.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(wrong.get());
+    }
+
     @Test
     public void dumpTest() {
     	
     }
-    
+
+    /* Whether another thread can take lock; it lets go again at once. */
+    private static boolean tryLockElsewhere(final Lock lock) throws InterruptedException {
+        final AtomicBoolean locked = new AtomicBoolean();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                if (lock.tryLock()) {
+                    locked.set(true);
+                    lock.unlock();
+                }
+            }
+        };
+        other.start();
+        other.join();
+        return locked.get();
+    }
 }
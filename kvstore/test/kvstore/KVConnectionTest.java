@@ -0,0 +1,134 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+public class KVConnectionTest {
+
+    /* Replies to every request with its key as the message. */
+    static final KVConnection.RequestProcessor ECHO = new KVConnection.RequestProcessor() {
+        @Override
+        public KVMessage process(KVMessage request) {
+            return new KVMessage(RESP, request.getKey());
+        }
+    };
+
+    @Test(timeout = kTimeoutQuick)
+    public void framedRequestGetsOneReplyAndCloses() throws Exception {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        KVMessage request = getRequest("one");
+        request.setRequestId(7);
+        requests.write(request.toFrame(WireFormat.BINARY));
+        requests.write(getRequest("two").toFrame(WireFormat.XML));
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Socket sock = mockSocket(new ByteArrayInputStream(requests.toByteArray()), replies);
+
+        answerOne(ECHO, sock);
+
+        InputStream in = new ByteArrayInputStream(replies.toByteArray());
+        KVMessage reply = new KVMessage(in);
+        assertEquals("one", reply.getMessage());
+        assertEquals(7, reply.getRequestId());
+        assertEquals(WireFormat.BINARY, reply.getWireFormat());
+        assertEquals(-1, in.read());
+        verify(sock, never()).shutdownOutput();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void bareXmlGetsOneShotReply() throws Exception {
+        byte[] request = getRequest("legacy").toBytes(WireFormat.XML);
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Socket sock = mockSocket(new ByteArrayInputStream(request), replies);
+
+        ThreadPool pool = new ThreadPool(1);
+        RequestJob.submit(pool, ECHO, sock);
+        verify(sock, timeout(kTimeoutQuick)).shutdownOutput();
+        pool.stop();
+
+        String xml = new String(replies.toByteArray(), "UTF-8");
+        assertEquals(new KVMessage(RESP, "legacy").toXML(), xml);
+        verify(sock, never()).close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void badFrameGetsErrorAndCloses() throws Exception {
+        byte[] request = {(byte) KVBinaryCodec.MAGIC, 5, 1};
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Socket sock = mockSocket(new ByteArrayInputStream(request), replies);
+
+        answerOne(ECHO, sock);
+
+        InputStream in = new ByteArrayInputStream(replies.toByteArray());
+        KVMessage error = new KVMessage(in);
+        assertEquals(ERROR_INVALID_FORMAT, error.getMessage());
+        assertEquals(WireFormat.BINARY, error.getWireFormat());
+        assertEquals(-1, in.read());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void failedRequestGetsServerFailure() throws Exception {
+        KVConnection.RequestProcessor failing = new KVConnection.RequestProcessor() {
+            @Override
+            public KVMessage process(KVMessage request) {
+                throw new IllegalStateException("store is broken");
+            }
+        };
+        byte[] request = getRequest("k").toFrame(WireFormat.XML);
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Socket sock = mockSocket(new ByteArrayInputStream(request), replies);
+
+        answerOne(failing, sock);
+
+        KVMessage reply = new KVMessage(new ByteArrayInputStream(replies.toByteArray()));
+        assertEquals(ERROR_SERVER_FAILURE, reply.getMessage());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void idleConnectionClosesQuietly() throws Exception {
+        InputStream idle = mock(InputStream.class);
+        when(idle.read()).thenThrow(new SocketTimeoutException());
+        when(idle.read(any(byte[].class), anyInt(), anyInt())).thenThrow(new SocketTimeoutException());
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Socket sock = mockSocket(idle, replies);
+
+        answerOne(ECHO, sock);
+
+        assertEquals(0, replies.size());
+    }
+
+    /* ----------------------- BEGIN HELPER METHODS ------------------------ */
+
+    private static KVMessage getRequest(String key) {
+        KVMessage request = new KVMessage(GET_REQ);
+        request.setKey(key);
+        return request;
+    }
+
+    /* Answer the request on sock as handle(Socket) does; wait for the close. */
+    private static void answerOne(KVConnection.RequestProcessor processor, Socket sock)
+            throws Exception {
+        ThreadPool pool = new ThreadPool(1);
+        RequestJob.submit(pool, processor, sock);
+        verify(sock, timeout(kTimeoutQuick)).close();
+        pool.stop();
+    }
+
+    private static Socket mockSocket(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        Socket sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(in);
+        when(sock.getOutputStream()).thenReturn(out);
+        return sock;
+    }
+}
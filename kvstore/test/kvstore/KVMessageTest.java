@@ -8,6 +8,7 @@ import static org.mockito.Mockito.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 
 import javax.xml.parsers.*;
 
@@ -198,6 +199,151 @@ public class KVMessageTest {
         }
     }
 
+    @Test(timeout = kTimeoutQuick)
+    public void binaryRoundTripKeepsFieldsAndFormat() throws Exception {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("kéy");
+        kvm.setValue("<v&lue>");
+        Socket out = mock(Socket.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        when(out.getOutputStream()).thenReturn(bytes);
+        kvm.sendMessage(out, WireFormat.BINARY);
+        assertEquals(KVBinaryCodec.MAGIC, bytes.toByteArray()[0] & 0xFF);
+
+        Socket in = mock(Socket.class);
+        when(in.getInputStream()).thenReturn(new ByteArrayInputStream(bytes.toByteArray()));
+        KVMessage parsed = new KVMessage(in);
+        assertEquals(WireFormat.BINARY, parsed.getWireFormat());
+        assertEquals(PUT_REQ, parsed.getMsgType());
+        assertEquals("kéy", parsed.getKey());
+        assertEquals("<v&lue>", parsed.getValue());
+        assertNull(parsed.getMessage());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void binaryRoundTripOfUnknownType() throws KVException {
+        KVMessage kvm = new KVMessage("custom", "");
+        byte[] frame = kvm.toBytes(WireFormat.BINARY);
+        KVMessage parsed = new KVMessage(new ByteArrayInputStream(frame));
+        assertEquals("custom", parsed.getMsgType());
+        assertEquals("", parsed.getMessage());
+        assertNull(parsed.getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void scanMessagesRoundTripInBothFormats() throws KVException {
+        KVMessage request = new KVMessage(SCAN_REQ);
+        request.setKey("user/");
+        request.setToken("user/b");
+        request.setLimit(2);
+        java.util.Map<String, String> pairs = new java.util.TreeMap<String, String>();
+        pairs.put("user/c", "<c>");
+        pairs.put("user/d", "");
+        KVMessage response = new KVMessage(RESP, SUCCESS);
+        response.setPairs(pairs);
+        response.setToken("user/d");
+        for (WireFormat format : WireFormat.values()) {
+            KVMessage parsed = new KVMessage(new ByteArrayInputStream(request.toFrame(format)));
+            assertEquals(SCAN_REQ, parsed.getMsgType());
+            assertEquals("user/", parsed.getKey());
+            assertEquals("user/b", parsed.getToken());
+            assertEquals(2, parsed.getLimit());
+            assertNull(parsed.getPairs());
+
+            parsed = new KVMessage(new ByteArrayInputStream(response.toFrame(format)));
+            assertEquals(SUCCESS, parsed.getMessage());
+            assertEquals(pairs, parsed.getPairs());
+            assertEquals("user/d", parsed.getToken());
+            assertEquals(KVMessage.NO_LIMIT, parsed.getLimit());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void truncatedBinaryFrameIsInvalidFormat() throws KVException {
+        KVMessage kvm = new KVMessage(GET_REQ);
+        kvm.setKey("hello");
+        byte[] frame = kvm.toBytes(WireFormat.BINARY);
+        byte[] truncated = Arrays.copyOf(frame, frame.length - 2);
+        try {
+            new KVMessage(new ByteArrayInputStream(truncated));
+            fail("truncated frame should not parse");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void xmlWithoutTypeIsInvalidFormat() throws Exception {
+        byte[] untyped = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KVMessage><Key>k</Key></KVMessage>").getBytes("UTF-8");
+        try {
+            new KVMessage(new ByteArrayInputStream(untyped));
+            fail("a message without a type should not parse");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void xmlIsDetectedAsXml() throws KVException {
+        sock = Utils.setupReadFromFile("getreq.txt");
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(WireFormat.XML, kvm.getWireFormat());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void xmlOutputMatchesJaxbLayout() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("a<b&c>\r\n\"");
+        kvm.setValue("");
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KVMessage type=\"putreq\"><Key>a&lt;b&amp;c&gt;&#xD;\n\"</Key>"
+            + "<Value></Value></KVMessage>", kvm.toXML());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void xmlRoundTripKeepsEscapedFields() throws KVException {
+        KVMessage kvm = new KVMessage(RESP, "méssäge & <more>");
+        kvm.setKey("\tk\r\ney");
+        KVMessage parsed = new KVMessage(new ByteArrayInputStream(kvm.toBytes(WireFormat.XML)));
+        assertEquals(RESP, parsed.getMsgType());
+        assertEquals("\tk\r\ney", parsed.getKey());
+        assertNull(parsed.getValue());
+        assertEquals("méssäge & <more>", parsed.getMessage());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void requestIdRoundTripsInBothFormats() throws KVException {
+        KVMessage kvm = new KVMessage(GET_REQ);
+        kvm.setKey("key");
+        kvm.setRequestId(300);
+        assertTrue(kvm.toXML().contains("<KVMessage type=\"getreq\" id=\"300\">"));
+        for (WireFormat format : WireFormat.values()) {
+            KVMessage parsed = new KVMessage(new ByteArrayInputStream(kvm.toFrame(format)));
+            assertEquals(300, parsed.getRequestId());
+            assertEquals("key", parsed.getKey());
+            parsed = new KVMessage(new ByteArrayInputStream(kvm.toBytes(format)));
+            assertEquals(300, parsed.getRequestId());
+        }
+        assertEquals(KVMessage.NO_REQUEST_ID, new KVMessage(RESP).getRequestId());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void ttlRoundTripsInBothFormats() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key");
+        kvm.setValue("value");
+        kvm.setTtl(1L << 40);
+        assertTrue(kvm.toXML().contains("<KVMessage type=\"putreq\" ttl=\"1099511627776\">"));
+        for (WireFormat format : WireFormat.values()) {
+            KVMessage parsed = new KVMessage(new ByteArrayInputStream(kvm.toFrame(format)));
+            assertEquals(1L << 40, parsed.getTtl());
+            assertEquals("value", parsed.getValue());
+        }
+        assertEquals(KVMessage.NO_TTL, new KVMessage(PUT_REQ).getTtl());
+        assertFalse(new KVMessage(PUT_REQ).toXML().contains("ttl"));
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
     /* Definitely don't make the parse code available to students */
@@ -15,6 +15,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.BeforeClass;
@@ -103,6 +104,126 @@ public class KVServerTest {
 
     }
 
+    /**
+     * Once the store has been found not to have a key, gets of it fail
+     * without asking the store again, until the key is put.
+     */
+    @Test
+    public void missingKeysSkipTheStoreUntilPut() throws Exception {
+        mockStore = mock(KVStore.class);
+        KVCache cache = new KVCache(4, 4);
+        whenNew(KVCache.class).withArguments(anyInt(), anyInt()).thenReturn(cache);
+        whenNew(KVStore.class).withNoArguments().thenReturn(mockStore);
+        server = new KVServer(4, 4);
+        server.rememberMisses(2);
+        // keep values out of the cache so that gets after the put reach the store
+        server.limitCacheBytes(Long.MAX_VALUE, 1);
+        when(mockStore.get("ghost"))
+            .thenThrow(new KVException(ERROR_NO_SUCH_KEY))
+            .thenReturn("boo");
+        for (int i = 0; i < 3; i++) {
+            try {
+                server.get("ghost");
+                fail("missing key was found");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getMessage());
+            }
+        }
+        verify(mockStore, times(1)).get("ghost");
+        server.put("ghost", "boo");
+        assertEquals("boo", server.get("ghost"));
+        verify(mockStore, times(2)).get("ghost");
+    }
+
+    /**
+     * With coalesceLoads, gets that miss on a key being read from the store
+     * wait for that one read, and gets of other keys in the set go on.
+     */
+    @Test(timeout = kTimeoutDefault)
+    public void coalescedGetsShareOneStoreRead() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        startSlowServer("slow", "value", reading, release);
+        when(mockStore.get("fast")).thenReturn("quick");
+        Thread[] getters = new Thread[4];
+        final String[] results = new String[getters.length];
+        for (int i = 0; i < getters.length; i++) {
+            final int n = i;
+            getters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[n] = server.get("slow");
+                    } catch (KVException e) {
+                        results[n] = e.getMessage();
+                    }
+                }
+            });
+            getters[i].start();
+        }
+        reading.await();
+        assertEquals("quick", server.get("fast"));
+        release.countDown();
+        for (int i = 0; i < getters.length; i++) {
+            getters[i].join();
+            assertEquals("value", results[i]);
+        }
+        verify(mockStore, times(1)).get("slow");
+    }
+
+    /**
+     * A put while a coalesced read is in flight keeps the read's older value
+     * out of the cache.
+     */
+    @Test(timeout = kTimeoutDefault)
+    public void putDuringCoalescedReadWins() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        startSlowServer("key", "old", reading, release);
+        final String[] result = new String[1];
+        Thread getter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = server.get("key");
+                } catch (KVException e) {
+                    result[0] = e.getMessage();
+                }
+            }
+        });
+        getter.start();
+        reading.await();
+        server.put("key", "new");
+        release.countDown();
+        getter.join();
+        assertEquals("old", result[0]);
+        assertEquals("new", server.get("key"));
+        verify(mockStore, times(1)).get("key");
+    }
+
+    /**
+     * Serve from a mock store, through a one-set cache, with coalesceLoads;
+     * the store's get of key counts down reading and returns value once
+     * release is counted down.
+     */
+    private void startSlowServer(String key, final String value,
+            final CountDownLatch reading, final CountDownLatch release) throws Exception {
+        mockStore = mock(KVStore.class);
+        KVCache cache = new KVCache(1, 4);
+        whenNew(KVCache.class).withArguments(anyInt(), anyInt()).thenReturn(cache);
+        whenNew(KVStore.class).withNoArguments().thenReturn(mockStore);
+        server = new KVServer(1, 4);
+        server.coalesceLoads();
+        when(mockStore.get(key)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                reading.countDown();
+                release.await();
+                return value;
+            }
+        });
+    }
+
     public void setupMockServer() {
         try {
             mockCache = mock(KVCache.class);
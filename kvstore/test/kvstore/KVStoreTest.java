@@ -3,7 +3,9 @@ package kvstore;
 import static autograder.TestUtils.kTimeoutQuick;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.RESP;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -11,11 +13,20 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
 
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
@@ -24,6 +35,9 @@ public class KVStoreTest {
 
     KVStore store;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setupStore() {
         store = new KVStore();
@@ -39,6 +53,412 @@ public class KVStoreTest {
         store.put(key, val);
         assertEquals(val, store.get(key));
     }
+
+    /**
+     * Off heap, the store holds what a map would, across chunk sizes, reuse
+     * of freed chunks and values larger than a slab.
+     */
+    @Test(timeout = kTimeoutQuick)
+    public void offHeapStoreMatchesHeapStore() throws KVException {
+        KVStore offHeap = new KVStore(StorageMode.OFF_HEAP);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(3);
+        for (int op = 0; op < 20000; op++) {
+            String key = "key" + random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                if (expected.remove(key) != null) {
+                    offHeap.del(key);
+                }
+            } else {
+                int length = random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(40);
+                StringBuilder value = new StringBuilder();
+                for (int i = 0; i <= length; i++) {
+                    value.append((char) ('a' + random.nextInt(26)));
+                }
+                value.append('é');
+                offHeap.put(key, value.toString());
+                expected.put(key, value.toString());
+            }
+        }
+        char[] huge = new char[SlabAllocator.SLAB_SIZE];
+        Arrays.fill(huge, 'h');
+        offHeap.put("huge", new String(huge));
+        expected.put("huge", new String(huge));
+        offHeap.put("huge", "small again");
+        expected.put("huge", "small again");
+        assertEquals(expected.size(), offHeap.store.size());
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), offHeap.get(e.getKey()));
+        }
+        assertEquals(expected, new HashMap<String, String>(offHeap.store));
+
+        offHeap.dumpToFile("offheap.xml");
+        offHeap.restoreFromFile("offheap.xml");
+        new File("offheap.xml").delete();
+        assertEquals(expected, new HashMap<String, String>(offHeap.store));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void expiredKeysAreGoneOnAccess() throws KVException {
+        long past = System.currentTimeMillis() - 1;
+        store.put("get", "value", past);
+        store.put("del", "value", past);
+        store.put("live", "value", past + 60000);
+        try {
+            store.get("get");
+            fail("expired key was returned");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            store.del("del");
+            fail("expired key was deleted");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals("value", store.get("live"));
+        // get leaves the expired key for the timer wheel to drop
+        assertEquals(2, store.store.size());
+        try {
+            store.get("get");
+            fail("expired key was returned");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void diskStoreComesBackAfterReopen() throws Exception {
+        File directory = folder.newFolder("disk");
+        KVStore disk = new KVStore(directory);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(4);
+        for (int op = 0; op < 5000; op++) {
+            String key = "key" + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                if (expected.remove(key) != null) {
+                    disk.del(key);
+                }
+            } else {
+                String value = key + "=" + random.nextInt() + "\u00e9";
+                disk.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        long later = System.currentTimeMillis() + 60000;
+        disk.put("ttl", "value", later);
+        disk.close();
+
+        // a write torn off by a crash is cut off on the way back
+        FileOutputStream torn = new FileOutputStream(
+            new File(directory, String.format("%010d.data", 0)), true);
+        torn.write(new byte[] {1, 2, 3, 4, 5});
+        torn.close();
+
+        disk = new KVStore(directory);
+        assertEquals(expected.size() + 1, disk.store.size());
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), disk.get(e.getKey()));
+        }
+        assertEquals(later, disk.getExpiresAt("ttl"));
+        disk.put("after", "reopen");
+        disk.close();
+        disk = new KVStore(directory);
+        assertEquals("reopen", disk.get("after"));
+        disk.resetStore();
+        assertEquals(0, disk.store.size());
+        disk.close();
+    }
+
+    @Test
+    public void diskMergeKeepsOnlyLiveRecords() throws IOException {
+        File directory = folder.newFolder("merge");
+        BitcaskMap disk = new BitcaskMap(directory, 4096);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(5);
+        for (int op = 0; op < 20000; op++) {
+            String key = "key" + random.nextInt(100);
+            if (random.nextInt(4) == 0) {
+                expected.remove(key);
+                disk.remove(key);
+            } else {
+                String value = key + "=" + random.nextInt();
+                disk.put(key, value, KVMessage.NO_TTL);
+                expected.put(key, value);
+            }
+        }
+        long before = directorySize(directory);
+        assertTrue(disk.needsMerge());
+        disk.merge();
+        assertTrue(directorySize(directory) < before / 4);
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.close();
+
+        // from the hint files this time
+        disk = new BitcaskMap(directory, 4096);
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.close();
+    }
+
+    @Test
+    public void diskMergeCrashKeepsDeletesDeleted() throws IOException {
+        File directory = folder.newFolder("crash");
+        BitcaskMap disk = new BitcaskMap(directory, 4096);
+        disk.put("gone", "value", KVMessage.NO_TTL);
+        fillActiveFile(disk, "a");
+        // "gone" moves to a merge output, whose id is above the active file's
+        disk.merge();
+        disk.remove("gone");
+        fillActiveFile(disk, "b");
+        File first = disk.mergeOrder().get(0);
+        disk.close();
+
+        // a crash right after the next merge deleted its first file
+        File crashed = folder.newFolder("crashed");
+        String dropped = first.getName().replace(".data", "");
+        for (File file : directory.listFiles()) {
+            if (!file.getName().startsWith(dropped)) {
+                Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+            }
+        }
+        disk = new BitcaskMap(crashed, 4096);
+        assertNull(disk.get("gone"));
+        disk.close();
+    }
+
+    @Test
+    public void lsmStoreComesBackAfterReopen() throws Exception {
+        File directory = folder.newFolder("lsm");
+        KVStore disk = new KVStore(directory, DiskEngine.LSM);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(6);
+        for (int op = 0; op < 5000; op++) {
+            String key = "key" + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                if (expected.remove(key) != null) {
+                    disk.del(key);
+                }
+            } else {
+                String value = key + "=" + random.nextInt() + "\u00e9";
+                disk.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        long later = System.currentTimeMillis() + 60000;
+        disk.put("ttl", "value", later);
+        disk.close();
+
+        // a write torn off by a crash is cut off on the way back
+        FileOutputStream torn = new FileOutputStream(
+            new File(directory, String.format("%010d.log", 0)), true);
+        torn.write(new byte[] {1, 2, 3, 4, 5});
+        torn.close();
+
+        disk = new KVStore(directory, DiskEngine.LSM);
+        assertEquals(expected.size() + 1, disk.store.size());
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), disk.get(e.getKey()));
+        }
+        assertEquals(later, disk.getExpiresAt("ttl"));
+        disk.del("ttl");
+        disk.close();
+        disk = new KVStore(directory, DiskEngine.LSM);
+        assertEquals(expected, new HashMap<String, String>(disk.store));
+        disk.resetStore();
+        assertEquals(0, disk.store.size());
+        disk.close();
+    }
+
+    @Test
+    public void lsmCompactionKeepsNewestValues() throws IOException {
+        File directory = folder.newFolder("compact");
+        LsmMap disk = new LsmMap(directory, 4096);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(7);
+        for (int op = 0; op < 40000; op++) {
+            String key = "key" + random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                disk.delete(key);
+            } else {
+                String value = key + "=" + random.nextInt();
+                disk.put(key, value, KVMessage.NO_TTL);
+                expected.put(key, value);
+            }
+            if (op % 1000 == 0) {
+                // while flushes and compactions go on
+                assertEquals(expected.get(key), disk.get(key));
+            }
+        }
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.compact();
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.close();
+
+        disk = new LsmMap(directory, 4096);
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.compact();
+        assertEquals(1, disk.tableCount());
+        assertEquals(expected, new HashMap<String, String>(disk));
+        disk.close();
+    }
+
+    @Test
+    public void scanPagesThroughPrefixInOrder() throws Exception {
+        KVStore ordered = new KVStore(StorageMode.ORDERED);
+        KVStore lsm = new KVStore(folder.newFolder("scan"), DiskEngine.LSM);
+        for (KVStore scanned : new KVStore[] {ordered, lsm}) {
+            assertTrue(scanned.isOrdered());
+            for (int i = 0; i < 25; i++) {
+                scanned.put(String.format("user/%02d", i), "value" + i);
+            }
+            scanned.put("user", "not under the prefix");
+            scanned.put("users", "nor this");
+            scanned.put("user/07", "expired", System.currentTimeMillis() - 1);
+            scanned.del("user/13");
+
+            Map<String, String> all = new java.util.TreeMap<String, String>();
+            String token = null;
+            int pages = 0;
+            do {
+                Map<String, String> page = new HashMap<String, String>();
+                token = scanned.scan("user/", token, 10, Long.MAX_VALUE, page);
+                assertTrue(page.size() <= 10);
+                all.putAll(page);
+                pages++;
+            } while (token != null);
+            assertEquals(3, pages);
+            assertEquals(23, all.size());
+            assertEquals("value0", all.get("user/00"));
+            assertEquals("value24", all.get("user/24"));
+            assertNull(all.get("user/07"));
+            assertNull(all.get("user/13"));
+
+            // a page holds one pair past maxChars at least
+            Map<String, String> page = new HashMap<String, String>();
+            assertEquals("user/00", scanned.scan("user/", null, 10, 1, page));
+            assertEquals(1, page.size());
+        }
+        lsm.close();
+
+        try {
+            store.scan("", null, 10, Long.MAX_VALUE, new HashMap<String, String>());
+            fail("a hashed store scanned");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_SCAN_UNSUPPORTED, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void snapshotComesBackAndCatchesCorruption() throws Exception {
+        // the check value of CRC-32C
+        CRC32C crc = new CRC32C();
+        crc.update("123456789".getBytes("US-ASCII"));
+        assertEquals(0xe3069283L, crc.getValue());
+
+        long later = System.currentTimeMillis() + 60000;
+        char[] big = new char[3 * KVSnapshot.BLOCK_SIZE];
+        Arrays.fill(big, 'é');
+        for (StorageMode mode : new StorageMode[] {StorageMode.HEAP, StorageMode.ORDERED}) {
+            KVStore dumped = new KVStore(mode);
+            for (int i = 0; i < 20000; i++) {
+                dumped.put("key" + i, "value☃" + i);
+            }
+            dumped.put("big", new String(big));
+            dumped.put("later", "value", later);
+            dumped.put("expired", "value", System.currentTimeMillis() - 1);
+            File file = folder.newFile();
+            dumped.dumpSnapshot(file.getPath());
+
+            KVStore restored = new KVStore(mode);
+            restored.put("stale", "value");
+            restored.restoreSnapshot(file.getPath());
+            assertEquals(20002, restored.store.size());
+            assertEquals("value☃1234", restored.get("key1234"));
+            assertEquals(new String(big), restored.get("big"));
+            assertEquals(later, restored.getExpiresAt("later"));
+            assertNull(restored.store.get("expired"));
+            assertNull(restored.store.get("stale"));
+
+            // as with four processors
+            KVStore parallel = new KVStore(mode);
+            assertEquals(20002, KVSnapshot.load(file, parallel, 4));
+            assertEquals(restored.store, parallel.store);
+
+            // a flipped bit in the middle of the blocks
+            java.io.RandomAccessFile raw = new java.io.RandomAccessFile(file, "rw");
+            raw.seek(raw.length() / 2);
+            int b = raw.read();
+            raw.seek(raw.length() / 2);
+            raw.write(b ^ 0x10);
+            raw.close();
+            try {
+                restored.restoreSnapshot(file.getPath());
+                fail("a corrupt snapshot loaded");
+            } catch (IOException e) {
+                assertEquals(0, restored.store.size());
+            }
+        }
+    }
+
+    @Test
+    public void failedSnapshotRestoreLeavesStoreEmpty() throws Exception {
+        KVStore dumped = new KVStore();
+        for (int i = 0; i < 1000; i++) {
+            dumped.put("key" + i, "value" + i);
+        }
+        File file = folder.newFile();
+        dumped.dumpSnapshot(file.getPath());
+
+        // as a disk store's put does when its files cannot be written
+        KVStore restored = new KVStore() {
+            @Override
+            public void put(String key, String value, long expiresAt) {
+                if (key.equals("key500")) {
+                    throw new IllegalStateException("Cannot write");
+                }
+                super.put(key, value, expiresAt);
+            }
+        };
+        try {
+            restored.restoreSnapshot(file.getPath());
+            fail("a failed put was dropped");
+        } catch (IllegalStateException e) {
+            assertEquals(0, restored.store.size());
+        }
+    }
+
+    /* Put enough under prefix to close the active file of a 4096 byte disk map. */
+    private static void fillActiveFile(BitcaskMap disk, String prefix) {
+        char[] value = new char[1000];
+        Arrays.fill(value, 'x');
+        for (int i = 0; i < 5; i++) {
+            disk.put(prefix + i, new String(value), KVMessage.NO_TTL);
+        }
+    }
+
+    private static long directorySize(File directory) {
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void expireDropsOnlyDueKeys() throws Exception {
+        long now = System.currentTimeMillis();
+        store.put("soon", "value", now + 20);
+        store.put("later", "value", now + 60000);
+        store.put("renewed", "value", now + 20);
+        store.put("renewed", "value");
+        Thread.sleep(20 + 3 * KVStore.EXPIRY_TICK_MILLIS);
+        assertEquals(Arrays.asList("soon"), store.expire());
+        assertNull(store.store.get("soon"));
+        assertEquals("value", store.get("later"));
+        assertEquals("value", store.get("renewed"));
+        assertEquals(KVMessage.NO_TTL, store.getExpiresAt("renewed"));
+    }
     
     @Test
     public void dumpTest() {
@@ -74,6 +494,20 @@ public class KVStoreTest {
 		}
     }
     
+    @Test
+    public void failedDumpKeepsTheLastGoodDump() throws Exception {
+        File file = folder.newFile();
+        store.put("key", "value");
+        store.dumpToFile(file.getPath());
+        byte[] good = Files.readAllBytes(file.toPath());
+
+        // a lone surrogate cannot be encoded, so the second dump fails
+        store.put("broken", "\uD800");
+        store.dumpToFile(file.getPath());
+        assertArrayEquals(good, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
     @Test
     public void restoreTest() {
     	store.put("Catherine", "basic");
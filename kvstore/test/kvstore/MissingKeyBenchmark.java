@@ -0,0 +1,63 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Gets of keys the store does not have, against a KVServer holding KEYS
+ * keys, with and without rememberMisses. A quarter of the gets ask for keys
+ * that exist. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=MissingKeyBenchmark
+ *
+ * or pass the number of gets per case as the first argument.
+ */
+public class MissingKeyBenchmark {
+
+    static final int KEYS = 10000;
+    static final int MISSING = 1000;
+    static final int NUM_SETS = 100;
+    static final int SET_SIZE = 10;
+
+    public static void main(String[] args) throws Exception {
+        int gets = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        String[] present = new String[KEYS];
+        String[] absent = new String[MISSING];
+        for (int i = 0; i < KEYS; i++) {
+            present[i] = "key" + i;
+        }
+        for (int i = 0; i < MISSING; i++) {
+            absent[i] = "nokey" + i;
+        }
+        System.out.println(String.format("%d keys, %d missing keys probed, %d gets",
+            KEYS, MISSING, gets));
+        System.out.println(String.format("%-16s %12s", "misses per set", "gets/s"));
+        for (int perSet : new int[] {0, 4, 16}) {
+            double best = 0;
+            for (int round = 0; round < 3; round++) {
+                KVServer server = new KVServer(NUM_SETS, SET_SIZE);
+                if (perSet > 0) {
+                    server.rememberMisses(perSet);
+                }
+                for (String key : present) {
+                    server.put(key, "value");
+                }
+                Random random = new Random(round);
+                long start = System.nanoTime();
+                for (int i = 0; i < gets; i++) {
+                    try {
+                        if (random.nextInt(4) == 0) {
+                            server.get(present[random.nextInt(KEYS)]);
+                        } else {
+                            server.get(absent[random.nextInt(MISSING)]);
+                        }
+                    } catch (KVException e) {
+                        // expected for absent keys
+                    }
+                }
+                best = Math.max(best, gets * 1e9 / (System.nanoTime() - start));
+            }
+            System.out.println(String.format("%-16s %12.0f",
+                perSet == 0 ? "off" : Integer.toString(perSet), best));
+        }
+    }
+}
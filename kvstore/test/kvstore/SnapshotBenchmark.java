@@ -0,0 +1,81 @@
+package kvstore;
+
+import java.io.File;
+
+/**
+ * How long a store takes to dump and to come back as XML, through
+ * dumpToFile and restoreFromFile, and as a binary snapshot, through
+ * dumpSnapshot and KVSnapshot.load with 1, 2, 4 ... threads up to the
+ * number of processors. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=SnapshotBenchmark
+ *
+ * or pass the number of keys and the value length as arguments. Some
+ * millions of keys need a bigger -Xmx.
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int processors = Runtime.getRuntime().availableProcessors();
+        KVStore store = new KVStore();
+        char[] chars = new char[length];
+        for (int i = 0; i < keys; i++) {
+            for (int c = 0; c < length; c++) {
+                chars[c] = (char) ('a' + (i * 31 + c) % 26);
+            }
+            store.put("key" + i, new String(chars));
+        }
+        File xml = File.createTempFile("SnapshotBenchmark", ".xml");
+        File snapshot = File.createTempFile("SnapshotBenchmark", ".snap");
+        xml.deleteOnExit();
+        snapshot.deleteOnExit();
+        System.out.println(String.format("%d keys, values of %d chars, %d processors",
+            keys, length, processors));
+        System.out.println(String.format("%-22s %10s %10s %10s", "format", "file MB",
+            "dump ms", "load ms"));
+
+        long start = System.nanoTime();
+        store.dumpToFile(xml.getPath());
+        long dump = System.nanoTime() - start;
+        KVStore restored = new KVStore();
+        System.gc();
+        start = System.nanoTime();
+        restored.restoreFromFile(xml.getPath());
+        long load = System.nanoTime() - start;
+        check(restored, keys);
+        report("XML", xml, dump, load);
+        restored = null;
+
+        start = System.nanoTime();
+        store.dumpSnapshot(snapshot.getPath());
+        dump = System.nanoTime() - start;
+        for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+            restored = new KVStore();
+            System.gc();
+            start = System.nanoTime();
+            KVSnapshot.load(snapshot, restored, threads);
+            load = System.nanoTime() - start;
+            check(restored, keys);
+            report("snapshot, " + threads + " threads", snapshot, dump, load);
+            restored = null;
+            if (threads == processors) {
+                break;
+            }
+        }
+        xml.delete();
+        snapshot.delete();
+    }
+
+    private static void check(KVStore restored, int keys) {
+        if (restored.store.size() != keys) {
+            throw new IllegalStateException("restored " + restored.store.size() + " keys");
+        }
+    }
+
+    private static void report(String name, File file, long dump, long load) {
+        System.out.println(String.format("%-22s %10.1f %10.0f %10.0f", name,
+            file.length() / 1048576.0, dump / 1e6, load / 1e6));
+    }
+}
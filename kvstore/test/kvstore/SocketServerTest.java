@@ -1,10 +1,15 @@
 package kvstore;
 
 import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.*;
 import org.junit.experimental.categories.Category;
@@ -14,8 +19,17 @@ import autograder.AGCategories.AG_PROJ3_CODE;
 
 public class SocketServerTest {
 
+    /* Replies to every request with its key as the message. */
+    static final KVConnection.RequestProcessor ECHO = new KVConnection.RequestProcessor() {
+        @Override
+        public KVMessage process(KVMessage request) {
+            return new KVMessage(RESP, request.getKey());
+        }
+    };
+
     static String localhostName;
     SocketServer ss;
+    Thread loop;
 
     @BeforeClass
     public static void findLocalhostName() {
@@ -32,6 +46,14 @@ public class SocketServerTest {
         ss = new SocketServer(localhostName);
     }
 
+    @After
+    public void tearDown() throws InterruptedException {
+        ss.stop();
+        if (loop != null) {
+            loop.join();
+        }
+    }
+
     @Test(timeout = kTimeoutQuick)
     @Category(AG_PROJ3_CODE.class)
     @AGTestDetails(points = 2,
@@ -46,5 +68,253 @@ public class SocketServerTest {
         ss.start();
     }
 
+    @Test(timeout = kTimeoutQuick)
+    public void framedRequestsShareOneSocket() throws Exception {
+        Socket sock = serve(ECHO, 1);
+        OutputStream out = sock.getOutputStream();
+        out.write(getRequest("one").toFrame(WireFormat.XML));
+        out.write(getRequest("two").toFrame(WireFormat.BINARY));
+        out.write(getRequest("three").toFrame(WireFormat.XML));
+        out.flush();
+
+        InputStream in = sock.getInputStream();
+        KVMessage reply = new KVMessage(in);
+        assertEquals("one", reply.getMessage());
+        assertEquals(WireFormat.XML, reply.getWireFormat());
+        reply = new KVMessage(in);
+        assertEquals("two", reply.getMessage());
+        assertEquals(WireFormat.BINARY, reply.getWireFormat());
+        reply = new KVMessage(in);
+        assertEquals("three", reply.getMessage());
+        sock.shutdownOutput();
+        assertEquals(-1, in.read());
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void bareXmlGetsOneShotReply() throws Exception {
+        Socket sock = serve(ECHO, 1);
+        sock.getOutputStream().write(getRequest("legacy").toBytes(WireFormat.XML));
+        sock.shutdownOutput();
+
+        assertEquals(new KVMessage(RESP, "legacy").toXML(), readToEnd(sock));
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void badFrameGetsErrorAndEndsConnection() throws Exception {
+        Socket sock = serve(ECHO, 1);
+        OutputStream out = sock.getOutputStream();
+        out.write(getRequest("ok").toFrame(WireFormat.BINARY));
+        out.write(new byte[] {(byte) KVBinaryCodec.MAGIC, 5, 1});
+        sock.shutdownOutput();
+
+        InputStream in = sock.getInputStream();
+        assertEquals("ok", new KVMessage(in).getMessage());
+        KVMessage error = new KVMessage(in);
+        assertEquals(ERROR_INVALID_FORMAT, error.getMessage());
+        assertEquals(WireFormat.BINARY, error.getWireFormat());
+        assertEquals(-1, in.read());
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void idleConnectionIsClosed() throws Exception {
+        ss.idleTimeout = 200;
+        Socket sock = serve(ECHO, 1);
+
+        assertEquals(-1, sock.getInputStream().read());
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void failedRequestIsAnsweredAndConnectionStaysUp() throws Exception {
+        KVConnection.RequestProcessor processor = new KVConnection.RequestProcessor() {
+            @Override
+            public KVMessage process(KVMessage request) {
+                if (request.getKey().equals("broken")) {
+                    throw new IllegalStateException("store is broken");
+                }
+                return ECHO.process(request);
+            }
+        };
+        Socket sock = serve(processor, 1);
+        OutputStream out = sock.getOutputStream();
+        out.write(getRequest("broken").toFrame(WireFormat.XML));
+        out.write(getRequest("fine").toFrame(WireFormat.XML));
+        out.flush();
+
+        InputStream in = sock.getInputStream();
+        assertEquals(ERROR_SERVER_FAILURE, new KVMessage(in).getMessage());
+        assertEquals("fine", new KVMessage(in).getMessage());
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void pipelinedRequestsCompleteOutOfOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        KVConnection.RequestProcessor processor = new KVConnection.RequestProcessor() {
+            @Override
+            public KVMessage process(KVMessage request) {
+                if (request.getKey().equals("slow")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        fail("interrupted");
+                    }
+                }
+                return ECHO.process(request);
+            }
+        };
+        Socket sock = serve(processor, 2);
+        KVMessage slow = getRequest("slow");
+        slow.setRequestId(1);
+        KVMessage fast = getRequest("fast");
+        fast.setRequestId(2);
+        OutputStream out = sock.getOutputStream();
+        out.write(slow.toFrame(WireFormat.BINARY));
+        out.write(fast.toFrame(WireFormat.BINARY));
+        out.flush();
+
+        // slow is still running, so this can only be the answer to fast
+        InputStream in = sock.getInputStream();
+        KVMessage first = new KVMessage(in);
+        release.countDown();
+        KVMessage second = new KVMessage(in);
+        assertEquals(2, first.getRequestId());
+        assertEquals("fast", first.getMessage());
+        assertEquals(1, second.getRequestId());
+        assertEquals("slow", second.getMessage());
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void requestsWithoutIdStayInOrder() throws Exception {
+        Socket sock = serve(ECHO, 4);
+        OutputStream out = sock.getOutputStream();
+        for (int i = 0; i < 10; i++) {
+            out.write(getRequest("k" + i).toFrame(WireFormat.XML));
+        }
+        out.flush();
+
+        InputStream in = sock.getInputStream();
+        for (int i = 0; i < 10; i++) {
+            KVMessage reply = new KVMessage(in);
+            assertEquals("k" + i, reply.getMessage());
+            assertEquals(KVMessage.NO_REQUEST_ID, reply.getRequestId());
+        }
+        sock.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void fullBlockingPoolStallsConnectionsNotLoop() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        KVConnection.RequestProcessor processor = new KVConnection.RequestProcessor() {
+            @Override
+            public KVMessage process(KVMessage request) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return ECHO.process(request);
+            }
+        };
+        // one request running, one queued, and the rest turned down
+        Socket first = serve(processor, new ThreadPool(1, 1, OverloadPolicy.BLOCK));
+        OutputStream out = first.getOutputStream();
+        for (int i = 1; i <= 3; i++) {
+            KVMessage request = getRequest("k" + i);
+            request.setRequestId(i);
+            out.write(request.toFrame(WireFormat.BINARY));
+        }
+        out.flush();
+        Socket second = new Socket(ss.getHostname(), ss.getPort());
+        second.getOutputStream().write(getRequest("k4").toFrame(WireFormat.XML));
+
+        // the loop still answers what needs no pool thread
+        Socket bad = new Socket(ss.getHostname(), ss.getPort());
+        bad.getOutputStream().write(new byte[] {(byte) KVBinaryCodec.MAGIC, 5, 1});
+        bad.shutdownOutput();
+        assertEquals(ERROR_INVALID_FORMAT, new KVMessage(bad.getInputStream()).getMessage());
+        bad.close();
+
+        release.countDown();
+        InputStream in = first.getInputStream();
+        for (int i = 1; i <= 3; i++) {
+            assertEquals("k" + i, new KVMessage(in).getMessage());
+        }
+        assertEquals("k4", new KVMessage(second.getInputStream()).getMessage());
+        first.close();
+        second.close();
+    }
+
+    /* ----------------------- BEGIN HELPER METHODS ------------------------ */
+
+    /* Answers through RequestJob on its own pool, as the servers' handlers do. */
+    static class ProcessorHandler implements NetworkHandler {
+
+        final KVConnection.RequestProcessor processor;
+        final ThreadPool pool;
+
+        ProcessorHandler(KVConnection.RequestProcessor processor, ThreadPool pool) {
+            this.processor = processor;
+            this.pool = pool;
+        }
 
+        @Override
+        public void handle(Socket sock) {
+            RequestJob.submit(pool, processor, sock);
+        }
+
+        @Override
+        public boolean handle(KVMessage request, Reply reply) {
+            return RequestJob.submit(pool, processor, request, reply);
+        }
+
+        @Override
+        public void stop() {
+            pool.stop();
+        }
+    }
+
+    /* Start ss on its own thread in front of processor and connect to it. */
+    private Socket serve(KVConnection.RequestProcessor processor, int threads)
+            throws IOException {
+        return serve(processor, new ThreadPool(threads));
+    }
+
+    private Socket serve(KVConnection.RequestProcessor processor, ThreadPool pool)
+            throws IOException {
+        ss.addHandler(new ProcessorHandler(processor, pool));
+        ss.connect();
+        loop = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+        };
+        loop.start();
+        return new Socket(ss.getHostname(), ss.getPort());
+    }
+
+    private static KVMessage getRequest(String key) {
+        KVMessage request = new KVMessage(GET_REQ);
+        request.setKey(key);
+        return request;
+    }
+
+    private static String readToEnd(Socket sock) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = sock.getInputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            bytes.write(b);
+        }
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
 }
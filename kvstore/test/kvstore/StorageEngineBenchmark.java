@@ -0,0 +1,107 @@
+package kvstore;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Puts, gets and dels per second against a KVStore kept in memory and kept
+ * on disk by each DiskEngine, and how long each takes to come back after a
+ * restart: for the store in memory that is restoreFromFile of a dump, for
+ * the others opening the directory again. Half the gets are of keys that
+ * were deleted. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=StorageEngineBenchmark
+ *
+ * or pass the number of keys and the value length as arguments. The files
+ * go in a directory under java.io.tmpdir, deleted afterwards.
+ */
+public class StorageEngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String[] values = new String[1024];
+        Random random = new Random(1);
+        char[] chars = new char[length];
+        for (int i = 0; i < values.length; i++) {
+            for (int c = 0; c < length; c++) {
+                chars[c] = (char) ('a' + random.nextInt(26));
+            }
+            values[i] = new String(chars);
+        }
+        File root = new File(System.getProperty("java.io.tmpdir"),
+            "StorageEngineBenchmark" + System.nanoTime());
+        System.out.println(String.format("%d keys, values of %d chars", keys, length));
+        System.out.println(String.format("%-8s %12s %12s %12s %12s",
+            "engine", "puts/s", "gets/s", "dels/s", "restart ms"));
+        for (String engine : new String[] {"HEAP", "BITCASK", "LSM"}) {
+            File directory = new File(root, engine);
+            KVStore store = open(engine, directory);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < keys; i++) {
+                store.put("key" + i, values[i % values.length]);
+            }
+            double puts = keys * 1e9 / (System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < keys; i += 2) {
+                store.del("key" + i);
+            }
+            double dels = (keys / 2) * 1e9 / (System.nanoTime() - start);
+
+            random = new Random(2);
+            start = System.nanoTime();
+            long found = 0;
+            for (int i = 0; i < keys; i++) {
+                try {
+                    found += store.get("key" + random.nextInt(keys)).length();
+                } catch (KVException e) {
+                    // a deleted key
+                }
+            }
+            double gets = keys * 1e9 / (System.nanoTime() - start);
+            if (found == 0) {
+                System.out.println();
+            }
+
+            long restart;
+            if (engine.equals("HEAP")) {
+                directory.mkdirs();
+                String dump = new File(directory, "dump.xml").getPath();
+                store.dumpToFile(dump);
+                store = new KVStore();
+                start = System.nanoTime();
+                store.restoreFromFile(dump);
+                restart = System.nanoTime() - start;
+            } else {
+                store.close();
+                start = System.nanoTime();
+                store = open(engine, directory);
+                restart = System.nanoTime() - start;
+            }
+            System.out.println(String.format("%-8s %12.0f %12.0f %12.0f %12.1f",
+                engine, puts, gets, dels, restart / 1e6));
+            store.close();
+            delete(directory);
+        }
+        root.delete();
+    }
+
+    private static KVStore open(String engine, File directory) throws Exception {
+        if (engine.equals("HEAP")) {
+            return new KVStore();
+        }
+        return new KVStore(directory, DiskEngine.valueOf(engine));
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,75 @@
+package kvstore;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Heap left in use and the time a full collection takes with a KVStore full
+ * of values, kept on the heap and off it, and the cost of a get in each
+ * mode. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=StorageModeBenchmark
+ *
+ * or pass the number of keys and the value length as arguments. The JVM
+ * needs room for the values in both heap and direct memory, e.g.
+ * -Xmx2g -XX:MaxDirectMemorySize=2g for the defaults.
+ */
+public class StorageModeBenchmark {
+
+    static final int GETS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        System.out.println(String.format("%d keys, values of %d chars", keys, length));
+        System.out.println(String.format("%-9s %12s %12s %12s",
+            "mode", "heap MB", "full GC ms", "ns/get"));
+        for (StorageMode mode : StorageMode.values()) {
+            KVStore store = new KVStore(mode);
+            Random random = new Random(1);
+            char[] chars = new char[length];
+            for (int i = 0; i < keys; i++) {
+                for (int c = 0; c < length; c++) {
+                    chars[c] = (char) ('a' + random.nextInt(26));
+                }
+                store.put("key" + i, new String(chars));
+            }
+            double gcMillis = fullGc();
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+
+            long start = System.nanoTime();
+            long total = 0;
+            for (int i = 0; i < GETS; i++) {
+                total += store.get("key" + random.nextInt(keys)).length();
+            }
+            double perGet = (System.nanoTime() - start) / (double) GETS;
+            if (total == 0) {
+                System.out.println();
+            }
+            System.out.println(String.format("%-9s %12.1f %12.1f %12.0f",
+                mode, heap / 1048576.0, gcMillis, perGet));
+            store = null;
+            fullGc();
+        }
+    }
+
+    /**
+     * Run a full collection and return the milliseconds the collectors
+     * report spending on it.
+     */
+    private static double fullGc() {
+        long before = gcMillis();
+        System.gc();
+        return gcMillis() - before;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,68 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TPCLogTest {
+
+    private static final String LOG_PATH = "TPCLogTest.log";
+
+    private TPCMasterHandler masterHandler;
+
+    @Before
+    public void setupLog() throws Exception {
+        new File(LOG_PATH).delete();
+        KVServer server = new KVServer(10, 10);
+        masterHandler = new TPCMasterHandler(1L, server, new TPCLog(LOG_PATH, server));
+    }
+
+    @After
+    public void tearDown() {
+        masterHandler.stop();
+        new File(LOG_PATH).delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void replayKeepsTheCommittedExpiry() throws Exception {
+        commitPut("key", "value", 60 * 1000);
+        Thread.sleep(50);
+
+        KVServer restarted = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, restarted);
+
+        assertEquals("value", restarted.get("key"));
+        assertTrue(restarted.getTtl("key") <= 60 * 1000 - 50);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void replaySkipsPutsThatExpiredMeanwhile() throws Exception {
+        commitPut("key", "old", KVMessage.NO_TTL);
+        commitPut("key", "new", 20);
+        commitPut("other", "value", KVMessage.NO_TTL);
+        Thread.sleep(50);
+
+        KVServer restarted = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, restarted);
+
+        assertFalse(restarted.hasKey("key"));
+        assertEquals("value", restarted.get("other"));
+    }
+
+    /* ----------------------- BEGIN HELPER METHODS ------------------------ */
+
+    private void commitPut(String key, String value, long ttl) {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey(key);
+        put.setValue(value);
+        put.setTtl(ttl);
+        assertEquals(READY, masterHandler.process(put).getMsgType());
+        assertEquals(ACK, masterHandler.process(new KVMessage(COMMIT)).getMsgType());
+    }
+}
@@ -0,0 +1,120 @@
+package kvstore;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures ThreadPool job throughput with as many producers calling addJob as
+ * there are workers calling getJob, from 1 to 64 of each. Every job is a
+ * trivial countdown, so the numbers are dominated by the queue handoff. The
+ * baseline is the pool's old queue: a LinkedList behind one monitor with
+ * wait/notify. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=ThreadPoolBenchmark
+ *
+ * or pass the number of jobs per run as the first argument.
+ */
+public class ThreadPoolBenchmark {
+
+    static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        System.out.println(String.format("%8s %14s %14s %8s",
+            "threads", "monitor jobs/s", "lock-free j/s", "speedup"));
+        for (int threads : THREADS) {
+            double monitor = 0;
+            double lockFree = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                monitor = Math.max(monitor, run(new MonitorThreadPool(threads), threads, jobs));
+                lockFree = Math.max(lockFree, run(new ThreadPool(threads), threads, jobs));
+            }
+            System.out.println(String.format("%8d %14.0f %14.0f %7.2fx",
+                threads, monitor, lockFree, lockFree / monitor));
+        }
+        // the baseline's workers wait in getJob for good
+        System.exit(0);
+    }
+
+    /**
+     * Push jobs through pool from the given number of producer threads and
+     * return jobs per second, measured until the last job has run.
+     */
+    private static double run(final ThreadPool pool, int producers, int jobs)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(jobs);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        final int perProducer = jobs / producers;
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int count = i == 0 ? jobs - perProducer * (producers - 1) : perProducer;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int j = 0; j < count; j++) {
+                            pool.addJob(job);
+                        }
+                    } catch (InterruptedException e) {
+                        // give up
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.stop();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return jobs * 1e9 / elapsed;
+    }
+
+    /**
+     * ThreadPool with its old queue, for comparison.
+     */
+    static class MonitorThreadPool extends ThreadPool {
+
+        final Queue<Runnable> monitorQueue = new LinkedList<Runnable>();
+
+        MonitorThreadPool(int size) {
+            super(0);
+            threads = new Thread[size];
+            for (int i = 0; i < size; i++) {
+                threads[i] = new WorkerThread(this);
+                threads[i].start();
+            }
+        }
+
+        @Override
+        public void addJob(Runnable r) {
+            synchronized (monitorQueue) {
+                monitorQueue.add(r);
+                monitorQueue.notify();
+            }
+        }
+
+        @Override
+        public Runnable getJob() throws InterruptedException {
+            synchronized (monitorQueue) {
+                while (monitorQueue.peek() == null) {
+                    monitorQueue.wait();
+                }
+                return monitorQueue.remove();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package kvstore;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
@@ -143,4 +145,333 @@ public class ThreadPoolTest {
             assertTrue("A thread didn't increment the correct array entry", array[i] == i);
         }
     }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testVirtualModeRunsEveryJob() throws InterruptedException {
+        threadPool = new ThreadPool(1, ExecutionMode.VIRTUAL);
+        if (ThreadPool.supportsVirtualThreads()) {
+            assertEquals(ExecutionMode.VIRTUAL, threadPool.getExecutionMode());
+            assertEquals(0, threadPool.threads.length);
+        } else {
+            assertEquals(ExecutionMode.POOLED, threadPool.getExecutionMode());
+            assertEquals(1, threadPool.threads.length);
+        }
+        for (int i = 0; i < array.length; i++) {
+            threadPool.addJob(t);
+        }
+        Thread.sleep(ThreadPool.supportsVirtualThreads() ? 300 : 1000);
+        for (int i = 0; i < array.length; i++) {
+            assertTrue("A thread didn't increment the correct array entry", array[i] == i);
+        }
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testSaturatedVirtualPoolRejects() throws InterruptedException {
+        // one job at a time when virtual; one running and one queued if not
+        threadPool = new ThreadPool(1, 1, OverloadPolicy.REJECT, ExecutionMode.VIRTUAL);
+        CountDownLatch release = occupyWorker();
+        Recorder[] jobs = new Recorder[2];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder();
+            threadPool.addJob(jobs[i]);
+        }
+        assertEquals(0, jobs[1].rejected.getCount());
+        if (ThreadPool.supportsVirtualThreads()) {
+            assertEquals(0, jobs[0].rejected.getCount());
+        }
+        release.countDown();
+
+        // the slot comes back once the running job is done
+        Recorder fresh;
+        do {
+            fresh = new Recorder();
+            threadPool.addJob(fresh);
+        } while (!fresh.ran.await(10, TimeUnit.MILLISECONDS));
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testFullQueueRejects() throws InterruptedException {
+        threadPool = new ThreadPool(1, 2, OverloadPolicy.REJECT);
+        CountDownLatch release = occupyWorker();
+        Recorder[] jobs = new Recorder[3];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder();
+            threadPool.addJob(jobs[i]);
+        }
+        assertEquals(0, jobs[2].rejected.getCount());
+        release.countDown();
+        assertTrue(jobs[0].ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertTrue(jobs[1].ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertEquals(1, jobs[2].ran.getCount());
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testFullQueueDropsOldest() throws InterruptedException {
+        threadPool = new ThreadPool(1, 2, OverloadPolicy.DROP_OLDEST);
+        CountDownLatch release = occupyWorker();
+        Recorder[] jobs = new Recorder[3];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder();
+            threadPool.addJob(jobs[i]);
+        }
+        assertEquals(0, jobs[0].rejected.getCount());
+        release.countDown();
+        assertTrue(jobs[1].ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertTrue(jobs[2].ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertEquals(1, jobs[0].ran.getCount());
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testFullQueueBlocksProducer() throws InterruptedException {
+        threadPool = new ThreadPool(1, 1, OverloadPolicy.BLOCK);
+        CountDownLatch release = occupyWorker();
+        threadPool.addJob(new Recorder());
+        final Recorder blocked = new Recorder();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    threadPool.addJob(blocked);
+                } catch (InterruptedException e) {
+                    fail("InterruptedException");
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(100);
+        assertTrue(producer.isAlive());
+        release.countDown();
+        producer.join();
+        assertTrue(blocked.ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testShedsJobsThatWaitTooLong() throws InterruptedException {
+        threadPool = new ThreadPool(1);
+        threadPool.shedAfter(5, 20);
+        CountDownLatch release = occupyWorker();
+        Recorder[] jobs = new Recorder[20];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder(10);
+            threadPool.addJob(jobs[i]);
+        }
+        Thread.sleep(50);
+        release.countDown();
+        int ran = 0;
+        int shed = 0;
+        for (Recorder job : jobs) {
+            while (job.ran.getCount() > 0 && job.rejected.getCount() > 0) {
+                Thread.sleep(5);
+            }
+            ran += job.ran.getCount() == 0 ? 1 : 0;
+            shed += job.rejected.getCount() == 0 ? 1 : 0;
+        }
+        assertEquals(jobs.length, ran + shed);
+        assertTrue("no job was shed", shed > 0);
+        assertTrue("every job was shed", ran > 0);
+
+        // once the queue has drained, a fresh job goes through
+        Recorder fresh = new Recorder();
+        threadPool.addJob(fresh);
+        assertTrue(fresh.ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        threadPool.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testHandlerAnswersServerBusy() throws InterruptedException {
+        threadPool = new ThreadPool(1, 1, OverloadPolicy.REJECT);
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(10, 10), threadPool);
+        CountDownLatch release = occupyWorker();
+        final KVMessage[] answers = new KVMessage[2];
+        final CountDownLatch answered = new CountDownLatch(2);
+        KVMessage request = new KVMessage(KVConstants.GET_REQ);
+        request.setKey("key");
+        for (int i = 0; i < answers.length; i++) {
+            final int n = i;
+            handler.handle(request, new NetworkHandler.Reply() {
+                @Override
+                public void send(KVMessage response) {
+                    answers[n] = response;
+                    answered.countDown();
+                }
+            });
+        }
+        assertEquals(KVConstants.ERROR_SERVER_BUSY, answers[1].getMessage());
+        release.countDown();
+        assertTrue(answered.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertEquals(KVConstants.ERROR_NO_SUCH_KEY, answers[0].getMessage());
+        handler.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testHandlerAnswersRequestsThatFail() throws InterruptedException {
+        threadPool = new ThreadPool(1, 1, OverloadPolicy.BLOCK);
+        ServerClientHandler handler = new ServerClientHandler(new KVServer(10, 10), threadPool);
+        final KVMessage[] answers = new KVMessage[2];
+        final CountDownLatch answered = new CountDownLatch(2);
+
+        // process throws on a request without a type
+        handler.handle(new KVMessage((String) null), new NetworkHandler.Reply() {
+            @Override
+            public void send(KVMessage response) {
+                answers[0] = response;
+                answered.countDown();
+            }
+        });
+
+        // a full queue: the request is turned down, not waited on or answered
+        CountDownLatch release = occupyWorker();
+        Recorder queued = new Recorder();
+        threadPool.addJob(queued);
+        KVMessage request = new KVMessage(KVConstants.GET_REQ);
+        request.setKey("key");
+        NetworkHandler.Reply second = new NetworkHandler.Reply() {
+            @Override
+            public void send(KVMessage response) {
+                answers[1] = response;
+                answered.countDown();
+            }
+        };
+        assertFalse(handler.handle(request, second));
+        release.countDown();
+        assertTrue(queued.ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertTrue(handler.handle(request, second));
+        assertTrue(answered.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertEquals(KVConstants.ERROR_SERVER_FAILURE, answers[0].getMessage());
+        assertEquals(KVConstants.ERROR_NO_SUCH_KEY, answers[1].getMessage());
+        handler.stop();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testStopWakesIdleWorkers() throws InterruptedException {
+        threadPool = new ThreadPool(3);
+        Thread.sleep(50);
+        threadPool.stop();
+        assertTrue(threadPool.awaitTermination(kTimeoutQuick));
+        assertEquals(0, threadPool.getPoolSize());
+        for (Thread thread : threadPool.threads) {
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testStopCancelsQueuedJobs() throws InterruptedException {
+        threadPool = new ThreadPool(1);
+        CountDownLatch release = occupyWorker();
+        Recorder queued = new Recorder();
+        threadPool.addJob(queued);
+        threadPool.stop();
+        assertEquals(0, queued.rejected.getCount());
+        Recorder late = new Recorder();
+        threadPool.addJob(late);
+        assertEquals(0, late.rejected.getCount());
+        release.countDown();
+        assertTrue(threadPool.awaitTermination(kTimeoutQuick));
+        assertEquals(1, queued.ran.getCount());
+        assertEquals(1, late.ran.getCount());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testStopCanDrainQueuedJobs() throws InterruptedException {
+        threadPool = new ThreadPool(1);
+        CountDownLatch release = occupyWorker();
+        Recorder queued = new Recorder();
+        threadPool.addJob(queued);
+        threadPool.stop(true);
+        Recorder late = new Recorder();
+        threadPool.addJob(late);
+        assertEquals(0, late.rejected.getCount());
+        release.countDown();
+        assertTrue(threadPool.awaitTermination(kTimeoutQuick));
+        assertEquals(0, queued.ran.getCount());
+        assertEquals(1, queued.rejected.getCount());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testElasticPoolGrowsAndShrinks() throws InterruptedException {
+        threadPool = new ThreadPool(1, 4, 100);
+        assertEquals(1, threadPool.getPoolSize());
+        CountDownLatch release = occupyWorker();
+        Recorder[] jobs = new Recorder[12];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Recorder(50);
+            threadPool.addJob(jobs[i]);
+        }
+        Thread.sleep(20);
+        release.countDown();
+        Thread.sleep(60);
+        int grown = threadPool.getPoolSize();
+        assertTrue("pool did not grow", grown > 1);
+        assertTrue(grown <= 4);
+        for (Recorder job : jobs) {
+            assertTrue(job.ran.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        }
+        while (threadPool.getPoolSize() > 1) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(300);
+        assertEquals(1, threadPool.getPoolSize());
+        assertEquals(1, threadPool.workers.size());
+        threadPool.stop();
+        assertTrue(threadPool.awaitTermination(kTimeoutQuick));
+    }
+
+    /* ----------------------- BEGIN HELPER METHODS ------------------------ */
+
+    /**
+     * Keep threadPool's only worker busy until the returned latch opens.
+     */
+    private CountDownLatch occupyWorker() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    fail("InterruptedException");
+                }
+            }
+        });
+        running.await();
+        return release;
+    }
+
+    /* Remembers whether it was run or rejected. */
+    static class Recorder implements ThreadPool.Sheddable {
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        final long sleepMillis;
+
+        Recorder() {
+            this(0);
+        }
+
+        Recorder(long sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                fail("InterruptedException");
+            }
+            ran.countDown();
+        }
+
+        @Override
+        public void reject() {
+            rejected.countDown();
+        }
+    }
 }
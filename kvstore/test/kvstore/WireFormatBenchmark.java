@@ -0,0 +1,78 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Compares the XML and binary wire formats on the sample messages in
+ * resources/example-msgs: bytes on the wire and encode+decode round trips
+ * per second. Not a JUnit test; run with
+ *
+ *   ant runbench -Dbench=WireFormatBenchmark
+ *
+ * or pass the message directory as the first argument.
+ */
+public class WireFormatBenchmark {
+
+    static final long WARMUP_MILLIS = 500;
+    static final long MEASURE_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "resources/example-msgs");
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("No such directory: " + dir);
+        }
+        Arrays.sort(files);
+
+        System.out.println(String.format("%-28s %10s %10s %12s %12s %8s",
+            "message", "xml bytes", "bin bytes", "xml ops/s", "bin ops/s", "speedup"));
+        for (File file : files) {
+            KVMessage msg;
+            InputStream in = new FileInputStream(file);
+            try {
+                msg = new KVMessage(in);
+            } catch (KVException e) {
+                // garbage.txt and friends are not valid messages
+                continue;
+            } finally {
+                in.close();
+            }
+
+            int xmlBytes = msg.toBytes(WireFormat.XML).length;
+            int binBytes = msg.toBytes(WireFormat.BINARY).length;
+            double xmlOps = roundTrips(msg, WireFormat.XML);
+            double binOps = roundTrips(msg, WireFormat.BINARY);
+            System.out.println(String.format("%-28s %10d %10d %12.0f %12.0f %7.1fx",
+                file.getName(), xmlBytes, binBytes, xmlOps, binOps, binOps / xmlOps));
+        }
+    }
+
+    /**
+     * Encode and decode msg in a loop and report round trips per second.
+     */
+    static double roundTrips(KVMessage msg, WireFormat format)
+            throws KVException, IOException {
+        run(msg, format, WARMUP_MILLIS);
+        return run(msg, format, MEASURE_MILLIS);
+    }
+
+    private static double run(KVMessage msg, WireFormat format, long millis)
+            throws KVException, IOException {
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long now;
+        do {
+            byte[] bytes = msg.toBytes(format);
+            new KVMessage(new ByteArrayInputStream(bytes));
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - start);
+    }
+}
@@ -0,0 +1,109 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkStealingThreadPoolTest {
+
+    WorkStealingThreadPool threadPool;
+
+    @After
+    public void tearDown() {
+        if (threadPool != null) {
+            threadPool.stop();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void runsJobsAddedFromOutside() throws InterruptedException {
+        threadPool = new WorkStealingThreadPool(3);
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            threadPool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertEquals(0, threadPool.jobQueue.size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void subTasksGoToTheSubmittingWorker() throws InterruptedException {
+        threadPool = new WorkStealingThreadPool(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    final int subTask = i;
+                    try {
+                        threadPool.addJob(new Runnable() {
+                            @Override
+                            public void run() {
+                                order.add(subTask);
+                                done.countDown();
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        fail("InterruptedException");
+                    }
+                }
+                assertEquals(0, threadPool.jobQueue.size());
+                assertEquals(3, threadPool.deques.get(0).size());
+            }
+        });
+        assertTrue(done.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        // newest first on the worker's own deque
+        assertEquals(Arrays.asList(2, 1, 0), order);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void idleWorkersStealSubTasks() throws InterruptedException {
+        threadPool = new WorkStealingThreadPool(4);
+        final Set<Thread> ranOn = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch subTasksDone = new CountDownLatch(8);
+        final CountDownLatch parentDone = new CountDownLatch(1);
+        final Thread[] parent = new Thread[1];
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                parent[0] = Thread.currentThread();
+                try {
+                    for (int i = 0; i < 8; i++) {
+                        threadPool.addJob(new Runnable() {
+                            @Override
+                            public void run() {
+                                ranOn.add(Thread.currentThread());
+                                subTasksDone.countDown();
+                            }
+                        });
+                    }
+                    // the submitting worker is busy until the others finish
+                    subTasksDone.await();
+                } catch (InterruptedException e) {
+                    fail("InterruptedException");
+                }
+                parentDone.countDown();
+            }
+        });
+        assertTrue(parentDone.await(kTimeoutQuick, TimeUnit.MILLISECONDS));
+        assertFalse(ranOn.contains(parent[0]));
+        assertFalse(ranOn.isEmpty());
+    }
+}